@@ -0,0 +1,309 @@
+// Metrics.java --
+//
+// Metrics.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2026 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NonNls;
+
+import com.google.gwt.safehtml.shared.SafeHtmlUtils;
+import com.google.gwt.user.client.ui.Anchor;
+import com.google.gwt.user.client.ui.DecoratorPanel;
+import com.google.gwt.user.client.ui.Grid;
+import com.google.gwt.user.client.ui.HTML;
+import com.google.gwt.user.client.ui.Label;
+import com.google.gwt.user.client.ui.VerticalPanel;
+import com.google.gwt.user.client.ui.Widget;
+
+import com.electriccloud.commander.client.domain.Property;
+import com.electriccloud.commander.client.domain.PropertySheet;
+import com.electriccloud.commander.client.requests.GetPropertiesRequest;
+import com.electriccloud.commander.client.responses.CommanderError;
+import com.electriccloud.commander.client.responses.PropertySheetCallback;
+import com.electriccloud.commander.gwt.client.ComponentBase;
+import com.electriccloud.commander.gwt.client.protocol.xml.RequestSerializerImpl;
+import com.electriccloud.commander.gwt.client.util.CommanderUrlBuilder;
+
+import static com.electriccloud.commander.gwt.client.util.CommanderUrlBuilder.createUrl;
+
+/**
+ * Renders the per-phase Perforce metrics of a job (elapsed time and the
+ * -Ztrack counters the driver saves under /myJob/p4Metrics) as a table.
+ * When a compareJobId is given, normally the previous run of the same
+ * schedule, each value is shown with its change from that job and increases
+ * of more than {@link #REGRESSION_PERCENT} percent are highlighted.
+ */
+public class Metrics
+    extends ComponentBase
+{
+
+    //~ Static fields/initializers ---------------------------------------------
+
+    @NonNls private static final String   METRICS_PROPERTY   = "p4Metrics";
+    private static final int              REGRESSION_PERCENT = 10;
+    @NonNls private static final String[] COLUMNS            = {
+        "elapsed", "commands", "serverTime", "rpcMsgsIn", "rpcMsgsOut",
+        "rpcMbIn", "rpcMbOut", "lockWaitRead", "lockWaitWrite", "bytesAvoided"
+    };
+
+    // Counters for which an increase is an improvement
+    @NonNls private static final String[] HIGHER_IS_BETTER   = {
+        "bytesAvoided"
+    };
+
+    //~ Instance fields --------------------------------------------------------
+
+    private String        m_jobId;
+    private String        m_compareJobId;
+    private VerticalPanel m_panel;
+
+    // Phase name -> counter name -> value, for this job and the compared one
+    private Map<String, Map<String, String>> m_metrics;
+    private Map<String, Map<String, String>> m_compareMetrics;
+    private List<String>                     m_phases = new ArrayList<String>();
+
+    //~ Methods ----------------------------------------------------------------
+
+    @Override public Widget doInit()
+    {
+
+        /* Renders the component. */
+        DecoratorPanel rootPanel = new DecoratorPanel();
+
+        m_panel = new VerticalPanel();
+        m_panel.setBorderWidth(0);
+        m_jobId        = getGetParameter("jobId");
+        m_compareJobId = getGetParameter("compareJobId");
+
+        CommanderUrlBuilder urlBuilder = createUrl("jobDetails.php")
+                .setParameter("jobId", m_jobId);
+
+        // noinspection HardCodedStringLiteral,StringConcatenation
+        m_panel.add(new Anchor("Job: " + m_jobId, urlBuilder.buildString()));
+        m_panel.add(new HTML("<h1>Perforce Metrics</h1>"));
+
+        if (m_compareJobId != null && m_compareJobId.length() > 0) {
+            CommanderUrlBuilder compareUrl = createUrl("jobDetails.php")
+                    .setParameter("jobId", m_compareJobId);
+
+            // noinspection HardCodedStringLiteral,StringConcatenation
+            m_panel.add(new Anchor("Compared with job: " + m_compareJobId,
+                    compareUrl.buildString()));
+        }
+        else {
+            m_compareJobId = null;
+        }
+
+        rootPanel.add(m_panel);
+        loadMetrics(m_jobId, false);
+
+        return rootPanel;
+    }
+
+    private void loadMetrics(
+            final String  jobId,
+            final boolean compare)
+    {
+        GetPropertiesRequest req = getRequestFactory()
+                .createGetPropertiesRequest();
+
+        req.setPath("/jobs/" + jobId + "/" + METRICS_PROPERTY);
+        req.setCallback(new PropertySheetCallback() {
+                @Override public void handleResponse(PropertySheet response)
+                {
+                    metricsLoaded(compare, parseMetrics(response));
+                }
+
+                @Override public void handleError(CommanderError error)
+                {
+
+                    if (getLog().isDebugEnabled()) {
+                        getLog().debug("Error trying to access metrics of job "
+                                + jobId);
+                    }
+
+                    metricsLoaded(compare, null);
+                }
+            });
+
+        if (getLog().isDebugEnabled()) {
+            getLog().debug("p4 Metrics: Issuing Commander request: "
+                    + new RequestSerializerImpl().serialize(req));
+        }
+
+        doRequest(req);
+    }
+
+    private Map<String, Map<String, String>> parseMetrics(
+            PropertySheet response)
+    {
+        Map<String, Map<String, String>> metrics =
+            new HashMap<String, Map<String, String>>();
+
+        for (Property p : response.getProperties()
+                                  .values()) {
+            Map<String, String> values = new HashMap<String, String>();
+
+            if (p.getValue() != null) {
+
+                for (String line : p.getValue()
+                                    .split("\n")) {
+                    int eq = line.indexOf('=');
+
+                    if (eq > 0) {
+                        values.put(line.substring(0, eq),
+                            line.substring(eq + 1));
+                    }
+                }
+            }
+
+            metrics.put(p.getName(), values);
+        }
+
+        return metrics;
+    }
+
+    private void metricsLoaded(
+            boolean                          compare,
+            Map<String, Map<String, String>> metrics)
+    {
+
+        if (compare) {
+            m_compareMetrics = metrics;
+            render();
+
+            return;
+        }
+
+        if (metrics == null || metrics.isEmpty()) {
+
+            // noinspection HardCodedStringLiteral
+            m_panel.add(new Label("No Perforce metrics Found"));
+
+            return;
+        }
+
+        m_metrics = metrics;
+
+        // Phases in the order a checkout runs them, then any others
+        for (String phase : new String[] {
+                    "client", "clean", "seed", "untracked", "repair", "sync",
+                    "unshelve", "changelog", "staging"
+                }) {
+
+            if (m_metrics.containsKey(phase)) {
+                m_phases.add(phase);
+            }
+        }
+
+        for (String phase : m_metrics.keySet()) {
+
+            if (!m_phases.contains(phase)) {
+                m_phases.add(phase);
+            }
+        }
+
+        if (m_compareJobId != null) {
+            loadMetrics(m_compareJobId, true);
+        }
+        else {
+            render();
+        }
+    }
+
+    private void render()
+    {
+        Grid grid = new Grid(m_phases.size() + 1, COLUMNS.length + 1);
+
+        grid.setBorderWidth(1);
+        grid.setCellPadding(4);
+
+        // noinspection HardCodedStringLiteral
+        grid.setHTML(0, 0, "<b>Phase</b>");
+
+        for (int column = 0; column < COLUMNS.length; column++) {
+            grid.setHTML(0, column + 1, "<b>" + COLUMNS[column] + "</b>");
+        }
+
+        for (int row = 0; row < m_phases.size(); row++) {
+            String              phase    = m_phases.get(row);
+            Map<String, String> values   = m_metrics.get(phase);
+            Map<String, String> previous = m_compareMetrics == null
+                ? null
+                : m_compareMetrics.get(phase);
+
+            grid.setText(row + 1, 0, phase);
+
+            for (int column = 0; column < COLUMNS.length; column++) {
+                grid.setHTML(row + 1, column + 1,
+                    formatCell(values.get(COLUMNS[column]),
+                        previous == null ? null
+                                         : previous.get(COLUMNS[column]),
+                        Arrays.asList(HIGHER_IS_BETTER)
+                              .contains(COLUMNS[column])));
+            }
+        }
+
+        m_panel.add(grid);
+    }
+
+    /**
+     * Formats a counter, with its change from the compared job if that job
+     * has it.
+     */
+    private static String formatCell(
+            String  value,
+            String  previous,
+            boolean higherIsBetter)
+    {
+
+        if (value == null) {
+            return "";
+        }
+
+        String cell = SafeHtmlUtils.htmlEscape(value);
+
+        if (previous == null) {
+            return cell;
+        }
+
+        double current;
+        double before;
+
+        try {
+            current = Double.parseDouble(value);
+            before  = Double.parseDouble(previous);
+        }
+        catch (NumberFormatException e) {
+            return cell;
+        }
+
+        if (before == 0) {
+            return cell;
+        }
+
+        long percent = Math.round((current - before) * 100 / before);
+
+        // noinspection HardCodedStringLiteral,StringConcatenation
+        String delta = " (" + (percent > 0 ? "+" : "") + percent + "%)";
+
+        if (higherIsBetter ? -percent > REGRESSION_PERCENT
+                           : percent > REGRESSION_PERCENT) {
+
+            // noinspection HardCodedStringLiteral,StringConcatenation
+            return cell + "<span style=\"color:red\">" + delta + "</span>";
+        }
+
+        return cell + delta;
+    }
+}
@@ -0,0 +1,31 @@
+
+// MetricsFactory.java --
+//
+// MetricsFactory.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2026 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM.client;
+
+import com.electriccloud.commander.gwt.client.Component;
+import com.electriccloud.commander.gwt.client.ComponentBaseFactory;
+import com.electriccloud.commander.gwt.client.ComponentContext;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * This factory is responsible for providing instances of the metrics class.
+ */
+public class MetricsFactory
+    extends ComponentBaseFactory
+{
+
+    //~ Methods ----------------------------------------------------------------
+
+    @NotNull
+    @Override public Component createComponent(ComponentContext jso)
+    {
+        return new Metrics();
+    }
+}
@@ -1,4 +1,3 @@
-
 // Reports.java --
 //
 // Reports.java is part of ElectricCommander.
@@ -9,11 +8,25 @@
 
 package ecplugins.ECSCM.client;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.jetbrains.annotations.NonNls;
 
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.event.logical.shared.OpenEvent;
+import com.google.gwt.event.logical.shared.OpenHandler;
+import com.google.gwt.safehtml.shared.SafeHtmlUtils;
 import com.google.gwt.user.client.ui.Anchor;
+import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.DecoratorPanel;
+import com.google.gwt.user.client.ui.DisclosurePanel;
 import com.google.gwt.user.client.ui.HTML;
+import com.google.gwt.user.client.ui.HorizontalPanel;
 import com.google.gwt.user.client.ui.Label;
 import com.google.gwt.user.client.ui.VerticalPanel;
 import com.google.gwt.user.client.ui.Widget;
@@ -21,7 +34,9 @@ import com.google.gwt.user.client.ui.Widget;
 import com.electriccloud.commander.client.domain.Property;
 import com.electriccloud.commander.client.domain.PropertySheet;
 import com.electriccloud.commander.client.requests.GetPropertiesRequest;
+import com.electriccloud.commander.client.requests.GetPropertyRequest;
 import com.electriccloud.commander.client.responses.CommanderError;
+import com.electriccloud.commander.client.responses.PropertyCallback;
 import com.electriccloud.commander.client.responses.PropertySheetCallback;
 import com.electriccloud.commander.gwt.client.ComponentBase;
 import com.electriccloud.commander.gwt.client.protocol.xml.RequestSerializerImpl;
@@ -31,11 +46,36 @@ import com.electriccloud.commander.gwt.client.util.CommanderUrlBuilder;
 import static com.electriccloud.commander.gwt.client.util.CommanderUrlBuilder.createUrl;
 
 /**
+ * Renders the Perforce changelogs of a job one page of collapsed sections at
+ * a time. The small per-key summaries written by the driver are fetched
+ * first; a changelog body is only requested when its section is expanded.
+ * Jobs run by older plugin versions have no summaries, in which case the
+ * changelog sheet itself is fetched but still rendered lazily.
  */
 public class Reports
     extends ComponentBase
 {
 
+    //~ Static fields/initializers ---------------------------------------------
+
+    @NonNls private static final String CHANGELOGS_PROPERTY = "ecscm_changeLogs";
+    @NonNls private static final String SUMMARY_PROPERTY    =
+        "ecscm_changeLogSummary";
+    private static final int            DEFAULT_PAGE_SIZE   = 20;
+
+    //~ Instance fields --------------------------------------------------------
+
+    private String       m_jobId;
+    private int          m_pageSize = DEFAULT_PAGE_SIZE;
+    private int          m_page;
+    private List<String> m_keys     = new ArrayList<String>();
+
+    // Summary text (or, for older jobs, the changelog itself) per key
+    private Map<String, String> m_summaries = new HashMap<String, String>();
+    private boolean             m_haveBodies;
+    private FormTable           m_formTable;
+    private Label               m_pageLabel;
+
     //~ Methods ----------------------------------------------------------------
 
     @Override public Widget doInit()
@@ -47,12 +87,20 @@ public class Reports
 
         vPanel.setBorderWidth(0);
 
-        String              jobId      = getGetParameter("jobId");
+        m_jobId = getGetParameter("jobId");
+
+        String pageSize = getGetParameter("pageSize");
+
+        if (pageSize != null && pageSize.matches("\\d+")
+                && Integer.parseInt(pageSize) > 0) {
+            m_pageSize = Integer.parseInt(pageSize);
+        }
+
         CommanderUrlBuilder urlBuilder = createUrl("jobDetails.php")
-                .setParameter("jobId", jobId);
+                .setParameter("jobId", m_jobId);
 
         // noinspection HardCodedStringLiteral,StringConcatenation
-        vPanel.add(new Anchor("Job: " + jobId, urlBuilder.buildString()));
+        vPanel.add(new Anchor("Job: " + m_jobId, urlBuilder.buildString()));
 
         Widget htmlH1 = new HTML("<h1>Perforce Changelog</h1>");
 
@@ -63,31 +111,64 @@ public class Reports
 
         vPanel.add(htmlLabel);
 
-        FormTable formTable = getUIFactory().createFormTable();
+        m_formTable = getUIFactory().createFormTable();
 
-        callback("ecscm_changeLogs", formTable);
-        vPanel.add(formTable.getWidget());
+        vPanel.add(createPager());
+        vPanel.add(m_formTable.getWidget());
         rootPanel.add(vPanel);
 
+        callback(SUMMARY_PROPERTY);
+
         return rootPanel;
     }
 
-    private void callback(
-            @NonNls String  propertyName,
-            final FormTable formTable)
+    private Widget createPager()
+    {
+        HorizontalPanel pager    = new HorizontalPanel();
+        Button          previous = new Button("Previous");
+        Button          next     = new Button("Next");
+
+        m_pageLabel = new Label();
+        previous.addClickHandler(new ClickHandler() {
+                @Override public void onClick(ClickEvent event)
+                {
+
+                    if (m_page > 0) {
+                        m_page--;
+                        renderPage();
+                    }
+                }
+            });
+        next.addClickHandler(new ClickHandler() {
+                @Override public void onClick(ClickEvent event)
+                {
+
+                    if ((m_page + 1) * m_pageSize < m_keys.size()) {
+                        m_page++;
+                        renderPage();
+                    }
+                }
+            });
+        pager.add(previous);
+        pager.add(m_pageLabel);
+        pager.add(next);
+
+        return pager;
+    }
+
+    private void callback(@NonNls final String propertyName)
     {
-        String jobId = getGetParameter("jobId");
 
         if (getLog().isDebugEnabled()) {
             getLog().debug("this is getGetParameter for jobId: "
                     + getGetParameter("jobId"));
-            getLog().debug("this is jobId: " + jobId);
+            getLog().debug("this is jobId: " + m_jobId);
         }
 
         GetPropertiesRequest req = getRequestFactory()
                 .createGetPropertiesRequest();
 
-        req.setPath("/jobs/" + jobId + "/" + propertyName);
+        req.setPath("/jobs/" + m_jobId + "/" + propertyName);
 
         if (getLog().isDebugEnabled()) {
             getLog().debug(
@@ -97,18 +178,29 @@ public class Reports
         req.setCallback(new PropertySheetCallback() {
                 @Override public void handleResponse(PropertySheet response)
                 {
-                    parseResponse(response, formTable);
+                    parseResponse(response,
+                        CHANGELOGS_PROPERTY.equals(propertyName));
                 }
 
                 @Override public void handleError(CommanderError error)
                 {
 
                     if (getLog().isDebugEnabled()) {
-                        getLog().debug("Error trying to access property");
+                        getLog().debug("Error trying to access property "
+                                + propertyName);
                     }
 
-                    // noinspection HardCodedStringLiteral
-                    formTable.addRow("0", new Label("No changelogs Found"));
+                    if (SUMMARY_PROPERTY.equals(propertyName)) {
+
+                        // Job predates changelog summaries
+                        callback(CHANGELOGS_PROPERTY);
+                    }
+                    else {
+
+                        // noinspection HardCodedStringLiteral
+                        m_formTable.addRow("0",
+                            new Label("No changelogs Found"));
+                    }
                 }
             });
 
@@ -122,7 +214,7 @@ public class Reports
 
     private void parseResponse(
             PropertySheet response,
-            FormTable     form)
+            boolean       haveBodies)
     {
 
         if (getLog().isDebugEnabled()) {
@@ -131,18 +223,127 @@ public class Reports
                               .size() + " properties");
         }
 
+        m_haveBodies = haveBodies;
+        m_keys.clear();
+        m_summaries.clear();
+
         for (Property p : response.getProperties()
                                   .values()) {
-            HTML htmlH1 = new HTML("<h3>" + p.getName() + "</h3> <pre>"
-                        + p.getValue() + "</pre>");
+            m_keys.add(p.getName());
+            m_summaries.put(p.getName(), p.getValue());
+        }
+
+        Collections.sort(m_keys);
+        m_page = 0;
+        renderPage();
+    }
+
+    private void renderPage()
+    {
+        m_formTable.removeAllRows();
+
+        int first = m_page * m_pageSize;
+        int last  = Math.min(first + m_pageSize, m_keys.size());
+
+        // noinspection HardCodedStringLiteral,StringConcatenation
+        m_pageLabel.setText(m_keys.isEmpty()
+                ? ""
+                : " " + (first + 1) + "-" + last + " of " + m_keys.size()
+                    + " ");
+
+        if (m_keys.isEmpty()) {
 
-            form.addRow("0", htmlH1);
+            // noinspection HardCodedStringLiteral
+            m_formTable.addRow("0", new Label("No changelogs Found"));
+        }
+
+        for (String key : m_keys.subList(first, last)) {
+            m_formTable.addRow("0", createSection(key));
+        }
+    }
+
+    private Widget createSection(final String key)
+    {
+        String header = m_haveBodies
+                ? key
+                : key + " (" + describeSummary(m_summaries.get(key)) + ")";
+        final DisclosurePanel section = new DisclosurePanel(header);
+
+        section.addOpenHandler(new OpenHandler<DisclosurePanel>() {
+                @Override public void onOpen(OpenEvent<DisclosurePanel> event)
+                {
+
+                    if (section.getContent() != null) {
+                        return;
+                    }
+
+                    if (m_haveBodies) {
+                        section.setContent(createBody(m_summaries.get(key)));
+                    }
+                    else {
+                        section.setContent(new Label("Loading..."));
+                        loadChangelog(key, section);
+                    }
+                }
+            });
+
+        return section;
+    }
+
+    private void loadChangelog(
+            String                key,
+            final DisclosurePanel section)
+    {
+        GetPropertyRequest req = getRequestFactory()
+                .createGetPropertyRequest();
+
+        req.setPropertyName("/jobs/" + m_jobId + "/" + CHANGELOGS_PROPERTY
+                + "/" + key);
+        req.setCallback(new PropertyCallback() {
+                @Override public void handleResponse(Property response)
+                {
+                    section.setContent(createBody(response.getValue()));
+                }
+
+                @Override public void handleError(CommanderError error)
+                {
+
+                    // noinspection HardCodedStringLiteral
+                    section.setContent(new Label("No changelog Found"));
+                }
+            });
+
+        doRequest(req);
+    }
 
-            if (getLog().isDebugEnabled()) {
-                getLog().debug("  propertyName="
-                        + p.getName()
-                        + ", value=" + p.getValue());
+    private static Widget createBody(String changelog)
+    {
+        return new HTML("<pre>" + SafeHtmlUtils.htmlEscape(
+                    changelog == null ? "" : changelog) + "</pre>");
+    }
+
+    /**
+     * Turns a "changes=N\nusers=...\nfiles=N\nbytes=N" summary written by the
+     * driver into the section header text.
+     */
+    private static String describeSummary(String summary)
+    {
+        Map<String, String> values = new HashMap<String, String>();
+
+        if (summary != null) {
+
+            for (String line : summary.split("\n")) {
+                int eq = line.indexOf('=');
+
+                if (eq > 0) {
+                    values.put(line.substring(0, eq), line.substring(eq + 1));
+                }
             }
         }
+
+        // noinspection HardCodedStringLiteral,StringConcatenation
+        return values.get("changes") + " changes by "
+            + values.get("users") + ", " + values.get("files") + " files, "
+            + values.get("bytes") + " bytes";
     }
 }
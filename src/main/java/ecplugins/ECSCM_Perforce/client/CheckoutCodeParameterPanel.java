@@ -72,12 +72,24 @@ public class CheckoutCodeParameterPanel
     static final String DELETEFILES_ID  = "deleteFiles";
     static final String AUTOLOGIN_ID    = "autoLogin";
 
+    // How Smart Sync finds the untracked files to delete
+    static final String DELETEFILESENGINE_ID  = "deleteFilesEngine";
+    static final String DELETEFILESDRYRUN_ID  = "deleteFilesDryRun";
+    static final String DELETEFILESWORKERS_ID = "deleteFilesWorkers";
+
+    // Lets Smart Sync skip the workspace diff when nothing changed locally
+    static final String SMARTSYNCFINGERPRINT_ID = "smartSyncFingerprint";
+
     // static final String CLIENT_ID = "client";
     static final String TEMPLATE_ID = "template";
     static final String STREAM_ID   = "stream";
     static final String BRANCH_ID   = "branch";
     static final String VIEW_ID     = "view";
 
+    // Multi-source checkout
+    static final String SOURCES_ID       = "sources";
+    static final String SOURCEWORKERS_ID = "sourceWorkers";
+
     // HEC - added for Riot Games
     static final String UNIQUEWORKSPACE_ID    = "prefix";
     static final String POSTFIX_ID            = "postfix";
@@ -88,10 +100,20 @@ public class CheckoutCodeParameterPanel
     static final String MODTIME_ID            = "modtime";
     static final String RMDIR_ID              = "rmdir";
     static final String CLEAN_ID              = "clean";
+    static final String CLEANMODE_ID          = "cleanMode";
+    static final String SEEDARCHIVEDIR_ID     = "seedArchiveDir";
     static final String CHANGELISTNUMS_ID     = "unshelveCLs";
+    static final String UNSHELVEWORKERS_ID    = "unshelveWorkers";
     static final String REPORTONLY_ID         = "reportOnly";
     static final String GENERATE_CHANGELOG_ID = "generateChangelog";
 
+    // Reusable client pool
+    static final String CLIENTPOOL_ID           = "clientPool";
+    static final String CLIENTPOOLDIR_ID        = "clientPoolDir";
+    static final String CLIENTPOOLMAXCLIENTS_ID = "clientPoolMaxClients";
+    static final String CLIENTPOOLMAXAGE_ID     = "clientPoolMaxAge";
+    static final String CLIENTPOOLMAXSIZE_ID    = "clientPoolMaxSize";
+
     //~ Instance fields --------------------------------------------------------
 
     // The actual form we are going to use will be instantiated at runtime via
@@ -182,6 +204,12 @@ public class CheckoutCodeParameterPanel
         coParameterForm.addRow(false, "View:",
             "An explicit client view specification to be used as the template for the temporary client. The depot and file paths must be specified in standard view format. However, the depot and file specification on each line must be separated by a semicolon instead of a space.",
             VIEW_ID, "", new TextArea());
+        coParameterForm.addRow(false, "Sources:",
+            "Several sources to check out in one step instead of the source above. Each source is synced with a client of its own into its directory under the Destination Directory, and gets its own changelog. Standard Sync only.",
+            SOURCES_ID, "", new CheckoutSources());
+        coParameterForm.addRow(false, "Source Workers:",
+            "The number of sources synced at the same time (Default: 4).",
+            SOURCEWORKERS_ID, "4", new TextBox());
         // HEC - changes for RIOT games
 
         // adding the six options presented through the p4v interface
@@ -255,7 +283,7 @@ public class CheckoutCodeParameterPanel
                 "threads=10");
 
         coParameterForm.addRow(false, "Parallel Sync:",
-            "Enable parallel sync option, requires server version 2014.1 or later.",
+            "Enable parallel sync option, requires server version 2014.1 or later. Check Auto to choose the options from the size of each sync, the agent cores and the server limit.",
             PARALLELSYNC_ID, "", parallelSyncOptions);
 
         final CustomValueCheckBox forcedCheckbox = getUIFactory()
@@ -273,6 +301,17 @@ public class CheckoutCodeParameterPanel
             "Clean the local workspace, and perform a full sync", CLEAN_ID, "",
             cleanCheckbox);
 
+        final ValuedListBox cleanModeLB = getUIFactory().createValuedListBox();
+
+        cleanModeLB.addItem("Wipe and full sync", "wipe");
+        cleanModeLB.addItem("Verify against the have list (p4 clean)", "verify");
+        coParameterForm.addRow(false, "Clean Mode:",
+            "How the local workspace is cleaned: delete everything and sync every file again (p4 sync -f), or set the have list to the change (p4 flush) and only refresh the files that differ and delete the files that are not in the depot (p4 clean, with p4 diff on servers older than 2014.1). Empty directories are kept by verify.",
+            CLEANMODE_ID, "wipe", cleanModeLB);
+        coParameterForm.addRow(false, "Seed Archive Directory:",
+            "Directory of workspace seed archives, usually on a shared filesystem. An empty workspace is restored from the newest archive of the same view at or before the change, p4 flush records it in the have list and the sync only transfers newer revisions. Archives are written by the CaptureSeedArchive procedure. Standard Sync only.",
+            SEEDARCHIVEDIR_ID, "", new TextBox());
+
         // bhandley - remove this parameter and UI element. It doesn't do
         // anything in the driver code final CustomValueCheckBox
         // refreshClientFromTemplateCheckbox =
@@ -297,6 +336,33 @@ public class CheckoutCodeParameterPanel
                 }
             });
 
+        final CustomValueCheckBox clientPoolCheckbox = getUIFactory()
+                .createCustomValueCheckBox("1", "0");
+
+        coParameterForm.addRow(false, "Use Client Pool:",
+            "Lease a client and its workspace from a pool kept on the agent instead of creating a temporary client, so the sync only transfers the files that changed since the last build with the same source. The workspace lives in the pool directory (published as /myJob/P4ROOT); the Destination Directory, if given, is linked to it. Standard Sync without Retain Client only.",
+            CLIENTPOOL_ID, "", clientPoolCheckbox);
+        clientPoolCheckbox.addValueChangeHandler(
+            new ValueChangeHandler<String>() {
+                @Override public void onValueChange(
+                        ValueChangeEvent<String> event)
+                {
+                    updateRowVisibility();
+                }
+            });
+        coParameterForm.addRow(false, "Client Pool Directory:",
+            "The directory holding the pooled workspaces (Default: ecscm-p4-pool in the agent's temporary directory).",
+            CLIENTPOOLDIR_ID, "", new TextBox());
+        coParameterForm.addRow(false, "Client Pool Size:",
+            "The maximum number of clients kept in the pool; the least recently used free client is deleted first (Default: 10).",
+            CLIENTPOOLMAXCLIENTS_ID, "10", new TextBox());
+        coParameterForm.addRow(false, "Client Pool Maximum Age:",
+            "The number of days after which an unused pooled client is deleted (Default: 7).",
+            CLIENTPOOLMAXAGE_ID, "7", new TextBox());
+        coParameterForm.addRow(false, "Client Pool Disk Limit:",
+            "The maximum disk space in MB used by the pooled workspaces; the least recently used free clients are deleted to stay under it (Default: no limit).",
+            CLIENTPOOLMAXSIZE_ID, "", new TextBox());
+
         final CustomValueCheckBox checkoutSingleFileCheckbox = getUIFactory()
                 .createCustomValueCheckBox("1", "0");
 
@@ -315,6 +381,41 @@ public class CheckoutCodeParameterPanel
         coParameterForm.addRow(false, "Delete untracked files:",
             "During a Smart Sync, do not delete files that are not found in the Perforce repository.",
             DELETEFILES_ID, "", deleteFilesCheckbox);
+        deleteFilesCheckbox.addValueChangeHandler(
+            new ValueChangeHandler<String>() {
+                @Override public void onValueChange(
+                        ValueChangeEvent<String> event)
+                {
+                    updateRowVisibility();
+                }
+            });
+
+        final ValuedListBox deleteFilesEngineLB = getUIFactory()
+                .createValuedListBox();
+
+        deleteFilesEngineLB.addItem("Scan workspace (p4 have)", "find");
+        deleteFilesEngineLB.addItem("Server compare (p4 clean/reconcile -n)",
+            "reconcile");
+        coParameterForm.addRow(false, "Untracked Files Engine:",
+            "How untracked files are found: by scanning the workspace (skipping directories the client view does not map) and running p4 have on every file, or by letting the server compare the workspace with the have list (p4 clean -n, requires server version 2014.1; p4 reconcile -n on 2012.2 and later).",
+            DELETEFILESENGINE_ID, "find", deleteFilesEngineLB);
+
+        final CustomValueCheckBox deleteFilesDryRunCheckbox = getUIFactory()
+                .createCustomValueCheckBox("1", "0");
+
+        coParameterForm.addRow(false, "Untracked Files Dry Run:",
+            "Only report the untracked files that would be deleted.",
+            DELETEFILESDRYRUN_ID, "", deleteFilesDryRunCheckbox);
+        coParameterForm.addRow(false, "Untracked Files Scan Workers:",
+            "The number of processes scanning the workspace for untracked files (Default: 4).",
+            DELETEFILESWORKERS_ID, "4", new TextBox());
+
+        final CustomValueCheckBox fingerprintCheckbox = getUIFactory()
+                .createCustomValueCheckBox("1", "0");
+
+        coParameterForm.addRow(false, "Workspace Fingerprint:",
+            "Record a fingerprint of the workspace (file sizes and modification times) after each Smart Sync, and skip the full workspace diff when the workspace still matches it on the next run.",
+            SMARTSYNCFINGERPRINT_ID, "", fingerprintCheckbox);
 
         final CustomValueCheckBox autoLoginCheckbox = getUIFactory()
                 .createCustomValueCheckBox("1", "0");
@@ -327,6 +428,9 @@ public class CheckoutCodeParameterPanel
         coParameterForm.addRow(true, "Unshelve CLs:",
             "Enter a list (one per line) of Change List #s to unshelve",
             CHANGELISTNUMS_ID, "", new TextArea());
+        coParameterForm.addRow(false, "Unshelve Workers:",
+            "The number of shelved changes to unshelve at the same time when they change different files (Default: 1).",
+            UNSHELVEWORKERS_ID, "1", new TextBox());
 
         // HEC - Don't Sync, Report Only
         final CustomValueCheckBox reportOnlyCheckbox = getUIFactory()
@@ -407,6 +511,25 @@ public class CheckoutCodeParameterPanel
             SMARTSYNC_ID.equals(syncType));
         coParameterForm.setPropertyRequired(DELETEFILES_ID, false); // optional
         m_detailIsRelevant.put(DELETEFILES_ID, SMARTSYNC_ID.equals(syncType));
+        coParameterForm.setRowVisible(SMARTSYNCFINGERPRINT_ID,
+            SMARTSYNC_ID.equals(syncType));
+        coParameterForm.setPropertyRequired(SMARTSYNCFINGERPRINT_ID, false);
+        m_detailIsRelevant.put(SMARTSYNCFINGERPRINT_ID,
+            SMARTSYNC_ID.equals(syncType));
+
+        // The untracked file options only matter when files are deleted
+        boolean deleteFiles = SMARTSYNC_ID.equals(syncType)
+                && "1".equals(coParameterForm.getValue(DELETEFILES_ID));
+
+        for (String key : new String[] {
+                    DELETEFILESENGINE_ID,
+                    DELETEFILESDRYRUN_ID,
+                    DELETEFILESWORKERS_ID,
+                }) {
+            coParameterForm.setRowVisible(key, deleteFiles);
+            coParameterForm.setPropertyRequired(key, false);
+            m_detailIsRelevant.put(key, deleteFiles);
+        }
 
 /*
         // Destination and Client Name Prefix are not used with a sourcetype of 'client'
@@ -427,6 +550,15 @@ public class CheckoutCodeParameterPanel
             STANDARDSYNC_ID.equals(syncType));
         coParameterForm.setPropertyRequired(CLEAN_ID, false); // optional
         m_detailIsRelevant.put(CLEAN_ID, STANDARDSYNC_ID.equals(syncType));
+        coParameterForm.setRowVisible(CLEANMODE_ID,
+            STANDARDSYNC_ID.equals(syncType));
+        coParameterForm.setPropertyRequired(CLEANMODE_ID, false); // optional
+        m_detailIsRelevant.put(CLEANMODE_ID, STANDARDSYNC_ID.equals(syncType));
+        coParameterForm.setRowVisible(SEEDARCHIVEDIR_ID,
+            STANDARDSYNC_ID.equals(syncType));
+        coParameterForm.setPropertyRequired(SEEDARCHIVEDIR_ID, false); // optional
+        m_detailIsRelevant.put(SEEDARCHIVEDIR_ID,
+            STANDARDSYNC_ID.equals(syncType));
 
         // HEC - Refresh Client from Template checkbox should be available for
         // Explicit View Spec mode as well as Client Template mode bhandley -
@@ -455,6 +587,28 @@ public class CheckoutCodeParameterPanel
             coParameterForm.setPropertyRequired(DEST_ID, true);
         }
 
+        // The client pool replaces the temporary client of a Standard Sync,
+        // so it does not apply to retained clients
+        boolean poolRelevant = STANDARDSYNC_ID.equals(syncType)
+                && !"1".equals(retainClient);
+        boolean poolEnabled  = poolRelevant
+                && "1".equals(coParameterForm.getValue(CLIENTPOOL_ID));
+
+        coParameterForm.setRowVisible(CLIENTPOOL_ID, poolRelevant);
+        coParameterForm.setPropertyRequired(CLIENTPOOL_ID, false);
+        m_detailIsRelevant.put(CLIENTPOOL_ID, poolRelevant);
+
+        for (String key : new String[] {
+                    CLIENTPOOLDIR_ID,
+                    CLIENTPOOLMAXCLIENTS_ID,
+                    CLIENTPOOLMAXAGE_ID,
+                    CLIENTPOOLMAXSIZE_ID,
+                }) {
+            coParameterForm.setRowVisible(key, poolEnabled);
+            coParameterForm.setPropertyRequired(key, false);
+            m_detailIsRelevant.put(key, poolEnabled);
+        }
+
         // Single File Checkout is only relevant when the source type is 'View'
         coParameterForm.setRowVisible(CHECKOUTSINGLEFILE_ID,
             VIEW_ID.equals(sourceType));
@@ -508,6 +662,20 @@ public class CheckoutCodeParameterPanel
         coParameterForm.setRowVisible(CHANGELISTNUMS_ID, true);
         coParameterForm.setPropertyRequired(CHANGELISTNUMS_ID, false);
         m_detailIsRelevant.put(CHANGELISTNUMS_ID, true);
+        coParameterForm.setRowVisible(UNSHELVEWORKERS_ID, true);
+        coParameterForm.setPropertyRequired(UNSHELVEWORKERS_ID, false);
+        m_detailIsRelevant.put(UNSHELVEWORKERS_ID, true);
+
+        // Multiple sources are synced with Standard Sync only
+        for (String key : new String[] {
+                    SOURCES_ID,
+                    SOURCEWORKERS_ID,
+                }) {
+            coParameterForm.setRowVisible(key,
+                STANDARDSYNC_ID.equals(syncType));
+            coParameterForm.setPropertyRequired(key, false);
+            m_detailIsRelevant.put(key, STANDARDSYNC_ID.equals(syncType));
+        }
         coParameterForm.setRowVisible(REPORTONLY_ID, true);
         coParameterForm.setPropertyRequired(REPORTONLY_ID, false);
         m_detailIsRelevant.put(REPORTONLY_ID, true);
@@ -551,6 +719,10 @@ public class CheckoutCodeParameterPanel
                     PARALLELSYNC_ID,
                     FORCEDSYNC_ID,
                     DELETEFILES_ID,
+                    DELETEFILESENGINE_ID,
+                    DELETEFILESDRYRUN_ID,
+                    DELETEFILESWORKERS_ID,
+                    SMARTSYNCFINGERPRINT_ID,
                     AUTOLOGIN_ID,
 
                     // bhandley New Params added to form have to be listed
@@ -564,9 +736,19 @@ public class CheckoutCodeParameterPanel
                     MODTIME_ID,
                     RMDIR_ID,
                     CLEAN_ID,
+                    CLEANMODE_ID,
+                    SEEDARCHIVEDIR_ID,
                     CHANGELISTNUMS_ID,
+                    UNSHELVEWORKERS_ID,
+                    SOURCES_ID,
+                    SOURCEWORKERS_ID,
                     REPORTONLY_ID,
                     GENERATE_CHANGELOG_ID,
+                    CLIENTPOOL_ID,
+                    CLIENTPOOLDIR_ID,
+                    CLIENTPOOLMAXCLIENTS_ID,
+                    CLIENTPOOLMAXAGE_ID,
+                    CLIENTPOOLMAXSIZE_ID,
                     TEMPLATE_ID,
                     STREAM_ID,
                     BRANCH_ID,
@@ -636,6 +818,10 @@ public class CheckoutCodeParameterPanel
                     PARALLELSYNC_ID,
                     FORCEDSYNC_ID,
                     DELETEFILES_ID,
+                    DELETEFILESENGINE_ID,
+                    DELETEFILESDRYRUN_ID,
+                    DELETEFILESWORKERS_ID,
+                    SMARTSYNCFINGERPRINT_ID,
                     AUTOLOGIN_ID,
 
                     // bhandley New Params added to form have to be listed
@@ -649,9 +835,19 @@ public class CheckoutCodeParameterPanel
                     MODTIME_ID,
                     RMDIR_ID,
                     CLEAN_ID,
+                    CLEANMODE_ID,
+                    SEEDARCHIVEDIR_ID,
                     CHANGELISTNUMS_ID,
+                    UNSHELVEWORKERS_ID,
+                    SOURCES_ID,
+                    SOURCEWORKERS_ID,
                     REPORTONLY_ID,
                     GENERATE_CHANGELOG_ID,
+                    CLIENTPOOL_ID,
+                    CLIENTPOOLDIR_ID,
+                    CLIENTPOOLMAXCLIENTS_ID,
+                    CLIENTPOOLMAXAGE_ID,
+                    CLIENTPOOLMAXSIZE_ID,
                     TEMPLATE_ID,
                     STREAM_ID,
                     BRANCH_ID,
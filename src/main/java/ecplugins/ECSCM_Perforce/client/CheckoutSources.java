@@ -0,0 +1,223 @@
+
+// CheckoutSources.java --
+//
+// CheckoutSources.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2014 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM_Perforce.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.event.logical.shared.ValueChangeEvent;
+import com.google.gwt.event.logical.shared.ValueChangeHandler;
+import com.google.gwt.event.shared.HandlerRegistration;
+import com.google.gwt.user.client.ui.Button;
+import com.google.gwt.user.client.ui.HasValue;
+import com.google.gwt.user.client.ui.HorizontalPanel;
+import com.google.gwt.user.client.ui.ListBox;
+import com.google.gwt.user.client.ui.TextArea;
+import com.google.gwt.user.client.ui.TextBox;
+import com.google.gwt.user.client.ui.VerticalPanel;
+
+import com.electriccloud.commander.client.util.StringUtil;
+
+/**
+ * A repeatable section of checkout sources. The value is one source per
+ * line, "type|directory|value", with the lines of an explicit view as
+ * further values.
+ */
+public class CheckoutSources
+    extends VerticalPanel
+    implements HasValue<String>
+{
+
+    //~ Static fields/initializers ---------------------------------------------
+
+    // Source types, in the order of the Source Type list of the panel
+    static final String[] TYPES  = {
+        CheckoutCodeParameterPanel.TEMPLATE_ID,
+        CheckoutCodeParameterPanel.VIEW_ID,
+        CheckoutCodeParameterPanel.BRANCH_ID,
+        CheckoutCodeParameterPanel.STREAM_ID
+    };
+    static final String[] LABELS = {
+        "Client Template", "Explicit View Spec", "Branch", "Stream"
+    };
+
+    //~ Instance fields --------------------------------------------------------
+
+    final VerticalPanel m_rows;
+    final List<Row>     m_sources = new ArrayList<Row>();
+
+    //~ Constructors -----------------------------------------------------------
+
+    public CheckoutSources()
+    {
+        super();
+        m_rows = new VerticalPanel();
+
+        Button add = new Button("Add Source");
+
+        add.addClickHandler(new ClickHandler() {
+                @Override public void onClick(ClickEvent event)
+                {
+                    addRow(TYPES[0], "", "");
+                    fireChange();
+                }
+            });
+        add(m_rows);
+        add(add);
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    @Override public HandlerRegistration addValueChangeHandler(
+            ValueChangeHandler<String> handler)
+    {
+        return addHandler(handler, ValueChangeEvent.getType());
+    }
+
+    @Override public String getValue()
+    {
+        StringBuilder value = new StringBuilder();
+
+        for (Row row : m_sources) {
+            String source = row.getValue();
+
+            if (source != null) {
+                value.append(source)
+                     .append('\n');
+            }
+        }
+
+        return value.toString();
+    }
+
+    @Override public void setValue(String value)
+    {
+        setValue(value, false);
+    }
+
+    @Override public void setValue(
+            String  value,
+            boolean fireEvents)
+    {
+        m_rows.clear();
+        m_sources.clear();
+
+        if (!StringUtil.isEmpty(value)) {
+
+            for (String line : value.split("\n")) {
+                String[] fields = line.trim()
+                                      .split("\\|", 3);
+
+                if (fields.length == 3) {
+                    addRow(fields[0], fields[1],
+                        fields[2].replace('|', '\n'));
+                }
+            }
+        }
+
+        if (fireEvents) {
+            fireChange();
+        }
+    }
+
+    private void addRow(
+            String type,
+            String directory,
+            String value)
+    {
+        final Row row = new Row(type, directory, value);
+
+        row.m_remove.addClickHandler(new ClickHandler() {
+                @Override public void onClick(ClickEvent event)
+                {
+                    m_sources.remove(row);
+                    m_rows.remove(row);
+                    fireChange();
+                }
+            });
+        m_sources.add(row);
+        m_rows.add(row);
+    }
+
+    private void fireChange()
+    {
+        ValueChangeEvent.fire(this, getValue());
+    }
+
+    //~ Inner Classes ----------------------------------------------------------
+
+    /**
+     * One source: its type, the directory it goes to under the destination
+     * directory and the template, view, branch or stream.
+     */
+    static class Row
+        extends HorizontalPanel
+    {
+
+        //~ Instance fields ----------------------------------------------------
+
+        final ListBox  m_type      = new ListBox();
+        final TextBox  m_directory = new TextBox();
+        final TextArea m_value     = new TextArea();
+        final Button   m_remove    = new Button("Remove");
+
+        //~ Constructors -------------------------------------------------------
+
+        Row(
+                String type,
+                String directory,
+                String value)
+        {
+            super();
+            setVerticalAlignment(ALIGN_MIDDLE);
+
+            for (int i = 0; i < TYPES.length; i++) {
+                m_type.addItem(LABELS[i], TYPES[i]);
+
+                if (TYPES[i].equals(type)) {
+                    m_type.setSelectedIndex(i);
+                }
+            }
+
+            m_directory.setWidth("8em");
+            m_directory.setTitle(
+                "Directory of the source, relative to the destination directory.");
+            m_directory.setValue(directory);
+            m_value.setVisibleLines(1);
+            m_value.setWidth("25em");
+            m_value.setTitle(
+                "Client template, depot path of the branch, stream, or one view line per line in the depot;client form.");
+            m_value.setValue(value);
+            add(m_type);
+            add(m_directory);
+            add(m_value);
+            add(m_remove);
+        }
+
+        //~ Methods ------------------------------------------------------------
+
+        String getValue()
+        {
+            String value = m_value.getValue()
+                                  .trim();
+
+            if (StringUtil.isEmpty(value)) {
+                return null;
+            }
+
+            return m_type.getValue(m_type.getSelectedIndex()) + "|"
+                + m_directory.getValue()
+                             .trim() + "|"
+                + value.replaceAll("\\s*\n\\s*", "|");
+        }
+    }
+}
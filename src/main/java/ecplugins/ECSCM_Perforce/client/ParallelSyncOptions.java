@@ -24,11 +24,17 @@ public class ParallelSyncOptions
     implements HasValue<String>
 {
 
+    //~ Static fields/initializers ---------------------------------------------
+
+    // Value that lets the driver pick the options for each sync
+    static final String AUTO = "auto";
+
     //~ Instance fields --------------------------------------------------------
 
     // ~ Instance fields
     // --------------------------------------------------------
     final CheckBox m_checkbox;
+    final CheckBox m_auto;
     final TextBox  m_options;
     String         m_defaultOptions;
 
@@ -42,17 +48,26 @@ public class ParallelSyncOptions
         setVerticalAlignment(ALIGN_MIDDLE);
         m_defaultOptions = defaultOptions;
         m_checkbox       = new CheckBox();
+        m_auto           = new CheckBox("Auto");
         m_options        = new TextBox();
 
         m_options.setWidth("15em");
-        m_checkbox.addValueChangeHandler(new ValueChangeHandler<Boolean>() {
+        m_auto.setTitle(
+            "Choose the parallel sync options from the size of each sync, the agent cores and the server limit.");
+
+        ValueChangeHandler<Boolean> enableHandler =
+            new ValueChangeHandler<Boolean>() {
                 @Override public void onValueChange(
                         ValueChangeEvent<Boolean> e)
                 {
-                    m_options.setEnabled(e.getValue());
+                    updateEnabled();
                 }
-            });
+            };
+
+        m_checkbox.addValueChangeHandler(enableHandler);
+        m_auto.addValueChangeHandler(enableHandler);
         add(m_checkbox);
+        add(m_auto);
         add(m_options);
 
         if (!StringUtil.isEmpty(m_defaultOptions)) {
@@ -77,7 +92,9 @@ public class ParallelSyncOptions
     {
 
         if (m_checkbox.getValue()) {
-            return m_options.getValue();
+            return m_auto.getValue()
+                ? AUTO
+                : m_options.getValue();
         }
 
         return "";
@@ -93,7 +110,12 @@ public class ParallelSyncOptions
             boolean fireEvents)
     {
 
-        if (!StringUtil.isEmpty(value)) {
+        if (AUTO.equals(value)) {
+            m_auto.setValue(true, false);
+            m_checkbox.setValue(true, true);
+        }
+        else if (!StringUtil.isEmpty(value)) {
+            m_auto.setValue(false, false);
             m_checkbox.setValue(true, true);
             m_options.setValue(value);
         }
@@ -101,4 +123,10 @@ public class ParallelSyncOptions
             m_checkbox.setValue(false, true);
         }
     }
+
+    private void updateEnabled()
+    {
+        m_auto.setEnabled(m_checkbox.getValue());
+        m_options.setEnabled(m_checkbox.getValue() && !m_auto.getValue());
+    }
 }
@@ -0,0 +1,161 @@
+
+// EngineRequest.java --
+//
+// EngineRequest.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2026 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM_Perforce.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The connection settings and the commands of one engine request, read one
+ * line at a time as the driver sends them:
+ *
+ * <pre>
+ *   port ssl:perforce:1666      connection settings, kept on the session
+ *   user builder                  until they are sent again
+ *   password ...
+ *   tickets /home/builder/.p4tickets
+ *   charset utf8
+ *   client ecscm-build-12
+ *   cmd changes                   a command
+ *   arg -m                        its arguments, one per line
+ *   arg 1
+ *   xarg //depot/a/...            runs the command once per xarg, like
+ *   xarg //depot/b/...            "p4 -x"
+ *   batch 128                     or once per 128 xargs, like "p4 -b 128"
+ *   run                           runs the commands given since the last run
+ * </pre>
+ */
+class EngineRequest
+{
+
+    //~ Static fields/initializers ---------------------------------------------
+
+    // Commands the engine runs; the others stay with the p4 client
+    static final Set<String> COMMANDS = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList("changes", "counter",
+                    "describe", "fstat", "have", "sizes", "sync", "where")));
+
+    //~ Instance fields --------------------------------------------------------
+
+    String              m_port     = "";
+    String              m_user     = "";
+    String              m_password = "";
+    String              m_tickets  = "";
+    String              m_charset  = "";
+    String              m_client   = "";
+    final List<Command> m_commands = new ArrayList<Command>();
+
+    //~ Methods ----------------------------------------------------------------
+
+    /**
+     * Applies one request line.
+     *
+     * @return  true when the line was "run"
+     */
+    boolean addLine(String line)
+    {
+        int    space = line.indexOf(' ');
+        String key   = space < 0 ? line : line.substring(0, space);
+        String value = space < 0 ? "" : line.substring(space + 1);
+
+        if ("run".equals(key)) {
+            return true;
+        }
+        else if ("port".equals(key)) {
+            m_port = value;
+        }
+        else if ("user".equals(key)) {
+            m_user = value;
+        }
+        else if ("password".equals(key)) {
+            m_password = value;
+        }
+        else if ("tickets".equals(key)) {
+            m_tickets = value;
+        }
+        else if ("charset".equals(key)) {
+            m_charset = value;
+        }
+        else if ("client".equals(key)) {
+            m_client = value;
+        }
+        else if ("cmd".equals(key)) {
+            m_commands.add(new Command(value));
+        }
+        else if ("arg".equals(key) || "xarg".equals(key)
+                || "batch".equals(key)) {
+
+            if (m_commands.isEmpty()) {
+                throw new IllegalArgumentException(key + " before cmd");
+            }
+
+            Command command = m_commands.get(m_commands.size() - 1);
+
+            if ("arg".equals(key)) {
+                command.m_args.add(value);
+            }
+            else if ("xarg".equals(key)) {
+                command.m_xargs.add(value);
+            }
+            else {
+
+                try {
+                    command.m_batch = Math.max(1, Integer.parseInt(value));
+                }
+                catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad batch " + value);
+                }
+            }
+        }
+        else {
+            throw new IllegalArgumentException("unknown request line "
+                + key);
+        }
+
+        return false;
+    }
+
+    /**
+     * The pool key of the connection settings: requests with equal keys
+     * share server connections.
+     */
+    String getServerKey()
+    {
+        return m_port + '\n' + m_user + '\n' + m_password + '\n' + m_tickets
+            + '\n' + m_charset;
+    }
+
+    //~ Inner Classes ----------------------------------------------------------
+
+    /**
+     * One command of a request.
+     */
+    static class Command
+    {
+
+        //~ Instance fields ----------------------------------------------------
+
+        final String       m_name;
+        final List<String> m_args  = new ArrayList<String>();
+        final List<String> m_xargs = new ArrayList<String>();
+        int                m_batch = 1;
+
+        //~ Constructors -------------------------------------------------------
+
+        Command(String name)
+        {
+            m_name = name;
+        }
+    }
+}
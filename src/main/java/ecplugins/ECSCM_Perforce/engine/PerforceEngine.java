@@ -0,0 +1,500 @@
+
+// PerforceEngine.java --
+//
+// PerforceEngine.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2026 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM_Perforce.engine;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.impl.mapbased.server.Server;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Agent-local Perforce engine. The driver runs the tagged queries of a
+ * checkout or a sentry cycle through it instead of starting a p4 process
+ * for each: the engine keeps authenticated server connections open (see
+ * {@link ServerPool}) and runs the commands of a request, with their
+ * arguments or once per argument, or batch of arguments, of an argument
+ * list, on one of them.
+ *
+ * <p>The engine listens on 127.0.0.1 only. Its port and a secret, which
+ * the first line of every connection ("hello &lt;secret&gt;") must give,
+ * are written to the state file, readable by its owner only, which the
+ * driver keeps in a directory only the agent user can enter. The engine
+ * exits when it had no request for the idle time.</p>
+ *
+ * <p>Requests are described in {@link EngineRequest}. The answer to each
+ * command is "result &lt;length&gt;" followed by that many bytes of UTF-8
+ * text in the form of "p4 -ztag" output: "... field value" lines, a blank
+ * line after each record, "error:", "warning:" or "info:" lines for
+ * messages and "exit: 0" or "exit: 1" as the last line.</p>
+ *
+ * <pre>
+ *   java -cp engine.jar:p4java.jar ecplugins.ECSCM_Perforce.engine.PerforceEngine
+ *       --state &lt;file&gt; [--idle-minutes 30] [--pool 4]
+ * </pre>
+ */
+public class PerforceEngine
+{
+
+    //~ Static fields/initializers ---------------------------------------------
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //~ Instance fields --------------------------------------------------------
+
+    private final File            m_stateFile;
+    private final long            m_idleMillis;
+    private final ServerPool      m_pool;
+    private final String          m_secret;
+    private final AtomicInteger   m_sessions     = new AtomicInteger();
+    private final AtomicLong      m_lastActivity = new AtomicLong(
+            System.currentTimeMillis());
+    private final ExecutorService m_executor     = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                    @Override public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable,
+                                "engine-session");
+
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+
+    //~ Constructors -----------------------------------------------------------
+
+    PerforceEngine(
+            File stateFile,
+            long idleMillis,
+            int  poolSize)
+    {
+        this(stateFile, idleMillis,
+            new ServerPool(poolSize, Math.min(idleMillis, 5 * 60 * 1000L)));
+    }
+
+    PerforceEngine(
+            File       stateFile,
+            long       idleMillis,
+            ServerPool pool)
+    {
+        m_stateFile  = stateFile;
+        m_idleMillis = idleMillis;
+        m_pool       = pool;
+
+        byte[]        random = new byte[16];
+        StringBuilder secret = new StringBuilder();
+
+        new SecureRandom().nextBytes(random);
+
+        for (byte b : random) {
+            secret.append(String.format("%02x", b & 0xff));
+        }
+
+        m_secret = secret.toString();
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        String stateFile   = null;
+        int    idleMinutes = 30;
+        int    poolSize    = 4;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+
+            if ("--state".equals(args[i])) {
+                stateFile = args[i + 1];
+            }
+            else if ("--idle-minutes".equals(args[i])) {
+                idleMinutes = Integer.parseInt(args[i + 1]);
+            }
+            else if ("--pool".equals(args[i])) {
+                poolSize = Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        if (stateFile == null) {
+            System.err.println(
+                "usage: PerforceEngine --state <file> [--idle-minutes <n>] [--pool <n>]");
+            System.exit(2);
+        }
+
+        new PerforceEngine(new File(stateFile), idleMinutes * 60 * 1000L,
+                poolSize).listen();
+        System.exit(0);
+    }
+
+    /**
+     * Serves connections until the engine was idle for the idle time.
+     */
+    void listen()
+        throws IOException
+    {
+        ServerSocket listener = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+
+        listener.setSoTimeout(60 * 1000);
+        writeState(listener.getLocalPort());
+
+        try {
+
+            while (m_sessions.get() > 0
+                    || System.currentTimeMillis() - m_lastActivity.get()
+                    < m_idleMillis) {
+
+                try {
+                    final Socket socket = listener.accept();
+
+                    m_sessions.incrementAndGet();
+                    m_lastActivity.set(System.currentTimeMillis());
+                    m_executor.execute(new Runnable() {
+                            @Override public void run()
+                            {
+                                serve(socket);
+                            }
+                        });
+                }
+                catch (SocketTimeoutException e) {
+                    // Time to close idle connections and check for exit
+                }
+
+                m_pool.closeIdle();
+            }
+        }
+        finally {
+            listener.close();
+            m_executor.shutdown();
+            m_pool.closeAll();
+
+            if (!m_stateFile.delete()) {
+                m_stateFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Answers the requests of one driver connection.
+     */
+    void serve(Socket socket)
+    {
+
+        try {
+            socket.setSoTimeout((int) Math.min(m_idleMillis,
+                    Integer.MAX_VALUE));
+
+            // An answer goes out in several writes; the last one must not
+            // wait for the driver to acknowledge the others
+            socket.setTcpNoDelay(true);
+
+            BufferedReader in  = new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), UTF8));
+            OutputStream   out = new BufferedOutputStream(
+                    socket.getOutputStream());
+
+            if (!("hello " + m_secret).equals(in.readLine())) {
+                out.write("denied\n".getBytes(UTF8));
+                out.flush();
+
+                return;
+            }
+
+            out.write("ok\n".getBytes(UTF8));
+            out.flush();
+
+            EngineRequest request = new EngineRequest();
+            String        line;
+
+            while ((line = in.readLine()) != null) {
+                m_lastActivity.set(System.currentTimeMillis());
+
+                if (request.addLine(line)) {
+                    run(request, out);
+                    out.flush();
+                    request.m_commands.clear();
+                }
+            }
+        }
+        catch (IOException e) {
+            // The driver went away; it runs p4 itself from now on
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Bad request: " + e.getMessage());
+        }
+        finally {
+            m_lastActivity.set(System.currentTimeMillis());
+            m_sessions.decrementAndGet();
+
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    /**
+     * Runs the commands of a request on a pooled connection and writes
+     * their results.
+     */
+    private void run(
+            EngineRequest request,
+            OutputStream  out)
+        throws IOException
+    {
+        IOptionsServer server  = null;
+        String         failure = null;
+
+        try {
+            server = m_pool.take(request);
+        }
+        catch (Exception e) {
+            failure = "error: " + request.m_port + ": " + e.getMessage()
+                + "\n";
+        }
+
+        boolean healthy = true;
+
+        for (EngineRequest.Command command : request.m_commands) {
+            StringBuilder text   = new StringBuilder();
+            int           errors = 0;
+
+            if (failure != null) {
+                text.append(failure);
+                errors++;
+            }
+            else if (!EngineRequest.COMMANDS.contains(command.m_name)) {
+                text.append("error: the engine does not run ")
+                    .append(command.m_name)
+                    .append('\n');
+                errors++;
+            }
+            else {
+
+                try {
+                    setClient(server, request.m_client, command.m_name);
+
+                    List<String[]> runs = new ArrayList<String[]>();
+
+                    if (command.m_xargs.isEmpty()) {
+                        runs.add(command.m_args.toArray(
+                                new String[command.m_args.size()]));
+                    }
+
+                    for (int i = 0; i < command.m_xargs.size();
+                            i += command.m_batch) {
+                        List<String> args = new ArrayList<String>(
+                                command.m_args);
+
+                        args.addAll(command.m_xargs.subList(i,
+                                Math.min(i + command.m_batch,
+                                    command.m_xargs.size())));
+                        runs.add(args.toArray(new String[args.size()]));
+                    }
+
+                    for (String[] args : runs) {
+                        errors += format(server,
+                                server.execMapCmd(command.m_name, args, null),
+                                text);
+                    }
+                }
+                catch (ConnectionException e) {
+                    healthy = false;
+                    text.append("error: ")
+                        .append(e.getMessage())
+                        .append('\n');
+                    errors++;
+                }
+                catch (P4JavaException e) {
+                    text.append("error: ")
+                        .append(e.getMessage())
+                        .append('\n');
+                    errors++;
+                }
+            }
+
+            text.append("exit: ")
+                .append(errors > 0 ? 1 : 0)
+                .append('\n');
+
+            byte[] bytes = text.toString()
+                               .getBytes(UTF8);
+
+            out.write(("result " + bytes.length + "\n").getBytes(UTF8));
+            out.write(bytes);
+        }
+
+        if (server != null) {
+
+            if (healthy) {
+                m_pool.give(request, server);
+            }
+            else {
+                m_pool.close(server);
+            }
+        }
+    }
+
+    /**
+     * Points the connection at the client of the request. A sync needs
+     * the client spec; the queries only its name.
+     */
+    private void setClient(
+            IOptionsServer server,
+            String         client,
+            String         command)
+        throws P4JavaException
+    {
+
+        if ("sync".equals(command) || !(server instanceof Server)) {
+            server.setCurrentClient(client.length() > 0
+                    ? server.getClient(client) : null);
+        }
+        else {
+            ((Server) server).setClientName(client.length() > 0 ? client
+                                                                : null);
+        }
+    }
+
+    /**
+     * Appends result maps as tagged output.
+     *
+     * @return  the number of error messages
+     */
+    private int format(
+            IOptionsServer        server,
+            Map<String, Object>[] results,
+            StringBuilder         text)
+    {
+        int errors = 0;
+
+        if (results == null) {
+            return errors;
+        }
+
+        for (Map<String, Object> result : results) {
+
+            if (result == null) {
+                continue;
+            }
+
+            Object code = result.get("code0");
+
+            if (code != null) {
+                int    severity = (Integer.parseInt(String.valueOf(code)) >> 28)
+                    & 0x0f;
+                String message  = server.getErrorOrInfoStr(result);
+
+                if (message == null) {
+                    message = String.valueOf(result.get("fmt0"));
+                }
+
+                if (severity >= 3) {
+                    text.append("error: ");
+                    errors++;
+                }
+                else if (severity == 2) {
+                    text.append("warning: ");
+                }
+                else {
+                    text.append("info: ");
+                }
+
+                text.append(message.trim())
+                    .append('\n');
+
+                continue;
+            }
+
+            for (Map.Entry<String, Object> field
+                    : new TreeMap<String, Object>(result).entrySet()) {
+
+                if ("func".equals(field.getKey())) {
+                    continue;
+                }
+
+                Object value = field.getValue();
+
+                text.append("... ")
+                    .append(field.getKey())
+                    .append(' ')
+                    .append(value instanceof byte[]
+                            ? new String((byte[]) value, UTF8)
+                            : String.valueOf(value))
+                    .append('\n');
+            }
+
+            text.append('\n');
+        }
+
+        return errors;
+    }
+
+    /**
+     * Writes "port secret" to the state file, readable by the owner only.
+     */
+    private void writeState(int port)
+        throws IOException
+    {
+        File partial = new File(m_stateFile.getPath() + ".partial");
+
+        if (!partial.createNewFile()
+                && !(partial.delete() && partial.createNewFile())) {
+            throw new IOException("Can't create " + partial);
+        }
+
+        partial.setReadable(false, false);
+        partial.setWritable(false, false);
+        partial.setReadable(true, true);
+        partial.setWritable(true, true);
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(partial),
+                UTF8);
+
+        try {
+            writer.write(port + " " + m_secret + "\n");
+        }
+        finally {
+            writer.close();
+        }
+
+        if (!partial.renameTo(m_stateFile)
+                && !(m_stateFile.delete() && partial.renameTo(m_stateFile))) {
+            throw new IOException("Can't write " + m_stateFile);
+        }
+    }
+}
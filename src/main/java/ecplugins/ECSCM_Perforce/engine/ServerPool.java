@@ -0,0 +1,248 @@
+
+// ServerPool.java --
+//
+// ServerPool.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2026 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM_Perforce.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.ServerFactory;
+
+/**
+ * Authenticated server connections, kept open between requests. A
+ * connection is taken by one request at a time and given back afterwards;
+ * up to {@code maxIdle} connections per server, user and credentials are
+ * kept, and those unused for {@code idleMillis} are closed.
+ */
+class ServerPool
+{
+
+    //~ Instance fields --------------------------------------------------------
+
+    private final int                                 m_maxIdle;
+    private final long                                m_idleMillis;
+    private final Map<String, LinkedList<IdleServer>> m_idle =
+        new HashMap<String, LinkedList<IdleServer>>();
+
+    //~ Constructors -----------------------------------------------------------
+
+    ServerPool(
+            int  maxIdle,
+            long idleMillis)
+    {
+        m_maxIdle    = maxIdle;
+        m_idleMillis = idleMillis;
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    /**
+     * Takes an idle connection for the settings of the request, or opens
+     * and authenticates a new one.
+     */
+    IOptionsServer take(EngineRequest request)
+        throws Exception
+    {
+        String key = request.getServerKey();
+
+        synchronized (this) {
+            LinkedList<IdleServer> idle = m_idle.get(key);
+
+            while (idle != null && !idle.isEmpty()) {
+                IOptionsServer server = idle.removeFirst().m_server;
+
+                if (server.isConnected()) {
+                    return server;
+                }
+            }
+        }
+
+        return open(request);
+    }
+
+    /**
+     * Gives a connection back after a request that went through.
+     */
+    void give(
+            EngineRequest  request,
+            IOptionsServer server)
+    {
+        String key = request.getServerKey();
+
+        synchronized (this) {
+            LinkedList<IdleServer> idle = m_idle.get(key);
+
+            if (idle == null) {
+                idle = new LinkedList<IdleServer>();
+                m_idle.put(key, idle);
+            }
+
+            if (idle.size() < m_maxIdle) {
+                idle.addFirst(new IdleServer(server));
+
+                return;
+            }
+        }
+
+        close(server);
+    }
+
+    /**
+     * Closes the connections that were not used for the idle time.
+     */
+    void closeIdle()
+    {
+        List<IOptionsServer> expired = new ArrayList<IOptionsServer>();
+        long                 now     = System.currentTimeMillis();
+
+        synchronized (this) {
+
+            for (Iterator<LinkedList<IdleServer>> it = m_idle.values()
+                                                             .iterator();
+                    it.hasNext();) {
+                LinkedList<IdleServer> idle = it.next();
+
+                while (!idle.isEmpty()
+                        && now - idle.getLast().m_since > m_idleMillis) {
+                    expired.add(idle.removeLast().m_server);
+                }
+
+                if (idle.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+
+        for (IOptionsServer server : expired) {
+            close(server);
+        }
+    }
+
+    /**
+     * Closes every idle connection.
+     */
+    void closeAll()
+    {
+        List<IOptionsServer> all = new ArrayList<IOptionsServer>();
+
+        synchronized (this) {
+
+            for (LinkedList<IdleServer> idle : m_idle.values()) {
+
+                for (IdleServer entry : idle) {
+                    all.add(entry.m_server);
+                }
+            }
+
+            m_idle.clear();
+        }
+
+        for (IOptionsServer server : all) {
+            close(server);
+        }
+    }
+
+    void close(IOptionsServer server)
+    {
+
+        try {
+            server.disconnect();
+        }
+        catch (P4JavaException ignored) {
+            // The connection is gone either way
+        }
+    }
+
+    /**
+     * Opens and authenticates a connection with the settings of the
+     * request.
+     */
+    IOptionsServer open(EngineRequest request)
+        throws Exception
+    {
+        IOptionsServer server = ServerFactory.getOptionsServer(getUri(
+                    request.m_port), new Properties());
+
+        if (request.m_charset.length() > 0
+                && !"none".equals(request.m_charset)) {
+            server.setCharsetName(request.m_charset);
+        }
+
+        if (request.m_tickets.length() > 0) {
+            server.setTicketsFilePath(request.m_tickets);
+        }
+
+        server.setUserName(request.m_user);
+        server.connect();
+
+        if (request.m_password.length() > 0) {
+
+            // The password of the configuration may be a ticket
+            try {
+                server.login(request.m_password);
+            }
+            catch (P4JavaException e) {
+                server.setAuthTicket(request.m_password);
+            }
+        }
+
+        return server;
+    }
+
+    /**
+     * Returns the P4Java URI of a P4PORT: [tcp:|ssl:]host:port or a port
+     * on the local host.
+     */
+    static String getUri(String port)
+    {
+        String scheme  = "p4java://";
+        String address = port;
+
+        if (address.startsWith("ssl:") || address.startsWith("ssl4:")
+                || address.startsWith("ssl6:")) {
+            scheme  = "p4javassl://";
+            address = address.substring(address.indexOf(':') + 1);
+        }
+        else if (address.startsWith("tcp:") || address.startsWith("tcp4:")
+                || address.startsWith("tcp6:")) {
+            address = address.substring(address.indexOf(':') + 1);
+        }
+
+        if (address.indexOf(':') < 0) {
+            address = "localhost:" + address;
+        }
+
+        return scheme + address;
+    }
+
+    //~ Inner Classes ----------------------------------------------------------
+
+    private static class IdleServer
+    {
+
+        //~ Instance fields ----------------------------------------------------
+
+        final IOptionsServer m_server;
+        final long           m_since = System.currentTimeMillis();
+
+        //~ Constructors -------------------------------------------------------
+
+        IdleServer(IOptionsServer server)
+        {
+            m_server = server;
+        }
+    }
+}
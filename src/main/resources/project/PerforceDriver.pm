@@ -22,6 +22,10 @@ use Sys::Hostname;
 use File::Temp qw{tempfile};
 use Cwd;
 use Getopt::Long;
+use Fcntl qw(:flock);
+use POSIX ();
+use Time::HiRes ();
+use Digest::MD5 qw(md5_hex);
 #use strict;
 $| = 1;
 
@@ -140,6 +144,33 @@ sub getSCMTag {
     # set the generic p4 command
     my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
 
+    # Nothing was submitted on the server since the last check of this
+    # schedule: its result still holds
+    my $counter = $self->getSentryCounter($opts);
+    my $cached  = $self->getCachedSCMTag( $opts, $counter );
+    if ($cached) {
+        if ( $opts->{autoLogin} && $opts->{autoLogin} eq "1" ) {
+            $self->p4Logout($opts);
+        }
+        $self->debugMsg( 1, "Change counter still at $counter, returning the cached change $cached->{change}", $opts );
+        return ( $cached->{change}, $cached->{time} );
+    }
+
+    # A view of several plain depot paths is checked like getSCMTags
+    # checks it, without a temporary client
+    my @paths = $self->getPlainDepotPaths($opts);
+    if ( scalar(@paths) > 1 ) {
+        my %latest = $self->getLatestChangesForPaths( $opts, @paths );
+        my ( $changeNumber, $changeTime );
+        foreach my $change ( grep {defined} @latest{@paths} ) {
+            if ( !defined $changeNumber || $change->{change} > $changeNumber ) {
+                ( $changeNumber, $changeTime ) = ( $change->{change}, $change->{time} );
+            }
+        }
+        $self->cacheSCMTags( $opts, $counter, [ $opts, $changeNumber, $changeTime ] );
+        return ( $changeNumber, $changeTime );
+    }
+
     # Remove leading and trailing spaces
     $clientOrDepotName =~ s/(^\s+)|(\s+$)//sg;
 
@@ -175,6 +206,7 @@ sub getSCMTag {
     }
 
     my ($changeNumber, $changeTime) = $self->getP4LastSnapshotId($opts, $depotPath);
+    $self->cacheSCMTags( $opts, $counter, [ $opts, $changeNumber, $changeTime ] );
 
     # Delete the temporary spec if it was created
     if ( defined $tempP4ClientName ) {
@@ -201,6 +233,430 @@ sub getSCMTag {
     return ( $changeNumber, $changeTime );
 }
 
+####################################################################
+# getSCMTags
+#
+# Bulk form of getSCMTag for sentry cycles that check many schedules.
+#
+# Schedules are grouped by P4PORT and user. Every schedule whose view
+# is made of plain depot paths (no exclude paths, no pre-execution
+# commands, no existing client) is resolved without a temporary
+# client: the distinct depot paths of a group are written to an
+# argument file and checked by a single
+#     p4 -ztag -x <file> changes -s submitted -m 1
+# which runs "changes" once per path inside one p4 process. Because a
+# path without submitted changes produces no record, the answers can
+# only be matched to their paths when every path returned one; if not,
+# the paths are split in halves and checked again, so only the parts
+# holding such paths cost extra calls. All other schedules go through
+# getSCMTag.
+#
+# The ECSCM sentry calls getSCMTag once per schedule, and getSCMTag
+# checks a view of several plain depot paths the same way, through
+# getLatestChangesForPaths. No ECSCM release calls getSCMTags; it is
+# for callers that hold all the schedules of a cycle, such as
+# systemtest/bench/sentry.pl.
+#
+# Args:
+#   schedules - hash of schedule name => opts, as passed to getSCMTag
+# Return:
+#   hash of schedule name => { changeNumber, changeTime, elapsed, method }
+####################################################################
+sub getSCMTags {
+    my ( $self, $schedules ) = @_;
+
+    my $start   = Time::HiRes::time();
+    my %results = ();
+    my %groups  = ();
+    my @single  = ();
+
+    foreach my $name ( sort keys %$schedules ) {
+        my $opts = $schedules->{$name};
+        $self->updateOptions($opts);
+        ( $opts->{P4USER}, $opts->{P4PASSWD} )
+            = $self->retrieveUserCredential( $opts->{credential}, $opts->{P4USER}, $opts->{P4PASSWD} );
+
+        my @paths = $self->getPlainDepotPaths($opts);
+        if ( !@paths ) {
+            push( @single, $name );
+            next;
+        }
+        my $key = join( "\n", $opts->{P4PORT} || "", $opts->{P4USER} || "" );
+        $groups{$key}{opts} ||= $opts;
+        $groups{$key}{schedules}{$name} = \@paths;
+    }
+
+    foreach my $key ( sort keys %groups ) {
+        my $group      = $groups{$key};
+        my $groupStart = Time::HiRes::time();
+
+        # Schedules checked since the last change on the server keep
+        # their result
+        my $counter = $self->getSentryCounter( $group->{opts} );
+        foreach my $name ( keys %{ $group->{schedules} } ) {
+            my $cached = $self->getCachedSCMTag( $schedules->{$name}, $counter );
+            next if ( !$cached );
+            delete $group->{schedules}{$name};
+            $results{$name} = {
+                changeNumber => $cached->{change},
+                changeTime   => $cached->{time},
+                elapsed      => Time::HiRes::time() - $groupStart,
+                method       => "cached"
+            };
+        }
+        next if ( !%{ $group->{schedules} } );
+
+        my %latest = $self->getLatestChangesForPaths( $group->{opts},
+            map { @$_ } values %{ $group->{schedules} } );
+        my $elapsed = Time::HiRes::time() - $groupStart;
+
+        my @checked = ();
+        foreach my $name ( keys %{ $group->{schedules} } ) {
+            my ( $changeNumber, $changeTime );
+            foreach my $path ( @{ $group->{schedules}{$name} } ) {
+                my $change = $latest{$path};
+                next if ( !$change );
+                if ( !defined $changeNumber || $change->{change} > $changeNumber ) {
+                    ( $changeNumber, $changeTime ) = ( $change->{change}, $change->{time} );
+                }
+            }
+            $results{$name} = {
+                changeNumber => $changeNumber,
+                changeTime   => $changeTime,
+                elapsed      => $elapsed,
+                method       => "bulk"
+            };
+            push( @checked, [ $schedules->{$name}, $changeNumber, $changeTime ] );
+        }
+        $self->cacheSCMTags( $group->{opts}, $counter, @checked );
+    }
+
+    foreach my $name (@single) {
+        my $scheduleStart = Time::HiRes::time();
+        my ( $changeNumber, $changeTime ) = $self->getSCMTag( $schedules->{$name} );
+        $results{$name} = {
+            changeNumber => $changeNumber,
+            changeTime   => $changeTime,
+            elapsed      => Time::HiRes::time() - $scheduleStart,
+            method       => "client"
+        };
+    }
+
+    foreach my $name ( sort keys %results ) {
+        my $result = $results{$name};
+        printf( "%s: change %s (%s, %.3fs)\n",
+            $name,
+            defined $result->{changeNumber} ? $result->{changeNumber} : "none",
+            $result->{method}, $result->{elapsed} );
+    }
+    printf( "Checked %d schedules (%d in %d bulk groups, %d one at a time, %d unchanged) in %.3fs\n",
+        scalar( keys %results ),
+        scalar( keys %results ) - scalar(@single),
+        scalar( keys %groups ),
+        scalar(@single),
+        scalar( grep { $_->{method} eq "cached" } values %results ),
+        Time::HiRes::time() - $start );
+
+    return \%results;
+}
+
+####################################################################
+# getPlainDepotPaths
+#
+# Return the depot paths a schedule watches when they can be checked
+# with "p4 changes" directly, or an empty list when getSCMTag has to
+# build a client (exclude paths, exclusion or overlay view lines,
+# pre-execution commands, an existing client name or mappings it does
+# not understand).
+#
+# Args:
+#   opts  - options of the schedule
+####################################################################
+sub getPlainDepotPaths {
+    my ( $self, $opts ) = @_;
+
+    my $view = $opts->{P4ClientOrDepot};
+    $view = $opts->{P4Paths} if ( !length($view) );
+    return () if ( !defined $view );
+    foreach my $other ( $opts->{P4ExcludePaths}, $opts->{PreExecutionCmd} ) {
+        return () if ( defined $other && $other =~ /\S/ );
+    }
+
+    $view =~ s/(^\s+)|(\s+$)//sg;
+    return () if ( $view !~ "^//" );
+
+    # Same obsolete format handling as createP4ClientSpecFromView
+    if ( $view =~ "\.\.\.," ) {
+        $view =~ s/\s+/\n/g;
+        $view =~ s/,/;/g;
+    }
+
+    my @lines = split( /\n/, $view );
+    if ( scalar(@lines) == 1 && $lines[0] !~ m/;/ ) {
+        # A single depot path, as handled by getSCMTag
+        $view .= "/..." unless ( $view =~ '/\.\.\.$' );
+        return ($view);
+    }
+
+    my @paths   = ();
+    my %targets = ();
+    foreach my $line (@lines) {
+        $line =~ s/(^\s+)|(\s+$)//g;
+        next if ( $line eq "" );
+
+        # "-//..." and "+//..." lines change what the other lines map,
+        # which only the client knows
+        return () if ( $line =~ m/^"?[-+]/ );
+        my ( $depotPath, $target );
+        if ( $line =~ m/^(\/\/\S*?\s*\.\.\.)\s+(\/\/\S*?\s*\.\.\.)$/ ) {
+            ( $depotPath, $target ) = ( $1, $2 );
+            $target =~ s/^\/\/[^\/]+//;
+        }
+        else {
+            ( $depotPath, $target ) = split( ";", $line, 2 );
+            # createP4ClientSpecFromView skips lines without a target
+            next if ( !defined $target );
+            $depotPath =~ s/(^\s+)|(\s+$)//g;
+            $depotPath .= "/..." unless ( $depotPath =~ '\.[^/]*$' || $depotPath =~ '\/\.\.\.$' );
+        }
+        return () if ( $depotPath !~ "^//" );
+
+        # Overlapping targets make later mappings hide earlier ones
+        $target =~ s/(^\s+)|(\s+$)//g;
+        return () if ( $targets{$target}++ );
+        push( @paths, $depotPath );
+    }
+    return @paths;
+}
+
+####################################################################
+# getLatestChangesForPaths
+#
+# Return a hash of depot path => { change, time } with the most recent
+# submitted change under each of the given paths. Paths without any
+# submitted change are left out.
+#
+# Args:
+#   opts   - options passed in from caller
+#   paths  - depot paths (duplicates are checked once)
+####################################################################
+sub getLatestChangesForPaths {
+    my ( $self, $opts, @paths ) = @_;
+    my %seen = ();
+    @paths = sort grep { !$seen{$_}++ } @paths;
+    return () if ( !@paths );
+
+    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+    my $p4Opts = {
+        LogCommand     => 1,
+        LogResult      => 1,
+        IgnoreError    => 1,
+        HidePassword   => 1,
+        passwordStart  => $passwordStart,
+        passwordLength => $passwordLength
+    };
+
+    my %latest = ();
+    my @pending = ( \@paths );
+    while ( my $chunk = shift @pending ) {
+        my @records = ();
+        if ( scalar(@$chunk) > 1 ) {
+            @records = $self->parseChangesRecords(
+                $self->p4Tagged( $opts, $p4Command, $p4Opts, undef, "changes", [qw(-s submitted -m 1)], $chunk ) );
+        }
+        else {
+            @records = $self->parseChangesRecords(
+                $self->p4Tagged( $opts, $p4Command, $p4Opts, undef, "changes", [ qw(-s submitted -m 1), $chunk->[0] ] ) );
+        }
+
+        if ( scalar(@records) == scalar(@$chunk) ) {
+            # One record per path, in the order of the argument file
+            @latest{@$chunk} = @records;
+        }
+        elsif ( scalar(@$chunk) > 1 ) {
+            # Some paths have no submitted change: split the chunk until
+            # every part can be matched again
+            my $half = int( scalar(@$chunk) / 2 );
+            push( @pending, [ @$chunk[ 0 .. $half - 1 ] ], [ @$chunk[ $half .. $#$chunk ] ] );
+        }
+    }
+
+    if ( $opts->{autoLogin} && $opts->{autoLogin} eq "1" ) {
+        $self->p4Logout($opts);
+    }
+    return %latest;
+}
+
+####################################################################
+# parseChangesRecords
+#
+# Return the { change, time } records of tagged "p4 changes" output
+####################################################################
+sub parseChangesRecords {
+    my ( $self, $output ) = @_;
+    my @records = ();
+    return @records if ( !defined $output );
+
+    foreach my $block ( split( /\n\s*\n/, $output ) ) {
+        if ( $block =~ m/^\.\.\. change (\d+)$/m ) {
+            my $record = { change => $1 };
+            $record->{time} = $1 if ( $block =~ m/^\.\.\. time (\d+)$/m );
+            push( @records, $record );
+        }
+    }
+    return @records;
+}
+
+####################################################################
+# getSentryCounter
+#
+# Return the highest submitted change of the server, from "p4 counter
+# maxCommitChange" (2013.2 and later) or, for older servers and users
+# that may not read counters, from "p4 changes -s submitted -m 1".
+# The "change" counter would not do: a pending change that is already
+# the highest number keeps it when it is submitted.  Any submit moves
+# the value, so a schedule checked at the same value has nothing new.
+# The value is read once per minute and P4PORT.
+#
+# Returns undef when sentryCacheTTL is not set or the counter can't
+# be read.
+####################################################################
+sub getSentryCounter {
+    my ( $self, $opts ) = @_;
+
+    my $ttl = $opts->{sentryCacheTTL};
+    return undef if ( !$ttl || $ttl !~ /^\d+$/ );
+
+    my $port = $opts->{P4PORT} || $ENV{P4PORT} || "";
+    my $read = $self->{sentryCounters}{$port};
+    return $read->{counter} if ( $read && time() - $read->{time} < 60 );
+
+    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+    my $p4Opts = {
+        LogCommand     => 1,
+        LogResult      => 0,
+        IgnoreError    => 1,
+        HidePassword   => 1,
+        passwordStart  => $passwordStart,
+        passwordLength => $passwordLength
+    };
+    my $counter = undef;
+    my $output  = $self->p4Tagged( $opts, $p4Command, $p4Opts, undef, "counter", ["maxCommitChange"] );
+
+    # An unset counter reads 0: older servers do not maintain it
+    if ( defined $output && $output =~ /^(?:\.\.\. value )?(\d+)\s*$/m && $1 > 0 ) {
+        $counter = $1;
+    }
+    else {
+        ($output) = $self->parseChangesRecords(
+            $self->p4Tagged( $opts, $p4Command, $p4Opts, undef, "changes", [qw(-s submitted -m 1)] ) );
+        $counter = $output->{change} if ($output);
+    }
+    $self->{sentryCounters}{$port} = { counter => $counter, time => time() } if ( defined $counter );
+    return $counter;
+}
+
+####################################################################
+# getCachedSCMTag
+#
+# Return the { change, time } found by the last check of a schedule
+# when the change counter has not moved since and the entry is not
+# older than sentryCacheTTL seconds, or undef.
+####################################################################
+sub getCachedSCMTag {
+    my ( $self, $opts, $counter ) = @_;
+    return undef if ( !defined $counter );
+
+    my $entry = $self->readSentryCache($opts)->{ $self->getSentryCacheKey($opts) };
+    return undef if ( !$entry || $entry->{counter} ne $counter );
+    return undef if ( time() - $entry->{checked} > $opts->{sentryCacheTTL} );
+    return $entry;
+}
+
+####################################################################
+# cacheSCMTags
+#
+# Record the results of schedules checked at the given counter value:
+# a list of [ opts, changeNumber, changeTime ] of the same P4PORT.
+####################################################################
+sub cacheSCMTags {
+    my ( $self, $opts, $counter, @checked ) = @_;
+    return if ( !defined $counter || !@checked );
+
+    my $cache = $self->readSentryCache($opts);
+    foreach my $result (@checked) {
+        my ( $scheduleOpts, $changeNumber, $changeTime ) = @$result;
+        next if ( !defined $changeNumber );
+        $cache->{ $self->getSentryCacheKey($scheduleOpts) } = {
+            counter => $counter,
+            change  => $changeNumber,
+            time    => defined $changeTime ? $changeTime : "",
+            checked => time()
+        };
+    }
+
+    # Entries of schedules that are gone expire with the TTL
+    my $file = $self->getSentryCacheFile( $opts->{P4PORT} || $ENV{P4PORT} || "" );
+    my ( $fh, $tmpFile ) = eval { tempfile("$file.XXXXX") };
+    return if ( !$fh );
+    foreach my $key ( sort keys %$cache ) {
+        my $entry = $cache->{$key};
+        next if ( time() - $entry->{checked} > $opts->{sentryCacheTTL} );
+        print $fh "$key $entry->{counter} $entry->{change} $entry->{time} $entry->{checked}\n";
+    }
+    close($fh);
+    if ( !rename( $tmpFile, $file ) ) {
+        unlink($tmpFile);
+    }
+}
+
+####################################################################
+# readSentryCache
+#
+# Return the cached schedule results of a P4PORT, read from disk once
+# per process.
+####################################################################
+sub readSentryCache {
+    my ( $self, $opts ) = @_;
+    my $port = $opts->{P4PORT} || $ENV{P4PORT} || "";
+    return $self->{sentryCache}{$port} if ( $self->{sentryCache}{$port} );
+
+    my %cache = ();
+    if ( open( my $fh, "<", $self->getSentryCacheFile($port) ) ) {
+        while ( my $line = <$fh> ) {
+            my ( $key, $counter, $change, $time, $checked ) = split( " ", $line );
+            next if ( !defined $checked );
+            $cache{$key} = { counter => $counter, change => $change, time => $time, checked => $checked };
+        }
+        close($fh);
+    }
+    return $self->{sentryCache}{$port} = \%cache;
+}
+
+####################################################################
+# getSentryCacheFile
+#
+# Return the name of the on-disk sentry cache for the given port
+####################################################################
+sub getSentryCacheFile {
+    my ( $self, $port ) = @_;
+    ( my $key = $port ) =~ s/[^\w.-]/_/g;
+    return File::Spec->catfile( File::Spec->tmpdir(), "ecscm-p4-sentry-$key" );
+}
+
+####################################################################
+# getSentryCacheKey
+#
+# Key of a schedule in the sentry cache: everything that decides which
+# changes it sees.
+####################################################################
+sub getSentryCacheKey {
+    my ( $self, $opts ) = @_;
+    return md5_hex( join( "\n",
+        map { defined $_ ? $_ : "" }
+            @{$opts}{qw(P4USER P4ClientOrDepot P4Paths P4ExcludePaths PreExecutionCmd)} ) );
+}
+
 #-------------------------------------------------------------------------
 # setupP4
 #
@@ -801,6 +1257,11 @@ sub checkoutCode {
         $opts->{updatesFile} = 'Changelog-' . $ENV{COMMANDER_JOBSTEPID};
     }
 
+    # Several sources: one client and sync per source, run concurrently
+    if ( defined $opts->{sources} && $opts->{sources} =~ /\S/ && !defined $opts->{sourceName} ) {
+        return $self->checkoutSources($opts);
+    }
+
     # bhandley
     # Add local variable to hold the P4 options string
     my $p4Options       = "";
@@ -976,6 +1437,11 @@ sub checkoutCode {
       }
     }
 
+    # Each source of a multi-source checkout has a client of its own
+    if ( defined $opts->{sourceName} ) {
+        $opts->{temp_client} .= "-$opts->{sourceName}";
+    }
+
     print "Client name: $opts->{temp_client}\n";
 
     if ( ( !defined $opts->{apf_running} )
@@ -1051,6 +1517,14 @@ sub checkoutCode {
 
         # Check if its an existing client.
         my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+
+        $self->startMetricsPhase("client");
+
+        # Take a client (and its workspace) from the pool instead of a
+        # throwaway one, so the sync only transfers what changed
+        if ( $opts->{clientPool} && $opts->{clientPool} eq "1" && $opts->{temporaryClient} ) {
+            $self->leasePooledClient( $opts, $resourceName, $p4Options );
+        }
         my $clientOutput = $self->clientExists($p4Command, $opts->{temp_client});
 
         #The client doesn't exist, so create a new client.
@@ -1226,12 +1700,17 @@ sub checkoutCode {
                     }
                 );
             }
+            elsif ( $opts->{pooledClient} ) {
+                # Branch and stream clients of the pool keep their spec
+                print "Using pooled client $opts->{temp_client}\n";
+            }
             else {
                 # It's not a template but the client exists
                 $self->issueWarningMsg("Error: The client $opts->{temp_client} already exists.\n");
                 exit(1);
             }
           }
+        $self->endMetricsPhase("client");
 
         # Find the change number to which to sync.
         my $changeNumber;
@@ -1251,6 +1730,7 @@ sub checkoutCode {
         }
 
         my $scmKey = $self->getKeyFromTemplate( $opts->{template} || $opts->{temp_client}, defined($opts->{temporaryClient})?$opts->{procedureStepId}:0 );
+        $scmKey .= "-$opts->{sourceName}" if ( defined $opts->{sourceName} );
         my $start = "";
         if ( length($opts->{lastSnapshot}) )
         {
@@ -1272,12 +1752,20 @@ sub checkoutCode {
         # bhandley
         # Handle the new clean flag.
         # Remove all files and dirs under the destination dir
-        if ($opts->{clean}){
+        if ( $opts->{clean} && ( $opts->{cleanMode} || "wipe" ) eq "verify" ) {
+            # Bring the workspace back to the have list at the change
+            # instead of wiping it; the sync below then has nothing to do
+            $self->verifiedClean( $opts, $changeNumber );
+        }
+        elsif ( $opts->{pooledClientReused} && !$opts->{clean} ) {
+            # Edits and build output of the jobs that used the pooled
+            # workspace before must not leak into this build
+            print "Cleaning the pooled workspace of $opts->{temp_client} left by earlier jobs\n";
+            $self->verifiedClean( $opts, $changeNumber );
+        }
+        elsif ($opts->{clean}){
             print "Cleaning workspace destination: $opts->{dest}\n";
 
-            # Set the 'force' flag to force a full sync after doing the clean
-            $opts->{forcedSync} = 1;
-
             # Remove all files and dirs under the root of the workspace
             my $debugLevel = $opts->{debug};
             my $verbose = 0;
@@ -1285,6 +1773,17 @@ sub checkoutCode {
             print "verbose is set to $verbose based on debug level\n";
 
             File::Path::rmtree( "$opts->{dest}", $verbose, {keep_root => 1} );
+
+            # Set the 'force' flag to force a full sync after doing the clean,
+            # unless the workspace starts again from a seed archive
+            if ( !$opts->{seedArchiveDir} || $opts->{reportOnly} || !$self->seedWorkspace( $opts, $changeNumber ) ) {
+                $opts->{forcedSync} = 1;
+            }
+        }
+        elsif ( $opts->{seedArchiveDir} && !$opts->{reportOnly} && "$opts->{forcedSync}" ne "1" ) {
+            # An empty workspace starts from the newest seed archive of its
+            # view; the sync below then only transfers the newer revisions
+            $self->seedWorkspace( $opts, $changeNumber );
         }
 
         # bhandley
@@ -1296,24 +1795,24 @@ sub checkoutCode {
           my ($forcedSync, $syncHaveList, $parallelSync) = ("", "", "");
           if ( "$opts->{forcedSync}" eq "1" ) {
               $forcedSync = "-f ";
-          } elsif( $opts->{retainTemplateClient} ne "1" ) {
+          } elsif( $opts->{retainTemplateClient} ne "1" && !$opts->{pooledClient} ) {
               # When we don't need to keep client template,
               # enable bypassing of 'have list' updates, thus speeding up sync
+              # (pooled clients need their have list for the next build)
               $syncHaveList = "-p ";
           }
 
-          if(length($opts->{parallelSync})) {
-              $parallelSync = "--parallel=$opts->{parallelSync}";
-          }
-
-          my $tmp_cmd   = "$p4Command  -c $opts->{temp_client} sync $parallelSync $forcedSync $syncHaveList \@$changeNumber";
-          my $enableLog = 0;
-          if ( $opts->{debug} eq "6" ) {
-              $tmp_cmd   = "$p4Command -Ztrack=1 -c $opts->{temp_client} sync $parallelSync $forcedSync $syncHaveList \@$changeNumber";
-              $enableLog = 1;
-          }
-          my $result = $self->RunCommand(
-              $tmp_cmd,
+          my $parallelChoice;
+          ( $parallelSync, $parallelChoice ) = $self->getParallelSyncOption( $opts, $forcedSync, $changeNumber );
+
+          # -Ztrack output is always collected for the metrics, but only
+          # logged at debug level 6
+          my $tmp_cmd   = "$p4Command -Ztrack=1 -ztag -c $opts->{temp_client} sync $parallelSync $forcedSync $syncHaveList \@$changeNumber";
+          my $enableLog = ( $opts->{debug} eq "6" ) ? 1 : 0;
+          my $syncStart = Time::HiRes::time();
+          $self->startMetricsPhase("sync");
+          my $result = $self->streamSync(
+              $opts, "sync", $tmp_cmd,
               {   LogCommand     => 1,
                   HidePassword   => 1,
                   LogResult      => $enableLog,
@@ -1326,6 +1825,8 @@ sub checkoutCode {
               $self->cleanup($opts);
               exit(1);
           }
+          $self->endMetricsPhase("sync");
+          $self->recordParallelSync( $parallelChoice, Time::HiRes::time() - $syncStart );
 
           # bhandley
           # Handle the new unshelving feature.
@@ -1334,55 +1835,51 @@ sub checkoutCode {
           # The list of CLs to unshelve is given,
           # in order, in $opts->{unshelveCLs}, one CL per line
           if (($opts->{unshelveCLs}) && $opts->{unshelveCLs} ne ""){
-            my @unshelveCLs = split /\n/, $opts->{unshelveCLs};
+            my @unshelveCLs = map { /(\S+)/ ? $1 : () } split /\n/, $opts->{unshelveCLs};
             $self->debugMsg( 4, "The list of CLs to unshelve is: @unshelveCLs", $opts );
-            foreach my $cl (@unshelveCLs){
-              $self->debugMsg( 4, "unshelving $cl to workspace", $opts );
-              my $result = $self->RunCommand(
-                "$p4Command -c $opts->{temp_client} unshelve -s $cl -f",
-                {   LogCommand     => 1,
-                    HidePassword   => 1,
-                    LogResult      => $enableLog,
-                    passwordStart  => $passwordStart,
-                    passwordLength => $passwordLength
-                }
-              );
-              if ( !defined $result ) {
+            $self->startMetricsPhase("unshelve");
+            if ( @unshelveCLs && !$self->unshelveChanges( $opts, @unshelveCLs ) ) {
                 $self->cleanup($opts);
                 die("Unshelve failed.");
-              }
-
-              $result = $self->RunCommand(
-                "$p4Command -c $opts->{temp_client} revert -k //$opts->{temp_client}/...",
-                {   LogCommand     => 1,
-                    HidePassword   => 1,
-                    LogResult      => $enableLog,
-                    passwordStart  => $passwordStart,
-                    passwordLength => $passwordLength
-                });
-              if ( !defined $result ) {
-                $self->cleanup($opts);
-                die("Revert failed.");
-              }
             }
+            $self->endMetricsPhase("unshelve");
+          }
+
+          # List the synced files for CaptureSeedArchive; unshelved files
+          # are not at the change
+          if ( $opts->{seedArchiveDir} && !$opts->{unshelveCLs} && !defined $opts->{sourceName} ) {
+              $self->recordSeedManifest( $opts, $changeNumber );
           }
         } else {
           print "Skipping sync because the \"reportOnly\" flag is set\n";
         }
 
+        # The changelog of a multi-source checkout is written once every
+        # source is synced (checkoutSources)
+        if ( $opts->{sourceResultFile} ) {
+            $self->writeSourceResult( $opts, $scmKey, $start, $changeNumber );
+            return $changeNumber;
+        }
+
         # A perforce label is a valid input parameter
         # We need to convert it into a changelist number for ease of changelog generation
         $changeNumber = $self->resolveLabel($opts, $changeNumber);
         $start = $self->resolveLabel($opts, $start);
 
         $start += 1 if $start != $changeNumber;
+        $self->startMetricsPhase("changelog");
         $self->generateChangelog($opts, $scmKey, $start, $changeNumber);
+        $self->endMetricsPhase("changelog");
+        $self->publishMetrics($opts);
 
         # bhandley
         # Write out the clientname used for this sync to properties
         # on the job. Some customers use thse settings to issue additional p4 commands
         # in subsequent steps.
         $self->getCmdr()->setProperty( "/myJob/P4CLIENT", $opts->{temp_client} );
+        if ( $opts->{pooledClient} ) {
+            $self->getCmdr()->setProperty( "/myJob/P4ROOT", $opts->{dest} );
+        }
 
         if ( !defined $opts->{apf_running} ) {
             $self->cleanup($opts);
@@ -1397,15 +1894,303 @@ sub checkoutCode {
     }
 }
 
+####################################################################
+# checkoutSources
+#
+# Check out several independent sources in one step.  The "sources"
+# option lists one source per line:
+#
+#     type|directory|value[|value...]
+#
+# where type is template, stream, branch or view (each further value is a
+# line of the view, in the "depot;client" form of the view option) and
+# directory is where the source goes under the destination directory.
+# Every source gets a client of its own and is synced by a separate
+# process, sourceWorkers at a time (one at a time on Windows).  Once they
+# are all synced the changelog of each source is generated under its own
+# key, then the summary properties, the update log and lastGoodSnapshot
+# (the highest change) are written for the whole checkout.
+#
+# Return:
+#    The highest change synced
+####################################################################
+sub checkoutSources {
+    my ( $self, $opts ) = @_;
+
+    $self->updateOptions($opts);
+    ( $opts->{P4USER}, $opts->{P4PASSWD} )
+        = $self->retrieveUserCredential( $opts->{credential}, $opts->{P4USER}, $opts->{P4PASSWD} );
+    my @sources = $self->parseSources( $opts->{sources} );
+    if ( !@sources ) {
+        $self->issueWarningMsg("Error: No valid source in \"sources\" (type|directory|value per line).\n");
+        exit(1);
+    }
+    if ( $opts->{smartSync} && $opts->{smartSync} eq "1" ) {
+        $self->issueWarningMsg("Error: Multiple sources can only be checked out with Standard Sync.\n");
+        exit(1);
+    }
+
+    my $dest = ( defined $opts->{dest} && $opts->{dest} ne "" ) ? File::Spec->rel2abs( $opts->{dest} ) : cwd();
+    my $resultDir = File::Temp->newdir( "sources_XXXXX", TMPDIR => 1 );
+    my @checkouts = ();
+    foreach my $source (@sources) {
+        my %sourceOpts = %$opts;
+        delete @sourceOpts{qw(sources template stream branch view temp_client temporaryClient)};
+        $sourceOpts{ $source->{type} } = $source->{value};
+        $sourceOpts{dest}             = File::Spec->catdir( $dest, $source->{directory} );
+        $sourceOpts{sourceName}       = $source->{name};
+        $sourceOpts{sourceResultFile} = File::Spec->catfile( "$resultDir", $source->{name} );
+        mkpath( $sourceOpts{dest} );
+        push( @checkouts, \%sourceOpts );
+    }
+
+    my $workers = $opts->{sourceWorkers};
+    $workers = 4 if ( !defined $workers || $workers !~ /^\d+$/ || $workers < 1 );
+    $workers = 1 if ( $^O eq "MSWin32" );
+    print "Checking out " . scalar(@checkouts) . " sources, $workers at a time\n";
+
+    my $checkoutStart = Time::HiRes::time();
+    my %running = ();
+    my @failed  = ();
+    my $reap    = sub {
+        my $pid = waitpid( -1, 0 );
+        return if ( $pid <= 0 || !$running{$pid} );
+        my $sourceOpts = delete $running{$pid};
+        push( @failed, $sourceOpts->{sourceName} ) if ($?);
+        $self->printSourceLog($sourceOpts);
+    };
+    foreach my $sourceOpts (@checkouts) {
+        if ( $workers == 1 ) {
+            $self->checkoutCode($sourceOpts);
+            next;
+        }
+        $reap->() while ( keys %running >= $workers );
+        my $pid = fork();
+        if ( !defined $pid ) {
+            $self->issueWarningMsg("Error: can't fork: $!\n");
+            exit(1);
+        }
+        if ( !$pid ) {
+            # Keep the log of each source in one piece
+            open( STDOUT, ">", "$sourceOpts->{sourceResultFile}.log" ) or POSIX::_exit(1);
+            open( STDERR, ">&", \*STDOUT );
+            $| = 1;
+            $self->checkoutCode($sourceOpts);
+            POSIX::_exit(0);
+        }
+        $running{$pid} = $sourceOpts;
+    }
+    $reap->() while (%running);
+    printf( "Synced %d sources in %.2fs\n", scalar(@checkouts), Time::HiRes::time() - $checkoutStart );
+
+    # Changelogs, one source at a time, from the results of the checkouts
+    my ( $lastChange, @updates ) = ( 0 );
+    $self->{changelogTotals} = { changes => 0, users => {} };
+    $self->beginPropertyBatch();
+    foreach my $sourceOpts (@checkouts) {
+        my $result = $self->readSourceResult($sourceOpts);
+        if ( !$result ) {
+            push( @failed, $sourceOpts->{sourceName} ) if ( !grep { $_ eq $sourceOpts->{sourceName} } @failed );
+            next;
+        }
+        $self->setupP4($sourceOpts);
+        my $changeNumber = $self->resolveLabel( $sourceOpts, $result->{changeNumber} );
+        my $start        = $self->resolveLabel( $sourceOpts, $result->{start} );
+        $start += 1 if $start != $changeNumber;
+        if ( length( $opts->{updatesFile} ) ) {
+            $sourceOpts->{updatesFile} = "$opts->{updatesFile}-$sourceOpts->{sourceName}";
+        }
+        print "Source $sourceOpts->{sourceName} ($result->{scmKey}): client $sourceOpts->{temp_client}, change $changeNumber\n";
+        $self->startMetricsPhase("changelog");
+        $self->generateChangelog( $sourceOpts, $result->{scmKey}, $start, $changeNumber );
+        $self->endMetricsPhase("changelog");
+        if ( length( $sourceOpts->{updatesFile} ) && open( my $in, "<", $sourceOpts->{updatesFile} ) ) {
+            push( @updates, "=" x 25 . " $sourceOpts->{sourceName} " . "=" x 25 . "\n\n" . do { local $/; <$in> } );
+            close($in);
+            unlink( $sourceOpts->{updatesFile} );
+        }
+        $self->setJobProperty( "/myJob/P4CLIENTS/$sourceOpts->{sourceName}", $sourceOpts->{temp_client} );
+        $lastChange = $changeNumber if ( $changeNumber > $lastChange );
+        $self->cleanup($sourceOpts);
+    }
+
+    # generateChangelog wrote the job wide properties of each source in turn
+    $self->writeSourcesSummary( $opts, $lastChange, @updates );
+    $self->submitPropertyBatch();
+    $self->publishMetrics($opts);
+
+    if (@failed) {
+        $self->issueWarningMsg( "Error: Checkout failed for source(s): " . join( ", ", @failed ) . "\n" );
+        exit(1);
+    }
+    return $lastChange;
+}
+
+####################################################################
+# parseSources
+#
+# Parse the "sources" option of a multi-source checkout.
+#
+# Return:
+#    A list of { type, directory, value, name } hashes
+####################################################################
+sub parseSources {
+    my ( $self, $text ) = @_;
+    my @sources = ();
+    my %names   = ();
+    foreach my $line ( split( /\r?\n/, $text ) ) {
+        next if ( $line !~ /\S/ );
+        my ( $type, $directory, @values ) = map { s/^\s+|\s+$//g; $_ } split( /\|/, $line );
+        if ( !defined $type || $type !~ /^(template|stream|branch|view)$/ || !grep {length} @values ) {
+            print "Warning: Ignoring source \"$line\"\n";
+            next;
+        }
+        my $value = $type eq "view" ? join( "\n", grep {length} @values ) : $values[0];
+        $directory = "source" . ( @sources + 1 ) if ( !defined $directory || $directory eq "" );
+
+        # Client names and changelog keys are built from the directory
+        ( my $name = $directory ) =~ s/[^\w.-]+/_/g;
+        $name .= "-" . ( @sources + 1 ) if ( $names{$name}++ );
+        push( @sources, { type => $type, directory => $directory, value => $value, name => $name } );
+    }
+    return @sources;
+}
+
+####################################################################
+# writeSourceResult / readSourceResult
+#
+# Pass the outcome of the checkout of one source (its client, changelog
+# key and range, and metrics) from the process that synced it back to
+# checkoutSources.
+####################################################################
+sub writeSourceResult {
+    my ( $self, $opts, $scmKey, $start, $changeNumber ) = @_;
+    open( my $fh, ">", $opts->{sourceResultFile} )
+        or die "Can't write $opts->{sourceResultFile}: $!";
+    print $fh "scmKey=$scmKey\nstart=$start\nchangeNumber=$changeNumber\n";
+    foreach my $name (qw(temp_client temporaryClient pooledClient dest)) {
+        print $fh "opt.$name=$opts->{$name}\n" if ( defined $opts->{$name} );
+    }
+    foreach my $phase ( @{ $self->{p4MetricsOrder} || [] } ) {
+        my $metrics = $self->{p4Metrics}{$phase};
+        print $fh "metric.$phase.$_=$metrics->{$_}\n" foreach ( sort keys %$metrics );
+    }
+    close($fh);
+
+    # Run in-process on Windows: start the next source with clean metrics
+    delete $self->{p4Metrics};
+    delete $self->{p4MetricsOrder};
+}
+
+sub readSourceResult {
+    my ( $self, $opts ) = @_;
+    my %result  = ();
+    my %metrics = ();
+    open( my $fh, "<", $opts->{sourceResultFile} ) or return undef;
+    while ( my $line = <$fh> ) {
+        chomp($line);
+        if ( $line =~ /^opt\.(\w+)=(.*)$/ ) {
+            $opts->{$1} = $2;
+        }
+        elsif ( $line =~ /^metric\.(\w+)\.(\w+)=(.*)$/ ) {
+            $metrics{$1}{$2} = $3;
+        }
+        elsif ( $line =~ /^(\w+)=(.*)$/ ) {
+            $result{$1} = $2;
+        }
+    }
+    close($fh);
+    $self->addSourceMetrics( \%metrics );
+    return \%result;
+}
+
+####################################################################
+# addSourceMetrics
+#
+# Add the metrics of one source to the phases of the step.  The sources
+# are synced at the same time, so the elapsed times add up to more than
+# the wall time of the checkout.
+####################################################################
+sub addSourceMetrics {
+    my ( $self, $sourceMetrics ) = @_;
+    foreach my $phase ( sort keys %$sourceMetrics ) {
+        my $metrics = $self->getMetricsPhase($phase);
+        $metrics->{$_} += $sourceMetrics->{$phase}{$_} foreach ( keys %{ $sourceMetrics->{$phase} } );
+    }
+}
+
+####################################################################
+# printSourceLog
+#
+# Copy the log of a source checked out by a separate process to the
+# step log.
+####################################################################
+sub printSourceLog {
+    my ( $self, $opts ) = @_;
+    my $log = "$opts->{sourceResultFile}.log";
+    open( my $fh, "<", $log ) or return;
+    print "---------- Source $opts->{sourceName} ----------\n";
+    print while (<$fh>);
+    close($fh);
+    unlink($log);
+}
+
+####################################################################
+# writeSourcesSummary
+#
+# Write the job and schedule properties of a multi-source checkout
+# from the totals of the changelogs of all the sources.
+####################################################################
+sub writeSourcesSummary {
+    my ( $self, $opts, $lastChange, @updates ) = @_;
+
+    $self->beginPropertyBatch();
+    $self->setJobProperty( "/myJob/lastGoodSnapshot", $lastChange );
+    my ( $projectName, $scheduleName ) = $self->GetProjectAndScheduleNames();
+    if ( length($scheduleName) ) {
+        $self->setJobProperty( "/projects[$projectName]/schedules[$scheduleName]/lastGoodSnapshot", $lastChange );
+    }
+
+    if ( length( $opts->{updatesFile} ) ) {
+        my $updates = join( "", @updates );
+        if ( open( my $fh, ">", $opts->{updatesFile} ) ) {
+            print $fh $updates;
+            close($fh);
+        }
+        $self->setJobProperty( "/myJob/p4Updates", $updates );
+    }
+
+    my @users = sort keys %{ $self->{changelogTotals}{users} };
+    my $count = $self->{changelogTotals}{changes};
+    my $users = scalar(@users);
+    $self->setJobProperty( "/myJob/users", "@users" );
+    my $summary = $count ? "$count changes by $users users: @users" : "No changes";
+    $self->setJobProperty( "postSummary",      $summary );
+    $self->setJobProperty( "/myJob/p4Summary", $summary );
+    $self->submitPropertyBatch();
+}
+
 sub p4Login{
     my ( $self, $opts) = @_;
     if($opts->{loggedIn} eq "0"){
         my $login_cmd = "p4 login";
-        my $password = $opts->{P4PASSWD};
-        open FILE, "| $login_cmd" or die "Can't pipe p4";
-        print FILE $password;
-        close FILE;
-        $opts->{loggedIn} = "1";
+        foreach my $attempt ( 1, 2 ) {
+            open FILE, "| $login_cmd" or die "Can't pipe p4";
+            print FILE $opts->{P4PASSWD};
+            if ( close FILE ) {
+                $opts->{loggedIn} = "1";
+                return;
+            }
+            last if ( !defined $opts->{credential} || $opts->{credential} eq "" || $attempt == 2 );
+
+            # The password may have changed since the credential was read
+            $self->invalidateOptionsCache();
+            ( $opts->{P4USER}, $opts->{P4PASSWD} )
+                = $self->retrieveUserCredential( $opts->{credential}, $opts->{P4USER}, $opts->{P4PASSWD} );
+            $ENV{'P4USER'}   = $opts->{P4USER};
+            $ENV{'P4PASSWD'} = $opts->{P4PASSWD};
+        }
+        $self->issueWarningMsg("*** Warning: p4 login failed for user $opts->{P4USER}");
     }
 }
 
@@ -1485,12 +2270,14 @@ sub resolveLabel {
 #-------------------------------------------------------------------------
 sub generateChangelog {
     my ( $self, $opts, $scmKey, $start, $changeNumber ) = @_;
-    my $ec = $self->getCmdr();
 
     print "Creating changelog, start change: $start, end change: $changeNumber.\n";
 
+    # The properties below go to Commander in one batched request
+    $self->beginPropertyBatch();
+
     #Set additional, easier-to-use properties on the Job and Schedule
-    $ec->setProperty( "/myJob/lastGoodSnapshot", $changeNumber );
+    $self->setJobProperty( "/myJob/lastGoodSnapshot", $changeNumber );
 
     my ( $projectName, $scheduleName ) = $self->GetProjectAndScheduleNames();
     my $schedPrefix = undef;
@@ -1499,48 +2286,54 @@ sub generateChangelog {
         $schedPrefix = "/projects[$projectName]/schedules[$scheduleName]";
 
         # Store the current CL number in lastGoodSnapshot on the Schedule
-        $ec->setProperty( "$schedPrefix/lastGoodSnapshot", $changeNumber );
+        $self->setJobProperty( "$schedPrefix/lastGoodSnapshot", $changeNumber );
     }
 
-    return "" if(!$opts->{generateChangelog} && !length($opts->{updatesFile}));
+    if(!$opts->{generateChangelog} && !length($opts->{updatesFile})) {
+        $self->submitPropertyBatch();
+        return "";
+    }
 
     my $changes_cmd = "$self->{p4Command} -c $opts->{temp_client} -ztag changes //$opts->{temp_client}/...\@$start,$changeNumber";
     open(my $changes_handle, "-|", $changes_cmd) || die "Error: can't open p4 changes pipe: $!.";
 
     my ($changes, $updates_file, $updates_handle, $updates) = ("", $opts->{updatesFile}, undef, "");
-    my ($current_user, $change_count, $change_number) = (undef, 0, undef);
+    my ($current_user, $change_count, $change_number, $file_count) = (undef, 0, undef, 0);
     my %users = ();
 
+    # Changes are described in chunks of $batch_size, one p4 process per chunk
+    my $batch_size = $opts->{changelogBatchSize};
+    if(!length($batch_size) || $batch_size !~ /^\d+$/ || $batch_size < 1) {
+        $batch_size = 100;
+    }
+    my @pending = ();
+
     if(length($updates_file)) {
         print "Writing update log to $updates_file file\n";
         open($updates_handle, ">", $updates_file) || die "Error: can't open updates file: $!";
     }
 
-    while(<$changes_handle>) {
-        my ($key, $value) = (split)[1..2];
+    my $describe_pending = sub {
+        return if !@pending;
 
-        if($key eq "change") {
-            $change_count++;
-            $change_number = $value;
-        } elsif($key eq "user") {
-            $users{$value} = 1;
+        my $descriptions = $self->describeChanges($opts, map { $_->[0] } @pending);
 
-            my $out = $self->RunCommand(
-                "$self->{p4Command} -c $opts->{temp_client} describe -s $change_number",
-                {
-                    LogCommand     => 1,
-                    HidePassword   => 1,
-                    passwordStart  => $self->{passwordStart},
-                    passwordLength => $self->{passwordLength}
-                });
+        foreach my $entry (@pending) {
+            my ($number, $user) = @$entry;
+            my $out = $descriptions->{$number};
+            if(!defined $out) {
+                $self->issueWarningMsg("Warning: Could not describe change $number, leaving it out of the changelog\n");
+                next;
+            }
 
             $changes .= $out if $opts->{generateChangelog};
+            $file_count += () = $out =~ m{^\.\.\. //}mg;
 
             if($updates_handle) {
-                if($current_user ne $value) {
-                    my $header = '-' x  25 . " $value " . '-' x  25 . "\n\n";
+                if($current_user ne $user) {
+                    my $header = '-' x  25 . " $user " . '-' x  25 . "\n\n";
 
-                    $current_user = $value;
+                    $current_user = $user;
                     print ($updates_handle $header);
                     $updates .= $header;
                 }
@@ -1549,11 +2342,27 @@ sub generateChangelog {
                 $updates .= $out;
             }
         }
+        @pending = ();
+    };
+
+    while(<$changes_handle>) {
+        my ($key, $value) = (split)[1..2];
+
+        if($key eq "change") {
+            $change_count++;
+            $change_number = $value;
+        } elsif($key eq "user") {
+            $users{$value} = 1;
+
+            push(@pending, [$change_number, $value]);
+            $describe_pending->() if @pending >= $batch_size;
+        }
     }
+    $describe_pending->();
 
     if($updates_handle) {
         # write the p4Updates property
-        $ec->setProperty("/myJob/p4Updates", $updates);
+        $self->setJobProperty("/myJob/p4Updates", $updates);
         close($updates_handle);
     }
 
@@ -1561,8 +2370,16 @@ sub generateChangelog {
     $self->updateLastGoodAndLastCompleted($opts);
 
     if($opts->{generateChangelog}) {
+        # Small per-key summary the changelog report lists before it fetches
+        # any (potentially very large) changelog body.
+        my $bytes   = do { use bytes; length($changes) };
+        my $summary = "changes=$change_count\n"
+            . "users=" . join(" ", sort keys %users) . "\n"
+            . "files=$file_count\n"
+            . "bytes=$bytes\n";
+        $self->setJobProperty("/myJob/ecscm_changeLogSummary/$scmKey", $summary);
         if (length($scheduleName)) {
-            $ec->setProperty("$schedPrefix/ecscm_changelogs/$scmKey", $changes);
+            $self->setJobProperty("$schedPrefix/ecscm_changelogs/$scmKey", $changes);
         }
 
         $self->createLinkToChangelogReport("Changelog Report");
@@ -1570,6 +2387,10 @@ sub generateChangelog {
 
     close($changes_handle);
 
+    # Totals over every changelog of the step (multi-source checkouts)
+    $self->{changelogTotals}{changes} += $change_count;
+    $self->{changelogTotals}{users}{$_} = 1 foreach ( keys %users );
+
     my $user_count = keys %users;
     my @users = ();
     foreach my $user (keys %users) {
@@ -1577,19 +2398,154 @@ sub generateChangelog {
     }
 
     # Set the 'users' property to the list of users who made changes
-    $ec->setProperty("/myJob/users","@users");
+    $self->setJobProperty("/myJob/users","@users");
 
     if ($change_count) {
-      $ec->setProperty("postSummary", "$change_count changes by $user_count users: @users");
-      $ec->setProperty("/myJob/p4Summary","$change_count changes by $user_count users: @users");
+      $self->setJobProperty("postSummary", "$change_count changes by $user_count users: @users");
+      $self->setJobProperty("/myJob/p4Summary","$change_count changes by $user_count users: @users");
     } else {
-      $ec->setProperty("postSummary","No changes");
-      $ec->setProperty("/myJob/p4Summary","No changes");
+      $self->setJobProperty("postSummary","No changes");
+      $self->setJobProperty("/myJob/p4Summary","No changes");
     }
+    $self->submitPropertyBatch();
 
     return $changes;
 }
 
+#-------------------------------------------------------------------------
+# describeChanges
+#
+#      Runs a single "p4 describe -s" for a chunk of changes and splits the
+#      output back into one description per change.  Each description starts
+#      with an unindented "Change N by" header (description text is always
+#      tab-indented), so the split reproduces exactly what a separate
+#      "p4 describe -s N" would have printed.
+#
+#      With the engine the chunk is described tagged, and each change is
+#      rendered the way "p4 describe -s N" prints it (renderDescription).
+#      The changes it can't render are described with p4 as above.
+#
+# Results:
+#      Hash reference mapping each change number to its description.
+#
+# Arguments:
+#      opts -          options hash
+#      changeNumbers - list of change numbers to describe
+#-------------------------------------------------------------------------
+sub describeChanges {
+    my ( $self, $opts, @changeNumbers ) = @_;
+    my %descriptions = ();
+    my $p4Opts = {
+        LogCommand     => 1,
+        HidePassword   => 1,
+        passwordStart  => $self->{passwordStart},
+        passwordLength => $self->{passwordLength}
+    };
+
+    if ( $opts->{engineClasspath} && !$self->{engineFailed} ) {
+        my @records = ();
+        my $field   = undef;
+        my $feed    = sub {
+            my ($line) = @_;
+            if ( $line =~ /^\.\.\. (\w+) ?(.*)$/ ) {
+                push( @records, {} ) if ( !@records || exists $records[-1]{$1} );
+                $field = $1;
+                $records[-1]{$field} = $2;
+            }
+            elsif ( $line =~ /^(?:error|warning|info|exit): / ) {
+                $field = undef;
+            }
+            elsif ( defined $field ) {
+                # A line of a multi-line description
+                $records[-1]{$field} .= "\n$line";
+            }
+        };
+        $self->p4Tagged( $opts, $self->{p4Command}, { %$p4Opts, IgnoreError => 1 },
+            $opts->{temp_client}, "describe", [ "-s", @changeNumbers ], undef, $feed );
+        foreach my $record (@records) {
+            # The blank line ending a record continues its last field
+            s/\n+$// foreach ( values %$record );
+            my $out = $self->renderDescription( $opts, $record );
+            $descriptions{ $record->{change} } = $out if ( defined $out );
+        }
+        @changeNumbers = grep { !exists $descriptions{$_} } @changeNumbers;
+        return \%descriptions if ( !@changeNumbers );
+    }
+
+    my $out = $self->RunCommand( "$self->{p4Command} -c $opts->{temp_client} describe -s @changeNumbers", $p4Opts );
+
+    if(@changeNumbers == 1) {
+        $descriptions{$changeNumbers[0]} = $out;
+        return \%descriptions;
+    }
+
+    # One inaccessible change fails the whole chunk; describe them one by one
+    # so the remaining changes still make it into the changelog.
+    if(!defined $out) {
+        foreach my $number (@changeNumbers) {
+            %descriptions = (%descriptions, %{ $self->describeChanges($opts, $number) });
+        }
+        return \%descriptions;
+    }
+
+    my $current = undef;
+    foreach my $line (split(/^/m, $out)) {
+        if($line =~ /^Change (\d+) by /) {
+            $current = $1;
+        }
+        $descriptions{$current} .= $line if defined $current;
+    }
+
+    return \%descriptions;
+}
+
+#-------------------------------------------------------------------------
+# renderDescription
+#
+#      Print a record of "p4 -ztag describe -s" as "p4 describe -s" prints
+#      it:
+#
+#          Change 1234 by user@client on 2026/01/02 03:04:05
+#
+#          \tThe description
+#
+#          Affected files ...
+#
+#          ... //depot/main/a.c#3 edit
+#
+# Results:
+#      The text, or undef when the record is not a submitted public change
+#      with a description, files and no jobs, whose untagged form has more
+#      to it.
+#-------------------------------------------------------------------------
+sub renderDescription {
+    my ( $self, $opts, $record ) = @_;
+
+    foreach my $name (qw(change user client time status changeType desc)) {
+        return undef if ( !defined $record->{$name} );
+    }
+    return undef if ( $record->{status} ne "submitted" || $record->{changeType} ne "public" );
+    return undef if ( exists $record->{job0} || !exists $record->{depotFile0} );
+    return undef if ( $record->{time} !~ /^\d+$/ || $record->{desc} eq "" );
+
+    my $zone = $self->getServerTimeZone($opts);
+    return undef if ( !defined $zone || $zone !~ /^([-+]?)(\d\d)(\d\d)$/ );
+    my $offset = ( $1 eq "-" ? -1 : 1 ) * ( $2 * 3600 + $3 * 60 );
+    my @time = gmtime( $record->{time} + $offset );
+
+    my $out = sprintf( "Change %s by %s\@%s on %04d/%02d/%02d %02d:%02d:%02d\n\n",
+        $record->{change}, $record->{user}, $record->{client},
+        $time[5] + 1900, $time[4] + 1, @time[ 3, 2, 1, 0 ] );
+    $out .= join( "", map {"\t$_\n"} split( /\n/, $record->{desc}, -1 ) ) . "\nAffected files ...\n\n";
+    my $index = 0;
+    for ( ; exists $record->{"depotFile$index"}; $index++ ) {
+        my ( $file, $rev, $action ) = map { $record->{"$_$index"} } qw(depotFile rev action);
+        return undef if ( !defined $rev || !defined $action );
+        $out .= "... $file#$rev $action\n";
+    }
+    return undef if ( grep { /^(?:depotFile|rev|action)(\d+)$/ && $1 >= $index } keys %$record );
+    return "$out\n";
+}
 
 #-------------------------------------------------------------------------
 # resetPermissions
@@ -1642,13 +2598,595 @@ sub clientExists {
     return $clientOutput;
 }
 
+#-------------------------------------------------------------------------
+# streamCommand
+#
+#      Run a command and hand each line of its standard output to a
+#      callback as soon as it is read, instead of collecting the whole
+#      output the way RunCommand does. Standard error goes to the step
+#      log.
+#
+# Results:
+#      1 on success, undef if the command could not be run or failed
+#      (unless IgnoreError is set).
+#
+# Arguments:
+#      command  - the command line
+#      options  - LogCommand, LogResult, IgnoreError, HidePassword,
+#                 passwordStart and passwordLength, as for RunCommand.
+#                 Stop, a reference to a flag the callback sets to stop
+#                 reading early (the command is then not checked).
+#      callback - called with each output line, without the line end
+#-------------------------------------------------------------------------
+sub streamCommand {
+    my ( $self, $command, $options, $callback ) = @_;
+
+    if ( $options->{LogCommand} ) {
+        my $logged = $command;
+        if ( $options->{HidePassword} && $options->{passwordLength} ) {
+            substr( $logged, $options->{passwordStart}, $options->{passwordLength}, "****" );
+        }
+        print "$logged\n";
+    }
+
+    my $pipe;
+    if ( !open( $pipe, "$command |" ) ) {
+        $self->issueWarningMsg("*** Error: Could not run command: $!");
+        return undef;
+    }
+    binmode($pipe);
+    my $stop = $options->{Stop};
+    while ( my $line = <$pipe> ) {
+        print $line if ( $options->{LogResult} );
+        $line =~ s/\r?\n$//;
+        $callback->($line);
+        last if ( $stop && $$stop );
+    }
+    close($pipe);
+    return 1 if ( $stop && $$stop );
+
+    if ( $? && !$options->{IgnoreError} ) {
+        $self->issueWarningMsg( "*** Error: Command returned " . ( $? >> 8 ) );
+        return undef;
+    }
+    return 1;
+}
+
+#-------------------------------------------------------------------------
+# tagRecordParser
+#
+#      Return a sub that is fed the output of a p4 command one line at a
+#      time and calls $callback->(\%record) for every record as soon as it
+#      is complete, so only one record is held at a time.  It understands
+#
+#          ... depotFile //depot/a.c        -ztag fields
+#          info1: depotFile //depot/a.c     -s -ztag fields
+#          error: //depot/b.c - no such file(s).
+#          //depot/c.c - file(s) up-to-date.
+#          ... //depot/c.c - must resolve #3 before submitting
+#
+#      A record ends at a blank line or when one of its fields comes again.
+#      Messages are records of their own, { code => "info", "error" or
+#      "warning", data => text }; "exit:" lines are dropped.  When the
+#      callback returns true no more records are passed on and the feed
+#      sub sets the flag it was given, for streamCommand's Stop option.
+#
+# Results:
+#      The feed sub; call it with undef at the end of the output.
+#-------------------------------------------------------------------------
+sub tagRecordParser {
+    my ( $self, $callback, $stop ) = @_;
+    my $record = {};
+    my $emit = sub {
+        my ($next) = @_;
+        if ( %$record && !$$stop ) {
+            $$stop = 1 if ( $callback->($record) );
+        }
+        $record = {};
+        $$stop = 1 if ( $next && !$$stop && $callback->($next) );
+    };
+    return sub {
+        my ($line) = @_;
+        return if ($$stop);
+        if ( !defined $line || $line eq "" ) {
+            $emit->();
+        }
+        elsif ( $line =~ /^(?:\.\.\.\s)+(\w+)(?:\s(.*))?$/ || $line =~ /^info[1-9]\d*:\s(\w+)(?:\s(.*))?$/ ) {
+            my ( $name, $value ) = ( $1, defined $2 ? $2 : "" );
+            $emit->() if ( exists $record->{$name} );
+            $record->{$name} = $value;
+        }
+        elsif ( $line =~ /^(error|warning|info):\s(.*)$/ ) {
+            $emit->( { code => $1, data => $2 } );
+        }
+        elsif ( $line !~ /^exit:\s/ ) {
+            $emit->( { code => "info", data => $line } );
+        }
+    };
+}
+
+#-------------------------------------------------------------------------
+# streamSync
+#
+#      Run a "p4 sync" and read its output as it arrives instead of
+#      collecting it: only running counters are kept (files added, updated,
+#      deleted and otherwise refreshed, bytes, errors) with the first ten
+#      error messages.  Run with -ztag, each file comes with its size;
+#      untagged "... - added as" lines are counted as well.  Every
+#      syncProgressInterval seconds (30 by default) the counters are saved
+#      to /myJob/p4SyncProgress (/myJob/p4SyncProgress/<source> for a
+#      source of a multi-source checkout), and once more at the end.  The
+#      -Ztrack counters go to the metrics of the phase, the files and bytes
+#      too.
+#
+# Results:
+#      The counters (hash ref), or undef when the sync failed.
+#
+# Arguments:
+#      opts      - the options hash
+#      phase     - the metrics phase of the sync
+#      command   - the p4 sync command line
+#      runOpts   - streamCommand options (LogCommand, HidePassword, ...)
+#-------------------------------------------------------------------------
+sub streamSync {
+    my ( $self, $opts, $phase, $command, $runOpts ) = @_;
+
+    my %sync = ( files => 0, added => 0, updated => 0, deleted => 0, refreshed => 0, bytes => 0, errors => 0, total => 0 );
+    my @errorSample = ();
+    my $track       = "";
+    my $interval    = $opts->{syncProgressInterval};
+    $interval = 30 if ( !length($interval) || $interval !~ /^\d+$/ );
+    my $property = "/myJob/p4SyncProgress" . ( defined $opts->{sourceName} ? "/$opts->{sourceName}" : "" );
+    my $start    = Time::HiRes::time();
+    my $next     = $start + $interval;
+
+    my $progress = sub {
+        my ($state) = @_;
+        my $text = "state=$state\n"
+            . join( "", map {"$_=$sync{$_}\n"} qw(files added updated deleted refreshed bytes errors total) )
+            . sprintf( "elapsed=%.1f\n", Time::HiRes::time() - $start );
+        eval { $self->getCmdr()->setProperty( $property, $text ); };
+    };
+    my $count = sub {
+        my ($action) = @_;
+        $sync{files}++;
+        if    ( $action =~ /^add/ )    { $sync{added}++; }
+        elsif ( $action =~ /^updat/ )  { $sync{updated}++; }
+        elsif ( $action =~ /^delet/ )  { $sync{deleted}++; }
+        else                           { $sync{refreshed}++; }
+    };
+    my $error = sub {
+        my ($message) = @_;
+        $sync{errors}++;
+        push( @errorSample, $message ) if ( @errorSample < 10 );
+    };
+
+    my $stop = 0;
+    my $feed = $self->tagRecordParser(
+        sub {
+            my ($record) = @_;
+            if ( defined $record->{code} ) {
+                my $data = $record->{data};
+                if ( $data =~ /#\d+ - (added as|updating|deleted as|refreshing|replacing) / ) {
+                    $count->($1);
+                }
+                elsif ( $record->{code} eq "error" || $data !~ /up-to-date|no such file|not in client view|^Server network estimates/ ) {
+                    $error->($data);
+                }
+            }
+            elsif ( defined $record->{action} ) {
+                $sync{total} = $record->{totalFileCount} if ( $record->{totalFileCount} );
+                $count->( $record->{action} );
+                $sync{bytes} += $record->{fileSize} if ( $record->{action} ne "deleted" && $record->{fileSize} );
+            }
+            return 0;
+        },
+        \$stop
+    );
+    my $logTrack = defined $opts->{debug} && $opts->{debug} eq "6";
+    my $ok = $self->streamCommand(
+        "$command 2>&1",
+        { %$runOpts, LogResult => 0 },
+        sub {
+            my ($line) = @_;
+            if ( $line =~ /^--- / ) {
+                print "$line\n" if ( $runOpts->{LogResult} && $logTrack );
+                $track .= "$line\n";
+                return;
+            }
+            print "$line\n" if ( $runOpts->{LogResult} );
+            $feed->($line);
+            if ( $interval && Time::HiRes::time() >= $next ) {
+                $progress->("running");
+                $next = Time::HiRes::time() + $interval;
+            }
+        }
+    );
+    $feed->(undef);
+
+    $self->addTrackMetrics( $phase, $track );
+    my $metrics = $self->getMetricsPhase($phase);
+    $metrics->{syncFiles} += $sync{files};
+    $metrics->{syncBytes} += $sync{bytes};
+
+    $progress->( $ok ? "done" : "failed" );
+    printf( "Synced %d files (%d added, %d updated, %d deleted, %d refreshed), %d bytes in %.2fs\n",
+        @sync{qw(files added updated deleted refreshed bytes)}, Time::HiRes::time() - $start );
+    if ( $sync{errors} ) {
+        print "$sync{errors} errors"
+            . ( $sync{errors} > @errorSample ? ", the first " . scalar(@errorSample) : "" ) . ":\n";
+        print "    $_\n" foreach (@errorSample);
+    }
+    return $ok ? \%sync : undef;
+}
+
+#-------------------------------------------------------------------------
+# Perforce engine
+#
+#      With an engineClasspath in the configuration, tagged queries go to
+#      the agent-local Perforce engine (ecplugins.ECSCM_Perforce.engine).
+#      The engine keeps authenticated server connections open between
+#      steps, so a query costs no p4 process, connection or login.  It is
+#      started on first use and exits after 30 idle minutes.  When it can't
+#      be started or reached, or can't connect with the settings of the
+#      step, the driver runs p4 for the rest of the step.
+#-------------------------------------------------------------------------
+
+#-------------------------------------------------------------------------
+# p4Tagged
+#
+#      Run a tagged p4 command, through the engine when there is one.
+#      With $xargs the command runs once per entry, like "p4 -x", or once
+#      per Batch entries.  With $feed the output is passed to it one line
+#      at a time as it arrives, as with streamCommand, instead of being
+#      returned.
+#
+#      Options besides those of RunCommand:
+#          Batch    - the number of xargs per command, like "p4 -b"
+#          Messages - errors, warnings and infos come in the output as
+#                     "error:", "warning:" and "info:" lines, like with
+#                     "p4 -s" (p4 then prints the fields as "info1:"
+#                     lines, which tagRecordParser reads as well)
+#
+# Results:
+#      The output as "p4 -ztag" prints it, or undef when the command failed
+#      and IgnoreError is not set.  With $feed, 1 or undef.
+#
+# Arguments:
+#      opts      - the options hash
+#      p4Command - the p4 command prefix of setupP4
+#      p4Opts    - RunCommand options
+#      client    - the client to run in, or undef
+#      command   - the p4 command
+#      args      - its arguments (array ref)
+#      xargs     - arguments to run it once for each: an array ref, or the
+#                  name of a file listing them one per line; or undef
+#      feed      - called with each output line, without the line end
+#-------------------------------------------------------------------------
+sub p4Tagged {
+    my ( $self, $opts, $p4Command, $p4Opts, $client, $command, $args, $xargs, $feed ) = @_;
+    return ( $feed ? 1 : "" ) if ( ref($xargs) && !@$xargs );
+
+    my ( $output, $exit ) = $self->runEngineCommand( $opts, $p4Opts, $client, $command, $args, $xargs, $feed );
+    if ( defined $output ) {
+        # With $feed the lines were printed as they were passed on
+        print $output if ( $p4Opts->{LogResult} && !$feed );
+        if ( $exit && !$p4Opts->{IgnoreError} ) {
+            print map {"$_\n"} grep {/^error:/} split( /\n/, $output );
+            return undef;
+        }
+        return $feed ? 1 : $output;
+    }
+
+    my $cmd = $p4Command . ( defined $client ? " -c \"$client\"" : "" ) . ( $p4Opts->{Messages} ? " -s" : "" ) . " -ztag";
+    my $argsFile;
+    if ( ref($xargs) ) {
+        $argsFile = File::Temp->new( TEMPLATE => 'p4args_XXXXX', TMPDIR => 1 );
+        print $argsFile join( "\n", @$xargs ) . "\n";
+        $argsFile->flush();
+        $xargs = "$argsFile";
+    }
+    if ( defined $xargs ) {
+        $cmd .= " -b $p4Opts->{Batch}" if ( $p4Opts->{Batch} && $self->getP4Version($opts) >= 20111 );
+        $cmd .= " -x \"$xargs\"";
+    }
+    $cmd .= " $command" . join( "", map {" \"$_\""} @$args );
+    return $feed ? $self->streamCommand( $cmd, $p4Opts, $feed ) : $self->RunCommand( $cmd, $p4Opts );
+}
+
+#-------------------------------------------------------------------------
+# runEngineCommand
+#
+#      Run a command of p4Tagged on the engine.  The xargs of a file are
+#      sent as they are read, and with $feed the answer is passed on as
+#      it is read, so neither is held in memory.
+#
+# Results:
+#      The output (only its error lines with $feed) and whether it failed
+#      (exit 0 or 1), or an empty list when the engine is not used.
+#-------------------------------------------------------------------------
+sub runEngineCommand {
+    my ( $self, $opts, $p4Opts, $client, $command, $args, $xargs, $feed ) = @_;
+
+    # The engine does not take a host or a command charset
+    return () if ( !$opts->{engineClasspath} || $self->{engineFailed} );
+    return () if ( $opts->{P4HOST} || $opts->{P4COMMANDCHARSET} );
+
+    my $port  = $opts->{P4PORT} || $ENV{P4PORT} || "";
+    my @lines = (
+        "port $port",
+        "user " .     ( $opts->{P4USER}    || $ENV{P4USER}    || "" ),
+        "password " . ( $opts->{P4PASSWD}  || $ENV{P4PASSWD}  || "" ),
+        "tickets " .  ( $ENV{P4TICKETS}    || "" ),
+        "charset " .  ( $opts->{P4CHARSET} || $ENV{P4CHARSET} || "" ),
+        "client " .   ( defined $client ? $client : "" ),
+        "cmd $command",
+        ( map {"arg $_"} @$args ),
+        ( $p4Opts->{Batch} ? "batch $p4Opts->{Batch}" : () ),
+        ( ref($xargs) ? map {"xarg $_"} @$xargs : () )
+    );
+    return () if ( grep {/[\r\n]/} @lines );
+
+    if ( $p4Opts->{LogCommand} ) {
+        print "p4 engine: $command @$args" . ( ref($xargs) ? " (" . scalar(@$xargs) . " arguments)" : "" ) . "\n";
+    }
+    # The request goes out in few writes: small ones wait for the
+    # acknowledgement of the one before
+    my $send = sub {
+        my ($socket) = @_;
+        my $request = join( "\n", @lines ) . "\n";
+        if ( defined $xargs && !ref($xargs) ) {
+            open( my $list, "<", $xargs ) or die "Can't read $xargs: $!\n";
+            binmode($list);
+            while ( my $xarg = <$list> ) {
+                $xarg =~ s/\r?\n$//;
+                $request .= "xarg $xarg\n";
+                next if ( length($request) < 65536 );
+                print $socket $request or die "$!\n";
+                $request = "";
+            }
+            close($list);
+        }
+        print $socket "${request}run\n" or die "$!\n";
+    };
+
+    # With $feed the lines are passed on as they come, but a first line
+    # telling that the engine could not connect is held back: p4 answers
+    # then.  The exit line is not passed on.
+    my ( $output, $exit, $fed, @held );
+    my $pass = sub {
+        $fed = 1;
+        foreach my $line (@_) {
+            print "$line\n" if ( $p4Opts->{LogResult} );
+            $output .= "$line\n" if ( $line =~ /^error:/ );
+            $feed->($line);
+        }
+    };
+    my $take = sub {
+        my ($line) = @_;
+        $exit = $1 if ( $line =~ /^exit: (\d+)$/ );
+        if ( !$feed ) {
+            $output .= "$line\n";
+        }
+        elsif ( !$fed && !@held && $line =~ /^error: \Q$port\E: / ) {
+            push( @held, $line );
+        }
+        elsif ( $line !~ /^exit: / ) {
+            $pass->( splice(@held), $line );
+        }
+    };
+
+    foreach my $attempt ( 1, 2 ) {
+        my $reused = $self->{engineSocket} && $self->{enginePid} == $$;
+        my $socket = $self->getEngine($opts);
+        return () if ( !$socket );
+
+        ( $output, $exit, @held ) = ( "", undef );
+        eval {
+            local $SIG{PIPE} = "IGNORE";
+            $send->($socket);
+            my $header = <$socket>;
+            die "no answer\n" if ( !defined $header || $header !~ /^result (\d+)\n$/ );
+            my ( $left, $buffer ) = ( $1, "" );
+            while ( $left > 0 ) {
+                my $count = read( $socket, $buffer, $left > 65536 ? 65536 : $left, length($buffer) )
+                    or die "short answer\n";
+                $left -= $count;
+                my $start = 0;
+                while ( ( my $end = index( $buffer, "\n", $start ) ) >= 0 ) {
+                    $take->( substr( $buffer, $start, $end - $start ) );
+                    $start = $end + 1;
+                }
+                $buffer = substr( $buffer, $start );
+            }
+            $take->($buffer) if ( length($buffer) );
+        };
+        last if ( !$@ && defined $exit );
+
+        # A connection kept from an earlier command may have been closed
+        # by an engine that went idle: connect again once
+        if ( $reused && $attempt == 1 && !$fed ) {
+            close($socket);
+            delete $self->{engineSocket};
+            next;
+        }
+        $self->disableEngine( $opts, $@ || "malformed answer" );
+
+        # Lines were passed on already: running p4 would repeat them
+        return $fed ? ( "error: the Perforce engine failed\n", 1 ) : ();
+    }
+    if ( $exit && !$fed && ( $feed ? join( "\n", @held ) : $output ) =~ /^error: \Q$port\E: (.*)$/m ) {
+        # The engine could not connect or log in; p4 may still get there
+        # with P4CONFIG or environment settings
+        $self->disableEngine( $opts, $1 );
+        return ();
+    }
+    $pass->( splice(@held) ) if (@held);
+    return ( $output, $exit );
+}
+
+#-------------------------------------------------------------------------
+# getEngine
+#
+#      Return the socket to the engine of this process, connecting to the
+#      running engine or starting one, or undef.
+#-------------------------------------------------------------------------
+sub getEngine {
+    my ( $self, $opts ) = @_;
+
+    # A forked worker gets a connection of its own
+    return $self->{engineSocket} if ( $self->{engineSocket} && $self->{enginePid} == $$ );
+    delete $self->{engineSocket};
+
+    require IO::Socket::INET;
+    my $stateFile = $self->getEngineStateFile();
+    if ( !defined $stateFile ) {
+        $self->disableEngine( $opts, "no private directory for its state in " . File::Spec->tmpdir() );
+        return undef;
+    }
+    my $socket = $self->connectEngine($stateFile);
+    if ( !$socket ) {
+        $self->startEngine( $opts, $stateFile );
+        for ( my $wait = 0; !$socket && $wait < 40; $wait++ ) {
+            select( undef, undef, undef, 0.5 );
+            $socket = $self->connectEngine($stateFile);
+        }
+    }
+    if ( !$socket ) {
+        $self->disableEngine( $opts, "could not start it with $opts->{engineClasspath}" );
+        return undef;
+    }
+    $self->{enginePid} = $$;
+    return $self->{engineSocket} = $socket;
+}
+
+#-------------------------------------------------------------------------
+# connectEngine
+#
+#      Connect to the engine named in the state file ("port secret").  A
+#      state file someone else could have written is not trusted.
+#-------------------------------------------------------------------------
+sub connectEngine {
+    my ( $self, $stateFile ) = @_;
+
+    return undef if ( !$self->isPrivateFile($stateFile) );
+    open( my $fh, "<", $stateFile ) or return undef;
+    my $state = <$fh>;
+    close($fh);
+    return undef if ( !defined $state || $state !~ /^(\d+) (\w+)/ );
+    my ( $port, $secret ) = ( $1, $2 );
+
+    my $socket = IO::Socket::INET->new(
+        PeerAddr => "127.0.0.1",
+        PeerPort => $port,
+        Proto    => "tcp",
+        Timeout  => 5
+    ) or return undef;
+    binmode($socket);
+    $socket->autoflush(1);
+    print $socket "hello $secret\n";
+    my $answer = <$socket>;
+    return undef if ( !defined $answer || $answer ne "ok\n" );
+    return $socket;
+}
+
+#-------------------------------------------------------------------------
+# startEngine
+#
+#      Start an engine in the background, detached from the step.  It
+#      writes its port to the state file once it listens.
+#-------------------------------------------------------------------------
+sub startEngine {
+    my ( $self, $opts, $stateFile ) = @_;
+
+    my $java = $ENV{JAVA_HOME} ? File::Spec->catfile( $ENV{JAVA_HOME}, "bin", "java" ) : "java";
+    my @command = ( $java, "-cp", $opts->{engineClasspath}, "ecplugins.ECSCM_Perforce.engine.PerforceEngine",
+        "--state", $stateFile );
+    $self->debugMsg( 1, "Starting the Perforce engine: @command", $opts );
+
+    if ( $^O eq "MSWin32" ) {
+        system( 1, @command );
+        return;
+    }
+
+    # Fork twice so the engine is nobody's child and outlives the step
+    my $pid = fork();
+    return if ( !defined $pid );
+    if ( $pid == 0 ) {
+        POSIX::setsid();
+        open( STDIN,  "<", "/dev/null" );
+        open( STDOUT, ">", "/dev/null" );
+        open( STDERR, ">", "/dev/null" );
+        exec(@command) if ( !fork() );
+        POSIX::_exit(0);
+    }
+    waitpid( $pid, 0 );
+}
+
+#-------------------------------------------------------------------------
+# disableEngine
+#
+#      Stop using the engine for the rest of the step.
+#-------------------------------------------------------------------------
+sub disableEngine {
+    my ( $self, $opts, $reason ) = @_;
+    chomp($reason);
+    close( $self->{engineSocket} ) if ( $self->{engineSocket} );
+    delete $self->{engineSocket};
+    $self->{engineFailed} = 1;
+    print "Perforce engine not used ($reason), running p4 instead\n";
+}
+
+#-------------------------------------------------------------------------
+# getEngineStateFile
+#
+#      Return the state file of the engine of the agent user.  It holds
+#      the secret the step's password goes out with, so it is kept in a
+#      directory of the temp directory only the agent user can enter.  A
+#      directory by that name that someone else owns, that is a symlink or
+#      that others can enter means no engine.
+#
+# Results:
+#      The path of the state file, or undef.
+#-------------------------------------------------------------------------
+sub getEngineStateFile {
+    my ($self) = @_;
+    my $user = $^O eq "MSWin32" ? $ENV{USERNAME} : ( getpwuid($<) )[0];
+    $user = $< if ( !defined $user || $user eq "" );
+    $user =~ s/[^\w.-]/_/g;
+    my $dir = File::Spec->catdir( File::Spec->tmpdir(), "ecscm-p4-engine-$user" );
+    mkdir( $dir, 0700 );
+
+    # Windows has no owners or modes to check; its temp directory is the
+    # user's own
+    if ( $^O ne "MSWin32" ) {
+        my @stat = CORE::lstat($dir);
+        return undef if ( !@stat || !-d _ || $stat[4] != $< || ( $stat[2] & 077 ) );
+    }
+    return File::Spec->catfile( $dir, "engine.state" );
+}
+
+#-------------------------------------------------------------------------
+# isPrivateFile
+#
+#      Whether a file is a plain file of the agent user that no one else
+#      can read or write.
+#-------------------------------------------------------------------------
+sub isPrivateFile {
+    my ( $self, $file ) = @_;
+    my @stat = CORE::lstat($file);
+    return 0 if ( !@stat || !-f _ );
+    return 1 if ( $^O eq "MSWin32" );
+    return ( $stat[4] == $< && !( $stat[2] & 077 ) ) ? 1 : 0;
+}
+
 #-------------------------------------------------------------------------
 # syncChangedOrMissingFiles
 #
 #      Force sync for the changed or missed files in the workspace
 #
 # Results:
-#      None.
+#      The number of files synced and the file listing them.
 #
 #
 # Arguments:
@@ -1666,63 +3204,46 @@ sub syncChangedOrMissingFiles {
     ( $logResult, $logCommand ) = $self->lvlForCommands($opts);
     $self->debugMsg( 4, "Getting the diff $opts->{temp_client} ", $opts );
 
-    #get the missing and different files
-    my $result = $self->RunCommand(
-        "$p4Command -c $opts->{temp_client} diff -se -t \@$changeNumber",
-        {   LogCommand     => $logCommand,
-            LogResult      => $logResult,
-            HidePassword   => 1,
-            passwordStart  => $passwordStart,
-            passwordLength => $passwordLength
-        }
-    );
-    $result .= $self->RunCommand(
-        "$p4Command -c $opts->{temp_client} diff -sd -t \@$changeNumber",
-        {   LogCommand     => $logCommand,
-            LogResult      => $logResult,
-            HidePassword   => 1,
-            passwordStart  => $passwordStart,
-            passwordLength => $passwordLength
-        }
-    );
-    my @lines = split( /\n/, $result );
-    my $result_tmp;
-    foreach (@lines) {
-        my $row = $_;
-        if ( $row ne "" ) {
-            $row = $self->ASCIIExpansion($row);
-            $result_tmp .= "$row\n";
-        }
-    }
-    $result = $result_tmp;
-    # Create a temporary file for incremental_adds
+    # Stream the missing and different files straight into the sync list,
+    # so memory use does not grow with the size of the workspace
     my $incrementalTmpFile = File::Temp->new( TEMPLATE => 'incremental_adds_XXXXX',
                                               DIR => $here);
-
-    if ( $result ne q{} ) {
-        chomp($result);
-        print( $incrementalTmpFile $result );
+    binmode($incrementalTmpFile);
+    my $filenum = 0;
+    my $debug   = $self->getDbg($opts) >= 4;
+    print "Files to sync:\n******\n\n" if ($debug);
+    foreach my $diff ( "-se", "-sd" ) {
+        $self->streamCommand(
+            "$p4Command -c $opts->{temp_client} diff $diff -t \@$changeNumber",
+            {   LogCommand     => $logCommand,
+                LogResult      => $logResult,
+                HidePassword   => 1,
+                passwordStart  => $passwordStart,
+                passwordLength => $passwordLength
+            },
+            sub {
+                my ($row) = @_;
+                return if ( $row eq "" );
+                $row = $self->ASCIIExpansion($row);
+                print $incrementalTmpFile "$row\n";
+                print "$row\n" if ($debug);
+                $filenum++;
+            }
+        );
     }
-    if ( $result ne q{} ) {
-        my $versionChecked = 0;
-        if ( $self->getP4Version($opts) >= 20111 ) {
-            $versionChecked = 1;
-        }
-        my $filenum = 0;
+    $incrementalTmpFile->flush();
+    print "\n*******\n\n" if ($debug);
+
+    if ( $filenum > 0 ) {
         my $bparam  = '';
-        if ($versionChecked) {
-            $filenum = $self->countFileLines("$incrementalTmpFile");
+        if ( $self->getP4Version($opts) >= 20111 ) {
             $bparam  = "-b $filenum ";
         }
-        $self->debugMsg( 4, "Forced sync on the missing or diff files: \n******\n\n$result\n*******\n\n ", $opts );
-        my $tmp_cmd   = "$p4Command -c $opts->{temp_client} $bparam-x \"$incrementalTmpFile\" sync -f \@$changeNumber";
-        my $enableLog = $logResult;
-        if ( $opts->{debug} eq "6" ) {
-            $tmp_cmd   = "$p4Command -Ztrack=1 -c $opts->{temp_client} $bparam-x \"$incrementalTmpFile\" sync -f \@$changeNumber";
-            $enableLog = 1;
-        }
-        my $output = $self->RunCommand(
-            $tmp_cmd,
+        $self->debugMsg( 4, "Forced sync on $filenum missing or diff files", $opts );
+        my $tmp_cmd   = "$p4Command -Ztrack=1 -c $opts->{temp_client} $bparam-x \"$incrementalTmpFile\" sync -f \@$changeNumber";
+        my $enableLog = ( $opts->{debug} eq "6" ) ? 1 : $logResult;
+        my $output = $self->runTrackedCommand(
+            $opts, $tmp_cmd,
             {   LogCommand     => $logCommand,
                 LogResult      => $enableLog,
                 HidePassword   => 1,
@@ -1730,23 +3251,497 @@ sub syncChangedOrMissingFiles {
                 passwordLength => $passwordLength
             }
         );
+        $self->addTrackMetrics( "repair", $output );
     }
+    return ( $filenum, $incrementalTmpFile );
 }
 
 #-------------------------------------------------------------------------
-# doIncrementalSync
+# verifiedClean
 #
-#      This method is used for reverting the changes over an existing
-#      client, synchronize it and prepare it for the preflight.
+#      Clean the workspace without wiping it (cleanMode "verify").  The
+#      have list is first set to the change with "p4 flush", then the
+#      server compares the workspace with it: "p4 clean" (2014.1 and later)
+#      re-transfers the edited and missing files and deletes the files
+#      that are not on the client.  Older servers get the same result from
+#      "p4 diff" + "p4 sync -f" of the differing files followed by the
+#      untracked files removal of Smart Sync.  Empty directories are left
+#      in place.
+#
+#      The files refreshed and deleted, the time spent and the bytes a
+#      wipe and full sync would have transferred on top of it are printed
+#      and added to the "clean" metrics phase.
 #
 # Results:
 #      None.
 #
-# Side Effects:
-#      A file is written containing one section for each line in
-#      $changes.  This section contains the name of the user making
-#      the change, and the details for the change provided by Perforce.
-#
+# Arguments:
+#      opts -          The options hash
+#      changeNumber -  The change the workspace is cleaned to
+#-------------------------------------------------------------------------
+sub verifiedClean {
+    my ( $self, $opts, $changeNumber ) = @_;
+    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+    my ( $logResult, $logCommand ) = $self->lvlForCommands($opts);
+    my $p4Opts = {
+        LogCommand     => $logCommand,
+        LogResult      => $logResult,
+        HidePassword   => 1,
+        passwordStart  => $passwordStart,
+        passwordLength => $passwordLength
+    };
+
+    print "Cleaning workspace destination: $opts->{dest} (verify against \@$changeNumber)\n";
+    my $cleanStart = Time::HiRes::time();
+    $self->startMetricsPhase("clean");
+
+    # Claim the files of the change without transferring them
+    my $flush = $self->RunCommand( "$p4Command -c $opts->{temp_client} flush -q \@$changeNumber", $p4Opts );
+    if ( !defined $flush ) {
+        $self->endMetricsPhase("clean");
+        $self->issueWarningMsg("Could not flush the workspace to \@$changeNumber, wiping it instead.\n");
+        $opts->{forcedSync} = 1;
+        File::Path::rmtree( "$opts->{dest}", 0, { keep_root => 1 } );
+        return;
+    }
+
+    # Refreshed files, one per line, to measure what was transferred
+    my $refreshedTempFile = File::Temp->new( TEMPLATE => 'refreshed_XXXXX',
+                                                  DIR => cwd() );
+    binmode($refreshedTempFile);
+    my ( $refreshed, $deleted ) = ( 0, 0 );
+    my $engine = "clean";
+    my $serverVersion = $self->getP4Capability( $opts, "serverVersion" ) || 0;
+    my $cleaned = undef;
+    if ( $serverVersion >= 20141 && $self->getP4Version($opts) >= 20141 ) {
+        # //depot/a.c#3 - refreshing /ws/a.c
+        # //depot/b.c#1 - deleted as /ws/b.c
+        my $errors = 0;
+        $cleaned = $self->streamCommand(
+            "$p4Command -s -c $opts->{temp_client} clean -I //$opts->{temp_client}/...",
+            { %$p4Opts, IgnoreError => 1 },
+            sub {
+                my ($line) = @_;
+                if ( $line =~ /^error:\s(.*)$/ ) {
+                    $errors++ if ( $1 !~ /no file\(s\) to reconcile|file\(s\) not on client|no such file/ );
+                    print "$line\n";
+                }
+                elsif ( $line =~ /^info:\s(\/\/.*?)(?:#\d+)?\s-\s(.*)$/ ) {
+                    my ( $file, $action ) = ( $1, $2 );
+                    if ( $action =~ /^delet/ ) {
+                        $deleted++;
+                    }
+                    else {
+                        print $refreshedTempFile "$file\n";
+                        $refreshed++;
+                    }
+                    $self->debugMsg( 3, "$file - $action", $opts );
+                }
+            }
+        );
+        $cleaned = undef if ($errors);
+    }
+    if ( !$cleaned ) {
+        $engine = "diff";
+        $self->debugMsg( 1, "p4 clean is not available, comparing the workspace with p4 diff", $opts );
+        truncate( $refreshedTempFile, 0 );
+        seek( $refreshedTempFile, 0, 0 );
+        my $diffList;
+        ( $refreshed, $diffList ) = $self->syncChangedOrMissingFiles( $opts, $changeNumber );
+        if ($refreshed) {
+            open( my $diffs, "<", "$diffList" );
+            binmode($diffs);
+            while ( my $file = <$diffs> ) {
+                print $refreshedTempFile $file;
+            }
+            close($diffs);
+        }
+        local $opts->{deleteFilesDryRun} = "0";
+        $deleted = $self->deleteUntrackedFiles($opts) || 0;
+    }
+    $refreshedTempFile->flush();
+    $self->endMetricsPhase("clean");
+    my $elapsed = Time::HiRes::time() - $cleanStart;
+
+    # What a wipe would have transferred, against what was refreshed
+    my $fullBytes    = $self->workspaceBytes( $opts, $p4Command, $p4Opts, "//$opts->{temp_client}/...\@$changeNumber" );
+    my $refreshBytes = $refreshed ? $self->workspaceBytes( $opts, $p4Command, $p4Opts, undef, "$refreshedTempFile", $refreshed, $changeNumber ) : 0;
+
+    my $metrics = $self->getMetricsPhase("clean");
+    $metrics->{refreshedFiles} += $refreshed;
+    $metrics->{deletedFiles}   += $deleted;
+    my $summary = sprintf( "Verified clean (%s): %d file(s) refreshed, %d deleted in %.2fs", $engine, $refreshed, $deleted, $elapsed );
+    if ( defined $fullBytes && defined $refreshBytes ) {
+        my $avoided = $fullBytes - $refreshBytes;
+        $avoided = 0 if ( $avoided < 0 );
+        $metrics->{bytesAvoided} += $avoided;
+        $metrics->{bytesCopied}  += $refreshBytes;
+        $summary .= "; $refreshBytes of $fullBytes bytes transferred, $avoided bytes saved against a full wipe";
+        # Estimate the time of a full sync from the rate of this one, only
+        # when enough was transferred to measure it
+        if ( $refreshBytes >= 1024 * 1024 && $elapsed > 0 ) {
+            $summary .= sprintf( " (about %.0fs saved)", $avoided * $elapsed / $refreshBytes );
+        }
+    }
+    print "$summary\n";
+}
+
+#-------------------------------------------------------------------------
+# workspaceBytes
+#
+#      Total size of files at a revision, from "p4 sizes -s": either one
+#      file specification, or the files listed one per line in a file
+#      (each read at $changeNumber).
+#
+# Results:
+#      The number of bytes, or undef when the command failed.
+#-------------------------------------------------------------------------
+sub workspaceBytes {
+    my ( $self, $opts, $p4Command, $p4Opts, $fileSpec, $listFile, $fileCount, $changeNumber ) = @_;
+
+    my ( $command, $revisions );
+    if ( defined $fileSpec ) {
+        $command = "sizes -s \"$fileSpec\"";
+    }
+    else {
+        $revisions = File::Temp->new( TEMPLATE => 'sizes_XXXXX',
+                                           DIR => cwd() );
+        binmode($revisions);
+        open( my $files, "<", $listFile ) or return undef;
+        binmode($files);
+        while ( my $file = <$files> ) {
+            chomp($file);
+            print $revisions "$file\@$changeNumber\n";
+        }
+        close($files);
+        $revisions->flush();
+        my $bparam = $self->getP4Version($opts) >= 20111 ? "-b $fileCount " : "";
+        $command = "$bparam-x \"$revisions\" sizes -s";
+    }
+
+    # //ws/... 1200 files 52428800 bytes
+    my $bytes = undef;
+    $self->streamCommand(
+        "$p4Command -c $opts->{temp_client} $command",
+        { %$p4Opts, LogResult => 0, IgnoreError => 1 },
+        sub {
+            $bytes += $1 if ( $_[0] =~ /\s\d+\sfiles?\s(\d+)\sbytes/ );
+        }
+    );
+    return $bytes;
+}
+
+#-------------------------------------------------------------------------
+# Workspace seeds
+#
+#      A seed archive is a gzipped tar of the files of a client view at a
+#      change, kept as <seedArchiveDir>/<key>/<change>.tar.gz where the key
+#      is a digest of the server and the mapping part of the client spec.
+#      An empty workspace is restored from the newest archive at or before
+#      the change to sync to; "p4 flush" then records the archive's files
+#      in the have list so the sync only transfers what is newer.  The
+#      CaptureSeedArchive procedure archives a workspace after a build,
+#      from the file list the checkout wrote.  Archives are compressed
+#      with pigz when it is installed, gzip otherwise.
+#-------------------------------------------------------------------------
+
+#-------------------------------------------------------------------------
+# seedWorkspace
+#
+#      Restore an empty workspace from the newest seed archive of its view
+#      at or before $changeNumber and flush the have list to the change of
+#      the archive.  When the restore or the flush fails the workspace is
+#      emptied again and fully synced.
+#
+# Results:
+#      The change of the archive restored, or 0.
+#-------------------------------------------------------------------------
+sub seedWorkspace {
+    my ( $self, $opts, $changeNumber ) = @_;
+
+    if ( $changeNumber !~ /^\d+$/ ) {
+        $self->debugMsg( 1, "Not seeding the workspace: \@$changeNumber is not a change number", $opts );
+        return 0;
+    }
+    if ( opendir( my $dh, $opts->{dest} ) ) {
+        my @entries = grep { $_ ne "." && $_ ne ".." } readdir($dh);
+        closedir($dh);
+        if (@entries) {
+            $self->debugMsg( 2, "Not seeding the workspace: $opts->{dest} is not empty", $opts );
+            return 0;
+        }
+    }
+
+    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+    my ( $logResult, $logCommand ) = $self->lvlForCommands($opts);
+    my $p4Opts = {
+        LogCommand     => $logCommand,
+        LogResult      => $logResult,
+        HidePassword   => 1,
+        passwordStart  => $passwordStart,
+        passwordLength => $passwordLength
+    };
+    my $key = $self->getSeedKey( $opts, $p4Command, $p4Opts );
+    return 0 if ( !defined $key );
+
+    my $dir = File::Spec->catdir( File::Spec->rel2abs( $opts->{seedArchiveDir} ), $key );
+    my ( $seedChange, $archive ) = ( 0, undef );
+    if ( opendir( my $dh, $dir ) ) {
+        foreach my $name ( readdir($dh) ) {
+            next if ( $name !~ /^(\d+)\.tar\.gz$/ || $1 > $changeNumber || $1 <= $seedChange );
+            ( $seedChange, $archive ) = ( $1, File::Spec->catfile( $dir, $name ) );
+        }
+        closedir($dh);
+    }
+    if ( !defined $archive ) {
+        print "No seed archive at or before \@$changeNumber in $dir\n";
+        return 0;
+    }
+
+    print "Seeding workspace $opts->{dest} from $archive\n";
+    my $seedStart = Time::HiRes::time();
+    $self->startMetricsPhase("seed");
+    mkpath( $opts->{dest} );
+    my $restored = $self->RunCommand( $self->getSeedArchiveCommand( "extract", $archive, $opts->{dest} ),
+        { LogCommand => 1, LogResult => 1 } );
+    my $flushed = undef;
+    if ( defined $restored ) {
+        $flushed = $self->RunCommand( "$p4Command -c $opts->{temp_client} flush -q \@$seedChange", $p4Opts );
+    }
+    $self->endMetricsPhase("seed");
+    if ( !defined $flushed ) {
+        $self->issueWarningMsg("Could not seed the workspace from $archive, syncing every file instead.\n");
+        File::Path::rmtree( "$opts->{dest}", 0, { keep_root => 1 } );
+        $opts->{forcedSync} = 1;
+        return 0;
+    }
+
+    my $elapsed = Time::HiRes::time() - $seedStart;
+    my $bytes   = -s $archive;
+    my $metrics = $self->getMetricsPhase("seed");
+    $metrics->{seedChange}   = $seedChange;
+    $metrics->{archiveBytes} = $bytes;
+    printf( "Workspace seeded at \@%d from %d archive bytes in %.2fs; syncing \@%d on top of it\n",
+        $seedChange, $bytes, $elapsed, $changeNumber );
+    return $seedChange;
+}
+
+#-------------------------------------------------------------------------
+# recordSeedManifest
+#
+#      After a sync to $changeNumber, list the files of the workspace with
+#      their size and modification time for CaptureSeedArchive, and record
+#      the list under /myJob/P4SEED.  The list is written to the job step
+#      directory, one "size <tab> mtime <tab> path" line per file, with
+#      paths relative to the workspace root.
+#-------------------------------------------------------------------------
+sub recordSeedManifest {
+    my ( $self, $opts, $changeNumber ) = @_;
+
+    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+    my ( $logResult, $logCommand ) = $self->lvlForCommands($opts);
+    my $p4Opts = {
+        LogCommand     => $logCommand,
+        LogResult      => 0,
+        HidePassword   => 1,
+        passwordStart  => $passwordStart,
+        passwordLength => $passwordLength
+    };
+    my $key = $self->getSeedKey( $opts, $p4Command, $p4Opts );
+    return if ( !defined $key );
+
+    my $dest     = File::Spec->rel2abs( $opts->{dest} );
+    my $manifest = File::Spec->catfile( cwd(), "p4seed-$key.lst" );
+    my $out;
+    if ( !open( $out, ">", $manifest ) ) {
+        $self->issueWarningMsg("Could not write the seed file list $manifest: $!\n");
+        return;
+    }
+    binmode($out);
+    my ( $count, $stop ) = ( 0, 0 );
+    my $feed = $self->tagRecordParser(
+        sub {
+            my ($record) = @_;
+            return 0 if ( !defined $record->{clientFile} || ( $record->{headAction} || "" ) =~ /delete/ );
+            my $path = File::Spec->abs2rel( $record->{clientFile}, $dest );
+            my @stat = CORE::lstat( $record->{clientFile} );
+            if ( $path !~ /^\.\./ && @stat ) {
+                print $out "$stat[7]\t$stat[9]\t$path\n";
+                $count++;
+            }
+            return 0;
+        },
+        \$stop
+    );
+    my @fstat = ( "-T", "clientFile,headAction", "//$opts->{temp_client}/...\@$changeNumber" );
+    my $listed = $self->p4Tagged( $opts, $p4Command, $p4Opts, $opts->{temp_client}, "fstat", \@fstat, undef, $feed );
+    $feed->(undef);
+    close($out);
+    if ( !$listed ) {
+        unlink($manifest);
+        return;
+    }
+
+    my %values = (
+        key        => $key,
+        change     => $changeNumber,
+        dest       => $dest,
+        manifest   => $manifest,
+        archiveDir => File::Spec->rel2abs( $opts->{seedArchiveDir} )
+    );
+    foreach my $name ( sort keys %values ) {
+        $self->getCmdr()->setProperty( "/myJob/P4SEED/$name", $values{$name} );
+    }
+    $self->debugMsg( 2, "$count file(s) listed in $manifest for CaptureSeedArchive", $opts );
+}
+
+#-------------------------------------------------------------------------
+# captureSeedArchive
+#
+#      CaptureSeedArchive: archive the workspace checked out earlier in
+#      the job as the seed of its view at the change synced, then remove
+#      all but the newest seedArchiveKeep archives of the view.  Nothing
+#      is captured when an archive of that change exists or when files of
+#      the workspace were changed since the checkout.
+#-------------------------------------------------------------------------
+sub captureSeedArchive {
+    my ( $self, $opts ) = @_;
+
+    $self->updateOptions($opts);
+    my %seed = ();
+    foreach my $name (qw(key change dest manifest archiveDir)) {
+        $seed{$name} = eval { $self->getCmdr()->getProperty("/myJob/P4SEED/$name")->findvalue('//value')->value() };
+    }
+    if ( !$seed{key} || !$seed{change} ) {
+        print "No checkout of this job recorded a seed file list, nothing to capture\n";
+        return;
+    }
+    my $archiveDir = $opts->{seedArchiveDir} ? File::Spec->rel2abs( $opts->{seedArchiveDir} ) : $seed{archiveDir};
+    my $dir        = File::Spec->catdir( $archiveDir, $seed{key} );
+    my $archive    = File::Spec->catfile( $dir, "$seed{change}.tar.gz" );
+    if ( -e $archive ) {
+        print "$archive already exists\n";
+        $self->pruneSeedArchives( $dir, $opts->{seedArchiveKeep} );
+        return;
+    }
+
+    # Only the files of the checkout, and only as they were synced
+    open( my $in, "<", $seed{manifest} ) or die "Can't read the seed file list $seed{manifest}: $!";
+    binmode($in);
+    my $list = File::Temp->new( TEMPLATE => 'seedfiles_XXXXX', DIR => cwd() );
+    binmode($list);
+    my ( $count, $bytes, $changed ) = ( 0, 0, 0 );
+    while ( my $line = <$in> ) {
+        chomp($line);
+        my ( $size, $mtime, $path ) = split( /\t/, $line, 3 );
+        my @stat = CORE::lstat( File::Spec->catfile( $seed{dest}, $path ) );
+        if ( !@stat || $stat[7] != $size || $stat[9] != $mtime ) {
+            $self->debugMsg( 1, "Changed since the checkout: $path", $opts );
+            $changed++;
+            next;
+        }
+        print $list "$path\n";
+        $count++;
+        $bytes += $size;
+    }
+    close($in);
+    close($list);
+    if ($changed) {
+        $self->issueWarningMsg("$changed file(s) of $seed{dest} changed since the checkout, not capturing a seed archive.\n");
+        return;
+    }
+
+    print "Capturing $count file(s) ($bytes bytes) of $seed{dest} at \@$seed{change} to $archive\n";
+    mkpath($dir);
+    my $partial = "$archive.$$";
+    my $result = $self->RunCommand( $self->getSeedArchiveCommand( "create", $partial, $seed{dest}, "$list" ),
+        { LogCommand => 1, LogResult => 1 } );
+    if ( !defined $result || !rename( $partial, $archive ) ) {
+        unlink($partial);
+        $self->issueWarningMsg("Could not capture the seed archive $archive.\n");
+        return;
+    }
+    print "Seed archive written: " . ( -s $archive ) . " bytes\n";
+    $self->pruneSeedArchives( $dir, $opts->{seedArchiveKeep} );
+}
+
+#-------------------------------------------------------------------------
+# pruneSeedArchives
+#
+#      Remove all but the $keep archives of the highest changes in $dir.
+#-------------------------------------------------------------------------
+sub pruneSeedArchives {
+    my ( $self, $dir, $keep ) = @_;
+    $keep = 3 if ( !defined $keep || $keep !~ /^\d+$/ );
+
+    opendir( my $dh, $dir ) or return;
+    my @changes = sort { $b <=> $a } map { /^(\d+)\.tar\.gz$/ ? $1 : () } readdir($dh);
+    closedir($dh);
+    foreach my $change ( @changes[ $keep .. $#changes ] ) {
+        print "Removing seed archive of \@$change\n";
+        unlink( File::Spec->catfile( $dir, "$change.tar.gz" ) );
+    }
+}
+
+#-------------------------------------------------------------------------
+# getSeedKey
+#
+#      Return the name of the seed directory of the checkout client: the
+#      digest of the server and of the view, options and line endings of
+#      the client spec, with the client name taken out of the view.
+#-------------------------------------------------------------------------
+sub getSeedKey {
+    my ( $self, $opts, $p4Command, $p4Opts ) = @_;
+    return $opts->{seedKey} if ( $opts->{seedKey} );
+
+    my $spec = $self->RunCommand( "$p4Command client -o $opts->{temp_client}", { %$p4Opts, LogCommand => 0 } );
+    return undef if ( !defined $spec || $spec !~ m/^View:/m );
+    my @fields = ( $opts->{P4PORT} || $ENV{P4PORT} || "" );
+    push( @fields, $1 ) while ( $spec =~ m/^((?:Options|LineEnd|View):.*(?:\n\s.*)*)/mg );
+    my $mapping = join( "\n", @fields );
+    $mapping =~ s{//\Q$opts->{temp_client}\E/}{//CLIENT/}g;
+    return $opts->{seedKey} = md5_hex($mapping);
+}
+
+#-------------------------------------------------------------------------
+# getSeedArchiveCommand
+#
+#      Return the command that extracts an archive into a directory, or
+#      creates it from the files listed in $listFile.  tar runs pigz as its
+#      compressor when it is in the PATH, which compresses over all cores
+#      and decompresses beside the extraction; a pigz failure fails tar.
+#-------------------------------------------------------------------------
+sub getSeedArchiveCommand {
+    my ( $self, $mode, $archive, $dir, $listFile ) = @_;
+
+    my $compress = "-z";
+    my $exe      = $^O eq "MSWin32" ? "pigz.exe" : "pigz";
+    foreach my $path ( File::Spec->path() ) {
+        if ( -x File::Spec->catfile( $path, $exe ) ) {
+            $compress = "--use-compress-program=pigz";
+            last;
+        }
+    }
+    if ( $mode eq "extract" ) {
+        return qq{tar $compress -xf "$archive" -C "$dir"};
+    }
+    return qq{tar $compress -cf "$archive" -C "$dir" -T "$listFile"};
+}
+
+#-------------------------------------------------------------------------
+# doIncrementalSync
+#
+#      This method is used for reverting the changes over an existing
+#      client, synchronize it and prepare it for the preflight.
+#
+# Results:
+#      None.
+#
+# Side Effects:
+#      A file is written containing one section for each line in
+#      $changes.  This section contains the name of the user making
+#      the change, and the details for the change provided by Perforce.
+#
 # Arguments:
 #      p4Command -     The root p4 command
 #      changes -       Output from "p4 changes", listing one change number
@@ -1801,43 +3796,85 @@ sub doIncrementalSync {
         }
     );
 
-    #Open for edit files copied by the client.
-    open( DELTAS, "ecpreflight_data/deltas" )
-        or $self->error("Cannot open ecpreflight_data/deltas: $!.");
-    while (<DELTAS>) {
-        my $fileName = $_;
-        print "$_\n";
+    # Open the files copied by the client for edit and the deleted ones
+    # for delete, one batched command for each list
+    $self->openPreflightFiles( $opts, $client, "edit",   "ecpreflight_data/deltas" );
+    $self->openPreflightFiles( $opts, $client, "delete", "ecpreflight_data/deletes" );
+}
+
+#-------------------------------------------------------------------------
+# openPreflightFiles
+#
+#      Open every file of a preflight list (one workspace relative path
+#      per line) with a single "p4 edit" or "p4 delete" over a -x
+#      argument file, and report the outcome of each file.
+#
+# Results:
+#      The number of files that could not be opened.
+#
+# Arguments:
+#      opts -          The options hash
+#      client -        The permanent client
+#      action -        "edit" or "delete"
+#      listName -      The preflight list file
+#-------------------------------------------------------------------------
+sub openPreflightFiles {
+    my ( $self, $opts, $client, $action, $listName ) = @_;
+    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+
+    open( my $list, "<", $listName )
+        or $self->error("Cannot open $listName: $!.");
+    binmode($list);
+    my $argFile = File::Temp->new( TEMPLATE => "preflight_${action}_XXXXX", TMPDIR => 1 );
+    binmode($argFile);
+    my $filenum = 0;
+    while ( my $fileName = <$list> ) {
         chomp($fileName);
-        my $targetFile = "//$client/$fileName";
-        $self->RunCommand(
-            qq{$p4Command -c "$client" edit "$targetFile"},
-            {   LogCommand     => 1,
-                HidePassword   => 1,
-                passwordStart  => $passwordStart,
-                passwordLength => $passwordLength
-            }
-        );
+        next if ( $fileName eq "" );
+        print "$fileName\n";
+        print $argFile "//$client/$fileName\n";
+        $filenum++;
     }
-    close(DELTAS);
+    close($list);
+    $argFile->flush();
+    return 0 if ( !$filenum );
 
-    #Delete files
-    open( DELETES, "ecpreflight_data/deletes" )
-        or $self->error("Cannot open ecpreflight_data/deletes: $!.");
-    while (<DELETES>) {
-        my $fileName = $_;
-        print "$_\n";
-        chomp($fileName);
-        my $targetFile = "//$client/$fileName";
-        $self->RunCommand(
-            qq{$p4Command -c "$client" delete "$targetFile"},
-            {   LogCommand     => 1,
-                HidePassword   => 1,
-                passwordStart  => $passwordStart,
-                passwordLength => $passwordLength
+    my $bparam = '';
+    if ( $self->getP4Version($opts) >= 20111 ) {
+        $bparam = "-b $filenum ";
+    }
+
+    # -s tags every message, so each file's outcome can be told apart:
+    #   info: //depot/main/a.c#3 - opened for edit
+    #   error: //ws/main/b.c - file(s) not on client.
+    my $opened = 0;
+    my $failed = 0;
+    my $ok     = $self->streamCommand(
+        "$p4Command -s -c \"$client\" $bparam-x \"$argFile\" $action",
+        {   LogCommand     => 1,
+            HidePassword   => 1,
+            IgnoreError    => 1,
+            passwordStart  => $passwordStart,
+            passwordLength => $passwordLength
+        },
+        sub {
+            my ($line) = @_;
+            if ( $line =~ /^info:\s(.*)/ ) {
+                print "$1\n";
+                $opened++;
             }
-        );
+            elsif ( $line =~ /^(?:error|warning):\s/ ) {
+                print "$line\n";
+                $failed++;
+            }
+        }
+    );
+    if ( !$ok ) {
+        $self->issueWarningMsg("*** Could not open the preflight files for $action.");
+        return $filenum;
     }
-    close(DELETES);
+    print "$opened of $filenum file(s) opened for $action.\n";
+    return $failed;
 }
 ####################################################################
 # listFiles
@@ -1866,19 +3903,37 @@ sub listFiles {
 ####################################################################
 # deleteUntrackedFiles
 #
-#      used with Find, will create a file with all the files in the source
-#      that are not present in the depot.
+#      Delete the files of the destination directory that are mapped by
+#      the client view but not on the client (the have list).
+#
+#      Two engines find them (deleteFilesEngine):
+#        find       - walk the destination and run "p4 have" over every
+#                     file found. The walk skips directories the client
+#                     view does not map and splits the top level
+#                     directories over deleteFilesWorkers processes.
+#        reconcile  - let the server compare the workspace with the have
+#                     list: "p4 clean -n -a -I" (2014.1 and later) or
+#                     "p4 reconcile -n -a -I" (2012.2 and later), with
+#                     tagged output. Falls back to "find" on older
+#                     servers or when the command fails.
+#      With deleteFilesDryRun the files are only reported. The time
+#      spent in each phase is printed at the end.
+#
+#      A Smart Sync that matched the workspace fingerprint passes the
+#      files that are new since the last run; only those are checked
+#      with "p4 have".
 #
 # Results:
-#      A file in ecpreflight_data folder containing the path of all the files
-#
+#      The number of untracked files found.
 #
 # Arguments:
 #
 #     $opts
+#     $candidates -     optional file listing the only files to check
+#     $candidateCount - number of files in $candidates
 ####################################################################
 sub deleteUntrackedFiles {
-    my ( $self, $opts ) = @_;
+    my ( $self, $opts, $candidates, $candidateCount ) = @_;
     my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
     my $here = cwd();
     my $logResult;
@@ -1887,101 +3942,352 @@ sub deleteUntrackedFiles {
     $self->updateOptions($opts);
     ( $logResult, $logCommand ) = $self->lvlForCommands($opts);
 
-    my $listFilesTempFile = File::Temp->new( TEMPLATE => 'listfiles_XXXXX',
-                                                  DIR => $here);
-    # Find all the files in the destination directory and add them to the
-    # temporary output file
-    find(
-      sub {
-       listFiles($listFilesTempFile, $_);
-     },
-      $opts->{dest}
-   );
+    my $p4Opts = {
+        LogCommand     => $logCommand,
+        LogResult      => 0,
+        HidePassword   => 1,
+        IgnoreError    => 1,
+        passwordStart  => $passwordStart,
+        passwordLength => $passwordLength
+    };
+    my @phases = ();
+    my $phaseStart = Time::HiRes::time();
+    my $endPhase = sub {
+        my ($name) = @_;
+        my $now = Time::HiRes::time();
+        push( @phases, sprintf( "%s %.2fs", $name, $now - $phaseStart ) );
+        $phaseStart = $now;
+    };
 
-    my $versionChecked = 0;
-    if ( $self->getP4Version($opts) >= 20111 ) {
-        $versionChecked = 1;
-    }
-    my $filenum = 0;
-    my $bparam  = '';
-    if ($versionChecked) {
-        $filenum = $self->countFileLines("$listFilesTempFile");
-        $bparam  = "-b $filenum ";
+    # One untracked file per line
+    my $untrackedTempFile = File::Temp->new( TEMPLATE => 'untracked_XXXXX',
+                                                  DIR => $here);
+    binmode($untrackedTempFile);
+    my $untrackedCount = undef;
+
+    my $engine = defined $candidates ? "fingerprint" : $opts->{deleteFilesEngine} || "find";
+    if ( $engine eq "reconcile" ) {
+        $untrackedCount = $self->listUntrackedFilesFromServer( $opts, $p4Command, $p4Opts, $untrackedTempFile );
+        if ( defined $untrackedCount ) {
+            $endPhase->("reconcile");
+        }
+        else {
+            print "Falling back to a workspace scan to find untracked files\n";
+            truncate( $untrackedTempFile, 0 );
+            seek( $untrackedTempFile, 0, 0 );
+        }
     }
-    my $output = $self->RunCommand(
-        "$p4Command -s -c $opts->{temp_client} $bparam-x \"$listFilesTempFile\" have",
-        {   LogCommand     => $logCommand,
-            LogResult      => 0,
-            HidePassword   => 1,
-            IgnoreError    => 1,
-            passwordStart  => $passwordStart,
-            passwordLength => $passwordLength
+
+    if ( !defined $untrackedCount ) {
+        my ( $listFilesTempFile, $filenum ) = ( $candidates, $candidateCount );
+        if ( !defined $listFilesTempFile ) {
+            $listFilesTempFile = File::Temp->new( TEMPLATE => 'listfiles_XXXXX',
+                                                       DIR => $here);
+            # Find all the files in the destination directory that the client
+            # view may map and add them to the temporary output file
+            $filenum = $self->listWorkspaceFiles( $opts, $p4Command, $p4Opts, "$listFilesTempFile" );
+            $endPhase->("walk");
         }
-    );
-    if ($output) {
-        $output =~ s/exit\:\s0\n//ixmg;
+
+        # sample output (a warning from the engine):
+        # error: /vagrant/smartSyncTest/Talkhouse/shouldBeDeleted - file(s) not on client.
+        $untrackedCount = 0;
+        if ( $filenum > 0 ) {
+            $self->p4Tagged( $opts, $p4Command, { %$p4Opts, Batch => $filenum, Messages => 1 },
+                $opts->{temp_client}, "have", [], "$listFilesTempFile",
+                sub {
+                    if ( $_[0] =~ m/(?:error|warning):\s(.*)\s\-\sfile\(s\)\snot\son\sclient\./ ) {
+                        print $untrackedTempFile "$1\n";
+                        $untrackedCount++;
+                    }
+                }
+            );
+        }
+        $endPhase->("have");
     }
-    my @lines = split /\n/, $output;
-    $self->debugMsg( 2, "Deleting files that are not present in the depot", $opts );
-    my $deleteCount = 0;
+    $untrackedTempFile->flush();
+    seek( $untrackedTempFile, 0, 0 );
 
-    # Delete all the files
-    # sample output:
-    # error: /vagrant/smartSyncTest/Talkhouse/shouldBeDeleted - file(s) not on client.
-    foreach (@lines) {
-        if ( $_ =~ m/error:\s(.*)\s\-\sfile\(s\)\snot\son\sclient\./ ) {
-            $self->debugMsg( 3, "Deleting: $1", $opts );
-            my $filename = $1;
+    my $deleteCount = 0;
+    my $dryRun      = $opts->{deleteFilesDryRun} && $opts->{deleteFilesDryRun} eq "1";
+    if ($dryRun) {
+        print "Dry run: $untrackedCount file(s) not present in the depot would be deleted:\n";
+        while ( my $filename = <$untrackedTempFile> ) {
+            print "  $filename";
+        }
+    }
+    else {
+        $self->debugMsg( 2, "Deleting files that are not present in the depot", $opts );
+        while ( my $filename = <$untrackedTempFile> ) {
             chomp($filename);
+            $self->debugMsg( 3, "Deleting: $filename", $opts );
             chmod( 0777, $filename );
             unlink($filename)
                 or print "Could not delete $filename: $!";
             $deleteCount++;
         }
+        if ( $deleteCount == 0 ) {
+            $self->debugMsg( 2, "   No files deleted.", $opts );
+        }
+        else {
+            $self->debugMsg( 2, "   $deleteCount file(s) deleted.", $opts );
+        }
     }
-    if ( $deleteCount == 0 ) {
-        $self->debugMsg( 2, "   No files deleted.", $opts );
-    }
-    else {
-        $self->debugMsg( 2, "   $deleteCount file(s) deleted.", $opts );
-    }
+    $endPhase->( $dryRun ? "report" : "delete" );
 
+    print "Untracked files ($engine engine): $untrackedCount found; " . join( ", ", @phases ) . "\n";
+    return $untrackedCount;
 }
+
 ####################################################################
-# getClientName
+# listUntrackedFilesFromServer
 #
-#      Return the dynamic client name, if client is undef or empty, will use
-#      the template name and the resource to generate the name.
-#      If the client name exists, it will just by pass it.
+#      Ask the server for the workspace files missing from the have
+#      list and write their local paths to a file handle.
 #
 # Results:
-#      A string containing the client name
-#
-# Arguments:
-#
-#     $name
+#      The number of files, or undef when the server is too old or the
+#      command failed.
 ####################################################################
-sub getClientName {
-    my ( $self, $opts ) = @_;
-    my $clientResourceName = '';
+sub listUntrackedFilesFromServer {
+    my ( $self, $opts, $p4Command, $p4Opts, $fh ) = @_;
 
-    #set the dynamic TEMPLATE-RESOURCENAME
-    if ( !defined $opts->{temp_client}
-        || $opts->{temp_client} eq q{} )
-    {
-        my $prop         = "/myResource/resourceName";
-        my $xpath        = $self->getCmdr()->getProperty($prop);
-        my $resourceName = $xpath->findvalue('//value')->value();
-        $clientResourceName = "$opts->{template}\-$resourceName";
-        return $clientResourceName;
+    my $serverVersion = $self->getP4Capability( $opts, "serverVersion" ) || 0;
+    my $command;
+    if ( $serverVersion >= 20141 ) {
+        $command = "clean -n -a -I";
+    }
+    elsif ( $serverVersion >= 20122 ) {
+        $command = "reconcile -n -a -I";
     }
     else {
-        return $opts->{temp_client};
+        return undef;
     }
+
+    my $dest   = File::Spec->rel2abs( $opts->{dest} );
+    my $count  = 0;
+    my %record = ();
+    my $flush  = sub {
+        my $file = $record{clientFile};
+        $file = $record{localFile} if ( !defined $file || $file =~ m{^//} );
+        if ( defined $file && $file =~ m{^//} && defined $record{clientFile} ) {
+            # Client syntax: //client/path
+            ( $file = $record{clientFile} ) =~ s{^//[^/]+/}{};
+            $file = File::Spec->catfile( $dest, $self->ASCIIContraction($file) );
+        }
+        if ( defined $file ) {
+            print $fh "$file\n";
+            $count++;
+        }
+        %record = ();
+    };
+    my $success = $self->streamCommand(
+        "$p4Command -ztag -c $opts->{temp_client} $command //$opts->{temp_client}/...",
+        { %$p4Opts, IgnoreError => 0 },
+        sub {
+            my ($line) = @_;
+            if ( $line eq "" ) {
+                $flush->() if (%record);
+            }
+            elsif ( $line =~ m/^\.\.\. (\w+) (.*)$/ ) {
+                $record{$1} = $2;
+            }
+        }
+    );
+    $flush->() if (%record);
+    return $success ? $count : undef;
 }
 
 ####################################################################
-# createClient
+# listWorkspaceFiles
+#
+#      Write the path of every file under the destination directory to a
+#      file, skipping directories the client view does not map. The top
+#      level directories are split over deleteFilesWorkers processes.
+#
+# Results:
+#      The number of files written.
+####################################################################
+sub listWorkspaceFiles {
+    my ( $self, $opts, $p4Command, $p4Opts, $listFile ) = @_;
+
+    my $dest = File::Spec->rel2abs( $opts->{dest} );
+    my ( $included, $excluded ) = $self->getClientViewDirectories( $opts, $p4Command, $p4Opts );
+    my $isMapped = sub {
+        my ($dir) = @_;
+        ( my $rel = File::Spec->abs2rel( $dir, $dest ) ) =~ s{\\}{/}g;
+        return 1 if ( $rel eq "." || !defined $included );
+        $rel .= "/";
+        my $mapped = 0;
+        foreach my $prefix (@$included) {
+            if ( index( $rel, $prefix ) == 0 || index( $prefix, $rel ) == 0 ) {
+                $mapped = 1;
+                last;
+            }
+        }
+        return 0 if ( !$mapped );
+        foreach my $prefix (@$excluded) {
+            next if ( index( $rel, $prefix ) != 0 );
+            # Unless a later mapping brings back something below it
+            return 0 if ( !grep { length($_) > length($prefix) && index( $_, $prefix ) == 0 } @$included );
+        }
+        return 1;
+    };
+
+    my $walk = sub {
+        my ( $out, @roots ) = @_;
+        my $count = 0;
+        find(
+            {   no_chdir   => 1,
+                preprocess => sub {
+                    return grep { !-d "$File::Find::dir/$_" || -l "$File::Find::dir/$_" || $isMapped->("$File::Find::dir/$_") } @_;
+                },
+                wanted => sub {
+                    lstat($_);
+                    if ( -f _ ) {
+                        print $out "$_\n";
+                        $count++;
+                    }
+                }
+            },
+            @roots
+        ) if (@roots);
+        return $count;
+    };
+
+    open( my $out, ">", $listFile ) or die "Can't write $listFile: $!";
+    binmode($out);
+    my $count   = 0;
+    my $workers = $opts->{deleteFilesWorkers} || 4;
+    my @dirs    = ();
+    if ( opendir( my $dh, $dest ) ) {
+        foreach my $name ( sort readdir($dh) ) {
+            next if ( $name eq "." || $name eq ".." );
+            my $path = "$dest/$name";
+            lstat($path);
+            if ( -f _ ) {
+                print $out "$path\n";
+                $count++;
+            }
+            elsif ( -d _ && $isMapped->($path) ) {
+                push( @dirs, $path );
+            }
+        }
+        closedir($dh);
+    }
+
+    if ( $workers <= 1 || scalar(@dirs) <= 1 || $^O eq "MSWin32" ) {
+        $count += $walk->( $out, @dirs );
+    }
+    else {
+        my @parts = ();
+        for ( my $i = 0; $i < scalar(@dirs); $i++ ) {
+            push( @{ $parts[ $i % $workers ] }, $dirs[$i] );
+        }
+        my @children = ();
+        foreach my $part (@parts) {
+            my $partFile = File::Temp->new( TEMPLATE => 'listfiles_part_XXXXX', TMPDIR => 1 );
+            my $pid = fork();
+            die "Can't fork the workspace scan: $!" if ( !defined $pid );
+            if ( !$pid ) {
+                open( my $partOut, ">", "$partFile" ) or POSIX::_exit(1);
+                binmode($partOut);
+                $walk->( $partOut, @$part );
+                close($partOut);
+                POSIX::_exit(0);
+            }
+            push( @children, [ $pid, $partFile ] );
+        }
+        foreach my $child (@children) {
+            my ( $pid, $partFile ) = @$child;
+            waitpid( $pid, 0 );
+            die "The workspace scan failed" if ($?);
+            open( my $in, "<", "$partFile" ) or die "Can't read $partFile: $!";
+            binmode($in);
+            while ( my $line = <$in> ) {
+                print $out $line;
+                $count++;
+            }
+            close($in);
+        }
+    }
+    close($out);
+    return $count;
+}
+
+####################################################################
+# getClientViewDirectories
+#
+#      Return the workspace directories (relative to the root, with a
+#      trailing slash) that the client view maps and the ones it excludes
+#      as a whole, or undef when the view could not be read.
+####################################################################
+sub getClientViewDirectories {
+    my ( $self, $opts, $p4Command, $p4Opts ) = @_;
+
+    my $spec = $self->RunCommand( "$p4Command client -o $opts->{temp_client}", { %$p4Opts, LogCommand => 0 } );
+    return undef if ( !defined $spec || $spec !~ m/^View:/m );
+
+    my ( @included, @excluded );
+    my $inView = 0;
+    foreach my $line ( split( /\n/, $spec ) ) {
+        if ( $line =~ m/^View:/ ) {
+            $inView = 1;
+            next;
+        }
+        next if ( !$inView );
+        last if ( $line =~ m/^\S/ );
+        next if ( $line !~ m/^\s+("?)([-+]?)\/\/.*?\1\s+"?\/\/[^\/]+\/(.*?)"?\s*$/ );
+        my ( $type, $clientPath ) = ( $2, $3 );
+
+        # The directory part up to the first wildcard
+        ( my $dir = $clientPath ) =~ s{[^/]*(\.\.\.|\*|%%\d).*$}{};
+        $dir =~ s{[^/]*$}{} if ( $dir eq $clientPath );
+        if ( $type eq "-" ) {
+            push( @excluded, $dir ) if ( $clientPath =~ m{^[^*%]*/\.\.\.$} && $dir ne "" );
+        }
+        else {
+            push( @included, $dir );
+        }
+    }
+    return ( \@included, \@excluded );
+}
+
+####################################################################
+# getClientName
+#
+#      Return the dynamic client name, if client is undef or empty, will use
+#      the template name and the resource to generate the name.
+#      If the client name exists, it will just by pass it.
+#
+# Results:
+#      A string containing the client name
+#
+# Arguments:
+#
+#     $name
+####################################################################
+sub getClientName {
+    my ( $self, $opts ) = @_;
+    my $clientResourceName = '';
+
+    #set the dynamic TEMPLATE-RESOURCENAME
+    if ( !defined $opts->{temp_client}
+        || $opts->{temp_client} eq q{} )
+    {
+        my $prop         = "/myResource/resourceName";
+        my $xpath        = $self->getCmdr()->getProperty($prop);
+        my $resourceName = $xpath->findvalue('//value')->value();
+        $clientResourceName = "$opts->{template}\-$resourceName";
+        return $clientResourceName;
+    }
+    else {
+        return $opts->{temp_client};
+    }
+}
+
+####################################################################
+# createClient
 #
 #      Creates a client using, a template, a view or a branch
 #
@@ -2061,95 +4367,1049 @@ sub createClient {
             . "LineEnd: unix\n"
             . "View: $opts->{branch}/... //$opts->{temp_client}/...\n";
     }
-    if ( defined $clientSpec ) {
-        $self->debugMsg( 2, "client spec: $clientSpec", $opts );
-        my $output = $self->createP4ClientSpec( $p4Command, $passwordStart, $passwordLength, $clientSpec );
-        if ( !defined $output ) {
-            $self->issueWarningMsg("Error: Was not able to generate clientspec from template or branch.\n");
-            exit(1);
+    if ( defined $clientSpec ) {
+        $self->debugMsg( 2, "client spec: $clientSpec", $opts );
+        my $output = $self->createP4ClientSpec( $p4Command, $passwordStart, $passwordLength, $clientSpec );
+        if ( !defined $output ) {
+            $self->issueWarningMsg("Error: Was not able to generate clientspec from template or branch.\n");
+            exit(1);
+        }
+    }
+    elsif ( defined( $opts->{view} )
+        && "$opts->{view}" ne "" )
+    {
+        if ( $opts->{dest} =~ /[\w]\:/
+            && length $opts->{dest} == 2 )
+        {
+            $opts->{dest} .= q{\\};
+        }
+        else {
+            $opts->{dest} = File::Spec->rel2abs( $opts->{dest} );
+        }
+
+        my $p4ClientName = $self->createP4ClientSpecFromView( $opts->{view}, undef, "", $p4Command, $opts->{P4USER},
+            $opts->{temp_client}, $opts->{dest}, "$opts->{checkoutSingleFile}", $opts );
+
+        if ( !( defined $p4ClientName )
+            || $p4ClientName eq "-1" )
+        {
+            $self->issueWarningMsg("Error: Was not able to generate clientspec from view.\n");
+            exit(1);
+        }
+    }
+    elsif ( defined( $opts->{stream} )
+        && $opts->{stream} ne '' )
+    {
+        my $output = $self->createP4ClientFromStream( $p4Command, $passwordStart, $passwordLength, $opts->{stream},
+            $opts->{temp_client}, $opts->{dest} );
+        if ( !defined $output ) {
+            $self->issueWarningMsg("Error: Was not able to generate client from stream.\n");
+            exit(1);
+        }
+    }
+    else {
+        $self->issueWarningMsg( "Error: Was not able to generate clientspec; exactly one of "
+                . "branch/template/view/stream arguments is required\n" );
+        exit(1);
+    }
+}
+
+#-------------------------------------------------------------------------
+# deleteClient
+#
+#      Deletes a client using the name defined in $opts
+#
+# Results:
+#      -
+#
+# Arguments:
+#
+#     $opts
+#-------------------------------------------------------------------------
+sub deleteClient {
+    my ( $self, $opts ) = @_;
+    my $logResult;
+    my $logCommand;
+
+    $self->updateOptions($opts);
+    ( $logResult, $logCommand ) = $self->lvlForCommands($opts);
+    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+    if ( defined $opts->{temp_client} && $opts->{temp_client} ne "" ) {
+        if ( $self->clientExists($p4Command, $opts->{temp_client}) ) {
+            # Only keep the client in "CI" mode: Retain Template and Standard Sync options
+            if ( $opts->{retainTemplateClient} && $opts->{standardSync} ) {
+                print "Retaining client $opts->{temp_client} as requested.\n";
+            }
+            elsif ( $opts->{pooledClient} ) {
+                print "Keeping client $opts->{temp_client} in the client pool.\n";
+            }
+            else {
+                print "Deleting temporary client $opts->{temp_client}.\n";
+                # Delete the  Perforce client.
+                $self->RunCommand(
+                    "$p4Command  client -d $opts->{temp_client}",
+                    {
+                        LogCommand     => $logCommand,
+                        LogResult      => $logResult,
+                        HidePassword   => 1,
+                        passwordStart  => $passwordStart,
+                        passwordLength => $passwordLength
+                    }
+                );
+            }
+        }
+    }
+}
+
+#-------------------------------------------------------------------------
+# Client pool
+#
+#      With the clientPool option a Standard Sync checkout that would
+#      create and delete a temporary client leases one from a pool kept
+#      on the agent instead. Pooled clients are keyed by resource and by
+#      a hash of the source (port, template/stream/branch/view and client
+#      options); each one has its workspace root under the pool directory,
+#      so the next build with the same source only syncs the delta.
+#
+#      The pool index (pool.index) lists one client per line:
+#          client <tab> key <tab> jobStepId <tab> lastUsed <tab> jobId
+#      and is only read or written while holding an exclusive lock on
+#      pool.lock. A client is leased by the job step that last took it for
+#      as long as the job of that step is running, since its later steps
+#      build in the workspace; concurrent steps never share one, not even
+#      within a job. (Lines without a jobId, from older versions, are
+#      leased while their job step runs.)
+#-------------------------------------------------------------------------
+
+#-------------------------------------------------------------------------
+# getClientPoolDir
+#
+#      Return the pool directory (clientPoolDir, or a directory in the
+#      system temp directory).
+#-------------------------------------------------------------------------
+sub getClientPoolDir {
+    my ( $self, $opts ) = @_;
+    if ( defined $opts->{clientPoolDir} && $opts->{clientPoolDir} ne "" ) {
+        return File::Spec->rel2abs( $opts->{clientPoolDir} );
+    }
+    return File::Spec->catdir( File::Spec->tmpdir(), "ecscm-p4-pool" );
+}
+
+#-------------------------------------------------------------------------
+# leasePooledClient
+#
+#      Lease a free pooled client matching the checkout source, or a new
+#      one, and point the checkout at it: temp_client becomes the pooled
+#      client and dest its workspace root. When dest was given it is made
+#      a link to the pooled workspace; if dest has files in it or can't be
+#      linked (no symlinks on Windows) nothing is leased and the checkout
+#      uses its temporary client. Evicts old clients on the way.  A client
+#      used before sets pooledClientReused: the checkout then cleans its
+#      workspace as cleanMode "verify" does, unless it cleans it anyway.
+#
+# Arguments:
+#      opts          - checkout options
+#      resourceName  - the resource running the step
+#      p4Options     - client options used for explicit views
+#
+# Returns:
+#      1 if a pooled client was leased, 0 otherwise
+#-------------------------------------------------------------------------
+sub leasePooledClient {
+    my ( $self, $opts, $resourceName, $p4Options ) = @_;
+
+    my $dest = undef;
+    if ( defined $opts->{dest} && $opts->{dest} ne "" ) {
+        $dest = File::Spec->rel2abs( $opts->{dest} );
+        rmdir($dest);    # only succeeds when empty
+        if ( -e $dest || -l $dest ) {
+            print "Warning: $dest is not empty, using a temporary client instead of the client pool\n";
+            return 0;
+        }
+    }
+
+    my $poolDir = $self->getClientPoolDir($opts);
+    mkpath($poolDir);
+    open( my $lock, ">>", File::Spec->catfile( $poolDir, "pool.lock" ) )
+        or die "Can't open the client pool lock in $poolDir: $!";
+    flock( $lock, LOCK_EX ) or die "Can't lock the client pool in $poolDir: $!";
+
+    my $key = md5_hex(
+        join( "\n",
+            map { defined $_ ? $_ : "" } $resourceName,
+            $opts->{P4PORT},   $opts->{P4USER},
+            $opts->{template}, $opts->{stream},
+            $opts->{branch},   $opts->{view},
+            $opts->{checkoutSingleFile}, $p4Options ) );
+    my @entries = $self->readClientPool($poolDir);
+
+    # Most recently used free client first: its have list is the closest
+    my ($entry) = sort { $b->{lastUsed} <=> $a->{lastUsed} }
+        grep { $_->{key} eq $key && !$self->isPoolLeaseActive($_) } @entries;
+
+    my $isNew = 0;
+    if ( !$entry ) {
+        ( my $prefix = "ecpool-$resourceName-" . substr( $key, 0, 8 ) ) =~ s/[^\w.-]/_/g;
+        my %used = map { $_->{client} => 1 } @entries;
+        my $n = 1;
+        $n++ while ( $used{"$prefix-$n"} );
+        $entry = { client => "$prefix-$n", key => $key };
+        $isNew = 1;
+    }
+
+    # Link dest before anything is written, so a failure leaves the pool
+    # as it was
+    my $root = File::Spec->catdir( $poolDir, $entry->{client} );
+    mkpath($root);
+    if ( defined $dest && !eval { symlink( $root, $dest ) } ) {
+        rmdir($root) if ($isNew);
+        close($lock);
+        mkpath($dest);
+        print "Warning: Can't link $dest to a pooled workspace, using a temporary client instead of the client pool\n";
+        return 0;
+    }
+
+    if ($isNew) {
+        push( @entries, $entry );
+        print "Adding client $entry->{client} to the client pool\n";
+    }
+    else {
+        print "Leasing pooled client $entry->{client}\n";
+    }
+    $entry->{jobId}     = $ENV{COMMANDER_JOBID};
+    $entry->{jobStepId} = $ENV{COMMANDER_JOBSTEPID};
+    $entry->{lastUsed}  = time();
+
+    @entries = $self->evictPooledClients( $opts, $poolDir, $entry, @entries );
+    $self->writeClientPool( $poolDir, @entries );
+    close($lock);
+
+    $opts->{temp_client}        = $entry->{client};
+    $opts->{dest}               = $root;
+    $opts->{pooledClient}       = 1;
+    $opts->{pooledClientReused} = !$isNew;
+    return 1;
+}
+
+#-------------------------------------------------------------------------
+# evictPooledClients
+#
+#      Drop free clients from the pool, deleting the client and its
+#      workspace: first the ones unused for more than clientPoolMaxAge
+#      days, then the least recently used ones while the pool holds more
+#      than clientPoolMaxClients clients or its workspaces take more than
+#      clientPoolMaxSize MB. The leased entry is never evicted.
+#
+# Returns:
+#      the remaining entries
+#-------------------------------------------------------------------------
+sub evictPooledClients {
+    my ( $self, $opts, $poolDir, $leased, @entries ) = @_;
+
+    my $maxAge     = $opts->{clientPoolMaxAge}     || 7;
+    my $maxClients = $opts->{clientPoolMaxClients} || 10;
+    my $maxSize    = $opts->{clientPoolMaxSize}    || 0;
+
+    my @free = sort { $a->{lastUsed} <=> $b->{lastUsed} }
+        grep { $_ != $leased && !$self->isPoolLeaseActive($_) } @entries;
+    my %evict = ();
+    foreach my $entry (@free) {
+        $evict{ $entry->{client} } = 1 if ( time() - $entry->{lastUsed} > $maxAge * 86400 );
+    }
+    my $count = scalar(@entries) - scalar( keys %evict );
+    foreach my $entry ( grep { !$evict{ $_->{client} } } @free ) {
+        last if ( $count <= $maxClients );
+        $evict{ $entry->{client} } = 1;
+        $count--;
+    }
+    if ( $maxSize > 0 ) {
+        my %size  = ();
+        my $total = 0;
+        foreach my $entry ( grep { !$evict{ $_->{client} } } @entries ) {
+            $size{ $entry->{client} } = $self->getDirectorySize( File::Spec->catdir( $poolDir, $entry->{client} ) );
+            $total += $size{ $entry->{client} };
+        }
+        foreach my $entry ( grep { !$evict{ $_->{client} } } @free ) {
+            last if ( $total <= $maxSize * 1024 * 1024 );
+            $evict{ $entry->{client} } = 1;
+            $total -= $size{ $entry->{client} };
+        }
+    }
+
+    if (%evict) {
+        my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+        foreach my $client ( sort keys %evict ) {
+            print "Evicting client $client from the client pool\n";
+            $self->RunCommand(
+                "$p4Command client -d -f $client",
+                {   IgnoreError    => 1,
+                    LogCommand     => 1,
+                    HidePassword   => 1,
+                    passwordStart  => $passwordStart,
+                    passwordLength => $passwordLength
+                }
+            );
+            File::Path::rmtree( File::Spec->catdir( $poolDir, $client ) );
+        }
+    }
+    return grep { !$evict{ $_->{client} } } @entries;
+}
+
+#-------------------------------------------------------------------------
+# isPoolLeaseActive
+#
+#      A pooled client stays leased while the job that took it runs (the
+#      job step, for entries without a job).
+#-------------------------------------------------------------------------
+sub isPoolLeaseActive {
+    my ( $self, $entry ) = @_;
+    my ( $command, $id ) =
+        ( defined $entry->{jobId} && $entry->{jobId} ne "" )
+        ? ( "getJobStatus", $entry->{jobId} )
+        : ( "getJobStepStatus", $entry->{jobStepId} );
+    return 0 if ( !defined $id || $id eq "" );
+
+    my ( $success, $xpath ) = $self->InvokeCommander( { SuppressLog => 1, IgnoreError => 1 }, $command, $id );
+    return 0 if ( !$success || !$xpath );
+    my $status = $xpath->findvalue("//status")->string_value;
+    return ( $status ne "" && $status ne "completed" ) ? 1 : 0;
+}
+
+#-------------------------------------------------------------------------
+# readClientPool / writeClientPool
+#
+#      Read and write the pool index. The caller holds the pool lock.
+#-------------------------------------------------------------------------
+sub readClientPool {
+    my ( $self, $poolDir ) = @_;
+    my @entries = ();
+    open( my $fh, "<", File::Spec->catfile( $poolDir, "pool.index" ) ) or return @entries;
+    while ( my $line = <$fh> ) {
+        chomp($line);
+        my ( $client, $key, $jobStepId, $lastUsed, $jobId ) = split( /\t/, $line );
+        next if ( !defined $lastUsed );
+        push( @entries,
+            { client => $client, key => $key, jobStepId => $jobStepId, lastUsed => $lastUsed, jobId => $jobId } );
+    }
+    close($fh);
+    return @entries;
+}
+
+sub writeClientPool {
+    my ( $self, $poolDir, @entries ) = @_;
+    my $index = File::Spec->catfile( $poolDir, "pool.index" );
+    open( my $fh, ">", "$index.tmp" ) or die "Can't write $index.tmp: $!";
+    foreach my $entry (@entries) {
+        print $fh join( "\t", map { defined $_ ? $_ : "" } @{$entry}{qw(client key jobStepId lastUsed jobId)} ) . "\n";
+    }
+    close($fh);
+    rename( "$index.tmp", $index ) or die "Can't replace $index: $!";
+}
+
+#-------------------------------------------------------------------------
+# getDirectorySize
+#
+#      Return the number of bytes used by the files under a directory.
+#-------------------------------------------------------------------------
+sub getDirectorySize {
+    my ( $self, $dir ) = @_;
+    my $size = 0;
+    return $size if ( !-d $dir );
+    find( { wanted => sub { $size += -s $_ if ( -f $_ && !-l $_ ) }, no_chdir => 1 }, $dir );
+    return $size;
+}
+
+#-------------------------------------------------------------------------
+# unshelveChanges
+#
+#      Unshelve a list of shelved changes into the client, in order, and
+#      leave their files in the workspace without keeping them open.
+#
+#      One "p4 describe -S" lists the files of every shelf. Shelves that
+#      change the same files are reported before anything is unshelved
+#      (the later shelf wins). The shelves are then split into runs of
+#      consecutive shelves that do not overlap: the shelves of a run are
+#      unshelved without reverting in between, and in parallel with
+#      unshelveWorkers above 1. Before a run, only the files it shares
+#      with earlier runs are reverted with -k; a single scoped
+#      "revert -k" at the end replaces the full-client revert after every
+#      shelf, unless unshelveKeepOpened asks for the files to stay open.
+#
+# Results:
+#      1 on success, undef when a shelf could not be described, a change
+#      is not shelved (a submitted change, say) or a command failed.  A
+#      shelf without files is skipped.
+#
+# Arguments:
+#      opts -          The options hash
+#      changes -       The shelved changes, in the order to apply them
+#-------------------------------------------------------------------------
+sub unshelveChanges {
+    my ( $self, $opts, @changes ) = @_;
+    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+    my $runOpts = {
+        LogCommand     => 1,
+        HidePassword   => 1,
+        LogResult      => ( $opts->{debug} eq "6" ) ? 1 : 0,
+        passwordStart  => $passwordStart,
+        passwordLength => $passwordLength
+    };
+
+    my $shelved = $self->p4Tagged( $opts, $p4Command, { %$runOpts, LogResult => 0 }, undef, "describe", [ "-S", "-s", @changes ] );
+    return undef if ( !defined $shelved );
+    my %files = ();
+    my %notShelved = ();
+    foreach my $record ( split( /\n\n+/, $shelved ) ) {
+        next if ( $record !~ /^\.\.\.\schange\s(\d+)$/m );
+        my $change = $1;
+
+        # Only a change with shelved files has the "shelved" field
+        if ( $record !~ /^\.\.\.\sshelved(?:\s|$)/m ) {
+            $notShelved{$change} = $record =~ /^\.\.\.\sstatus\s(\S+)/m ? $1 : "unknown";
+            next;
+        }
+        $files{$change} = [ $record =~ /^\.\.\.\sdepotFile\d+\s(.*)$/mg ];
+    }
+    foreach my $change ( grep { exists $notShelved{$_} } @changes ) {
+        print "Error: change $change ($notShelved{$change}) is not a shelved change\n";
+    }
+    return undef if (%notShelved);
+    my @missing = grep { !exists $files{$_} } @changes;
+    if (@missing) {
+        print "Error: no shelved change @missing\n";
+        return undef;
+    }
+
+    # Report the shelves that overlap, and split them into runs of
+    # consecutive shelves that do not
+    my ( %owner, %overlaps, @runs, %inRun );
+    foreach my $change (@changes) {
+        if ( !@{ $files{$change} } ) {
+            print "Shelved change $change has no files, skipping it\n";
+            next;
+        }
+        foreach my $file ( @{ $files{$change} } ) {
+            push( @{ $overlaps{"$owner{$file} $change"} }, $file ) if ( exists $owner{$file} );
+            $owner{$file} = $change;
+        }
+        if ( !@runs || grep { $inRun{$_} } @{ $files{$change} } ) {
+            push( @runs, [] );
+            %inRun = ();
+        }
+        push( @{ $runs[-1] }, $change );
+        $inRun{$_} = 1 foreach ( @{ $files{$change} } );
+    }
+    foreach my $pair ( sort keys %overlaps ) {
+        my ( $first, $second ) = split( / /, $pair );
+        my @shown = @{ $overlaps{$pair} };
+        my $more = @shown > 10 ? " and " . ( @shown - 10 ) . " more" : "";
+        splice( @shown, 10 ) if ($more);
+        print "Warning: shelved changes $first and $second both change " . scalar( @{ $overlaps{$pair} } )
+            . " file(s), $second wins: @shown$more\n";
+    }
+    print "Unshelving " . scalar( keys %owner ) . " file(s) from " . scalar( map {@$_} @runs )
+        . " shelved change(s) in " . scalar(@runs) . " step(s)\n";
+
+    my %opened = ();
+    foreach my $run (@runs) {
+        my @reopened = grep { $opened{$_} } map { @{ $files{$_} } } @$run;
+        if (@reopened) {
+            return undef if ( !$self->revertKeepFiles( $opts, $runOpts, @reopened ) );
+            delete @opened{@reopened};
+        }
+        return undef if ( !$self->runUnshelves( $opts, $runOpts, @$run ) );
+        $opened{$_} = 1 foreach ( map { @{ $files{$_} } } @$run );
+    }
+    return 1 if ( $opts->{unshelveKeepOpened} );
+    return %opened ? $self->revertKeepFiles( $opts, $runOpts, sort keys %opened ) : 1;
+}
+
+#-------------------------------------------------------------------------
+# runUnshelves
+#
+#      Unshelve shelves that have no files in common, up to
+#      unshelveWorkers at a time (one at a time on Windows).
+#-------------------------------------------------------------------------
+sub runUnshelves {
+    my ( $self, $opts, $runOpts, @changes ) = @_;
+    my ($p4Command) = $self->setupP4($opts);
+    my $command = sub {"$p4Command -Ztrack=1 -c $opts->{temp_client} unshelve -s $_[0] -f"};
+
+    my $workers = $opts->{unshelveWorkers} || 1;
+    if ( $workers <= 1 || scalar(@changes) <= 1 || $^O eq "MSWin32" ) {
+        foreach my $change (@changes) {
+            $self->debugMsg( 4, "unshelving $change to workspace", $opts );
+            my $result = $self->runTrackedCommand( $opts, $command->($change), $runOpts );
+            return undef if ( !defined $result );
+            $self->addTrackMetrics( "unshelve", $result );
+        }
+        return 1;
+    }
+
+    my $ok = 1;
+    while (@changes) {
+        my @children = ();
+        foreach my $change ( splice( @changes, 0, $workers ) ) {
+            my $outFile = File::Temp->new( TEMPLATE => 'unshelve_XXXXX', TMPDIR => 1 );
+            my $pid = fork();
+            if ( !defined $pid ) {
+                print "Error: can't fork: $!\n";
+                return undef;
+            }
+            if ( !$pid ) {
+                my $result = $self->runTrackedCommand( $opts, $command->($change), $runOpts );
+                if ( defined $result && open( my $out, ">", "$outFile" ) ) {
+                    binmode($out);
+                    print $out $result;
+                    close($out);
+                    POSIX::_exit(0);
+                }
+                POSIX::_exit(1);
+            }
+            push( @children, [ $pid, $outFile ] );
+        }
+        foreach my $child (@children) {
+            waitpid( $child->[0], 0 );
+            if ($?) {
+                $ok = undef;
+                next;
+            }
+            open( my $in, "<", "$child->[1]" ) or next;
+            binmode($in);
+            $self->addTrackMetrics( "unshelve", do { local $/; <$in> } );
+            close($in);
+        }
+        return undef if ( !$ok );
+    }
+    return 1;
+}
+
+#-------------------------------------------------------------------------
+# revertKeepFiles
+#
+#      "p4 revert -k" exactly the given files, through a single -x list.
+#-------------------------------------------------------------------------
+sub revertKeepFiles {
+    my ( $self, $opts, $runOpts, @files ) = @_;
+    my ($p4Command) = $self->setupP4($opts);
+
+    my $listFile = File::Temp->new( TEMPLATE => 'revert_XXXXX', TMPDIR => 1 );
+    binmode($listFile);
+    print $listFile "$_\n" foreach (@files);
+    $listFile->flush();
+    my $bparam = $self->getP4Version($opts) >= 20111 ? "-b " . scalar(@files) . " " : "";
+
+    my $result = $self->runTrackedCommand( $opts, "$p4Command -Ztrack=1 -c $opts->{temp_client} $bparam-x \"$listFile\" revert -k", $runOpts );
+    return undef if ( !defined $result );
+    $self->addTrackMetrics( "unshelve", $result );
+    return 1;
+}
+
+#-------------------------------------------------------------------------
+# getParallelSyncOption
+#
+#      Return the --parallel argument for a sync of the client to the
+#      given change. A parallelSync value other than "auto" is passed
+#      through as before. For "auto" the settings are chosen from the
+#      estimate of "p4 sync -N", the agent core count and the server's
+#      net.parallel.max; small syncs and servers older than 2014.1 get
+#      no --parallel at all.
+#
+# Results:
+#      The argument (possibly empty) and a hash describing the choice,
+#      to be passed to recordParallelSync.
+#
+# Arguments:
+#      opts -          The options hash
+#      syncFlags -     Extra sync flags that change the estimate (-f)
+#      changeNumber -  The change being synced to
+#-------------------------------------------------------------------------
+sub getParallelSyncOption {
+    my ( $self, $opts, $syncFlags, $changeNumber ) = @_;
+
+    my $value = $opts->{parallelSync};
+    return ( "", undef ) if ( !defined $value || !length($value) );
+    if ( $value ne "auto" ) {
+        return ( "--parallel=$value", { mode => "manual", options => $value } );
+    }
+
+    my %choice = ( mode => "auto", options => "" );
+    my $serverVersion = $self->getP4Capability( $opts, "serverVersion" );
+    if ( !$serverVersion || $serverVersion < 20141 ) {
+        $self->debugMsg( 1, "Parallel sync needs a 2014.1 or later server, syncing serially", $opts );
+        return ( "", \%choice );
+    }
+    $choice{serverMax} = $self->getP4Capability( $opts, "parallelMax" );
+    if ( defined $choice{serverMax} && $choice{serverMax} eq "0" ) {
+        $self->debugMsg( 1, "Parallel sync is disabled on the server (net.parallel.max=0)", $opts );
+        return ( "", \%choice );
+    }
+
+    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+    my $estimate = $self->RunCommand(
+        "$p4Command -c $opts->{temp_client} sync -N $syncFlags \@$changeNumber",
+        {   LogCommand     => 1,
+            LogResult      => 1,
+            HidePassword   => 1,
+            IgnoreError    => 1,
+            passwordStart  => $passwordStart,
+            passwordLength => $passwordLength
+        }
+    );
+    # Server network estimates: files added/updated/deleted=a/u/d, bytes added/updated=a/u
+    if ( !defined $estimate
+        || $estimate !~ m#files\sadded/updated/deleted=(\d+)/(\d+)/\d+,\sbytes\sadded/updated=(\d+)/(\d+)#x )
+    {
+        $self->debugMsg( 1, "No sync estimate available, syncing serially", $opts );
+        return ( "", \%choice );
+    }
+    $choice{files} = $1 + $2;
+    $choice{bytes} = $3 + $4;
+    $choice{cores} = $self->getCoreCount();
+
+    # Below both thresholds the cost of starting the transfer threads
+    # outweighs what they save.
+    my ( $minFiles, $minBytes ) = ( 64, 16 * 1024 * 1024 );
+    if ( $choice{files} < $minFiles && $choice{bytes} < $minBytes ) {
+        $self->debugMsg( 1, "Sync of $choice{files} files ($choice{bytes} bytes) is too small for parallel sync", $opts );
+        return ( "", \%choice );
+    }
+
+    if ( $choice{files} < 2 ) {
+        $self->debugMsg( 1, "Sync of a single file does not need parallel sync", $opts );
+        return ( "", \%choice );
+    }
+
+    # One thread per core (at least 2, at most 16), within the server's
+    # limit, and no more threads than there are files to share out
+    # (8 per thread unless the files are few and large).
+    my $threads = $choice{cores} < 2 ? 2 : $choice{cores};
+    $threads = 16 if ( $threads > 16 );
+    $threads = $choice{serverMax} if ( $choice{serverMax} && $choice{serverMax} < $threads );
+    my $byFiles = $choice{files} >= 16 ? int( ( $choice{files} + 7 ) / 8 ) : $choice{files};
+    $threads = $byFiles if ( $byFiles < $threads );
+
+    # About four batches per thread so a slow batch does not hold up the end
+    my $batch = int( $choice{files} / ( $threads * 4 ) );
+    $batch = 1   if ( $batch < 1 );
+    $batch = 512 if ( $batch > 512 );
+    my $batchSize = int( $choice{bytes} / ( $threads * 4 ) );
+    $batchSize = 512 * 1024          if ( $batchSize < 512 * 1024 );
+    $batchSize = 256 * 1024 * 1024   if ( $batchSize > 256 * 1024 * 1024 );
+
+    # The decision is made here, so the server's own min/minsize check must
+    # not turn it down for this sync.
+    $minFiles = $choice{files} if ( $choice{files} < $minFiles );
+    $minBytes = $choice{bytes} if ( $choice{bytes} < $minBytes );
+
+    $choice{options} = "threads=$threads,batch=$batch,batchsize=$batchSize,min=$minFiles,minsize=$minBytes";
+    print "Parallel sync of $choice{files} files ($choice{bytes} bytes) on $choice{cores} cores: $choice{options}\n";
+    return ( "--parallel=$choice{options}", \%choice );
+}
+
+#-------------------------------------------------------------------------
+# recordParallelSync
+#
+#      Save the parallel sync settings and the resulting throughput under
+#      /myJob/p4ParallelSync so runs can be compared.
+#-------------------------------------------------------------------------
+sub recordParallelSync {
+    my ( $self, $choice, $elapsed ) = @_;
+    return if ( !$choice );
+
+    my %values = %$choice;
+    $values{elapsed} = sprintf( "%.2f", $elapsed );
+    if ( $values{bytes} && $elapsed > 0 ) {
+        $values{bytesPerSecond} = int( $values{bytes} / $elapsed );
+    }
+    foreach my $name ( sort keys %values ) {
+        next if ( !defined $values{$name} );
+        $self->getCmdr()->setProperty( "/myJob/p4ParallelSync/$name", $values{$name} );
+    }
+}
+
+#-------------------------------------------------------------------------
+# getCoreCount
+#
+#      Return the number of processors of the agent, or 1 if unknown.
+#-------------------------------------------------------------------------
+sub getCoreCount {
+    my ($self) = @_;
+
+    return $ENV{NUMBER_OF_PROCESSORS} if ( ( $ENV{NUMBER_OF_PROCESSORS} || "" ) =~ /^[1-9]\d*$/ );
+    if ( open( my $fh, "<", "/proc/cpuinfo" ) ) {
+        my $count = grep {/^processor\s*:/} <$fh>;
+        close($fh);
+        return $count if ($count);
+    }
+    if ( $^O ne "MSWin32" ) {
+        my $count = `sysctl -n hw.ncpu 2>/dev/null`;
+        return $1 if ( defined $count && $count =~ /^(\d+)/ && $1 > 0 );
+    }
+    return 1;
+}
+
+#-------------------------------------------------------------------------
+# startMetricsPhase / endMetricsPhase
+#
+#      Time a phase of the checkout (client, seed, sync, unshelve, repair,
+#      untracked, changelog). A phase that runs more than once adds up.
+#-------------------------------------------------------------------------
+sub startMetricsPhase {
+    my ( $self, $phase ) = @_;
+    $self->{p4MetricsStart}{$phase} = Time::HiRes::time();
+}
+
+sub endMetricsPhase {
+    my ( $self, $phase ) = @_;
+    my $start = delete $self->{p4MetricsStart}{$phase};
+    return if ( !defined $start );
+    my $metrics = $self->getMetricsPhase($phase);
+    $metrics->{elapsed} += Time::HiRes::time() - $start;
+}
+
+sub getMetricsPhase {
+    my ( $self, $phase ) = @_;
+    if ( !$self->{p4Metrics}{$phase} ) {
+        push( @{ $self->{p4MetricsOrder} }, $phase );
+        $self->{p4Metrics}{$phase} = { elapsed => 0, commands => 0 };
+    }
+    return $self->{p4Metrics}{$phase};
+}
+
+#-------------------------------------------------------------------------
+# addTrackMetrics
+#
+#      Add the counters printed by a "p4 -Ztrack=1" command to a phase:
+#      server time, rpc messages and megabytes in each direction, rpc
+#      send/receive time and the total db lock wait and held times.
+#
+# Arguments:
+#      phase -         Name of the phase
+#      output -        Output of the command
+#-------------------------------------------------------------------------
+sub addTrackMetrics {
+    my ( $self, $phase, $output ) = @_;
+    my $metrics = $self->getMetricsPhase($phase);
+    $metrics->{commands}++;
+    return if ( !defined $output );
+
+    foreach my $line ( split( /\n/, $output ) ) {
+        if ( $line =~ m#^---\slapse\s([\d.]+)s#x ) {
+            $metrics->{serverTime} += $1;
         }
-    }
-    elsif ( defined( $opts->{view} )
-        && "$opts->{view}" ne "" )
-    {
-        if ( $opts->{dest} =~ /[\w]\:/
-            && length $opts->{dest} == 2 )
-        {
-            $opts->{dest} .= q{\\};
+        elsif ( $line =~ m#^---\srpc\smsgs/size\sin\+out\s(\d+)\+(\d+)/(\d+)mb\+(\d+)mb#x ) {
+            $metrics->{rpcMsgsIn}  += $1;
+            $metrics->{rpcMsgsOut} += $2;
+            $metrics->{rpcMbIn}    += $3;
+            $metrics->{rpcMbOut}   += $4;
+            if ( $line =~ m#snd/rcv\s([\d.]+)s/([\d.]+)s#x ) {
+                $metrics->{rpcSendTime}    += $1;
+                $metrics->{rpcReceiveTime} += $2;
+            }
         }
-        else {
-            $opts->{dest} = File::Spec->rel2abs( $opts->{dest} );
+        elsif ( $line =~ m#^---\s+total\slock\swait\+held\sread/write\s(\d+)ms\+(\d+)ms/(\d+)ms\+(\d+)ms#x ) {
+            $metrics->{lockWaitRead}  += $1;
+            $metrics->{lockHeldRead}  += $2;
+            $metrics->{lockWaitWrite} += $3;
+            $metrics->{lockHeldWrite} += $4;
         }
+    }
+}
 
-        my $p4ClientName = $self->createP4ClientSpecFromView( $opts->{view}, undef, "", $p4Command, $opts->{P4USER},
-            $opts->{temp_client}, $opts->{dest}, "$opts->{checkoutSingleFile}", $opts );
+#-------------------------------------------------------------------------
+# runTrackedCommand
+#
+#      RunCommand for a "p4 -Ztrack=1" command.  With LogResult the output
+#      is logged without the "--- " tracking lines, which are only logged
+#      at debug level 6.
+#
+# Results:
+#      The whole output, as RunCommand returns it.
+#
+# Arguments:
+#      opts -          The options hash
+#      command -       The command line
+#      runOpts -       RunCommand options
+#-------------------------------------------------------------------------
+sub runTrackedCommand {
+    my ( $self, $opts, $command, $runOpts ) = @_;
+    my $output = $self->RunCommand( $command, { %$runOpts, LogResult => 0 } );
+    if ( $runOpts->{LogResult} && defined $output ) {
+        my $track = defined $opts->{debug} && $opts->{debug} eq "6";
+        print grep { $track || !/^--- / } split( /^/m, $output );
+    }
+    return $output;
+}
 
-        if ( !( defined $p4ClientName )
-            || $p4ClientName eq "-1" )
-        {
-            $self->issueWarningMsg("Error: Was not able to generate clientspec from view.\n");
-            exit(1);
+#-------------------------------------------------------------------------
+# publishMetrics
+#
+#      Save the phase metrics of this run under /myJob/p4Metrics, one
+#      "name=value" property per phase, write them to
+#      p4Metrics-<jobStepId>.json and link the metrics report. A schedule
+#      remembers the job so the next run's report can be compared to it.
+#-------------------------------------------------------------------------
+sub publishMetrics {
+    my ( $self, $opts ) = @_;
+    return if ( !$self->{p4MetricsOrder} );
+    my $ec = $self->getCmdr();
+
+    my @json = ();
+    foreach my $phase ( @{ $self->{p4MetricsOrder} } ) {
+        my $metrics = $self->{p4Metrics}{$phase};
+        my @values  = ();
+        foreach my $name ( "elapsed", "commands", grep { !/^(elapsed|commands)$/ } sort keys %$metrics ) {
+            my $value = $metrics->{$name};
+            $value = sprintf( "%.3f", $value ) if ( $name =~ /^elapsed$|Time$/ );
+            push( @values, [ $name, $value ] );
         }
+        $ec->setProperty( "/myJob/p4Metrics/$phase", join( "", map {"$_->[0]=$_->[1]\n"} @values ) );
+        push( @json, "    \"$phase\": {" . join( ", ", map {"\"$_->[0]\": $_->[1]"} @values ) . "}" );
     }
-    elsif ( defined( $opts->{stream} )
-        && $opts->{stream} ne '' )
-    {
-        my $output = $self->createP4ClientFromStream( $p4Command, $passwordStart, $passwordLength, $opts->{stream},
-            $opts->{temp_client}, $opts->{dest} );
-        if ( !defined $output ) {
-            $self->issueWarningMsg("Error: Was not able to generate client from stream.\n");
-            exit(1);
-        }
+
+    my $file = "p4Metrics-$ENV{COMMANDER_JOBSTEPID}.json";
+    if ( open( my $fh, ">", $file ) ) {
+        print $fh "{\n  \"jobId\": \"$ENV{COMMANDER_JOBID}\",\n  \"jobStepId\": \"$ENV{COMMANDER_JOBSTEPID}\",\n"
+            . "  \"phases\": {\n" . join( ",\n", @json ) . "\n  }\n}\n";
+        close($fh);
+        print "Wrote p4 metrics to $file\n";
     }
     else {
-        $self->issueWarningMsg( "Error: Was not able to generate clientspec; exactly one of "
-                . "branch/template/view/stream arguments is required\n" );
-        exit(1);
+        print "Warning: can't write $file: $!\n";
+    }
+
+    # Metrics can be published again later in the job (preflight staging);
+    # the schedule must keep pointing at the previous job then
+    if ( defined $self->{p4MetricsQuery} ) {
+        $self->createLinkToChangelogReport( "Perforce Metrics", "metrics", $self->{p4MetricsQuery} );
+        return;
     }
+    my ( $projectName, $scheduleName ) = $self->GetProjectAndScheduleNames();
+    my $query = "";
+    if ( length($scheduleName) ) {
+        my $prop = "/projects[$projectName]/schedules[$scheduleName]/ecscm_p4MetricsJobId";
+        my ( $success, $xpath ) = $self->InvokeCommander( { SuppressLog => 1, IgnoreError => 1 }, "getProperty", $prop );
+        my $previous = $success ? $xpath->findvalue('//value')->string_value : "";
+        $query = "&compareJobId=$previous" if ( length($previous) );
+        $ec->setProperty( $prop, $ENV{COMMANDER_JOBID} );
+    }
+    $self->{p4MetricsQuery} = $query;
+    $self->createLinkToChangelogReport( "Perforce Metrics", "metrics", $query );
 }
 
 #-------------------------------------------------------------------------
-# deleteClient
+# getFingerprintFile
 #
-#      Deletes a client using the name defined in $opts
+#      Return the name of the workspace fingerprint of a Smart Sync
+#      destination directory.
+#-------------------------------------------------------------------------
+sub getFingerprintFile {
+    my ( $self, $opts ) = @_;
+    my $dest = File::Spec->rel2abs( $opts->{dest} );
+    return File::Spec->catfile( File::Spec->tmpdir(), "ecscm-p4-fingerprint-" . md5_hex($dest) );
+}
+
+#-------------------------------------------------------------------------
+# getFingerprintHeader
+#
+#      Return what must not change between two runs for a fingerprint to
+#      apply: server, root, view and options of the client spec and
+#      whether untracked files get deleted.  Smart Sync clients are named
+#      after the job step, so the client name is left out and the view
+#      refers to the client as //CLIENT/, like getSeedKey.
+#-------------------------------------------------------------------------
+sub getFingerprintHeader {
+    my ( $self, $opts, $p4Command, $p4Opts ) = @_;
+
+    my $spec = $self->RunCommand( "$p4Command client -o $opts->{temp_client}", $p4Opts );
+    return undef if ( !defined $spec || $spec !~ m/^View:/m );
+    my @fields = ();
+    push( @fields, $1 ) while ( $spec =~ m/^((?:Root|AltRoots|Options|SubmitOptions|LineEnd|Stream|View):.*(?:\n\s.*)*)/mg );
+    my $mapping = join( "\n", @fields );
+    $mapping =~ s{//\Q$opts->{temp_client}\E/}{//CLIENT/}g;
+    return join( "\t", $opts->{P4PORT} || $ENV{P4PORT} || "", md5_hex($mapping), $opts->{deleteFiles} eq "1" ? 1 : 0 );
+}
+
+#-------------------------------------------------------------------------
+# walkWorkspace
+#
+#      Call $callback->(path, size, mtime, inode) for every file and
+#      symbolic link under $root, with paths relative to $root. Entries
+#      come in a fixed order: directory entries sorted by name, each
+#      directory walked where it appears. The walk stops when the
+#      callback returns false.
 #
 # Results:
-#      -
+#      1 if every entry was visited, 0 if the callback stopped the walk.
+#-------------------------------------------------------------------------
+sub walkWorkspace {
+    my ( $self, $root, $callback ) = @_;
+
+    my $walk;
+    $walk = sub {
+        my ($rel) = @_;
+        opendir( my $dh, length($rel) ? "$root/$rel" : $root ) or return 1;
+        my @names = sort grep { $_ ne "." && $_ ne ".." } readdir($dh);
+        closedir($dh);
+        foreach my $name (@names) {
+            my $path = length($rel) ? "$rel/$name" : $name;
+            my @st = CORE::lstat("$root/$path") or next;
+            if ( -d _ ) {
+                return 0 if ( !$walk->($path) );
+            }
+            elsif ( !$callback->( $path, $st[7], $st[9], $st[1] ) ) {
+                return 0;
+            }
+        }
+        return 1;
+    };
+    my $complete = $walk->("");
+    undef $walk;
+    return $complete;
+}
+
+#-------------------------------------------------------------------------
+# writeWorkspaceFingerprint
+#
+#      Record the workspace after a successful Smart Sync: a header (see
+#      getFingerprintHeader) and the change synced to, then the size,
+#      mtime and inode of every file. Records are BER-compressed numbers
+#      with each path stored as the length it shares with the previous
+#      path plus the rest, so the index stays a fraction of a file list.
+#
+#      mtimes only have a resolution of a second, so the walk starts on
+#      the next second after the sync: a later change to a file cannot
+#      then keep its recorded mtime. Files changed during the walk itself
+#      are recorded with an mtime of 0 and never match.
+#-------------------------------------------------------------------------
+sub writeWorkspaceFingerprint {
+    my ( $self, $opts, $header, $changeNumber ) = @_;
+    return if ( !defined $header );
+
+    my $synced = time();
+    Time::HiRes::sleep(0.05) while ( time() <= $synced );
+    my $started = time();
+
+    my $file = $self->getFingerprintFile($opts);
+    my ( $fh, $tmpFile ) = eval { tempfile("$file.XXXXX") };
+    return if ( !$fh );
+    binmode($fh);
+    print $fh "ECP4FP1\n" . pack( "w/a*", "$header\t$changeNumber" );
+
+    my ( $previous, $count ) = ( "", 0 );
+    $self->walkWorkspace(
+        File::Spec->rel2abs( $opts->{dest} ),
+        sub {
+            my ( $path, $size, $mtime, $inode ) = @_;
+            $mtime = 0 if ( $mtime >= $started );
+            my $common = 0;
+            my $max    = length($path) < length($previous) ? length($path) : length($previous);
+            $common++ while ( $common < $max && substr( $path, $common, 1 ) eq substr( $previous, $common, 1 ) );
+            print $fh pack( "w w/a* w w w", $common, substr( $path, $common ), $size, $mtime, $inode );
+            $previous = $path;
+            $count++;
+            return 1;
+        }
+    );
+    if ( !close($fh) || !rename( $tmpFile, $file ) ) {
+        unlink($tmpFile);
+        return;
+    }
+    $self->debugMsg( 2, "Recorded the fingerprint of $count workspace files in $file", $opts );
+}
+
+#-------------------------------------------------------------------------
+# matchWorkspaceFingerprint
 #
-# Arguments:
+#      Compare the workspace with the fingerprint of the last Smart Sync.
+#      The index and the walk are in the same order, so they are merged
+#      as two streams and the walk stops at the first file that was
+#      changed, replaced or removed. Files that are new since then do not
+#      affect what the client has; they are collected so the untracked
+#      file deletion only needs to look at them. The fingerprint is
+#      removed, so a run that fails later cannot leave a stale one.
 #
-#     $opts
+# Results:
+#      A hash with the change the workspace was synced to, a file listing
+#      the new files and their count; undef when the full diff is needed.
 #-------------------------------------------------------------------------
-sub deleteClient {
-    my ( $self, $opts ) = @_;
-    my $logResult;
-    my $logCommand;
+sub matchWorkspaceFingerprint {
+    my ( $self, $opts, $header ) = @_;
+    return undef if ( !defined $header );
+
+    my $file = $self->getFingerprintFile($opts);
+    open( my $fh, "<", $file ) or return undef;
+    binmode($fh);
+    my $buffer = "";
+    my $eof    = 0;
+    my $fill   = sub {
+        while ( !$eof && length($buffer) < 65536 ) {
+            $eof = 1 if ( !read( $fh, $buffer, 65536, length($buffer) ) );
+        }
+    };
+    $fill->();
+    if ( substr( $buffer, 0, 8, "" ) ne "ECP4FP1\n" ) {
+        close($fh);
+        return undef;
+    }
+    my ( $recorded, $offset ) = unpack( "w/a* .", $buffer );
+    substr( $buffer, 0, $offset, "" );
+    my ($changeNumber) = $recorded =~ s/\t(\d+)$// ? $1 : ();
+    unlink($file);
+    if ( !defined $changeNumber || $recorded ne $header ) {
+        close($fh);
+        print "The workspace fingerprint is for another client or view, running the full diff\n";
+        return undef;
+    }
 
-    $self->updateOptions($opts);
-    ( $logResult, $logCommand ) = $self->lvlForCommands($opts);
-    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
-    if ( defined $opts->{temp_client} && $opts->{temp_client} ne "" ) {
-        if ( $self->clientExists($p4Command, $opts->{temp_client}) ) {
-            # Only keep the client in "CI" mode: Retain Template and Standard Sync options
-            if ( $opts->{retainTemplateClient} && $opts->{standardSync} ) {
-                print "Retaining client $opts->{temp_client} as requested.\n";
+    my $previous = "";
+    my $next     = sub {
+        $fill->();
+        return undef if ( $buffer eq "" );
+        my ( $common, $rest, $size, $mtime, $inode, $length ) = unpack( "w w/a* w w w .", $buffer );
+        substr( $buffer, 0, $length, "" );
+        $previous = substr( $previous, 0, $common ) . $rest;
+        ( my $key = $previous ) =~ tr{/}{\0};
+        return [ $key, $previous, "$size $mtime $inode" ];
+    };
+
+    my $dest   = File::Spec->rel2abs( $opts->{dest} );
+    my $extras = File::Temp->new( TEMPLATE => 'fingerprint_new_XXXXX', TMPDIR => 1 );
+    binmode($extras);
+    my ( $entry, $extraCount, $difference ) = ( $next->(), 0, undef );
+    $self->walkWorkspace(
+        $dest,
+        sub {
+            my ( $path, $size, $mtime, $inode ) = @_;
+            ( my $key = $path ) =~ tr{/}{\0};
+            if ( $entry && $entry->[0] lt $key ) {
+                $difference = "$entry->[1] was removed";
+                return 0;
             }
-            else {
-                print "Deleting temporary client $opts->{temp_client}.\n";
-                # Delete the  Perforce client.
-                $self->RunCommand(
-                    "$p4Command  client -d $opts->{temp_client}",
-                    {
-                        LogCommand     => $logCommand,
-                        LogResult      => $logResult,
-                        HidePassword   => 1,
-                        passwordStart  => $passwordStart,
-                        passwordLength => $passwordLength
-                    }
-                );
+            if ( $entry && $entry->[0] eq $key ) {
+                if ( $entry->[2] ne "$size $mtime $inode" ) {
+                    $difference = "$path was modified";
+                    return 0;
+                }
+                $entry = $next->();
+                return 1;
             }
+            if ( -f "$dest/$path" ) {
+                print $extras "$dest/$path\n";
+                $extraCount++;
+            }
+            return 1;
         }
+    );
+    close($fh);
+    $difference = "$entry->[1] was removed" if ( !defined $difference && $entry );
+    if ( defined $difference ) {
+        print "The workspace changed since the sync to CL $changeNumber ($difference), running the full diff\n";
+        return undef;
     }
+    $extras->flush();
+    return { change => $changeNumber, newFiles => $extras, newFileCount => $extraCount };
 }
 
 #-------------------------------------------------------------------------
@@ -2184,11 +5444,6 @@ sub doSmartSync {
     my $changeNumber;
     my $scmKey;
     my $start;
-    my $parallelSync = "";
-
-    if(length($opts->{parallelSync})) {
-        $parallelSync = "--parallel=$opts->{parallelSync}";
-    }
 
     #this is because the client name could be dynamically generated using the template name and the resource name
     $opts->{temp_client} = $self->getClientName($opts);
@@ -2209,10 +5464,34 @@ sub doSmartSync {
         $self->debugMsg( 3, "Creating the client", $opts );
 
         #create client and set the root to dest.
+        $self->startMetricsPhase("client");
         $self->createClient($opts);
+
+        # A workspace left as the last Smart Sync wrote it only needs its
+        # have list set back to that change; the diff can be skipped
+        my ( $fingerprintHeader, $fingerprint );
+        if ( $opts->{smartSyncFingerprint} && $opts->{smartSyncFingerprint} eq "1" ) {
+            $fingerprintHeader = $self->getFingerprintHeader(
+                $opts, $p4Command,
+                {   LogCommand     => $logCommand,
+                    LogResult      => 0,
+                    HidePassword   => 1,
+                    IgnoreError    => 1,
+                    passwordStart  => $passwordStart,
+                    passwordLength => $passwordLength
+                }
+            );
+            $fingerprint = $self->matchWorkspaceFingerprint( $opts, $fingerprintHeader );
+        }
+        my $flushTo = "";
+        if ($fingerprint) {
+            print "The workspace is unchanged since the sync to CL $fingerprint->{change}, skipping the diff\n";
+            $flushTo = " \@$fingerprint->{change}";
+        }
+
         $self->debugMsg( 3, "Running a Perforce flush", $opts );
         $self->RunCommand(
-            "$p4Command -c $opts->{temp_client} flush",
+            "$p4Command -c $opts->{temp_client} flush$flushTo",
             {   LogCommand     => $logCommand,
                 HidePassword   => 1,
                 LogResult      => $logResult,
@@ -2220,10 +5499,17 @@ sub doSmartSync {
                 passwordLength => $passwordLength
             }
         );
-
+        $self->endMetricsPhase("client");
 
         if ( $opts->{deleteFiles} eq '1' ) {
-            $self->deleteUntrackedFiles($opts);
+            $self->startMetricsPhase("untracked");
+            if ($fingerprint) {
+                $self->deleteUntrackedFiles( $opts, $fingerprint->{newFiles}, $fingerprint->{newFileCount} );
+            }
+            else {
+                $self->deleteUntrackedFiles($opts);
+            }
+            $self->endMetricsPhase("untracked");
         }
 
         # Extract the number of the most recent changelist.
@@ -2237,20 +5523,29 @@ sub doSmartSync {
         print "SmartSyncing to CL $changeNumber\n";
 
         $self->debugMsg( 3, "Sync changed or missing files", $opts );
-        $self->syncChangedOrMissingFiles($opts, $changeNumber);
-        my $tmp_cmd = "$p4Command -c $opts->{temp_client} sync $parallelSync \@$changeNumber";
-        if ( $opts->{debug} eq "6" ) {
-            $tmp_cmd = "$p4Command -Ztrack=1 -c $opts->{temp_client} sync $parallelSync \@$changeNumber";
+        if ( !$fingerprint ) {
+            $self->startMetricsPhase("repair");
+            $self->syncChangedOrMissingFiles($opts, $changeNumber);
+            $self->endMetricsPhase("repair");
         }
-        $self->RunCommand(
-            $tmp_cmd,
+        my ( $parallelSync, $parallelChoice ) = $self->getParallelSyncOption( $opts, "", $changeNumber );
+        my $tmp_cmd = "$p4Command -Ztrack=1 -ztag -c $opts->{temp_client} sync $parallelSync \@$changeNumber";
+        my $syncStart = Time::HiRes::time();
+        $self->startMetricsPhase("sync");
+        my $output = $self->streamSync(
+            $opts, "sync", $tmp_cmd,
             {   LogCommand     => $logCommand,
                 HidePassword   => 1,
-                LogResult      => $logResult,
+                LogResult      => ( $opts->{debug} eq "6" ) ? 1 : $logResult,
                 passwordStart  => $passwordStart,
                 passwordLength => $passwordLength
             }
         );
+        $self->endMetricsPhase("sync");
+        $self->recordParallelSync( $parallelChoice, Time::HiRes::time() - $syncStart );
+        if ( defined $output ) {
+            $self->writeWorkspaceFingerprint( $opts, $fingerprintHeader, $changeNumber );
+        }
     }
 
     #BSH - Get the SCM Key for the temp client
@@ -2276,7 +5571,10 @@ sub doSmartSync {
     }
 
     $start += 1 if $start != $changeNumber;
+    $self->startMetricsPhase("changelog");
     $self->generateChangelog($opts, $scmKey, $start, $changeNumber);
+    $self->endMetricsPhase("changelog");
+    $self->publishMetrics($opts);
 
     # bhandley
     # Write out the clientname used for this sync to properties
@@ -2301,7 +5599,7 @@ sub doSmartSync {
 sub apf_getScmInfo {
     my ( $self, $opts ) = @_;
     my $scmInfo = $self->pf_readFile("ecpreflight_data/scmInfo");
-    $scmInfo =~ m/(.*)\n(.*)\n(.*)\n(.*)\n(.*)\n(.*)\n/;
+    $scmInfo =~ m/(.*)\n(.*)\n(.*)\n(.*)\n(.*)\n(.*)\n(?:(.*)\n)?/;
 ### NMB-9873
     #$opts->{P4PORT} = $1;
 ###
@@ -2313,10 +5611,13 @@ sub apf_getScmInfo {
 # Rollback due to ECPSCMPERFORCE-163
 ###    $opts->{temp_client} = $5;
     $opts->{stream}     = $6;
+    $opts->{shelvedChanges} = defined $7 ? $7 : "";
     print(    "Perforce information received from client:\n"
             . "Template: $opts->{template}\n"
             . "Stream: $opts->{stream}\n"
-            . "Changelist: $opts->{changelist}\n\n" );
+            . "Changelist: $opts->{changelist}\n"
+            . ( $opts->{shelvedChanges} ne "" ? "Shelved changelists: $opts->{shelvedChanges}\n" : "" )
+            . "\n" );
     print( "Perforce information from server:\n" . "Port: $opts->{P4PORT}\n" );
 }
 
@@ -2371,12 +5672,45 @@ sub apf_driver() {
     $self->apf_transmitTargetInfo($opts);
     $self->apf_getScmInfo($opts);
     $self->apf_createSnapshot($opts);
-    $self->apf_setmapping($opts);
-    $self->apf_deleteFiles($opts);
-    $self->apf_overlayDeltas($opts);
+    if ( $opts->{shelvedChanges} ne "" ) {
+        $self->apf_unshelve($opts);
+    }
+    else {
+        $self->apf_setmapping($opts);
+        $self->apf_deleteFiles($opts);
+        $self->apf_overlayDeltas($opts);
+    }
     $self->cleanup($opts);
 }
 
+#------------------------------------------------------------------------------
+# apf_unshelve
+#
+#       Apply the changelists the client shelved (--p4shelve) on top of the
+#       snapshot, straight from the Perforce server (or the proxy in the
+#       configured P4PORT).  Client mappings are resolved by the server.  A
+#       permanent client keeps the files open, like the uploaded deltas,
+#       so the next incremental preflight reverts them.
+#------------------------------------------------------------------------------
+sub apf_unshelve {
+    my ( $self, $opts ) = @_;
+
+    $self->updateOptions($opts);
+    my $client = $opts->{permanent_client} || $opts->{temp_client};
+    my %unshelveOpts = (
+        %$opts,
+        temp_client        => $client,
+        unshelveKeepOpened => $opts->{permanent_client} ? 1 : 0
+    );
+    my @changes = split( /,/, $opts->{shelvedChanges} );
+    print "Unshelving the preflight changelist(s) @changes into client $client\n";
+    $self->startMetricsPhase("unshelve");
+    my $ok = $self->unshelveChanges( \%unshelveOpts, @changes );
+    $self->endMetricsPhase("unshelve");
+    $self->publishMetrics($opts);
+    $ok or $self->error("Could not unshelve the preflight changelist(s) @changes.");
+}
+
 #------------------------------------------------------------------------------
 # apf_setmapping
 #
@@ -2390,17 +5724,12 @@ sub apf_setmapping {
     my $logCommand;
     my $logResult;
     my $filenum = 0;
-    my $bparam  = '';
 
     $self->updateOptions($opts);
     my $client = $opts->{permanent_client} || $opts->{temp_client};
     ( $logResult, $logCommand ) = $self->lvlForCommands($opts);
     umask(0000);
     $self->debugMsg( 1, "Fixing the mappings", $opts );
-    my $versionChecked = 0;
-    if ( $self->getP4Version($opts) >= 20111 ) {
-        $versionChecked = 1;
-    }
 
     #fix the mappings for the deletes file
     if (   -e "ecpreflight_data/deletes"
@@ -2426,20 +5755,18 @@ sub apf_setmapping {
         }
         close(DELETES_ORIGIN_TMP);
         chdir( $opts->{dest} );
-        $filenum = 0;
-        $bparam  = '';
-        if ($versionChecked) {
-            $filenum = $self->countFileLines("$here/ecpreflight_data/deletes_origin_tmp");
-            $bparam  = " -b $filenum ";
-        }
-        my $clientOutput = $self->RunCommand(
-            "$p4Command -s -c \"$client\" $bparam-x \"$here/ecpreflight_data/deletes_origin_tmp\" fstat -Rc -Op -T \"path\"",
+        $filenum = $self->countFileLines("$here/ecpreflight_data/deletes_origin_tmp");
+        my $clientOutput = $self->p4Tagged(
+            $opts, $p4Command,
             {   LogCommand     => $logCommand,
                 HidePassword   => 1,
                 LogResult      => 1,                #$logResult,
+                Batch          => $filenum,
+                Messages       => 1,
                 passwordStart  => $passwordStart,
                 passwordLength => $passwordLength
-            }
+            },
+            $client, "fstat", [qw(-Rc -Op -T path)], "$here/ecpreflight_data/deletes_origin_tmp"
         );
         chdir($here);
         if ($clientOutput) {
@@ -2449,9 +5776,8 @@ sub apf_setmapping {
         open( DELETES, ">", "ecpreflight_data/deletes" )
             or die $!;
         foreach (@lines) {
-            if ( $_ ne q{} ) {
-                $_ =~ m/.*\spath\s(.*)/;
-
+            # "info1: path" from p4, "... path" from the engine
+            if ( $_ =~ m/.*\spath\s(.*)/ ) {
                 my $delete = $1;
                 my $base = substr( $delete, 0, length( $opts->{dest} ) );
                 if ( $base eq $opts->{dest} ) {
@@ -2495,31 +5821,30 @@ sub apf_setmapping {
         }
         close(DELTAS_ORIGIN_TMP);
         chdir( $opts->{dest} );
-        $filenum = 0;
-        $bparam  = '';
-        if ($versionChecked) {
-            $filenum = $self->countFileLines("$here/ecpreflight_data/deltas_origin_tmp");
-            $bparam  = " -b $filenum ";
-        }
+        $filenum = $self->countFileLines("$here/ecpreflight_data/deltas_origin_tmp");
 
         #this log should not be printed, contains the word error, so the postp will turn the job red
-        my $fstat = $self->RunCommand(
-            "$p4Command -s -c \"$client\" $bparam-x \"$here/ecpreflight_data/deltas_origin_tmp\" fstat -Op -T \"path depotFile\"",
+        my $fstat = $self->p4Tagged(
+            $opts, $p4Command,
             {   LogCommand     => $logCommand,
                 HidePassword   => 1,
                 LogResult      => 0,
+                Batch          => $filenum,
+                Messages       => 1,
                 passwordStart  => $passwordStart,
                 passwordLength => $passwordLength
-            }
+            },
+            $client, "fstat", [ "-Op", "-T", "path depotFile" ], "$here/ecpreflight_data/deltas_origin_tmp"
         );
         chdir($here);
         my $tmp_fstat = $fstat;
         if ($tmp_fstat) {
             $tmp_fstat =~ s/(path\s.*\n)/$1\n/ixmg;
             $tmp_fstat =~ s/exit\:\s0\n//ixmg;
-            $tmp_fstat =~ s/error\:\s.*\n//ixmg;
+            $tmp_fstat =~ s/(?:error|warning)\:\s.*\n//ixmg;
         }
         my @lines = split( /\n{2,}/, $tmp_fstat );
+        my @copies = ();
         open( DELTAS, ">", "ecpreflight_data/deltas" )
             or die $!;
         foreach (@lines) {
@@ -2545,69 +5870,312 @@ sub apf_setmapping {
                     $to   = File::Spec->catfile( "ecpreflight_files",        $to );
                     $from = File::Spec->catfile( "ecpreflight_files_origin", $1 );
                     $from =~ s/\/\//\//g;
-                    my ( $volume, $directories, $file ) = File::Spec->splitpath($to);
-                    if ( !-e $directories ) {
+                    push( @copies, [ $from, $to ] );
+                }
+            }
+        }
+        # Files the client does not have yet are new in the preflight; map
+        # them all with one "where" instead of one per file
+        my @missing = ();
+        # (a warning from the engine)
+        foreach ( split( /\n/, $fstat ) ) {
+            if ( $_ =~ m/(?:error|warning)\:\s(.*)\s\-\sno such file\(s\)./ ) {
+                push( @missing, $1 );
+            }
+        }
+        my $where = {};
+        if (@missing) {
+            $where = $self->apf_where( $opts, $client, \@missing,
+                {   LogCommand     => $logCommand,
+                    HidePassword   => 1,
+                    LogResult      => $logResult,
+                    passwordStart  => $passwordStart,
+                    passwordLength => $passwordLength
+                }
+            );
+        }
+        foreach my $depotFile (@missing) {
+            my $file = $where->{$depotFile};
+            next if ( !defined $file );
+            my $file_tmp;
+            if ( $file =~ m/^\/\// ) {
+                $file =~ m/\/\/$client\/(.*)/;    #removing //clientName
+                $file_tmp = $1;
+            }
+            elsif ( $file =~ m/^\// ) {
+                $file =~ m/\/$client\/(.*)/;      #removing //clientName
+                $file_tmp = $1;
+            }
+            my $from = File::Spec->catfile( "ecpreflight_files_origin/", $depotFile );
+            $file_tmp = $self->ASCIIContraction($file_tmp);
+            print DELTAS "$file_tmp\n";
+            my $to = File::Spec->catfile( "ecpreflight_files", $file_tmp );
+            push( @copies, [ $self->ASCIIContraction($from), $self->ASCIIContraction($to) ] );
+        }
+        close(DELTAS);
+
+        $self->{apfStaging} = $opts->{apfStaging} || "auto";
+        $self->startMetricsPhase("staging");
+        $self->apf_copyFiles( $opts, \@copies );
+        $self->endMetricsPhase("staging");
+        $self->apf_reportStaging($opts);
+    }
+    umask($oldUmask);
+    $self->debugMsg( 1, "Mappings fixed.", $opts );
+}
+
+#------------------------------------------------------------------------------
+# apf_where
+#
+#       Map depot files to the client with a single tagged "p4 where" over
+#       a -x list, through the engine when there is one.  Files the batch
+#       neither maps nor reports an error for (a depot path the server
+#       spells differently) are looked up one at a time as before.
+#
+# Results:
+#       A reference to a hash of depot file => client file.
+#------------------------------------------------------------------------------
+sub apf_where {
+    my ( $self, $opts, $client, $files, $runOpts ) = @_;
+    my ($p4Command) = $self->setupP4($opts);
+
+    # A record per mapping; "unmap" records come from exclusion lines and
+    # the first mapping of a file wins, as with the single file lookup.
+    # The errors of unmapped files come in the output:
+    #   info1: depotFile //depot/main/a.c
+    #   info1: clientFile //ws/main/a.c
+    #   error: //depot/other/b.c - file(s) not in client view.
+    my %where    = ();
+    my %answered = ();
+    my $stop     = 0;
+    my $feed     = $self->tagRecordParser(
+        sub {
+            my ($record) = @_;
+            if ( defined $record->{code} ) {
+                $answered{$1} = 1 if ( $record->{code} ne "info" && $record->{data} =~ /^(.*)\s-\s/ );
+            }
+            elsif (defined $record->{depotFile}
+                && defined $record->{clientFile}
+                && !exists $record->{unmap}
+                && !exists $where{ $record->{depotFile} } )
+            {
+                $where{ $record->{depotFile} } = $record->{clientFile};
+            }
+            return 0;
+        },
+        \$stop
+    );
+    $self->p4Tagged( $opts, $p4Command, { %$runOpts, IgnoreError => 1, Batch => scalar(@$files), Messages => 1 },
+        $client, "where", [], $files, $feed );
+    $feed->(undef);
+
+    foreach my $file ( grep { !exists $where{$_} && !$answered{$_} } @$files ) {
+        my $location = $self->p4Tagged( $opts, $p4Command, $runOpts, $client, "where", [$file] );
+        if ( defined $location && $location =~ m/.*clientFile\s(.*)\n/ ) {
+            $where{$file} = $1;
+        }
+    }
+    return \%where;
+}
+
+#------------------------------------------------------------------------------
+# apf_copyFiles
+#
+#       Copy the preflight files to their place in the workspace.  Every
+#       target directory is created once, then the copies are shared out
+#       between up to apfCopyWorkers processes (a single one on Windows or
+#       for short lists).
+#
+# Arguments:
+#       copies - reference to a list of [from, to] pairs
+#------------------------------------------------------------------------------
+sub apf_copyFiles {
+    my ( $self, $opts, $copies ) = @_;
+
+    my %dirs = ();
+    foreach my $copy (@$copies) {
+        my ( $volume, $directories, $file ) = File::Spec->splitpath( $copy->[1] );
+        next if ( $directories eq '' || $dirs{$directories}++ );
+        mkpath($directories) if ( !-e $directories );
+    }
+
+    # At least 16 files per process, or forking costs more than it saves
+    my $workers = $opts->{apfCopyWorkers} || 1;
+    $workers = int( scalar(@$copies) / 16 ) if ( $workers > scalar(@$copies) / 16 );
+    if ( $workers <= 1 || $^O eq "MSWin32" ) {
+        $self->apf_copyAndPreserve(@$_) foreach (@$copies);
+        return;
+    }
+
+    $self->debugMsg( 2, "Copying " . scalar(@$copies) . " files with $workers processes", $opts );
+    my @children = ();
+    my $worker;
+
+    # Each process leaves the number of files and bytes it staged each way
+    # in <countFile>.<worker>
+    my $countFile = File::Temp->new( TEMPLATE => 'staged_XXXXX', TMPDIR => 1 );
+    for ( $worker = 0; $worker < $workers; $worker++ ) {
+        my $pid = fork();
+        last if ( !defined $pid );
+        if ( !$pid ) {
+            my $failed = 0;
+            $self->{apfStaged} = {};
+            for ( my $i = $worker; $i < scalar(@$copies); $i += $workers ) {
+                eval { $self->apf_copyAndPreserve( @{ $copies->[$i] } ); 1; } or $failed = 1;
+            }
+            if ( open( my $out, ">", "$countFile.$worker" ) ) {
+                foreach my $method ( keys %{ $self->{apfStaged} } ) {
+                    print $out "$method $self->{apfStaged}{$method}{files} $self->{apfStaged}{$method}{bytes}\n";
+                }
+                close($out);
+            }
+            POSIX::_exit($failed);
+        }
+        push( @children, [ $pid, $worker ] );
+    }
+
+    # Copy the share of any process that could not be started
+    for ( ; $worker < $workers; $worker++ ) {
+        for ( my $i = $worker; $i < scalar(@$copies); $i += $workers ) {
+            $self->apf_copyAndPreserve( @{ $copies->[$i] } );
+        }
+    }
+    foreach my $child (@children) {
+        waitpid( $child->[0], 0 );
+        $self->issueWarningMsg("*** Preflight copy process $child->[0] failed.") if ($?);
+        my $counts = "$countFile.$child->[1]";
+        next if ( !open( my $in, "<", $counts ) );
+        while ( my $line = <$in> ) {
+            $self->apf_countStaged( $1, $2, $3 ) if ( $line =~ /^(\w+)\s(\d+)\s(\d+)/ );
+        }
+        close($in);
+        unlink($counts);
+    }
+}
+
+#------------------------------------------------------------------------------
+# apf_copyAndPreserve
+#
+#       Stage a preflight file.  ecpreflight_files_origin is only a
+#       download area, so with apfStaging "auto" its files are hard linked,
+#       reflinked (copy-on-write clone) or renamed into ecpreflight_files,
+#       whichever the filesystem allows first.  A method that fails because
+#       the filesystem doesn't support it (EXDEV, EPERM, EOPNOTSUPP and the
+#       like) is not tried again; any other failure only makes that file be
+#       copied, by the base driver like everything else.
+#------------------------------------------------------------------------------
+sub apf_copyAndPreserve {
+    my ( $self, $from, $to ) = @_;
+
+    if (   ( $self->{apfStaging} || "" ) ne "auto"
+        || $from !~ m{^ecpreflight_files_origin[/\\]}
+        || !-f $from )
+    {
+        return $self->SUPER::apf_copyAndPreserve( $from, $to );
+    }
+
+    my $size = -s $from || 0;
+    foreach my $method ( "link", "reflink", "rename" ) {
+        next if ( $self->{apfStagingFailed}{$method} );
+        unlink($to) if ( -e $to );
+        if ( $self->apf_stageFile( $method, $from, $to ) ) {
+            $self->apf_countStaged( $method, 1, $size );
+            return 1;
+        }
+        last if ( !grep { $!{$_} } qw(EXDEV EPERM EOPNOTSUPP ENOTSUP ENOTTY EINVAL ENOSYS) );
+        $self->{apfStagingFailed}{$method} = "$!";
+    }
+    $self->apf_countStaged( "copy", 1, $size );
+    return $self->SUPER::apf_copyAndPreserve( $from, $to );
+}
+
+#------------------------------------------------------------------------------
+# apf_stageFile
+#
+#       Put $from in place at $to without copying its content.  Reflinks
+#       use the Linux FICLONE ioctl, so they only work on filesystems such as
+#       btrfs or XFS; the mode and times are copied onto the clone.
+#
+# Results:
+#       True on success.
+#------------------------------------------------------------------------------
+sub apf_stageFile {
+    my ( $self, $method, $from, $to ) = @_;
+
+    if ( $method eq "link" ) {
+        return link( $from, $to );
+    }
+    elsif ( $method eq "rename" ) {
+        return rename( $from, $to );
+    }
+    if ( $^O ne "linux" ) {
+        $! = POSIX::ENOSYS();
+        return undef;
+    }
 
-                        if ( $directories ne '' ) {
-                            mkpath($directories);
-                        }
-                    }
-                    $self->apf_copyAndPreserve( $from, $to );
-                }
-            }
+    my ( $in, $out );
+    open( $in, "<", $from ) or return undef;
+    if ( !open( $out, ">", $to ) ) {
+        close($in);
+        return undef;
+    }
+    my $FICLONE = 0x40049409;
+    my $cloned  = ioctl( $out, $FICLONE, fileno($in) );
+    my $error   = $!;
+    close($out);
+    close($in);
+    if ( !$cloned ) {
+        unlink($to);
+        $! = $error;
+        return undef;
+    }
+    my @stat = CORE::stat($from);
+    chmod( $stat[2] & 07777, $to );
+    utime( $stat[8], $stat[9], $to );
+    return 1;
+}
+
+sub apf_countStaged {
+    my ( $self, $method, $files, $bytes ) = @_;
+    $self->{apfStaged}{$method}{files} += $files;
+    $self->{apfStaged}{$method}{bytes} += $bytes;
+}
+
+#------------------------------------------------------------------------------
+# apf_reportStaging
+#
+#       Print how the preflight files were staged and add the counts,
+#       with the bytes that did not have to be copied, to the "staging"
+#       metrics.
+#------------------------------------------------------------------------------
+sub apf_reportStaging {
+    my ( $self, $opts ) = @_;
+    my $staged  = $self->{apfStaged} || {};
+    my $metrics = $self->getMetricsPhase("staging");
+
+    my %done   = ( link => "linked", reflink => "reflinked", rename => "renamed", copy => "copied" );
+    my @report = ();
+    foreach my $method ( "link", "reflink", "rename", "copy" ) {
+        my $files = $staged->{$method} ? $staged->{$method}{files} : 0;
+        my $bytes = $staged->{$method} ? $staged->{$method}{bytes} : 0;
+        next if ( !$files );
+        $metrics->{ $done{$method} . "Files" } += $files;
+        if ( $method eq "copy" ) {
+            $metrics->{bytesCopied} += $bytes;
         }
-        @lines = split( /\n/, $fstat );
-        foreach (@lines) {
-            if ( $_ ne q{} ) {
-                my $to;
-                my $from;
-                my $file;
-                my $file_tmp;
-                my $depotFile;
-                if ( $_ =~ m/error\:\s(.*)\s\-\sno such file\(s\)./ ) {
-                    $file      = $1;
-                    $depotFile = $file;
-                    my $location = $self->RunCommand(
-                        "$p4Command -c \"$client\"  -z tag where \"$file\"",
-                        {   LogCommand     => $logCommand,
-                            HidePassword   => 1,
-                            LogResult      => $logResult,
-                            passwordStart  => $passwordStart,
-                            passwordLength => $passwordLength
-                        }
-                    );
-                    $file =~ m/\/\/(.*?)\/.*/;
-                    if ( $location =~ m/.*clientFile\s(.*)\n/ ) {
-                        $file = $1;
-                        if ( $file =~ m/^\/\// ) {
-                            $file =~ m/\/\/$client\/(.*)/;    #removing //clientName
-                            $file_tmp = $1;
-                        }
-                        elsif ( $file =~ m/^\// ) {
-                            $file =~ m/\/$client\/(.*)/;      #removing //clientName
-                            $file_tmp = $1;
-                        }
-                        $from = File::Spec->catfile( "ecpreflight_files_origin/", $depotFile );
-                        $file_tmp = $self->ASCIIContraction($file_tmp);
-                        print DELTAS "$file_tmp\n";
-                        $to = File::Spec->catfile( "ecpreflight_files", $file_tmp );
-                        my ( $volume, $directories, $file ) = File::Spec->splitpath($to);
-                        if ( !-e $directories ) {
-                            if ( $directories ne '' ) {
-                                mkpath($directories);
-                            }
-                        }
-                        $from = $self->ASCIIContraction($from);
-                        $to   = $self->ASCIIContraction($to);
-                        $self->apf_copyAndPreserve( $from, $to );
-                    }
-                }
-            }
+        else {
+            $metrics->{bytesAvoided} += $bytes;
         }
-        close(DELTAS);
+        push( @report, "$files $done{$method}" );
     }
-    umask($oldUmask);
-    $self->debugMsg( 1, "Mappings fixed.", $opts );
+    foreach my $method ( sort keys %{ $self->{apfStagingFailed} || {} } ) {
+        $self->debugMsg( 2, "Staging by $method not possible here: $self->{apfStagingFailed}{$method}", $opts );
+    }
+    if (@report) {
+        my $avoided = $metrics->{bytesAvoided} || 0;
+        print "Staged preflight files: " . join( ", ", @report ) . " ($avoided bytes not copied)\n";
+    }
+    $self->publishMetrics($opts);
 }
 ###############################################################################
 # clientPreflight routines  (cpf_xxxx)
@@ -2646,6 +6214,36 @@ sub cpf_p4 {
     }
 }
 
+#------------------------------------------------------------------------------
+# cpf_p4Records
+#
+#       Runs a p4 command like cpf_p4, but hands its output to $callback
+#       record by record as it is read (see tagRecordParser) instead of
+#       returning it.  The callback returns true to stop reading.
+#------------------------------------------------------------------------------
+sub cpf_p4Records {
+    my ( $self, $opts, $command, $options, $callback ) = @_;
+    my $stop = 0;
+    my $feed = $self->tagRecordParser( $callback, \$stop );
+    if ( $opts->{scm_client} eq "" || $opts->{opt_Testing} ) {
+        $feed->($_) foreach ( split( /\n/, $self->cpf_p4( $opts, $command, $options ) ) );
+        $feed->(undef);
+        return 1;
+    }
+    $self->cpf_debug("Running Perforce command \"$command\"");
+    my $curDir = $self->pf_getCurrentWorkingDir();
+    my $p4     = "p4 -c " . $opts->{scm_client};
+    if ( $curDir !~ /(^\D\:\\$|^\/$)/i ) {
+        $p4 .= " -d \"$curDir\"";
+    }
+    my $ok = $self->streamCommand( "$p4 $command 2>&1", { %$options, Stop => \$stop }, $feed );
+    $feed->(undef);
+    if ( !$ok && $options->{DieOnError} ) {
+        $self->cpf_error("Perforce command \"$command\" failed");
+    }
+    return $ok;
+}
+
 
 
 #------------------------------------------------------------------------------
@@ -2658,6 +6256,10 @@ sub cpf_p4 {
 sub cpf_copyDeltas {
     my ( $self, $opts ) = @_;
     $self->cpf_display("Collecting delta information");
+
+    # With --p4shelve the agent unshelves the changelists from the Perforce
+    # server, and their numbers are passed instead of the files
+    my $shelves = $opts->{scm_shelve} ? $self->cpf_shelveChangelists($opts) : "";
     $self->cpf_saveScmInfo( $opts,
               $opts->{scm_port} . "\n"
             . $opts->{scm_template} . "\n"
@@ -2665,57 +6267,47 @@ sub cpf_copyDeltas {
             . $opts->{rt_syncToChangelist} . "\n"
             . $opts->{scm_client} . "\n"
             . $opts->{scm_stream}
-            . "\n" );
+            . "\n"
+            . ( $shelves ne "" ? "$shelves\n" : "" ) );
     $self->cpf_findTargetDirectory($opts);
     $self->cpf_createManifestFiles($opts);
 
-    # Collect a list of opened files.
-    my $output         = "";
+    # Collect a list of opened files, writing their names to the file list
+    # as "p4 opened" prints them.  The output itself is kept for autoCommit
+    # to compare with.
+    my $filelist = File::Temp->new( UNLINK => 0 );
+    my $filelist_filename = $opts->{opt_Testing} ? $opts->{test_filename} : $filelist->filename;
+    my $output = "";
     foreach my $changelist ( @{ $opts->{rt_changelists} } ) {
-        my $o = $self->cpf_p4(
+        $self->cpf_p4Records(
             $opts,
             "opened -c $changelist",
             {   IgnoreError => 0,
                 DieOnError  => 1
+            },
+            sub {
+                my ($record) = @_;
+                my $line = $record->{data};
+                return 0 if ( !defined $line || $line =~ /File\(s\) not opened on this client\./ );
+                $output .= "$line\n";
+
+                # Parse the output from p4 opened and figure out the file name
+                if ( !$opts->{opt_Testing}
+                    && $line =~ m/(.*)#.* \- (edit|add|delete|branch|integrate|move\/add|move\/delete) (.*)/ )
+                {
+                    $filelist->print("$1\n");
+                }
+                return 0;
             }
         );
-        $o =~ s/File\(s\) not opened on this client.\s//gm;
-        $output .= $o;
     }
     chomp $output;
     $self->cpf_debug("output from opened=[$output]");
-    if (   $output eq ""
-        || $output =~ /not opened on this client/ )
-    {
+    if ( $output eq "" ) {
         $self->cpf_error("No file changes found.");
     }
     $opts->{rt_openedFiles} = $output;
-    my @files;
-    foreach ( split( /\n/, $output ) ) {
-
-        # Parse the output from p4 opened and figure out the file name and what
-        # type of change is being made.
-        $_ =~ m/(.*)#.* \- (edit|add|delete|branch|integrate|move\/add|move\/delete) (.*)/;
-        my $file = $1;
-        my $type = $2;
-        push( @files, "$type\t$file" );
-    }
-
-    #save the file list to a temp file
-    my $filelist = File::Temp->new( UNLINK => 0 );
-    my $filelist_filename = undef;
-    if ( !$opts->{opt_Testing} ) {
-        $filelist_filename = $filelist->filename;
-        foreach (@files) {
-            $_ =~ m/(.*)\t(.*)/;
-            $filelist->print("$2\n");
-        }
-        $filelist->flush();
-        $filelist->seek( 0, 0 );
-    }
-    else {
-        $filelist_filename = $opts->{test_filename};
-    }
+    $filelist->flush();
     my $versionChecked = 0;
     if ( $self->getP4Version($opts) >= 20111 ) {
         $versionChecked = 1;
@@ -2728,23 +6320,24 @@ sub cpf_copyDeltas {
     }
 
     $self->checkForConflicts($bparam,$filelist_filename,$opts);
+    if ( $shelves ne "" ) {
+        $self->cpf_closeManifestFiles($opts);
+        $self->cpf_uploadFiles($opts);
+        return;
+    }
 
     # Run "p4 fstat" on the opened files to determine the source
     # and destination paths to pass to the putFiles operation.
-    my $fstat = $self->cpf_p4( $opts, "-s $bparam-x \"$filelist_filename\" fstat -Op -T \"path depotFile action\"" );
-    if ($fstat) {
-        #$fstat =~ s/(action\s.*\n)/$1\n/ixmg;
-        #$fstat =~ s/exit\:\s0\n//ixmg;
-        $fstat =~ s/(\:\ action\s.*\n)/$1\n/ixmg;
-        $fstat =~ s/^exit\:\s0\n//ixmg;
-    }
-    my @fstats = split( /\n{2,}/, $fstat );
-    foreach (@fstats) {
-        #if ( $_ =~ /.*depotFile\s(.*)\n.*path\s(.*)\n.*action\s(.*)/ ) {
-        if ($_ =~ /.*:\s*depotFile\s(.*)\n.*:\s*path\s(.*)\n.*:\s*action\s(.*)/) {
-            my $dest     = $1;
-            my $source   = $2;
-            my $action   = $3;
+    $self->cpf_p4Records(
+        $opts,
+        "-s $bparam-x \"$filelist_filename\" fstat -Op -T \"path depotFile action\"",
+        {},
+        sub {
+            my ($record) = @_;
+            return 0 if ( !defined $record->{depotFile} || !defined $record->{path} || !defined $record->{action} );
+            my $dest     = $record->{depotFile};
+            my $source   = $record->{path};
+            my $action   = $record->{action};
             my $filename = basename($source);
             my $dir      = dirname($dest);
             $dest = "$dir" . '/' . "$filename";
@@ -2757,12 +6350,147 @@ sub cpf_copyDeltas {
             else {
                 $self->cpf_addDelete($dest);
             }
+            return 0;
         }
-    }
+    );
     $self->cpf_closeManifestFiles($opts);
     $self->cpf_uploadFiles($opts);
 }
 
+#------------------------------------------------------------------------------
+# cpf_shelveChangelists
+#
+#       Shelve the changelists being preflighted.  A changelist that already
+#       has shelved files (a shelf under review, say) is left alone, and so
+#       are all the others: the files are uploaded as usual then.  Shelves
+#       an earlier preflight made are recognised from the shelf records (see
+#       cpf_shelfRecords) and replaced, so that a preflight run without
+#       auto-commit doesn't make the next ones upload the files.  The same
+#       happens for the default changelist, which can't be shelved, and when
+#       a changelist can't be shelved, in which case the shelves made so far
+#       are deleted again.  Only the shelves made here are recorded for
+#       autoCommit to delete.
+#
+#       Returns the comma separated changelists, or "" to upload the files.
+#------------------------------------------------------------------------------
+sub cpf_shelveChangelists {
+    my ( $self, $opts ) = @_;
+    if ( $opts->{rt_defaultChangelist} ) {
+        $self->cpf_display("The default changelist can't be shelved, uploading the files instead");
+        return "";
+    }
+    my $records = $self->cpf_shelfRecords($opts);
+    my %replace = ();
+    foreach my $changelist ( @{ $opts->{rt_changelists} } ) {
+        my $digest = $self->cpf_shelfDigest( $opts, $changelist );
+        if ( !defined $digest ) {
+            $self->cpf_display("Could not describe changelist $changelist, uploading the files instead");
+            return "";
+        }
+        if ( $digest eq "" ) {
+            delete $records->{$changelist};
+        }
+        elsif ( defined $records->{$changelist} && $records->{$changelist} eq $digest ) {
+            $self->cpf_debug("Changelist $changelist has the shelf of an earlier preflight, replacing it");
+            $replace{$changelist} = 1;
+        }
+        else {
+            $self->cpf_display("Changelist $changelist already has shelved files, uploading the files instead");
+            return "";
+        }
+    }
+
+    my @shelved = ();
+    foreach my $changelist ( @{ $opts->{rt_changelists} } ) {
+        my $replace = $replace{$changelist} ? "-r " : "";
+        my $output = $self->cpf_p4( $opts, "shelve $replace-c $changelist", { IgnoreError => 1, DieOnError => 0 } );
+        $self->cpf_debug("output from shelve=[$output]");
+        my $digest;
+        if ( defined $output && $output =~ m/Change $changelist files shelved/ ) {
+            $digest = $self->cpf_shelfDigest( $opts, $changelist );
+        }
+        if ( !defined $digest || $digest eq "" ) {
+            $self->cpf_display("Could not shelve changelist $changelist, uploading the files instead");
+            my @left = @{ $opts->{rt_changelists} }[ scalar(@shelved) .. $#{ $opts->{rt_changelists} } ];
+            foreach my $done ( @shelved, grep { $replace{$_} } @left ) {
+                $self->cpf_p4( $opts, "shelve -d -c $done", { IgnoreError => 1, DieOnError => 0 } );
+                delete $records->{$done};
+            }
+            $self->cpf_shelfRecords( $opts, $records );
+            return "";
+        }
+        $records->{$changelist} = $digest;
+        push( @shelved, $changelist );
+    }
+    $self->cpf_shelfRecords( $opts, $records );
+    $opts->{rt_shelvedChangelists} = \@shelved;
+    $self->cpf_display( "Shelved changelist(s) " . join( ", ", @shelved ) . " for the agent to unshelve" );
+    return join( ",", @shelved );
+}
+
+#------------------------------------------------------------------------------
+# cpf_shelfDigest
+#
+#       Returns a digest of the files shelved in a changelist, "" when it has
+#       none, or undef when it can't be described.
+#------------------------------------------------------------------------------
+sub cpf_shelfDigest {
+    my ( $self, $opts, $changelist ) = @_;
+    my $output = $self->cpf_p4( $opts, "describe -S -s $changelist", { IgnoreError => 1, DieOnError => 0 } );
+    return undef if ( !defined $output || $output !~ m/^Change $changelist /m );
+    my @files = sort( $output =~ m{^\.\.\. (//.*)$}mg );
+    return @files ? md5_hex( join( "\n", @files ) ) : "";
+}
+
+#------------------------------------------------------------------------------
+# cpf_shelfRecords
+#
+#       The shelves made by --p4shelve preflights are recorded in
+#       .ecpreflight_p4shelves in the home directory, one per line: port,
+#       client, changelist and the digest of its shelved files, separated by
+#       tabs.  Returns the changelist => digest records of this port and
+#       client, or with $records replaces them in the file.
+#------------------------------------------------------------------------------
+sub cpf_shelfRecords {
+    my ( $self, $opts, $records ) = @_;
+    my $home = defined $ENV{HOME} ? $ENV{HOME} : $ENV{USERPROFILE};
+    return {} if ( !defined $home || $home eq "" );
+    my $file = File::Spec->catfile( $home, ".ecpreflight_p4shelves" );
+    my $port   = defined $opts->{scm_port} ? $opts->{scm_port} : "";
+    my $client = $opts->{scm_client};
+    my %mine   = ();
+    my @others = ();
+    if ( open( my $fh, "<", $file ) ) {
+        while ( my $line = <$fh> ) {
+            chomp $line;
+            my @fields = split( /\t/, $line );
+            next if ( @fields != 4 );
+            if ( $fields[0] eq $port && $fields[1] eq $client ) {
+                $mine{ $fields[2] } = $fields[3];
+            }
+            else {
+                push( @others, "$line\n" );
+            }
+        }
+        close($fh);
+    }
+    return \%mine if ( !defined $records );
+
+    my @lines = ( @others, map {"$port\t$client\t$_\t$records->{$_}\n"} sort keys %$records );
+    if ( !@lines ) {
+        unlink($file);
+        return $records;
+    }
+    if ( open( my $fh, ">", $file ) ) {
+        print $fh @lines;
+        close($fh);
+    }
+    else {
+        $self->cpf_debug("Could not record the shelves in $file: $!");
+    }
+    return $records;
+}
+
 #------------------------------------------------------------------------------
 # autoCommit
 #
@@ -2840,6 +6568,17 @@ sub cpf_autoCommit() {
         }
     }
 
+    # A changelist with shelved files can't be submitted; drop the shelves
+    # made for the agent first.
+    if ( @{ $opts->{rt_shelvedChangelists} || [] } ) {
+        my $records = $self->cpf_shelfRecords($opts);
+        foreach my $changelist ( @{ $opts->{rt_shelvedChangelists} } ) {
+            $self->cpf_p4( $opts, "shelve -d -c $changelist", { DieOnError => 1 } );
+            delete $records->{$changelist};
+        }
+        $self->cpf_shelfRecords( $opts, $records );
+    }
+
     # Commit the changelists one at a time.  Use the commit description for the
     # default changelist, if it's being submitted.
     $self->cpf_display("Committing changes");
@@ -2890,6 +6629,13 @@ Perforce Options:
                                             file that has been synced to
                                             'p4client'
                                 changelist  A p4 changelist number
+  --p4shelve                Shelve the changelists on the Perforce server
+                            and have the agent unshelve them, instead of
+                            uploading the files.  The files are uploaded if
+                            a changelist can't be shelved, such as the
+                            default changelist, or already has shelved
+                            files other than those of an earlier
+                            --p4shelve preflight.
 "
         ;
 ## override config file with command line options
@@ -2904,6 +6650,7 @@ Perforce Options:
         "p4stream=s"       => \$opts->{scm_stream},
         "p4changelist=s"   => \@clists,
         "p4synctochange=s" => \$opts->{scm_synctochange},
+        "p4shelve"         => \$opts->{scm_shelve},
     );
     Getopt::Long::Configure("default");
     if ( !GetOptions(%ScmOptions) ) {
@@ -2929,6 +6676,7 @@ Perforce Options:
     $self->extractOption( $opts, "scm_template", { env => "P4TEMPLATE" } );
     $self->extractOption( $opts, "scm_stream",   { env => "P4STREAM" } );
     $self->extractOption( $opts, "scm_synctochange" );
+    $self->extractOption( $opts, "scm_shelve" );
 
     if (( !defined( $opts->{scm_template} ) || $opts->{scm_template} eq "" )
         && ( !defined( $opts->{scm_stream} )
@@ -3207,20 +6955,7 @@ sub ASCIIContraction {
 ######################################
 sub getP4Version {
     my ( $self, $opts ) = @_;
-    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
-    my $output = $self->RunCommand(
-        "$p4Command -V",
-        {   LogCommand     => 0,
-            HidePassword   => 1,
-            LogResult      => 0,
-            passwordStart  => $passwordStart,
-            passwordLength => $passwordLength
-        }
-    );
-    $output =~ m/(\d+\.\d+)/;
-    my $version = $1;
-    $version =~ s/\.//;
-    return $version;
+    return $self->getP4Capability( $opts, "clientVersion" );
 }
 ######################################
 # countFileLines
@@ -3333,21 +7068,165 @@ sub getP4LastSnapshotId {
 
 sub getServerTimeZone {
     my ($self, $opts) = @_;
+    return $self->getP4Capability( $opts, "serverTimeZone" );
+}
 
-    my $p4Command = "$self->{p4Command} info";
-    # Extract the number of the most recent changelist.
-    my $p4Opts = {
-        LogCommand     => 1,
-        LogResult      => 1,
-        HidePassword   => 1,
-        passwordStart  => $self->{passwordStart},
-        passwordLength => $self->{passwordLength}
-    };
+####################################################################
+# getP4Capability
+#
+# Return one of the facts the driver needs about the p4 client and the
+# server behind P4PORT:
+#   clientVersion   - version of the p4 client, e.g. 20141
+#   serverVersion   - version of the server, same format
+#   serverTimeZone  - offset of the server clock, e.g. -0800
+#   caseHandling    - sensitive or insensitive
+#   unicode         - 1 if the server runs in unicode mode
+#
+# Each fact is looked up once per driver object ("p4 -V" for the client,
+# "p4 info" for the server). When the capabilityCacheTTL option is set
+# to a number of seconds the facts are also kept in a small file in the
+# temp directory, keyed by P4PORT, and reused by later runs on the same
+# agent until they are older than the TTL.
+#
+# Arguments:
+#   opts - options passed in from caller
+#   name - name of the fact
+####################################################################
+sub getP4Capability {
+    my ( $self, $opts, $name ) = @_;
+
+    my $port = $opts->{P4PORT} || $ENV{P4PORT} || "";
+    if ( !exists $self->{p4Capabilities}{$port} ) {
+        $self->{p4Capabilities}{$port} = $self->readCapabilityCache( $opts, $port );
+    }
+    my $capabilities = $self->{p4Capabilities}{$port};
+    return $capabilities->{$name} if ( exists $capabilities->{$name} );
+
+    my ( $p4Command, $passwordStart, $passwordLength ) = $self->setupP4($opts);
+    my %found = ();
+    if ( $name eq "clientVersion" ) {
+        my $output = $self->RunCommand(
+            "$p4Command -V",
+            {   LogCommand     => 0,
+                HidePassword   => 1,
+                LogResult      => 0,
+                passwordStart  => $passwordStart,
+                passwordLength => $passwordLength
+            }
+        );
+        if ( $output =~ m/(\d+)\.(\d+)/ ) {
+            $found{clientVersion} = "$1$2";
+        }
+    }
+    elsif ( $name eq "parallelMax" ) {
+        # Reading the configurables needs super access; without it the
+        # limit is recorded as unknown rather than asked for again.
+        my $output = $self->RunCommand(
+            "$p4Command -ztag configure show net.parallel.max",
+            {   LogCommand     => 0,
+                HidePassword   => 1,
+                LogResult      => 0,
+                IgnoreError    => 1,
+                passwordStart  => $passwordStart,
+                passwordLength => $passwordLength
+            }
+        );
+        $found{parallelMax} = ( defined $output && $output =~ m/^\.\.\.\sValue\s(\d+)/m ) ? $1 : "";
+    }
+    else {
+        my $serverInfo = $self->RunCommand(
+            "$p4Command info",
+            {   LogCommand     => 1,
+                LogResult      => 1,
+                HidePassword   => 1,
+                passwordStart  => $passwordStart,
+                passwordLength => $passwordLength
+            }
+        );
+        if ( $serverInfo =~ m#Server\sdate:\s\d{4}/\d{2}/\d{2}\s\d{2}:\d{2}:\d{2}\s([-+]?\d{4})#msx ) {
+            $found{serverTimeZone} = $1;
+        }
+        if ( $serverInfo =~ m#^Server\sversion:\s[^/]+/[^/]+/(\d+)\.(\d+)#msx ) {
+            $found{serverVersion} = "$1$2";
+        }
+        if ( $serverInfo =~ m#^Case\sHandling:\s(\w+)#msx ) {
+            $found{caseHandling} = $1;
+        }
+        if ( $serverInfo =~ m#^Server\sversion:#m ) {
+            # "Unicode mode" is only printed when the server runs in unicode mode
+            $found{unicode} = ( $serverInfo =~ m#^Unicode\smode:\senabled#msx ) ? 1 : 0;
+        }
+    }
+
+    if (%found) {
+        @{$capabilities}{ keys %found } = values %found;
+        $self->writeCapabilityCache( $opts, $port, $capabilities );
+    }
+    return $capabilities->{$name};
+}
+
+####################################################################
+# getCapabilityCacheFile
+#
+# Return the name of the on-disk capability cache for the given port
+####################################################################
+sub getCapabilityCacheFile {
+    my ( $self, $port ) = @_;
+    ( my $key = $port ) =~ s/[^\w.-]/_/g;
+    return File::Spec->catfile( File::Spec->tmpdir(), "ecscm-p4-capabilities-$key" );
+}
+
+####################################################################
+# readCapabilityCache
+#
+# Return the capabilities cached on disk for the given port, or an
+# empty hash if the cache is disabled, missing or older than the TTL.
+####################################################################
+sub readCapabilityCache {
+    my ( $self, $opts, $port ) = @_;
+    my %capabilities = ();
+
+    my $ttl = $opts->{capabilityCacheTTL};
+    return \%capabilities if ( !$ttl || $ttl !~ /^\d+$/ || $port eq "" );
+
+    my $file = $self->getCapabilityCacheFile($port);
+    my $st   = stat($file);
+    return \%capabilities if ( !$st || time() - $st->mtime > $ttl );
+
+    if ( open( my $fh, "<", $file ) ) {
+        while ( my $line = <$fh> ) {
+            chomp($line);
+            $capabilities{$1} = $2 if ( $line =~ /^(\w+)=(.*)$/ );
+        }
+        close($fh);
+        $self->debug( 2, "Read p4 capabilities for $port from $file" );
+    }
+    return \%capabilities;
+}
+
+####################################################################
+# writeCapabilityCache
+#
+# Save the capabilities of the given port to disk when the cache is
+# enabled. The file is written under a temporary name and renamed so
+# concurrent steps on the same agent never read a partial file.
+####################################################################
+sub writeCapabilityCache {
+    my ( $self, $opts, $port, $capabilities ) = @_;
+
+    my $ttl = $opts->{capabilityCacheTTL};
+    return if ( !$ttl || $ttl !~ /^\d+$/ || $port eq "" );
 
-    my $serverInfo = $self->RunCommand($p4Command, $p4Opts);
-    $serverInfo =~ m#Server\sdate:\s\d{4}/\d{2}/\d{2}\s\d{2}:\d{2}:\d{2}\s([-+]?\d{4})#msx;
-    my $timeZoneDiff = $1;
-    return $timeZoneDiff;
+    my $file = $self->getCapabilityCacheFile($port);
+    my ( $fh, $tmpFile ) = eval { tempfile( "$file.XXXXX" ) };
+    return if ( !$fh );
+    foreach my $key ( sort keys %$capabilities ) {
+        print $fh "$key=$capabilities->{$key}\n";
+    }
+    close($fh);
+    if ( !rename( $tmpFile, $file ) ) {
+        unlink($tmpFile);
+    }
 }
 
 
@@ -3360,42 +7239,59 @@ sub getServerTimeZone {
 # Arguments:
 #   self -              the object reference
 #   reportName -        the name of the report
+#   page -              the plugin page to link, "reports" by default
+#   query -             extra query parameters for the page
 #
 # Returns:
 #   Nothing.
 ####################################################################
 sub createLinkToChangelogReport {
-    my ( $self, $reportName ) = @_;
-    my $name = $self->getCfg()->getSCMPluginName();
-    my ( $success, $xpath, $msg ) = $self->InvokeCommander(
-        {   SuppressLog  => 1,
-            IgnoreError => 1
-        },
-        "getProperty",
-        "/plugins/$name/pluginName"
-    );
-    if ( !$success ) {
-        print "Error getting promoted plugin name for $name: $msg\n";
-        return;
-    }
-    my $root = $xpath->findvalue('//value')->string_value;
-    ( $success, $xpath, $msg ) = $self->InvokeCommander(
-        {   SuppressLog  => 1,
-            IgnoreError => 1
-        },
-        "getProperty",
-        "/myJob/jobId"
-    );
-    if ( !$success ) {
-        print "Error getting jobId: $msg\n";
-        return;
+    my ( $self, $reportName, $page, $query ) = @_;
+    $page  ||= "reports";
+    $query ||= "";
+    my ( $success, $xpath, $msg );
+
+    # The promoted plugin and the job do not change while the step runs
+    if ( !defined $self->{cachedPluginRoot} ) {
+        my $name = $self->getCfg()->getSCMPluginName();
+        ( $success, $xpath, $msg ) = $self->InvokeCommander(
+            {   SuppressLog  => 1,
+                IgnoreError => 1
+            },
+            "getProperty",
+            "/plugins/$name/pluginName"
+        );
+        if ( !$success ) {
+            print "Error getting promoted plugin name for $name: $msg\n";
+            return;
+        }
+        $self->{cachedPluginRoot} = $xpath->findvalue('//value')->string_value;
+    }
+    if ( !defined $self->{cachedJobId} ) {
+        ( $success, $xpath, $msg ) = $self->InvokeCommander(
+            {   SuppressLog  => 1,
+                IgnoreError => 1
+            },
+            "getProperty",
+            "/myJob/jobId"
+        );
+        if ( !$success ) {
+            print "Error getting jobId: $msg\n";
+            return;
+        }
+        $self->{cachedJobId} = $xpath->findvalue('//value')->string_value;
     }
-    my $id     = $xpath->findvalue('//value')->string_value;
+    my $root   = $self->{cachedPluginRoot};
+    my $id     = $self->{cachedJobId};
     my $prop   = "/myJob/report-urls/$reportName";
-    my $target = "/commander/pages/$root/reports?jobId=$id";
+    my $target = "/commander/pages/$root/$page?jobId=$id$query";
 
     # e.g. /commander/pages/EC-DefectTracking-JIRA-1.0/reports?debug=1?jobId=510
     print "Creating link $target\n";
+    if ( $self->{propertyBatch} ) {
+        $self->setJobProperty( $prop, $target );
+        return;
+    }
     ( $success, $xpath, $msg ) = $self->InvokeCommander(
         {   SuppressLog => 1,
             IgnoreError => 1
@@ -3409,6 +7305,69 @@ sub createLinkToChangelogReport {
     }
 }
 
+####################################################################
+# beginPropertyBatch / setJobProperty / submitPropertyBatch
+#
+# Side Effects:
+#   Between beginPropertyBatch and the matching submitPropertyBatch,
+#   setJobProperty collects the properties instead of setting them;
+#   the outermost submitPropertyBatch sends them all in one batched
+#   Commander request.  Outside of a batch setJobProperty sets the
+#   property at once.
+#
+# Arguments:
+#   self -              the object reference
+#   name -              the property path (setJobProperty)
+#   value -             the property value (setJobProperty)
+#
+# Returns:
+#   Nothing.
+####################################################################
+sub beginPropertyBatch {
+    my ($self) = @_;
+    $self->{propertyBatch} ||= [];
+    $self->{propertyBatchDepth}++;
+}
+
+sub setJobProperty {
+    my ( $self, $name, $value ) = @_;
+    if ( $self->{propertyBatch} ) {
+        push( @{ $self->{propertyBatch} }, [ $name, $value ] );
+        return;
+    }
+    $self->getCmdr()->setProperty( $name, $value );
+}
+
+sub submitPropertyBatch {
+    my ($self) = @_;
+    return if ( --$self->{propertyBatchDepth} > 0 );
+    $self->{propertyBatchDepth} = 0;
+    my $queued = delete $self->{propertyBatch};
+    return if ( !$queued || !@$queued );
+
+    # A parallel batch runs its requests in any order: send only the last
+    # value of a property set more than once (a multi-source checkout sets
+    # the job summary once per source and again for all of them)
+    my %last = ();
+    $last{ $queued->[$_][0] } = $_ foreach ( 0 .. $#$queued );
+    my $properties = [ map { $queued->[$_] } sort { $a <=> $b } values %last ];
+
+    my $ec = $self->getCmdr();
+    if ( @$properties > 1 ) {
+        my $submitted = eval {
+            my $batch = $ec->newBatch("parallel");
+            $batch->setProperty(@$_) foreach (@$properties);
+            $batch->submit();
+            1;
+        };
+        return if ($submitted);
+
+        # Setting a property again is harmless: fall back to one request each
+        print "Warning: batched property update failed, setting properties one at a time: $@";
+    }
+    $ec->setProperty(@$_) foreach (@$properties);
+}
+
 #-------------------------------------------------------------------------
 #
 #  Find the name of the Project of the current job and the
@@ -3427,21 +7386,23 @@ sub createLinkToChangelogReport {
 #
 #-------------------------------------------------------------------------
 sub GetProjectAndScheduleNames {
-    my $self                 = shift;
-    my $gCachedScheduleName  = "";
-    my $gCachedProjectName   = "";
-    my $gCachedProcedureName = "";
-    if ( $gCachedScheduleName eq "" ) {
+    my $self = shift;
+
+    # The job info is fetched once for the life of the driver; an empty
+    # schedule name is a valid answer and must not trigger another call
+    if ( !$self->{cachedJobInfo} ) {
 
         # Call Commander to get info about the current job
         my ( $success, $xPath ) = $self->InvokeCommander( { SuppressLog => 1 }, "getJobInfo", $ENV{COMMANDER_JOBID} );
 
         # Find the schedule name in the properties
-        $gCachedScheduleName  = $xPath->findvalue('//scheduleName');
-        $gCachedProjectName   = $xPath->findvalue('//projectName');
-        $gCachedProcedureName = $xPath->findvalue('//procedureName');
+        $self->{cachedJobInfo} = [
+            "" . $xPath->findvalue('//projectName'),
+            "" . $xPath->findvalue('//scheduleName'),
+            "" . $xPath->findvalue('//procedureName')
+        ];
     }
-    return ( $gCachedProjectName, $gCachedScheduleName, $gCachedProcedureName );
+    return @{ $self->{cachedJobInfo} };
 }
 
 
@@ -3459,7 +7420,19 @@ sub checkForConflicts {
 
     my ($self, $bparam, $filename, $opts) = @_;
 
-    my $checkConflicts = $self->cpf_p4( $opts, "$bparam-x \"$filename\" sync -n" );
+    # Both checks stop reading at the first conflict
+    my $conflict;
+    $self->cpf_p4Records(
+        $opts,
+        "$bparam-x \"$filename\" sync -n",
+        {},
+        sub {
+            my ($record) = @_;
+            return 0 if ( !defined $record->{data} || $record->{data} !~ m/must\sresolve\s#(\d+)\sbefore\ssubmitting/ );
+            $conflict = $record->{data};
+            return 1;
+        }
+    );
     # Sample output from p4 sync -n
     # //depot/main/Dev/Cyclone/ManagedPVT/PI_FIT-1-0-0/SW/SRC/Cp_src/ChasMgr/src/chmCardDbMsg.c - file(s) up-to-date.
     # //depot/main/Dev/Cyclone/ManagedPVT/PI_FIT-1-0-0/SW/SRC/Cp_src/ChasMgr/src/chmCheckin.c - file(s) up-to-date.
@@ -3470,19 +7443,27 @@ sub checkForConflicts {
     #
 
     # Error out if the user has opened any out-of-date files.
-    if (   $checkConflicts =~ m/must\sresolve\s#(\d+)\sbefore\ssubmitting/s)
-    {
+    if ( defined $conflict ) {
         $self->cpf_error( "checkForConflicts: "
-                . $checkConflicts
+                . $conflict
                 . " Opened files are out of sync with the head. Sync and resolve "
                 . "conflicts, then retry the preflight build" );
     }
 
     # Error out if the user any files pending a merge.
-    $checkConflicts = $self->cpf_p4( $opts, "$bparam-x \"$filename\" resolve -n" );
-    if (   $checkConflicts !~ m/no\sfile\(s\)\sto\sresolve/s
-        && $checkConflicts ne "" )
-    {
+    $conflict = undef;
+    $self->cpf_p4Records(
+        $opts,
+        "$bparam-x \"$filename\" resolve -n",
+        {},
+        sub {
+            my ($record) = @_;
+            return 0 if ( !defined $record->{data} || $record->{data} =~ m/no\sfile\(s\)\sto\sresolve/i );
+            $conflict = $record->{data};
+            return 1;
+        }
+    );
+    if ( defined $conflict ) {
         $self->cpf_error( "Opened files have conflicts that need to be resolved. Resolve "
                 . "conflicts, then retry the preflight build" );
     }
@@ -3493,6 +7474,9 @@ sub checkForConflicts {
 # updateOptions
 # Update options hash with values stored in configuration
 #
+# The configuration row is read from Commander once per driver; later
+# calls copy it from memory (see invalidateOptionsCache).
+#
 # Args:
 #   opts  - options passed in from caller
 #---------------------
@@ -3501,10 +7485,17 @@ sub updateOptions {
 
     # add configuration that is stored for this config
     my $name = $self->getCfg()->getName();
-    my %row  = $self->getCfg()->getRow($name);
-    for my $k ( keys %row ) {
-        $self->debug("Reading $k=$row{$k} from config");
-        $opts->{$k} = $row{$k};
+    my $row  = $self->{cachedConfigRows}{$name};
+    if ( !$row ) {
+        my %row = $self->getCfg()->getRow($name);
+        for my $k ( keys %row ) {
+            $row{$k} = $row{$k}->value() if ( ref( $row{$k} ) );
+            $self->debug("Reading $k=$row{$k} from config");
+        }
+        $row = $self->{cachedConfigRows}{$name} = \%row;
+    }
+    for my $k ( keys %$row ) {
+        $opts->{$k} = $row->{$k};
     }
 
     # parameter may be passed as xml ref, we convert it back to it's value
@@ -3515,6 +7506,40 @@ sub updateOptions {
     }
 }
 
+#---------------------
+# retrieveUserCredential
+# Resolve the user name and password of a credential, once per driver.
+# Without a credential the given user and password are returned as they
+# are, and nothing is cached.
+#
+# Args:
+#   credential - name of the credential
+#   user       - user name to use when the credential is not set
+#   password   - password to use when the credential is not set
+#---------------------
+sub retrieveUserCredential {
+    my ( $self, $credential, $user, $password ) = @_;
+    if ( !defined $credential || $credential eq "" ) {
+        return $self->SUPER::retrieveUserCredential( $credential, $user, $password );
+    }
+    my $key = join( "\0", map { defined $_ ? $_ : "" } ( $credential, $user ) );
+    if ( !$self->{cachedCredentials}{$key} ) {
+        $self->{cachedCredentials}{$key} = [ $self->SUPER::retrieveUserCredential( $credential, $user, $password ) ];
+    }
+    return @{ $self->{cachedCredentials}{$key} };
+}
+
+#---------------------
+# invalidateOptionsCache
+# Forget the configuration rows and credentials read so far, so the next
+# updateOptions and retrieveUserCredential read them from Commander again
+#---------------------
+sub invalidateOptionsCache {
+    my ($self) = @_;
+    delete $self->{cachedConfigRows};
+    delete $self->{cachedCredentials};
+}
+
 1;
 
 
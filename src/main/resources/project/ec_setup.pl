@@ -172,6 +172,7 @@ $batch->deleteProperty("/server/ec_customEditors/pickerStep/ECSCM-Perforce - Che
 $batch->deleteProperty("/server/ec_customEditors/pickerStep/ECSCM-Perforce - Preflight");
 $batch->deleteProperty("/server/ec_customEditors/pickerStep/Perforce - Checkout");
 $batch->deleteProperty("/server/ec_customEditors/pickerStep/Perforce - Preflight");
+$batch->deleteProperty("/server/ec_customEditors/pickerStep/Perforce - Capture Seed Archive");
 
 my %Checkout = (
     label       => "Perforce - Checkout",
@@ -187,8 +188,14 @@ my %Preflight = (
     category => "Source Code Management"
 );
 
+my %CaptureSeedArchive = (
+    label       => "Perforce - Capture Seed Archive",
+    procedure   => "CaptureSeedArchive",
+    description => "Archive a checked out workspace as a seed for later checkouts.",
+    category    => "Source Code Management"
+);
 
-@::createStepPickerSteps = (\%Checkout, \%Preflight);
+@::createStepPickerSteps = (\%Checkout, \%Preflight, \%CaptureSeedArchive);
 
 
 package ElectricUpgrader;
@@ -0,0 +1,273 @@
+// PerforceEngineTest.java --
+//
+// PerforceEngineTest.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2026 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM_Perforce.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.server.IOptionsServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the engine on a loopback port against a {@link RecordedServer} and
+ * talks to it the way PerforceDriver.pm does: a "hello" with the secret of
+ * the state file, then request lines, each command answered with
+ * "result &lt;length&gt;" and text in the form of "p4 -ztag" output.
+ */
+public class PerforceEngineTest
+{
+
+    //~ Instance fields --------------------------------------------------------
+
+    private final RecordedServer m_recorded = new RecordedServer();
+    private final List<String>   m_opened   = new ArrayList<String>();
+    private String               m_failure;
+    private File                 m_stateFile;
+    private Socket               m_socket;
+    private BufferedReader       m_in;
+    private OutputStream         m_out;
+
+    //~ Methods ----------------------------------------------------------------
+
+    @Before public void startEngine()
+        throws Exception
+    {
+        m_stateFile = File.createTempFile("engine", ".state");
+
+        if (!m_stateFile.delete()) {
+            throw new IOException("Can't delete " + m_stateFile);
+        }
+
+        ServerPool pool = new ServerPool(4, 60 * 1000L) {
+            @Override IOptionsServer open(EngineRequest request)
+                throws Exception
+            {
+                m_opened.add(request.m_port + " " + request.m_user);
+
+                if (m_failure != null) {
+                    throw new ConnectionException(m_failure);
+                }
+
+                return m_recorded.server();
+            }
+        };
+        final PerforceEngine engine = new PerforceEngine(m_stateFile,
+                60 * 1000L, pool);
+        Thread thread = new Thread(new Runnable() {
+                    @Override public void run()
+                    {
+
+                        try {
+                            engine.listen();
+                        }
+                        catch (IOException e) {
+                            // The test fails on the missing state file
+                        }
+                    }
+                }, "engine");
+
+        thread.setDaemon(true);
+        thread.start();
+
+        for (int wait = 0; !m_stateFile.exists() && wait < 100; wait++) {
+            Thread.sleep(50);
+        }
+
+        assertTrue("state file written", m_stateFile.exists());
+    }
+
+    @After public void disconnect()
+        throws IOException
+    {
+
+        if (m_socket != null) {
+            m_socket.close();
+        }
+    }
+
+    @Test public void deniesWrongSecret()
+        throws IOException
+    {
+        connect("hello 0123");
+        assertEquals("denied", m_in.readLine());
+    }
+
+    @Test public void answersInTaggedForm()
+        throws IOException
+    {
+        m_recorded.record("changes -s submitted -m 1 //depot/a/...", "change",
+            "12", "time", "1767351845", "desc", "First line\n\nthird line\n");
+        hello();
+
+        assertEquals("... change 12\n"
+            + "... desc First line\n\nthird line\n\n"
+            + "... time 1767351845\n\n"
+            + "exit: 0\n",
+            run("port fake:1666", "user bench", "client bench-ws",
+                "cmd changes", "arg -s", "arg submitted", "arg -m", "arg 1",
+                "arg //depot/a/..."));
+        assertEquals(Arrays.asList("bench-ws"), m_recorded.m_clients);
+    }
+
+    @Test public void runsOncePerXarg()
+        throws IOException
+    {
+        m_recorded.record("changes -m 1 //depot/a/...", "change", "12");
+        m_recorded.record("changes -m 1 //depot/b/...", "change", "10");
+        hello();
+
+        assertEquals("... change 12\n\n... change 10\n\nexit: 0\n",
+            run("port fake:1666", "cmd changes", "arg -m", "arg 1",
+                "xarg //depot/a/...", "xarg //depot/b/..."));
+        assertEquals(Arrays.asList("changes -m 1 //depot/a/...",
+                "changes -m 1 //depot/b/..."), m_recorded.m_calls);
+    }
+
+    @Test public void runsBatchesOfXargs()
+        throws IOException
+    {
+        hello();
+        run("port fake:1666", "cmd have", "batch 2", "xarg /ws/a", "xarg /ws/b",
+            "xarg /ws/c");
+
+        assertEquals(Arrays.asList("have /ws/a /ws/b", "have /ws/c"),
+            m_recorded.m_calls);
+    }
+
+    @Test public void reportsMessagesBySeverity()
+        throws IOException
+    {
+        m_recorded.message("have /ws/a", 2, "/ws/a - file(s) not on client.");
+        m_recorded.message("fstat //depot/b", 3, "//depot/b - no permission.");
+        m_recorded.message("where //depot/c", 1, "Nothing to do.");
+        hello();
+
+        assertEquals("warning: /ws/a - file(s) not on client.\nexit: 0\n",
+            run("port fake:1666", "cmd have", "arg /ws/a"));
+        assertEquals("error: //depot/b - no permission.\nexit: 1\n",
+            run("cmd fstat", "arg //depot/b"));
+        assertEquals("info: Nothing to do.\nexit: 0\n",
+            run("cmd where", "arg //depot/c"));
+    }
+
+    @Test public void refusesOtherCommands()
+        throws IOException
+    {
+        hello();
+
+        assertEquals("error: the engine does not run submit\nexit: 1\n",
+            run("port fake:1666", "cmd submit", "arg -c", "arg 12"));
+        assertEquals(0, m_recorded.m_calls.size());
+    }
+
+    @Test public void reportsConnectionFailuresWithThePort()
+        throws IOException
+    {
+        m_failure = "Connection refused";
+        hello();
+
+        // The driver falls back to p4 on "error: <port>: ..."
+        assertEquals("error: fake:1666: Connection refused\nexit: 1\n",
+            run("port fake:1666", "cmd counter", "arg maxCommitChange"));
+    }
+
+    @Test public void reusesConnections()
+        throws IOException
+    {
+        hello();
+        run("port fake:1666", "user bench", "cmd counter", "arg change");
+        run("cmd counter", "arg maxCommitChange");
+        run("user other", "cmd counter", "arg change");
+
+        assertEquals(Arrays.asList("fake:1666 bench", "fake:1666 other"),
+            m_opened);
+    }
+
+    private void connect(String hello)
+        throws IOException
+    {
+        BufferedReader state = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(m_stateFile), PerforceEngine.UTF8));
+        String[]       fields;
+
+        try {
+            fields = state.readLine()
+                          .split(" ");
+        }
+        finally {
+            state.close();
+        }
+
+        m_socket = new Socket("127.0.0.1", Integer.parseInt(fields[0]));
+        m_in     = new BufferedReader(new InputStreamReader(
+                    m_socket.getInputStream(), PerforceEngine.UTF8));
+        m_out    = m_socket.getOutputStream();
+        send(hello == null ? "hello " + fields[1] : hello);
+    }
+
+    private void hello()
+        throws IOException
+    {
+        connect(null);
+        assertEquals("ok", m_in.readLine());
+    }
+
+    /**
+     * Sends request lines and "run", and returns the answer to the one
+     * command of the request.
+     */
+    private String run(String... lines)
+        throws IOException
+    {
+
+        for (String line : lines) {
+            send(line);
+        }
+
+        send("run");
+
+        String header = m_in.readLine();
+
+        assertTrue(header, header.startsWith("result "));
+
+        char[] answer = new char[Integer.parseInt(header.substring(7))];
+        int    read   = 0;
+
+        while (read < answer.length) {
+            int count = m_in.read(answer, read, answer.length - read);
+
+            assertTrue("short answer", count > 0);
+            read += count;
+        }
+
+        return new String(answer);
+    }
+
+    private void send(String line)
+        throws IOException
+    {
+        m_out.write((line + "\n").getBytes(PerforceEngine.UTF8));
+        m_out.flush();
+    }
+}
@@ -0,0 +1,139 @@
+// RecordedServer.java --
+//
+// RecordedServer.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2026 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM_Perforce.engine;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Stand-in for a Perforce server behind a P4Java connection: answers
+ * {@code execMapCmd} with the result maps recorded for the command line
+ * and logs every command line it was given. Other calls do nothing.
+ */
+class RecordedServer
+    implements InvocationHandler
+{
+
+    //~ Instance fields --------------------------------------------------------
+
+    final List<String> m_calls     = new ArrayList<String>();
+    final List<String> m_clients   = new ArrayList<String>();
+    boolean            m_connected = true;
+
+    private final Map<String, List<Map<String, Object>>> m_answers =
+        new HashMap<String, List<Map<String, Object>>>();
+
+    //~ Methods ----------------------------------------------------------------
+
+    /**
+     * Records a tagged record as the answer to a command line, e.g.
+     * {@code record("changes -m 1 //depot/a/...", "change", "12")}.
+     */
+    RecordedServer record(
+            String    commandLine,
+            Object... fields)
+    {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            result.put((String) fields[i], fields[i + 1]);
+        }
+
+        List<Map<String, Object>> answer = m_answers.get(commandLine);
+
+        if (answer == null) {
+            answer = new ArrayList<Map<String, Object>>();
+            m_answers.put(commandLine, answer);
+        }
+
+        answer.add(result);
+
+        return this;
+    }
+
+    /**
+     * Records a message as the answer to a command line, with the
+     * severity of its code (1 info, 2 warning, 3 failed).
+     */
+    RecordedServer message(
+            String commandLine,
+            int    severity,
+            String text)
+    {
+        return record(commandLine, "code0", String.valueOf(severity << 28),
+            "fmt0", text);
+    }
+
+    IOptionsServer server()
+    {
+        return (IOptionsServer) Proxy.newProxyInstance(
+            IOptionsServer.class.getClassLoader(),
+            new Class<?>[] {IOptionsServer.class}, this);
+    }
+
+    @Override public Object invoke(
+            Object   proxy,
+            Method   method,
+            Object[] args)
+    {
+        String name = method.getName();
+
+        if ("execMapCmd".equals(name)) {
+            StringBuilder commandLine = new StringBuilder((String) args[0]);
+
+            for (String arg : (String[]) args[1]) {
+                commandLine.append(' ')
+                           .append(arg);
+            }
+
+            synchronized (this) {
+                m_calls.add(commandLine.toString());
+            }
+
+            List<Map<String, Object>> answer = m_answers.get(
+                    commandLine.toString());
+
+            if (answer == null) {
+                answer = new ArrayList<Map<String, Object>>();
+            }
+
+            @SuppressWarnings("unchecked")
+            Map<String, Object>[] records = (Map<String, Object>[])
+                new Map<?, ?>[answer.size()];
+
+            return answer.toArray(records);
+        }
+        else if ("getErrorOrInfoStr".equals(name)) {
+            return ((Map<?, ?>) args[0]).get("fmt0");
+        }
+        else if ("getClient".equals(name)) {
+            m_clients.add((String) args[0]);
+        }
+        else if ("isConnected".equals(name)) {
+            return m_connected;
+        }
+        else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        }
+        else if ("equals".equals(name)) {
+            return proxy == args[0];
+        }
+
+        return method.getReturnType() == boolean.class ? Boolean.FALSE
+                                                       : null;
+    }
+}
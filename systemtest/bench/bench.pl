@@ -0,0 +1,477 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# bench.pl -
+#
+# Scale benchmark of the driver's hot paths on a synthetic depot (see
+# SyntheticDepot.pm): a Standard Sync checkout from a client template, a
+# Smart Sync over a workspace with edited and missing files, a second Smart
+# Sync of an unchanged workspace through its fingerprint, a changelog of
+# every change, a sentry check of the view paths, the agent preflight
+# mapping of uploaded files and unshelving of shelved changes, and the client
+# preflight delta collection.  Each scenario runs --runs times, each time in
+# a new process; the median wall time, the p4 processes spawned, the
+# Commander requests and the peak memory of the driver process (VmHWM,
+# Linux only) are printed and can be written to a baseline file, and
+# compared with an earlier one.
+#
+# By default the fake p4 client answers from the depot (handlers/depot.pl).
+# With --p4d the commands go to the server of P4PORT (P4USER, P4PASSWD),
+# which must be empty or hold the same depot; the real p4 client found on
+# the PATH runs them and is counted like the fake one.
+#
+#     perl systemtest/bench/bench.pl [--files 10000] [--changes 500]
+#         [--shelves 10] [--shelf-files 50] [--view-lines 20] [--size 512]
+#         [--runs 3] [--scenarios checkout,smartsync,...] [--p4d]
+#         [--work dir] [--config name=value ...]
+#         [--baseline file] [--compare file] [--tolerance 20]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use Cwd;
+use File::Find;
+use File::Path;
+use File::Spec;
+use File::Temp;
+use Getopt::Long;
+use POSIX;
+use BenchHarness;
+use SyntheticDepot;
+
+my %scale   = ();
+my %options = ( runs => 3, tolerance => 20, scenarios => "", config => [] );
+GetOptions(
+    "files=i"       => \$scale{files},
+    "changes=i"     => \$scale{changes},
+    "shelves=i"     => \$scale{shelves},
+    "shelf-files=i" => \$scale{shelfFiles},
+    "view-lines=i"  => \$scale{viewLines},
+    "size=i"        => \$scale{size},
+    "runs=i"        => \$options{runs},
+    "scenarios=s"   => \$options{scenarios},
+    "p4d"           => \$options{p4d},
+    "work=s"        => \$options{work},
+    "config=s"      => $options{config},
+    "baseline=s"    => \$options{baseline},
+    "compare=s"     => \$options{compare},
+    "tolerance=f"   => \$options{tolerance},
+) or die "Usage: see the comment at the top of $0\n";
+
+my $depot = SyntheticDepot->new(%scale);
+$ENV{BENCH_DEPOT} = $depot->toString();
+
+#------------------------------------------------------------------------------
+# Work directory, server and driver
+#------------------------------------------------------------------------------
+
+# A real server keeps bench-dev rooted where it was populated
+my $tempDir = $options{p4d} ? undef : File::Temp->newdir( "bench_XXXXX", TMPDIR => 1 );
+my $work    = $options{work} || ( $tempDir ? "$tempDir" : File::Spec->catdir( File::Spec->tmpdir(), "ecscm-bench" ) );
+$work = File::Spec->rel2abs($work);
+mkpath( [ "$work/state", "$work/dev" ] );
+$ENV{BENCH_STATE}    = "$work/state";
+$ENV{BENCH_DEV_ROOT} = "$work/dev";
+$ENV{COMMANDER_JOBSTEPID} = 100;
+
+my $server = "fake";
+if ( $options{p4d} ) {
+    die "--p4d needs P4PORT (and P4USER, P4PASSWD) set\n" if ( !$ENV{P4PORT} );
+    my ($real) = grep { -x $_ && !-d $_ }
+        map { File::Spec->catfile( $_, $^O eq "MSWin32" ? "p4.exe" : "p4" ) } File::Spec->path();
+    die "--p4d needs the p4 client on the PATH\n" if ( !$real );
+    $ENV{FAKE_P4_REAL} = $real;
+    $server = "p4d $ENV{P4PORT}";
+    %BenchHarness::configRow = ( P4PORT => $ENV{P4PORT}, P4USER => $ENV{P4USER} || "", P4PASSWD => $ENV{P4PASSWD} || "" );
+}
+else {
+    %BenchHarness::configRow = ( P4PORT => "fake:1666", P4USER => "bench" );
+}
+foreach my $setting ( @{ $options{config} } ) {
+    my ( $name, $value ) = split( /=/, $setting, 2 );
+    $BenchHarness::configRow{$name} = defined $value ? $value : "";
+}
+
+my $driver = BenchHarness::newDriver("depot.pl");
+$ElectricCommander::properties{"/myResource/resourceName"} = "bench-agent";
+
+# Runs a p4 command for the setup of a scenario, without counting it, and
+# returns its output; dies when it fails unless $ignoreError is set
+sub p4 {
+    my ( $args, $input, $ignoreError ) = @_;
+    local $ENV{FAKE_P4_LOG} = "";
+    my $inputFile = File::Temp->new( TEMPLATE => "input_XXXXX", TMPDIR => 1 );
+    print $inputFile $input if ( defined $input );
+    close($inputFile);
+    my $pid = open( my $fh, "-|" );
+    die "Can't fork: $!" if ( !defined $pid );
+    if ( !$pid ) {
+        open( STDIN,  "<",  "$inputFile" ) or POSIX::_exit(126);
+        open( STDERR, ">&", \*STDOUT )     or POSIX::_exit(126);
+        exec( $^X, "$BenchHarness::benchDir/bin/p4", @$args ) or POSIX::_exit(127);
+    }
+    my $out = do { local $/; <$fh> };
+    close($fh);
+    die "p4 @$args failed:\n$out" if ( $? && !$ignoreError );
+    return $out;
+}
+
+if ( $options{p4d} ) {
+    print "Populating $server with the depot $ENV{BENCH_DEPOT}\n";
+    $depot->populate( \&p4, "$work/dev" ) or print "The server already holds the depot\n";
+}
+else {
+    foreach my $change ( $depot->shelfChanges() ) {
+        $depot->writeFile( "$work/dev", $_, $change ) foreach ( $depot->shelfFiles($change) );
+    }
+}
+
+#------------------------------------------------------------------------------
+# Scenarios
+#
+#       setup prepares a run outside of the measurement, run is measured and
+#       check returns what is wrong with its result, if anything.  The
+#       workspace of the checkout (client bench-template-bench-agent, at
+#       $work/ws) is the base of the scenarios after it.
+#------------------------------------------------------------------------------
+my $wsClient = "bench-template-bench-agent";
+my %files    = ();
+
+sub countFiles {
+    my ($root) = @_;
+    my $count = 0;
+    find( { no_chdir => 1, wanted => sub { $count++ if ( -f $_ ) } }, $root ) if ( -d $root );
+    return $count;
+}
+
+sub resetClient {
+    my ($client) = @_;
+    p4( [ "-c", $client, "revert", "-k", "//$client/..." ], undef, 1 );
+    p4( [ "client", "-d", $client ], undef, 1 );
+}
+
+my $checkoutOpts = sub {
+    return { template => "bench-template", standardSync => 1, retainTemplateClient => 1, dest => "$work/ws", debug => 0 };
+};
+
+my $fingerprintOpts = sub {
+    return { template => "bench-template", smartSync => 1, smartSyncFingerprint => 1, dest => "$work/fp", debug => 0 };
+};
+
+# Standard Sync of the whole template view into an empty directory
+my @scenarios = (
+    [   "checkout",
+        {   setup => sub {
+                resetClient($wsClient);
+                rmtree("$work/ws");
+            },
+            run   => sub { $driver->checkoutCode( $checkoutOpts->() ); },
+            check => sub {
+                my $count = countFiles("$work/ws");
+                return "$count files checked out, expected $depot->{files}" if ( $count != $depot->{files} );
+                my ($synced) = ( BenchHarness::property("/myJob/p4SyncProgress") || "" ) =~ /^files=(\d+)$/m;
+                return ( $synced || 0 ) == $depot->{files} ? "" : "p4SyncProgress reports " . ( $synced || 0 ) . " files";
+            },
+        }
+    ],
+
+    # Smart Sync over a copy of the workspace with one file in a hundred
+    # edited and one missing
+    [   "smartsync",
+        {   setup => sub {
+                rmtree("$work/smart");
+                resetClient("$wsClient-$ENV{COMMANDER_JOBSTEPID}");
+                find( { no_chdir => 1, wanted => sub {
+                            ( my $to = $_ ) =~ s{^\Q$work\E/ws}{$work/smart};
+                            if ( -d $_ ) { mkpath($to); return; }
+                            my $i = $depot->fileNumber($_);
+                            return if ( defined $i && $i % 100 == 50 );
+                            open( my $fh, ">", $to ) or die "Can't write $to: $!";
+                            print $fh BenchHarness::readFile($_) . ( defined $i && $i % 100 == 0 ? "edited\n" : "" );
+                            close($fh);
+                        } }, "$work/ws" );
+            },
+            run => sub {
+                $driver->checkoutCode( { template => "bench-template", smartSync => 1, dest => "$work/smart", debug => 0 } );
+            },
+            check => sub {
+                my $wrong = 0;
+                for ( my $i = 0; $i < $depot->{files}; $i += 50 ) {
+                    my $path = "$work/smart/" . $depot->relativePath($i);
+                    $wrong++ if ( !-e $path || BenchHarness::readFile($path) ne $depot->content($i) );
+                }
+                return $wrong ? "$wrong edited or missing files not restored" : "";
+            },
+        }
+    ],
+
+    # Smart Sync with the workspace fingerprint in two job steps: the second
+    # one, under another client name, finds the workspace unchanged and
+    # skips the diff
+    [   "fingerprint",
+        {   setup => sub {
+                rmtree("$work/fp");
+                find( { no_chdir => 1, wanted => sub {
+                            ( my $to = $_ ) =~ s{^\Q$work\E/ws}{$work/fp};
+                            if ( -d $_ ) { mkpath($to); return; }
+                            open( my $fh, ">", $to ) or die "Can't write $to: $!";
+                            print $fh BenchHarness::readFile($_);
+                            close($fh);
+                        } }, "$work/ws" );
+                local $ENV{COMMANDER_JOBSTEPID} = 200;
+                resetClient("$wsClient-200");
+                BenchHarness::measure( sub { $driver->checkoutCode( $fingerprintOpts->() ); } );
+                delete $driver->{p4Metrics};
+                delete $driver->{p4MetricsOrder};
+                $ENV{COMMANDER_JOBSTEPID} = 201;
+                resetClient("$wsClient-201");
+            },
+            run   => sub { $driver->checkoutCode( $fingerprintOpts->() ); },
+            check => sub {
+                $ENV{COMMANDER_JOBSTEPID} = 100;
+                return $driver->{p4Metrics}{repair} ? "the second Smart Sync ran the full diff" : "";
+            },
+        }
+    ],
+
+    # Changelog of every change of the workspace
+    [   "changelog",
+        {   setup => sub { unlink("$work/updates"); },
+            run   => sub {
+                my $opts = { temp_client => $wsClient, generateChangelog => 1, updatesFile => "$work/updates", debug => 0 };
+                $driver->setupP4($opts);
+                $files{changelog} = $driver->generateChangelog( $opts, "Perforce-bench", 1, $depot->head() );
+            },
+            check => sub {
+                my $count = () = BenchHarness::readFile("$work/updates") =~ /^Change \d+/mg;
+                return $count == $depot->head() ? "" : "$count changes in the updates file, expected " . $depot->head();
+            },
+        }
+    ],
+
+    # Sentry check of a schedule on the view paths
+    [   "scmtag",
+        {   setup => sub { },
+            run   => sub {
+                my $view = join( "\n", map { ( my $to = $_ ) =~ s{^//depot/}{//bench/}; "$_ $to" } $depot->viewPaths() );
+                ( $files{scmtag} ) = $driver->getSCMTag( { P4Paths => $view, debug => 0 } );
+            },
+            check => sub {
+                my $change = $files{scmtag} || "none";
+                return $change eq $depot->head() ? "" : "the schedule is at change $change, expected " . $depot->head();
+            },
+        }
+    ],
+
+    # Agent preflight: maps the uploaded files of every shelf, a tenth more
+    # new files and as many deleted files onto the workspace
+    [   "apf",
+        {   setup => sub {
+                rmtree("$work/apf");
+                mkpath("$work/apf/ecpreflight_data");
+                chdir("$work/apf");
+                my ( $deltas, $deletes ) = ( "", "" );
+                my @files = map { my $c = $_; map { [ $_, $c ] } $depot->shelfFiles($c) } $depot->shelfChanges();
+                foreach my $file (@files) {
+                    my ( $i, $change ) = @$file;
+                    ( my $name = $depot->depotFile($i) ) =~ s{^//}{};
+                    $deltas .= "//$name\n";
+                    $depot->writeFile( "$work/apf/ecpreflight_files/depot/bench", $i, $change );
+                }
+                for ( my $n = 0; $n < @files / 10; $n++ ) {
+                    my $name = "depot/bench/d" . ( $n % $depot->{viewLines} ) . "/new/n$n.c";
+                    $deltas .= "//$name\n";
+                    mkpath( "$work/apf/ecpreflight_files/" . ( $name =~ m{(.*)/} )[0] );
+                    open( my $fh, ">", "$work/apf/ecpreflight_files/$name" ) or die "Can't write $name: $!";
+                    print $fh "new file $n\n";
+                    close($fh);
+                    $deletes .= $depot->depotFile( ( $depot->{files} - 1 - $n ) ) . "\n";
+                }
+                foreach my $list ( [ "deltas", $deltas ], [ "deletes", $deletes ] ) {
+                    open( my $fh, ">", "$work/apf/ecpreflight_data/$list->[0]" ) or die "Can't write $list->[0]: $!";
+                    print $fh $list->[1];
+                    close($fh);
+                }
+                $files{apf} = ( () = $deltas =~ /\n/g ) + ( () = $deletes =~ /\n/g );
+            },
+            run => sub {
+                $driver->apf_setmapping( { permanent_client => $wsClient, dest => "$work/ws", debug => 0 } );
+            },
+            check => sub {
+                my $count = 0;
+                foreach my $list ( "deltas", "deletes" ) {
+                    $count += () = BenchHarness::readFile("$work/apf/ecpreflight_data/$list") =~ /\n/g;
+                }
+                return $count == $files{apf} ? "" : "$count files mapped, expected $files{apf}";
+            },
+        }
+    ],
+
+    # Agent preflight: unshelves every shelf into the workspace
+    [   "apf-unshelve",
+        {   setup => sub { p4( [ "-c", $wsClient, "revert", "//$wsClient/..." ], undef, 1 ); },
+            run   => sub {
+                $driver->apf_unshelve( { temp_client => $wsClient, dest => "$work/ws",
+                        shelvedChanges => join( ",", $depot->shelfChanges() ), debug => 0 } );
+            },
+            check => sub {
+                my ( $change, $wrong ) = ( ( $depot->shelfChanges() )[-1], 0 );
+                return "" if ( !defined $change );
+                foreach my $i ( $depot->shelfFiles($change) ) {
+                    $wrong++ if ( BenchHarness::readFile( "$work/ws/" . $depot->relativePath($i) ) ne $depot->content( $i, $change ) );
+                }
+                return $wrong ? "$wrong files of shelf $change not unshelved" : "";
+            },
+        }
+    ],
+
+    # Client preflight: collects the opened files of every shelf of bench-dev
+    [   "cpf",
+        {   setup => sub { chdir("$work/dev"); },
+            run   => sub {
+                $driver->cpf_copyDeltas(
+                    {   scm_client          => "bench-dev",
+                        scm_port            => $BenchHarness::configRow{P4PORT},
+                        scm_user            => $BenchHarness::configRow{P4USER},
+                        scm_template        => "",
+                        scm_stream          => "",
+                        rt_changelists      => [ $depot->shelfChanges() ],
+                        rt_syncToChangelist => $depot->head(),
+                        debug               => 0,
+                    } );
+            },
+            check => sub {
+                my $count    = scalar( @{ $driver->{cpfDeltas} || [] } );
+                my $expected = $depot->{shelves} * $depot->{shelfFiles};
+                return $count == $expected ? "" : "$count deltas collected, expected $expected";
+            },
+        }
+    ],
+);
+
+#------------------------------------------------------------------------------
+# Runs
+#------------------------------------------------------------------------------
+sub peakKb {
+    open( my $fh, "<", "/proc/self/status" ) or return 0;
+    my ($kb) = map {/^VmHWM:\s+(\d+)/ ? $1 : ()} <$fh>;
+    close($fh);
+    return $kb || 0;
+}
+
+sub median {
+    my @values = sort { $a <=> $b } @_;
+    return $values[ int( $#values / 2 ) ];
+}
+
+# Runs one scenario in a new process and returns its measures
+sub runScenario {
+    my ($scenario) = @_;
+    my $report = File::Temp->new( TEMPLATE => "report_XXXXX", TMPDIR => 1 );
+    my $pid = fork();
+    die "Can't fork: $!" if ( !defined $pid );
+    if ( !$pid ) {
+        my $result = eval {
+            chdir($work) or die "Can't chdir to $work: $!";
+            $scenario->{setup}->();
+            my $metrics = $ENV{BENCH_VERBOSE} ? do { $scenario->{run}->(); { elapsed => 0, spawns => 0, requests => 0 } }
+                                              : BenchHarness::measure( $scenario->{run} );
+            my $problem = $scenario->{check}->();
+            sprintf( "%.3f %d %d %d %s", $metrics->{elapsed}, $metrics->{spawns}, $metrics->{requests}, peakKb(), $problem );
+        };
+        open( my $fh, ">", "$report" ) or POSIX::_exit(1);
+        print $fh defined $result ? $result : "0 0 0 0 failed: $@";
+        close($fh);
+        POSIX::_exit(0);
+    }
+    waitpid( $pid, 0 );
+    my ( $elapsed, $spawns, $requests, $peakKb, $problem ) = split( / /, BenchHarness::readFile("$report"), 5 );
+    chomp($problem) if ( defined $problem );
+    return { elapsed => $elapsed, spawns => $spawns, requests => $requests, peakKb => $peakKb, problem => $problem || "" };
+}
+
+my %selected = map { $_ => 1 } split( /,/, $options{scenarios} );
+my $here     = cwd();
+my @results  = ();
+my $status   = 0;
+
+print "depot $ENV{BENCH_DEPOT}\nserver $server\n";
+foreach my $entry (@scenarios) {
+    my ( $name, $scenario ) = @$entry;
+
+    # The later scenarios start from the workspace of the checkout
+    if ( %selected && !$selected{$name} ) {
+        if ( $name eq "checkout" && !-d "$work/ws" ) {
+            runScenario($scenario);
+        }
+        next;
+    }
+    my @runs = map { runScenario($scenario) } ( 1 .. $options{runs} );
+    chdir($here);
+    my %result = ( name => $name );
+    foreach my $measure (qw(elapsed spawns requests peakKb)) {
+        $result{$measure} = median( map { $_->{$measure} } @runs );
+    }
+    push( @results, \%result );
+    printf( "%-13s elapsed=%.3fs p4 spawns=%d requests=%d peak memory=%dKB\n",
+        $name, $result{elapsed}, $result{spawns}, $result{requests}, $result{peakKb} );
+    foreach my $problem ( grep {$_} map { $_->{problem} } @runs ) {
+        print "MISMATCH: $name: $problem\n";
+        $status = 1;
+        last;
+    }
+}
+
+#------------------------------------------------------------------------------
+# Baselines
+#------------------------------------------------------------------------------
+sub formatResult {
+    my ($result) = @_;
+    return sprintf( "%s elapsed=%.3f spawns=%d requests=%d peakKb=%d\n",
+        $result->{name}, $result->{elapsed}, $result->{spawns}, $result->{requests}, $result->{peakKb} );
+}
+
+if ( $options{baseline} ) {
+    open( my $fh, ">", $options{baseline} ) or die "Can't write $options{baseline}: $!";
+    print $fh "# ECSCM-Perforce scale benchmark, median of $options{runs} runs\n"
+        . "depot $ENV{BENCH_DEPOT}\nserver $server\n";
+    print $fh formatResult($_) foreach (@results);
+    close($fh);
+    print "Baseline written to $options{baseline}\n";
+}
+
+# Wall time and memory may grow by the tolerance (and wall time by at least
+# 50ms), the number of p4 processes and Commander requests not at all
+if ( $options{compare} ) {
+    my %old = ();
+    foreach my $line ( split( /\n/, BenchHarness::readFile( $options{compare} ) ) ) {
+        next if ( $line =~ /^#/ );
+        my ( $name, @fields ) = split( / /, $line );
+        $old{$name} = { map { split( /=/, $_, 2 ) } @fields } if ( @fields && $fields[0] =~ /=/ );
+        $old{".$name"} = join( " ", @fields ) if ( $name eq "depot" || $name eq "server" );
+    }
+    print "Compared with $options{compare}:\n";
+    print "  (taken with depot $old{'.depot'})\n" if ( ( $old{".depot"} || "" ) ne $ENV{BENCH_DEPOT} );
+    print "  (taken on server $old{'.server'})\n" if ( ( $old{".server"} || "" ) ne $server );
+    my $factor = 1 + $options{tolerance} / 100;
+    foreach my $result (@results) {
+        my $before = $old{ $result->{name} } or next;
+        my @regressions = ();
+        push( @regressions, "elapsed" )
+            if ( $result->{elapsed} > $before->{elapsed} * $factor && $result->{elapsed} - $before->{elapsed} > 0.05 );
+        push( @regressions, "peakKb" ) if ( $result->{peakKb} > $before->{peakKb} * $factor );
+        push( @regressions, grep { $result->{$_} > $before->{$_} } qw(spawns requests) );
+        printf( "  %-13s elapsed %.3fs -> %.3fs  spawns %d -> %d  requests %d -> %d  peak memory %dKB -> %dKB%s\n",
+            $result->{name}, $before->{elapsed}, $result->{elapsed}, $before->{spawns}, $result->{spawns},
+            $before->{requests}, $result->{requests}, $before->{peakKb}, $result->{peakKb},
+            @regressions ? "  REGRESSION: @regressions" : "" );
+        $status = 1 if (@regressions);
+    }
+}
+
+print "All scenarios checked\n" if ( !$status );
+exit($status);
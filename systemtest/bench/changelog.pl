@@ -0,0 +1,92 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# changelog.pl -
+#
+# Benchmarks generateChangelog against the fake p4 client: runs it once
+# describing every change separately, once with batched describes and once
+# with the batches on the stand-in Perforce engine, checks that the
+# changelog, the updates file and the p4Updates property are byte-for-byte
+# identical, and prints wall time, p4 process and engine command counts.
+# Then checks that a change "p4 describe" does not answer for is left out
+# of the changelog with a warning.
+#
+#     perl systemtest/bench/changelog.pl [changes] [batchSize]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Temp;
+use BenchHarness;
+
+my $changes   = shift || 2000;
+my $batchSize = shift || 100;
+
+$ENV{BENCH_CHANGES} = $changes;
+my $driver = BenchHarness::newDriver("changelog.pl");
+BenchHarness::startEngine();
+
+my %results = ();
+foreach my $mode ( [ "per-change", 1 ], [ "batched", $batchSize ], [ "engine", $batchSize, "bench" ] ) {
+    my ( $name, $size, $engine ) = @$mode;
+    my $updatesFile = File::Temp->new( TEMPLATE => "updates_XXXXX", TMPDIR => 1 );
+    my $opts = {
+        P4PORT             => "fake:1666",
+        temp_client        => "bench-client",
+        generateChangelog  => 1,
+        updatesFile        => "$updatesFile",
+        changelogBatchSize => $size,
+        ( $engine ? ( engineClasspath => $engine ) : () ),
+    };
+    $driver->setupP4($opts);
+
+    my $changelog;
+    my $metrics = BenchHarness::measure(
+        sub {
+            $changelog = $driver->generateChangelog( $opts, "Perforce-bench", 1, $changes );
+        } );
+
+    $results{$name} = {
+        changelog => $changelog,
+        updates   => BenchHarness::readFile("$updatesFile"),
+        property  => BenchHarness::property("/myJob/p4Updates"),
+    };
+    printf( "%-10s changes=%d batch=%d elapsed=%.3fs p4 spawns=%d engine commands=%d\n",
+        $name, $changes, $size, $metrics->{elapsed}, $metrics->{spawns}, $metrics->{engine} );
+}
+
+my $status = 0;
+foreach my $name (qw(batched engine)) {
+    foreach my $artifact (qw(changelog updates property)) {
+        if ( $results{"per-change"}{$artifact} ne $results{$name}{$artifact} ) {
+            print "MISMATCH: $artifact differs between per-change and $name runs\n";
+            $status = 1;
+        }
+    }
+}
+# Change 2 is not described
+{
+    local $ENV{BENCH_UNDESCRIBED} = 2;
+    my $opts = { P4PORT => "fake:1666", temp_client => "bench-client", generateChangelog => 1, changelogBatchSize => $batchSize };
+    $driver->setupP4($opts);
+    my ( $changelog, $log ) = ( "", "" );
+    open( my $out, ">", \$log ) or die "Can't capture the log: $!";
+    my $stdout = select($out);
+    BenchHarness::measure( sub { $changelog = $driver->generateChangelog( $opts, "Perforce-bench", 1, $changes ) } );
+    select($stdout);
+    close($out);
+    if ( $log !~ /Could not describe change 2\b/ ) {
+        print "MISMATCH: no warning for the undescribed change 2\n";
+        $status = 1;
+    }
+    if ( $changelog =~ /^Change 2 /m || $changelog !~ /^Change 3 /m ) {
+        print "MISMATCH: the changelog without change 2 is wrong\n";
+        $status = 1;
+    }
+}
+print "Changelog output identical\n" if ( !$status );
+exit($status);
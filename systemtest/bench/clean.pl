@@ -0,0 +1,100 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# clean.pl -
+#
+# Benchmarks the Clean Local Workspace modes against the fake p4 client:
+# dirties a synced workspace (edited, missing and untracked files), then
+# wipes it and syncs every file, or verifies it with p4 clean and with the
+# p4 diff fallback of older servers.  Checks that every mode leaves the same
+# files behind and prints wall time, bytes transferred and p4 process counts.
+#
+#     perl systemtest/bench/clean.pl [files] [fileSize] [dirtyPercent]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Find;
+use File::Path;
+use File::Temp;
+use BenchHarness;
+
+my $files = shift || 2000;
+my $size  = shift || 64 * 1024;
+my $dirty = shift || 2;
+
+$ENV{BENCH_FILES} = $files;
+$ENV{BENCH_SIZE}  = $size;
+do "$FindBin::Bin/handlers/clean.pl";
+
+sub populate {
+    my ($root) = @_;
+    my $i = 0;
+    foreach my $name ( depot_files() ) {
+        restore($name);
+        my $path = "$root/$name";
+        if ( $i % 100 < $dirty ) {
+            # Edited, deleted or build output next to it
+            if    ( $i % 3 == 0 ) { open( my $fh, ">>", $path ); print $fh "local edit\n"; close($fh); }
+            elsif ( $i % 3 == 1 ) { unlink($path); }
+            else                  { open( my $fh, ">", "$path.o" ); print $fh "object\n"; close($fh); }
+        }
+        $i++;
+    }
+}
+
+sub remaining {
+    my ($root) = @_;
+    my @left = ();
+    find( { no_chdir => 1, wanted => sub {
+                push( @left, substr( $_, length($root) ) . "=" . ( -s $_ ) ) if ( -f $_ ) } }, $root );
+    return join( "\n", sort @left );
+}
+
+my %left   = ();
+my $driver = BenchHarness::newDriver("clean.pl");
+foreach my $mode ( "wipe", "verify", "verify-2013.3" ) {
+    my $work = File::Temp->newdir( "clean_XXXXX", TMPDIR => 1 );
+    my $root = "$work/ws";
+    $ENV{BENCH_ROOT}   = $root;
+    $ENV{BENCH_SERVER} = $mode =~ /-(.*)$/ ? $1 : "2014.1";
+    populate($root);
+
+    my $opts = { P4PORT => "fake-$ENV{BENCH_SERVER}:1666", temp_client => "bench-ws", dest => $root, debug => 0 };
+    my ( $p4Command ) = $driver->setupP4($opts);
+    chdir("$work");
+    my $metrics = BenchHarness::measure(
+        sub {
+            if ( $mode eq "wipe" ) {
+                rmtree( $root, 0, { keep_root => 1 } );
+                $driver->RunCommand( "$p4Command -c bench-ws sync -f //bench-ws/...\@1", { LogResult => 0 } );
+            }
+            else {
+                $driver->verifiedClean( $opts, 1 );
+            }
+        }
+    );
+    $left{$mode} = remaining($root);
+    my $clean       = $driver->{p4Metrics}{clean} || {};
+    my $avoided     = $clean->{bytesAvoided};
+    my $transferred = $mode eq "wipe" ? $files * $size : $clean->{bytesCopied};
+    printf( "%-14s files=%d elapsed=%.3fs bytes transferred=%d bytes saved=%d p4 spawns=%d\n",
+        $mode, $files, $metrics->{elapsed}, $transferred || 0, $avoided || 0, $metrics->{spawns} );
+    delete $driver->{p4Metrics};
+    delete $driver->{p4MetricsOrder};
+    chdir("/");
+}
+
+my $status = 0;
+foreach my $mode ( "verify", "verify-2013.3" ) {
+    if ( $left{wipe} ne $left{$mode} ) {
+        print "MISMATCH: $mode left different files behind than wipe\n";
+        $status = 1;
+    }
+}
+print "Workspaces identical\n" if ( !$status );
+exit($status);
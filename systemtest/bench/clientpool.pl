@@ -0,0 +1,130 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# clientpool.pl -
+#
+# Checks the client pool of Standard Sync checkouts: a step leases a pooled
+# client and its dest becomes a link to the pooled workspace; a second
+# checkout step of the same job gets a client of its own, and so does
+# another job while the first one still builds in its workspace after its
+# checkout step is done; a client leased again is marked for cleaning; a
+# dest with files in it, or one that can't be linked, leaves the checkout
+# on its temporary client and the pool untouched.  Needs no p4 server.
+#
+#     perl systemtest/bench/clientpool.pl
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Path;
+use File::Spec;
+use File::Temp;
+
+# Lets a case make symlink fail, as it does on Windows
+my $noSymlinks = 0;
+BEGIN {
+    *CORE::GLOBAL::symlink = sub { return $noSymlinks ? 0 : CORE::symlink( $_[0], $_[1] ); };
+}
+
+use BenchHarness;
+
+my $driver = BenchHarness::newDriver("depot.pl");
+my $work   = File::Temp->newdir( "clientpool_XXXXX", TMPDIR => 1 );
+my $status = 0;
+
+sub problem {
+    my ( $case, $problem ) = @_;
+    print "MISMATCH: $case: $problem\n";
+    $status = 1;
+}
+
+sub poolIndex {
+    return -e "$work/pool/pool.index" ? BenchHarness::readFile("$work/pool/pool.index") : "";
+}
+
+# Runs leasePooledClient for job step $jobStepId of job $jobId with dest
+# $dest; $prepare sets dest up first.  Returns the options and the result.
+sub lease {
+    my ( $jobId, $jobStepId, $dest, $prepare ) = @_;
+    mkpath($dest);
+    $prepare->($dest) if ($prepare);
+    local $ENV{COMMANDER_JOBID}     = $jobId;
+    local $ENV{COMMANDER_JOBSTEPID} = $jobStepId;
+    my $opts = {
+        P4PORT          => "fake:1666",
+        P4USER          => "bench",
+        template        => "bench-template",
+        clientPool      => 1,
+        clientPoolDir   => "$work/pool",
+        temporaryClient => 1,
+        temp_client     => "ecclient-$jobStepId",
+        dest            => $dest,
+    };
+    my $leased;
+    BenchHarness::measure( sub { $leased = $driver->leasePooledClient( $opts, "bench-resource", "" ); } );
+    return ( $opts, $leased );
+}
+
+# The first step leases a new client and links dest to its workspace
+my ($first) = lease( 1, 301, "$work/step301" );
+if ( !$first->{pooledClient} ) {
+    problem( "leased", "no pooled client" );
+}
+else {
+    problem( "leased", "dest is not linked to $first->{dest}" )
+        if ( ( readlink("$work/step301") || "" ) ne $first->{dest} );
+    problem( "leased", "the pool index doesn't name job step 301" )
+        if ( poolIndex() !~ /^\Q$first->{temp_client}\E\t\w+\t301\t\d+\t1$/m );
+}
+
+# A second checkout step of the same job, while the job runs
+$ElectricCommander::jobStatus{1} = "running";
+my ($second) = lease( 1, 302, "$work/step302" );
+problem( "same job", "no pooled client" ) if ( !$second->{pooledClient} );
+problem( "same job", "job steps 301 and 302 share $second->{temp_client}" )
+    if ( $second->{pooledClient} && $second->{temp_client} eq ( $first->{temp_client} || "" ) );
+
+# The checkout step of job 1 is done, but its build steps still use the
+# workspace: another job must not take the client
+my ($other) = lease( 2, 401, "$work/step401" );
+problem( "job running", "job 2 took $other->{temp_client} of running job 1" )
+    if ( $other->{pooledClient} && $other->{temp_client} eq ( $first->{temp_client} || "" ) );
+
+# Once job 1 is done its clients are free again
+delete $ElectricCommander::jobStatus{1};
+$ElectricCommander::jobStatus{2} = "running";
+my ($third) = lease( 3, 501, "$work/step501" );
+problem( "released", "got $third->{temp_client}, expected $first->{temp_client}" )
+    if ( ( $third->{temp_client} || "" ) ne ( $first->{temp_client} || "" ) );
+problem( "released", "the workspace of an earlier job is not cleaned" ) if ( !$third->{pooledClientReused} );
+problem( "leased", "a new workspace is cleaned" ) if ( $first->{pooledClientReused} );
+
+# A dest with files in it can't be replaced by the link
+my $index = poolIndex();
+my ( $busy, $busyLeased ) = lease(
+    4, 601,
+    "$work/step601",
+    sub {
+        open( my $fh, ">", File::Spec->catfile( $_[0], "keep.txt" ) ) or die "Can't write keep.txt: $!";
+        close($fh);
+    } );
+problem( "dest not empty", "leased $busy->{temp_client}" ) if ( $busyLeased || $busy->{pooledClient} );
+problem( "dest not empty", "dest moved to $busy->{dest}" ) if ( $busy->{dest} ne "$work/step601" );
+problem( "dest not empty", "the files in dest are gone" ) if ( !-e "$work/step601/keep.txt" );
+problem( "dest not empty", "the pool index changed" ) if ( poolIndex() ne $index );
+
+# Without symlinks the checkout keeps its temporary client
+$noSymlinks = 1;
+my ( $unlinked, $unlinkedLeased ) = lease( 5, 701, "$work/step701" );
+$noSymlinks = 0;
+problem( "no symlinks", "leased $unlinked->{temp_client}" ) if ( $unlinkedLeased || $unlinked->{pooledClient} );
+problem( "no symlinks", "dest moved to $unlinked->{dest}" ) if ( $unlinked->{dest} ne "$work/step701" );
+problem( "no symlinks", "dest is gone" ) if ( !-d "$work/step701" );
+problem( "no symlinks", "the pool index changed" ) if ( poolIndex() ne $index );
+
+print "Client pool checks passed\n" if ( !$status );
+exit($status);
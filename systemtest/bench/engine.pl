@@ -0,0 +1,92 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# engine.pl -
+#
+# Compares the Perforce engine with the p4 client on a real server: asks
+# for the latest submitted change of every directory under a depot path,
+# one query at a time and as one argument list, once with p4 processes and
+# once through the engine.  Checks that both give the same changes and
+# prints wall times.  Needs a p4d (for example the one of the docker
+# directory), the p4 client on the PATH and the engine built with
+# "gradlew engine"; without P4PORT and ENGINE_CLASSPATH it is skipped.
+#
+#     P4PORT=localhost:1666 P4USER=admin ENGINE_CLASSPATH='build/engine/*' \
+#         perl systemtest/bench/engine.pl [depotPath] [repeat]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use Time::HiRes qw(time);
+use BenchHarness;
+
+if ( !$ENV{P4PORT} || !$ENV{ENGINE_CLASSPATH} ) {
+    print "Skipped: set P4PORT (and P4USER, P4PASSWD) and ENGINE_CLASSPATH\n";
+    exit(0);
+}
+my $depotPath = shift || "//depot/*";
+my $repeat    = shift || 5;
+
+# The real p4, not the fake one of the other benchmarks
+my $path   = $ENV{PATH};
+my $driver = BenchHarness::newDriver("sentry.pl");
+$ENV{PATH} = $path;
+
+my $cli    = { P4PORT => $ENV{P4PORT}, P4USER => $ENV{P4USER}, P4PASSWD => $ENV{P4PASSWD} };
+my $engine = { %$cli, engineClasspath => $ENV{ENGINE_CLASSPATH} };
+my ($p4Command) = $driver->setupP4($cli);
+my $p4Opts = { IgnoreError => 1 };
+
+my @paths = map {"$_/..."} ( $driver->RunCommand( "$p4Command -ztag dirs \"$depotPath\"", $p4Opts ) || "" ) =~ /^\.\.\. dir (.*)$/mg;
+die "No directories under $depotPath\n" if ( !@paths );
+
+sub latest {
+    my ( $opts, $batched ) = @_;
+    my @changes = ();
+    if ($batched) {
+        @changes = $driver->parseChangesRecords(
+            $driver->p4Tagged( $opts, $p4Command, $p4Opts, undef, "changes", [qw(-s submitted -m 1)], \@paths ) );
+    }
+    else {
+        foreach my $path (@paths) {
+            push( @changes, $driver->parseChangesRecords(
+                $driver->p4Tagged( $opts, $p4Command, $p4Opts, undef, "changes", [ qw(-s submitted -m 1), $path ] ) ) );
+        }
+    }
+    return join( ",", map {"$_->{change}\@$_->{time}"} @changes );
+}
+
+# Starts the engine and opens its first connection
+my $start = time();
+latest( $engine, 1 );
+printf( "engine start and first connection: %.3fs\n", time() - $start );
+
+my %results = ();
+foreach my $batched ( 0, 1 ) {
+    foreach my $mode ( "p4", "engine" ) {
+        my $opts = $mode eq "p4" ? $cli : $engine;
+        my $name = $mode . ( $batched ? " -x" : "" );
+        $start = time();
+        $results{$name} = latest( $opts, $batched ) for ( 1 .. $repeat );
+        printf( "%-10s paths=%d queries=%d elapsed=%.3fs\n",
+            $name, scalar(@paths), $repeat * ( $batched ? 1 : scalar(@paths) ), time() - $start );
+    }
+}
+if ( $driver->{engineFailed} ) {
+    print "FAILED: the engine was not used\n";
+    exit(1);
+}
+
+my $status = 0;
+foreach my $name ( "engine", "p4 -x", "engine -x" ) {
+    if ( $results{$name} ne $results{p4} ) {
+        print "MISMATCH: $name and p4 report different changes\n";
+        $status = 1;
+    }
+}
+print "Results identical\n" if ( !$status );
+exit($status);
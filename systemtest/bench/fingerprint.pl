@@ -0,0 +1,74 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# fingerprint.pl -
+#
+# Benchmarks the Smart Sync workspace fingerprint on a generated workspace:
+# records it, then checks that an untouched workspace matches, that new files
+# still match (and are listed for the untracked file check), and that a
+# modified, replaced or removed file or another client view forces the full
+# diff. Prints the index size and the time to record and to match.
+#
+#     perl systemtest/bench/fingerprint.pl [files]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Path;
+use File::Temp;
+use BenchHarness;
+
+my $files = shift || 20000;
+my $dest  = File::Temp->newdir( "fingerprint_XXXXX", TMPDIR => 1 );
+for ( my $i = 0; $i < $files; $i++ ) {
+    my $dir = "$dest/src/module" . ( $i % 50 ) . "/sub" . ( $i % 7 );
+    mkpath($dir) if ( !-d $dir );
+    open( my $fh, ">", "$dir/file$i.c" ) or die "Can't write $dir/file$i.c: $!";
+    print $fh "int f$i;\n";
+    close($fh);
+}
+
+my $driver = BenchHarness::newDriver("changelog.pl");
+my $opts   = { dest => "$dest", temp_client => "bench-client", P4PORT => "fake:1666" };
+my $header = "fake:1666\tmapping\t1";
+
+my $record = BenchHarness::measure( sub { $driver->writeWorkspaceFingerprint( $opts, $header, 42 ); } );
+printf( "files=%d index=%d bytes (%.1f per file) record=%.3fs\n",
+    $files, -s $driver->getFingerprintFile($opts), ( -s $driver->getFingerprintFile($opts) ) / $files, $record->{elapsed} );
+
+my $status = 0;
+sub check {
+    my ( $name, $header, $change, $expected, $newFiles ) = @_;
+    $driver->writeWorkspaceFingerprint( $opts, "fake:1666\tmapping\t1", 42 );
+    $change->();
+    my $match;
+    my $metrics = BenchHarness::measure( sub { $match = $driver->matchWorkspaceFingerprint( $opts, $header ); } );
+    my $got = $match ? "match" : "full diff";
+    printf( "%-14s %-9s elapsed=%.3fs\n", $name, $got, $metrics->{elapsed} );
+    if ( $got ne $expected || ( $match && $match->{newFileCount} != $newFiles ) ) {
+        print "MISMATCH: expected $expected\n";
+        $status = 1;
+    }
+}
+
+check( "untouched", $header, sub { }, "match", 0 );
+check( "new file", $header,
+    sub { open( my $fh, ">", "$dest/src/module3/generated.o" ) or die; close($fh); },
+    "match", 1 );
+check( "other view", "fake:1666\tother\t1", sub { }, "full diff" );
+check( "modified file", $header, sub { utime( time(), time() + 5, "$dest/src/module7/sub0/file7.c" ); }, "full diff" );
+check( "removed file", $header, sub { unlink("$dest/src/module9/sub2/file9.c"); }, "full diff" );
+check( "replaced file", $header,
+    sub {
+        rename( "$dest/src/module11/sub4/file11.c", "$dest/x" );
+        system( "cp", "-p", "$dest/x", "$dest/src/module11/sub4/file11.c" );
+    },
+    "full diff" );
+
+unlink( $driver->getFingerprintFile($opts) );
+print "Fingerprint checks passed\n" if ( !$status );
+exit($status);
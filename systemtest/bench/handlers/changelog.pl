@@ -0,0 +1,88 @@
+# -*-Perl-*-
+
+# changelog.pl -
+#
+# Fake p4 responses for generateChangelog: "changes" lists $BENCH_CHANGES
+# submitted changes spread over a handful of users, and "describe -s"
+# returns a canned description for every change number it is given, tagged
+# with -ztag.  Every tenth change has a job fixed, which only the untagged
+# description shows.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+
+my @users = qw(alice bob carol dave);
+
+sub user_for { return $users[ $_[0] % scalar(@users) ]; }
+
+sub describe_change {
+    my ($change) = @_;
+    my $user = user_for($change);
+    my $out  = "Change $change by $user\@$user-ws on 2026/01/02 03:04:05\n\n"
+        . "\tChange $change by the benchmark\n"
+        . "\tsecond line of the description\n\n";
+    if ( $change % 10 == 0 ) {
+        $out .= "Jobs fixed ...\n\njob$change on 2026/01/02 by $user *closed*\n\n\tThe job of $change\n\n";
+    }
+    $out .= "Affected files ...\n\n";
+    foreach my $i ( 1 .. 3 ) {
+        $out .= "... //depot/main/src/module$i/file$change.c#" . ( $change % 7 + 1 ) . " edit\n";
+    }
+    return "$out\n";
+}
+
+# 2026/01/02 03:04:05 at the -0800 of the server
+sub tag_change {
+    my ($change) = @_;
+    my $user = user_for($change);
+    my $out  = "... change $change\n... user $user\n... client $user-ws\n... time 1767351845\n"
+        . "... desc Change $change by the benchmark\nsecond line of the description\n\n"
+        . "... status submitted\n... changeType public\n... path //depot/main/src/...\n";
+    if ( $change % 10 == 0 ) {
+        $out .= "... job0 job$change\n... jobstat0 closed\n";
+    }
+    foreach my $i ( 1 .. 3 ) {
+        my $n = $i - 1;
+        $out .= "... depotFile$n //depot/main/src/module$i/file$change.c\n... action$n edit\n"
+            . "... type$n text\n... rev$n " . ( $change % 7 + 1 ) . "\n";
+    }
+    return "$out\n";
+}
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+    my $count = $ENV{BENCH_CHANGES} || 2000;
+
+    if ( $command eq "changes" ) {
+        my $out = "";
+        for ( my $change = $count; $change >= 1; $change-- ) {
+            my $user = user_for($change);
+            $out .= "... change $change\n"
+                . "... time 1767323045\n"
+                . "... user $user\n"
+                . "... client $user-ws\n"
+                . "... status submitted\n"
+                . "... changeType public\n"
+                . "... desc Change $change by the benchmark\n\n";
+        }
+        return ($out);
+    }
+    elsif ( $command eq "describe" ) {
+        my $out = "";
+        foreach my $change ( grep {/^\d+$/} @args ) {
+            next if ( $ENV{BENCH_UNDESCRIBED} && $change == $ENV{BENCH_UNDESCRIBED} );
+            $out .= $globals->{ztag} ? tag_change($change) : describe_change($change);
+        }
+        return ($out);
+    }
+    elsif ( $command eq "info" ) {
+        return ( "Server version: P4D/LINUX26X86_64/2014.1/807760 (2014/03/26)\n"
+                . "Server date: 2026/01/02 03:04:05 -0800 PST\n" );
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
@@ -0,0 +1,117 @@
+# -*-Perl-*-
+
+# clean.pl -
+#
+# Fake p4 responses for the workspace clean modes.  The depot holds
+# $BENCH_FILES files //depot/src/d<n>/file<i>.c of $BENCH_SIZE bytes, mapped
+# to //bench-ws/... under $BENCH_ROOT.  "clean" and "sync -f" really restore
+# the files, "diff -se/-sd" compare them, and the server reports version
+# $BENCH_SERVER (2014.1 by default).
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use File::Basename;
+use File::Find;
+use File::Path;
+
+sub depot_files {
+    return map { "src/d" . ( $_ % 20 ) . "/file$_.c" } 0 .. ( $ENV{BENCH_FILES} - 1 );
+}
+sub content { return "$_[0]\n" . ( "x" x $ENV{BENCH_SIZE} ); }
+
+sub same_content {
+    my ($name) = @_;
+    my $path = "$ENV{BENCH_ROOT}/$name";
+    return 0 if ( !-f $path || -s _ != length( content($name) ) );
+    open( my $fh, "<", $path ) or return 0;
+    local $/;
+    my $text = <$fh>;
+    close($fh);
+    return $text eq content($name);
+}
+
+sub restore {
+    my ($name) = @_;
+    mkpath( dirname("$ENV{BENCH_ROOT}/$name") );
+    open( my $fh, ">", "$ENV{BENCH_ROOT}/$name" ) or die "Can't write $name: $!";
+    print $fh content($name);
+    close($fh);
+}
+
+# Workspace relative name of a local, client or depot path
+sub relative {
+    my ($file) = @_;
+    $file =~ s/[@#].*$//;
+    $file =~ s{^(?:\Q$ENV{BENCH_ROOT}\E|//depot|//bench-ws)/}{};
+    return $file;
+}
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+    my $size  = length( content("src/d0/file0.c") );
+    my %depot = map { $_ => 1 } depot_files();
+
+    if ( $command eq "client" && $args[0] eq "-o" ) {
+        return ( "Client: bench-ws\n\nRoot: $ENV{BENCH_ROOT}\n\nView:\n\t//depot/... //bench-ws/...\n" );
+    }
+    elsif ( $command eq "info" ) {
+        my $version = $ENV{BENCH_SERVER} || "2014.1";
+        return ( "Server version: P4D/LINUX26X86_64/$version/807760 (2014/03/26)\n"
+                . "Server date: 2026/01/02 03:04:05 -0800 PST\n" );
+    }
+    elsif ( $command eq "flush" ) {
+        return ("");
+    }
+    elsif ( $command eq "clean" ) {
+        return ( "", "fake p4: unknown command clean\n", 1 ) if ( ( $ENV{BENCH_SERVER} || "2014.1" ) lt "2014.1" );
+        my $out = "";
+        foreach my $name ( depot_files() ) {
+            next if ( same_content($name) );
+            restore($name);
+            $out .= "info: //depot/$name#1 - refreshing $ENV{BENCH_ROOT}/$name\n";
+        }
+        find( { no_chdir => 1, wanted => sub {
+                    return if ( !-f $_ || $depot{ relative($_) } );
+                    $out .= "info: //depot/" . relative($_) . " - deleted as $_\n";
+                    unlink($_);
+                } }, $ENV{BENCH_ROOT} );
+        return ( $out . "exit: 0\n" );
+    }
+    elsif ( $command eq "diff" ) {
+        my $out = "";
+        foreach my $name ( depot_files() ) {
+            my $missing = !-f "$ENV{BENCH_ROOT}/$name";
+            $out .= "$ENV{BENCH_ROOT}/$name\n"
+                if ( $args[0] eq "-sd" ? $missing : !$missing && !same_content($name) );
+        }
+        return ($out);
+    }
+    elsif ( $command eq "have" ) {
+        my $out = "";
+        foreach my $file ( @{ $globals->{xargs} || [] } ) {
+            $out .= $depot{ relative($file) }
+                ? "info: //depot/" . relative($file) . "#1 - $file\n"
+                : "error: $file - file(s) not on client.\n";
+        }
+        return ( $out . "exit: 0\n" );
+    }
+    elsif ( $command eq "sync" ) {
+        return ("") if ( !grep { $_ eq "-f" } @args );
+        my @files = $globals->{xargs} ? map { relative($_) } @{ $globals->{xargs} } : depot_files();
+        restore($_) foreach (@files);
+        return ( join( "", map {"//depot/$_#1 - refreshing $ENV{BENCH_ROOT}/$_\n"} @files ) );
+    }
+    elsif ( $command eq "sizes" ) {
+        if ( $globals->{xargs} ) {
+            return ( join( "", map {"$_ 1 files $size bytes\n"} @{ $globals->{xargs} } ) );
+        }
+        ( my $spec = $args[-1] ) =~ s/"//g;
+        return ( "$spec " . scalar( keys %depot ) . " files " . $size * scalar( keys %depot ) . " bytes\n" );
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
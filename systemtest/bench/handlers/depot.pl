@@ -0,0 +1,575 @@
+# -*-Perl-*-
+
+# depot.pl -
+#
+# Fake p4 server for the synthetic depot of $BENCH_DEPOT (see
+# SyntheticDepot.pm), for the scale benchmark.  Clients created with
+# "client -i" are kept under $BENCH_STATE/clients with their have list,
+# held as the change they were synced to, and their opened files.  The
+# client template bench-template and the developer client bench-dev,
+# rooted at $BENCH_DEV_ROOT with the shelved changes open, always exist.
+# Files are read and written in the client roots like the real client
+# does, so diff, sync and unshelve cost what they would.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use File::Path;
+use FindBin;
+use POSIX qw(strftime);
+use lib "$FindBin::Bin/../lib";
+use SyntheticDepot;
+
+my $depot = SyntheticDepot->fromString( $ENV{BENCH_DEPOT} );
+my $state = "$ENV{BENCH_STATE}/clients";
+
+#------------------------------------------------------------------------------
+# Clients
+#------------------------------------------------------------------------------
+sub read_client {
+    my ($name) = @_;
+    my $client = { name => $name, have => 0, opened => {} };
+    if ( $name eq "bench-template" || $name eq "bench-dev" ) {
+        my $root = $name eq "bench-dev" ? $ENV{BENCH_DEV_ROOT} : "$ENV{BENCH_STATE}/template";
+        $client->{spec} = $depot->clientSpec( $name, $root );
+        if ( $name eq "bench-dev" ) {
+            $client->{have} = $depot->head();
+            foreach my $change ( $depot->shelfChanges() ) {
+                $client->{opened}{$_} = $change foreach ( $depot->shelfFiles($change) );
+            }
+        }
+    }
+    else {
+        open( my $fh, "<", "$state/$name" ) or return undef;
+        local $/;
+        ( $client->{have}, my $opened, $client->{spec} ) = split( /\n\n/, <$fh>, 3 );
+        close($fh);
+        $client->{opened} = { map { split(/ /) } split( /\n/, $opened ) } if ( $opened ne "-" );
+    }
+    ( $client->{root} ) = $client->{spec} =~ /^Root:\s*(.*?)\s*$/m;
+    $client->{view} = [];
+    foreach my $line ( $client->{spec} =~ /^\s+(\S.*?)\s*$/mg ) {
+        my ( $exclude, $from, $to ) = $line =~ m{^"?(-?)(//\S*?)\.\.\."?\s+"?(//\S*?)\.\.\."?$} or next;
+        push( @{ $client->{view} }, [ $exclude, $from, $to ] );
+    }
+    return $client;
+}
+
+sub write_client {
+    my ($client) = @_;
+    mkpath($state) if ( !-d $state );
+    my $opened = join( "\n", map {"$_ $client->{opened}{$_}"} sort { $a <=> $b } keys %{ $client->{opened} } );
+    open( my $fh, ">", "$state/$client->{name}" ) or die "Can't write client $client->{name}: $!";
+    print $fh "$client->{have}\n\n" . ( $opened ne "" ? $opened : "-" ) . "\n\n$client->{spec}";
+    close($fh);
+}
+
+# Client path of a depot file, or undef when the view does not map it
+sub client_path {
+    my ( $client, $depotFile ) = @_;
+    my $mapped = undef;
+    foreach my $line ( @{ $client->{view} } ) {
+        my ( $exclude, $from, $to ) = @$line;
+        next if ( substr( $depotFile, 0, length($from) ) ne $from );
+        $mapped = $exclude ? undef : $to . substr( $depotFile, length($from) );
+    }
+    return $mapped;
+}
+
+sub local_path {
+    my ( $client, $clientPath ) = @_;
+    return $client->{root} . substr( $clientPath, length("//$client->{name}") );
+}
+
+#------------------------------------------------------------------------------
+# select_files
+#
+#       Files of a file argument ("//client/...@12", "//depot/bench/d1/...",
+#       a local path, "@1,20", ...) that the client maps, as a list of
+#       [ number, clientPath, localPath ], and the revision range as the
+#       first and last change (or the shelf for "@=N").
+#------------------------------------------------------------------------------
+sub select_files {
+    my ( $client, $arg ) = @_;
+    my ( $path, $rev ) = $arg =~ /^([^\@#]*)(.*)$/;
+    $path = "//$client->{name}/..." if ( $path eq "" && $client );
+    $path = "//depot/bench/..."     if ( $path eq "" || $path eq "//..." );
+
+    my ( $first, $last, $shelf ) = ( 1, $depot->head(), undef );
+    if    ( $rev =~ /^\@=(\d+)$/ )       { $shelf = $1; }
+    elsif ( $rev =~ /^\@(\d+),\@?(\d+)$/ ) { ( $first, $last ) = ( $1, $2 ); }
+    elsif ( $rev =~ /^\@(\d+)$/ )        { $last = $1; }
+    elsif ( $rev eq "#have" )            { $last = $client ? $client->{have} : 0; }
+    elsif ( $rev eq "#none" || $rev eq "#0" ) { $last = 0; }
+
+    my @numbers = ();
+    if ( $path =~ /\.\.\.$/ ) {
+        @numbers = defined $shelf ? $depot->shelfFiles($shelf) : ( 0 .. $depot->{files} - 1 );
+    }
+    else {
+        my $i = $depot->fileNumber($path);
+        @numbers = ($i) if ( defined $i );
+    }
+
+    ( my $prefix = $path ) =~ s/\.\.\.$//;
+    my @files = ();
+    foreach my $i (@numbers) {
+        next if ( !defined $shelf && ( $depot->fileChange($i) < $first || $depot->fileChange($i) > $last ) );
+        my $depotFile = $depot->depotFile($i);
+        my $clientPath = $client ? client_path( $client, $depotFile ) : undef;
+        next if ( $client && !defined $clientPath );
+        my $localPath = defined $clientPath ? local_path( $client, $clientPath ) : undef;
+        next if ( $path =~ /\.\.\.$/
+            && substr( $depotFile, 0, length($prefix) ) ne $prefix
+            && ( !defined $clientPath || substr( $clientPath, 0, length($prefix) ) ne $prefix )
+            && ( !defined $localPath  || substr( $localPath,  0, length($prefix) ) ne $prefix ) );
+        push( @files, [ $i, $clientPath, $localPath ] );
+    }
+    return ( \@files, $first, $last, $shelf );
+}
+
+# Values of the options of a command, and its other arguments
+sub parse_args {
+    my ( $valued, @args ) = @_;
+    my %opts = ();
+    while ( @args && $args[0] =~ /^-/ ) {
+        my $opt = shift @args;
+        if ( $valued ne "" && $opt =~ /^-([$valued])$/ ) {
+            $opts{$1} = shift @args;
+        }
+        elsif ( $opt =~ /^-(\w)(.+)$/ && index( $valued, $1 ) >= 0 ) {
+            $opts{$1} = $2;
+        }
+        else {
+            ( my $name = $opt ) =~ s/^-+//;
+            $opts{$name} = 1;
+        }
+    }
+    s/^"(.*)"$/$1/ foreach (@args);
+    return ( \%opts, @args );
+}
+
+sub date {
+    my ( $time, $withTime ) = @_;
+    return strftime( $withTime ? "%Y/%m/%d %H:%M:%S" : "%Y/%m/%d", gmtime($time) );
+}
+
+# Fields of a record, as -ztag or -s prints them
+sub record {
+    my ( $globals, @fields ) = @_;
+    my $tag = $globals->{s} ? "info1: " : "... ";
+    my $out = "";
+    while (@fields) {
+        my ( $key, $value ) = splice( @fields, 0, 2 );
+        $out .= "$tag$key $value\n";
+    }
+    return $out . ( $globals->{s} ? "" : "\n" );
+}
+
+sub write_file {
+    my ( $path, $content ) = @_;
+    ( my $dir = $path ) =~ s{/[^/]*$}{};
+    mkpath($dir) if ( !-d $dir );
+    chmod( 0644, $path ) if ( -e $path );
+    open( my $fh, ">", $path ) or die "Can't write $path: $!";
+    binmode($fh);
+    print $fh $content;
+    close($fh);
+}
+
+sub read_file {
+    my ($path) = @_;
+    open( my $fh, "<", $path ) or return undef;
+    binmode($fh);
+    local $/;
+    my $content = <$fh>;
+    close($fh);
+    return $content;
+}
+
+#------------------------------------------------------------------------------
+# Commands
+#------------------------------------------------------------------------------
+sub p4_changes {
+    my ( $globals, $client, @args ) = @_;
+    my ( $opts, @paths ) = parse_args( "mscu", @args );
+    my %changes = ();
+    @paths = ("") if ( !@paths );
+    foreach my $path (@paths) {
+        if ( $path =~ /^\@?(\d+),\@?(\d+)$/ || $path eq "" ) {
+            my ( $first, $last ) = $path eq "" ? ( 1, $depot->head() ) : ( $1, $2 );
+            $changes{$_} = 1 foreach ( $first .. $last );
+            next;
+        }
+        my ($files) = select_files( $path =~ m{^//depot/} ? undef : $client, $path );
+        $changes{ $depot->fileChange( $_->[0] ) } = 1 foreach (@$files);
+    }
+    if ( ( $opts->{s} || "" ) eq "pending" ) {
+        %changes = map { $_ => 1 } $depot->shelfChanges();
+    }
+    my @changes = sort { $b <=> $a } keys %changes;
+    splice( @changes, $opts->{m} ) if ( $opts->{m} && @changes > $opts->{m} );
+
+    my $out = "";
+    foreach my $change (@changes) {
+        my $pending = $change > $depot->head();
+        my $user    = $pending ? "bench" : $depot->changeUser($change);
+        my $ws      = $pending ? "bench-dev" : "$user-ws";
+        my $desc    = $pending ? "Shelf $change of the benchmark" : "Change $change by the benchmark";
+        if ( $globals->{ztag} ) {
+            $out .= record( $globals, change => $change, time => $depot->changeTime($change), user => $user,
+                client => $ws, status => $pending ? "pending" : "submitted", changeType => "public", desc => $desc );
+        }
+        else {
+            $out .= "Change $change on " . date( $depot->changeTime($change), $opts->{t} ) . " by $user\@$ws "
+                . ( $pending ? "*pending* " : "" ) . "'$desc '\n";
+        }
+    }
+    return ($out);
+}
+
+sub p4_describe {
+    my ( $globals, $client, @args ) = @_;
+    my ( $opts, @changes ) = parse_args( "", @args );
+    my $out = "";
+    foreach my $change ( grep {/^\d+$/} @changes ) {
+        my $pending = $change > $depot->head();
+        my @files   = $pending ? $depot->shelfFiles($change) : $depot->changeFiles($change);
+        return ( $out, "$change - no such changelist.\n", 1 ) if ( !@files );
+        my $user   = $pending ? "bench" : $depot->changeUser($change);
+        my $ws     = $pending ? "bench-dev" : "$user-ws";
+        my $action = $pending ? "edit" : "add";
+        if ( $globals->{ztag} ) {
+            my @fields = ( change => $change, user => $user, client => $ws, time => $depot->changeTime($change),
+                desc => ( $pending ? "Shelf" : "Change" ) . " $change of the benchmark",
+                status => $pending ? "pending" : "submitted" );
+            push( @fields, shelved => "" ) if ( $pending && $opts->{S} );
+            for ( my $n = 0; $n < @files; $n++ ) {
+                push( @fields, "depotFile$n" => $depot->depotFile( $files[$n] ), "action$n" => $action,
+                    "type$n" => "text", "rev$n" => 1 );
+            }
+            $out .= record( $globals, @fields );
+            next;
+        }
+        $out .= "Change $change by $user\@$ws on " . date( $depot->changeTime($change), 1 )
+            . ( $pending ? " *pending*" : "" ) . "\n\n\t" . ( $pending ? "Shelf" : "Change" )
+            . " $change of the benchmark\n\n" . ( $pending ? "Shelved files ...\n\n" : "Affected files ...\n\n" );
+        $out .= "... " . $depot->depotFile($_) . "#1 $action\n" foreach (@files);
+        $out .= "\n";
+    }
+    return ($out);
+}
+
+sub p4_sync {
+    my ( $globals, $client, @args ) = @_;
+    my ( $opts, @specs ) = parse_args( "m", grep { !/^--parallel/ } @args );
+    return ( "", "Client '$globals->{c}' unknown - use 'client' command to create it.\n", 1 ) if ( !$client );
+
+    # A list of files, each at a revision, or the whole client
+    my @lines = $globals->{xargs} ? @{ $globals->{xargs} } : ();
+    @specs = ("") if ( !@specs && !@lines );
+    if (@lines) {
+        my ($revision) = ( $specs[0] || "" ) =~ /(\@.*)$/;
+        @specs = map { $_ . ( defined $revision ? $revision : "" ) } @lines;
+    }
+
+    my ( $out, $err, %target ) = ( "", "", () );
+    my $whole = !@lines && ( $specs[0] eq "" || $specs[0] =~ m{^\@|^//\Q$client->{name}\E/\.\.\.} );
+    foreach my $spec (@specs) {
+        my ( $files, $first, $last ) = select_files( $client, $spec );
+        $err .= "$spec - file(s) not in client view.\n" if ( !@$files && $spec ne "" && $spec !~ /^\@/ );
+        $target{ $_->[0] } = $_ foreach (@$files);
+        $client->{to} = $last if ($whole);
+    }
+
+    my ( $added, $deleted, $bytes ) = ( 0, 0, 0 );
+    my $have  = $client->{have};
+    my $to    = $whole ? $client->{to} : $have;
+    my @write = ();
+    foreach my $file ( values %target ) {
+        my ( $i, $clientPath, $localPath ) = @$file;
+        next if ( !$opts->{f} && $depot->fileChange($i) <= $have );
+        push( @write, $file );
+        $added++;
+        $bytes += $depot->{size};
+    }
+    my $total = $bytes;
+    my $line  = sub {
+        my ( $i, $localPath, $action ) = @_;
+        return "" if ( $opts->{q} );
+        if ( !$globals->{ztag} ) {
+            my %verb = ( added => "added as", refreshed => "refreshing", deleted => "deleted as" );
+            return $depot->depotFile($i) . "#1 - $verb{$action} $localPath\n";
+        }
+        my @first = $total ? ( totalFileSize => $total, totalFileCount => $added ) : ();
+        $total = 0;
+        return record( $globals, depotFile => $depot->depotFile($i), clientFile => $localPath, rev => 1, action => $action,
+            fileSize => $depot->{size}, @first, change => $depot->fileChange($i) );
+    };
+    if ($whole) {
+        my ($had) = select_files( $client, "//$client->{name}/...\@$have" );
+        foreach my $file (@$had) {
+            next if ( $depot->fileChange( $file->[0] ) <= $to );
+            $deleted++;
+            unlink( $file->[2] ) if ( !$opts->{n} && !$opts->{k} && !$opts->{N} );
+            $out .= $line->( $file->[0], $file->[2], "deleted" );
+        }
+    }
+
+    if ( $opts->{N} ) {
+        return ( "Server network estimates: files added/updated/deleted=$added/0/$deleted, bytes added/updated=$bytes/0\n" );
+    }
+    foreach my $file ( sort { $a->[0] <=> $b->[0] } @write ) {
+        my ( $i, $clientPath, $localPath ) = @$file;
+        write_file( $localPath, $depot->content($i) ) if ( !$opts->{n} && !$opts->{k} );
+        $out .= $line->( $i, $localPath, $opts->{f} ? "refreshed" : "added" );
+    }
+    if ( !%target && !$deleted ) {
+        $err .= ( $specs[0] || "//$client->{name}/..." ) . " - file(s) up-to-date.\n";
+    }
+    if ( $whole && !$opts->{n} ) {
+        $client->{have} = $to;
+        write_client($client);
+    }
+    return ( $out, $err, $err =~ /not in client view/ ? 1 : 0 );
+}
+
+sub p4_fstat {
+    my ( $globals, $client, @args ) = @_;
+    my ( $opts, @specs ) = parse_args( "TFe", @args );
+    push( @specs, @{ $globals->{xargs} } ) if ( $globals->{xargs} );
+    my %fields = map { $_ => 1 } split( /[ ,]+/, $opts->{T} || "" );
+
+    my ( $out, $err ) = ( "", "" );
+    foreach my $spec (@specs) {
+        my ($files) = select_files( $client, $spec );
+        @$files = grep { defined $client->{opened}{ $_->[0] } } @$files if ( $opts->{Ro} );
+        @$files = grep { $depot->fileChange( $_->[0] ) <= $client->{have} } @$files if ( $opts->{Rh} );
+        if ( !@$files ) {
+            $err .= ( $globals->{s} ? "error: " : "" ) . "$spec - no such file(s).\n";
+            next;
+        }
+        foreach my $file (@$files) {
+            my ( $i, $clientPath, $localPath ) = @$file;
+            my @record = (
+                depotFile  => $depot->depotFile($i),
+                clientFile => $clientPath,
+                path       => $localPath,
+                headAction => "add",
+                headType   => "text",
+                headTime   => $depot->changeTime( $depot->fileChange($i) ),
+                headRev    => 1,
+                headChange => $depot->fileChange($i),
+                headModTime => $depot->changeTime( $depot->fileChange($i) ),
+            );
+            push( @record, haveRev => 1 ) if ( $depot->fileChange($i) <= $client->{have} );
+            if ( defined $client->{opened}{$i} ) {
+                push( @record, action => "edit", change => $client->{opened}{$i}, type => "text", actionOwner => "bench" );
+            }
+            push( @record, fileSize => $depot->{size}, digest => $depot->digest($i) ) if ( $opts->{Ol} );
+            my @kept = ();
+            while (@record) {
+                my ( $key, $value ) = splice( @record, 0, 2 );
+                push( @kept, $key, $value ) if ( !%fields || $fields{$key} );
+            }
+            $out .= record( $globals, @kept );
+        }
+    }
+    return ( $out . $err . "exit: 0\n" ) if ( $globals->{s} );
+    return ( $out, $err, 0 );
+}
+
+sub p4_where {
+    my ( $globals, $client, @args ) = @_;
+    my ( $opts, @specs ) = parse_args( "", @args );
+    push( @specs, @{ $globals->{xargs} } ) if ( $globals->{xargs} );
+    my ( $out, $err ) = ( "", "" );
+    foreach my $spec (@specs) {
+        my $clientPath = client_path( $client, $spec );
+        if ( !defined $clientPath ) {
+            $err .= ( $globals->{s} ? "error: " : "" ) . "$spec - file(s) not in client view.\n";
+            next;
+        }
+        $out .= record( $globals, depotFile => $spec, clientFile => $clientPath, path => local_path( $client, $clientPath ) );
+    }
+    if ( $globals->{s} ) {
+        return ( $out . $err . "exit: " . ( $err ? 1 : 0 ) . "\n", "", $err ? 1 : 0 );
+    }
+    return ( $out, $err, $err ? 1 : 0 );
+}
+
+# Unopened files of the have list that differ (-se) or are missing (-sd)
+sub p4_diff {
+    my ( $globals, $client, @args ) = @_;
+    my ( $opts, @specs ) = parse_args( "", @args );
+    my ($files) = select_files( $client, "//$client->{name}/...#have" );
+    my $out = "";
+    foreach my $file (@$files) {
+        my ( $i, $clientPath, $localPath ) = @$file;
+        next if ( defined $client->{opened}{$i} );
+        if ( $opts->{sd} ) {
+            $out .= "$localPath\n" if ( !-e $localPath );
+        }
+        elsif ( -e $localPath ) {
+            my $content = read_file($localPath);
+            $out .= "$localPath\n" if ( !defined $content || $content ne $depot->content($i) );
+        }
+    }
+    return ($out);
+}
+
+sub p4_unshelve {
+    my ( $globals, $client, @args ) = @_;
+    my ( $opts, @specs ) = parse_args( "sc", @args );
+    my @files = $depot->shelfFiles( $opts->{s} );
+    return ( "", "Change $opts->{s} - no such changelist.\n", 1 ) if ( !@files );
+    my $out = "";
+    foreach my $i (@files) {
+        return ( "", $depot->depotFile($i) . " - can't unshelve (already opened)\n", 1 )
+            if ( defined $client->{opened}{$i} );
+    }
+    foreach my $i (@files) {
+        my $clientPath = client_path( $client, $depot->depotFile($i) ) or next;
+        write_file( local_path( $client, $clientPath ), $depot->content( $i, $opts->{s} ) );
+        $client->{opened}{$i} = "default";
+        $out .= $depot->depotFile($i) . "#1 - unshelved, opened for edit\n";
+    }
+    write_client($client);
+    return ($out);
+}
+
+sub p4_revert {
+    my ( $globals, $client, @args ) = @_;
+    my ( $opts, @specs ) = parse_args( "c", @args );
+    push( @specs, @{ $globals->{xargs} } ) if ( $globals->{xargs} );
+    my $out = "";
+    foreach my $spec (@specs) {
+        my ($files) = select_files( $client, $spec );
+        foreach my $file ( grep { defined $client->{opened}{ $_->[0] } } @$files ) {
+            delete $client->{opened}{ $file->[0] };
+            write_file( $file->[2], $depot->content( $file->[0] ) ) if ( !$opts->{k} );
+            $out .= $depot->depotFile( $file->[0] ) . "#1 - was edit, reverted\n";
+        }
+    }
+    write_client($client);
+    return ( $out, $out eq "" ? "file(s) not opened on this client.\n" : "" );
+}
+
+sub p4_opened {
+    my ( $globals, $client, @args ) = @_;
+    my ( $opts, @specs ) = parse_args( "cm", @args );
+    my $out = "";
+    foreach my $i ( sort { $a <=> $b } keys %{ $client->{opened} } ) {
+        my $change = $client->{opened}{$i};
+        next if ( defined $opts->{c} && $opts->{c} ne $change );
+        $out .= $depot->depotFile($i) . "#1 - edit " . ( $change eq "default" ? "default change" : "change $change" ) . " (text)\n";
+    }
+    return ( $out, $out eq "" ? "File(s) not opened on this client.\n" : "" );
+}
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+    my $client = defined $globals->{c} ? read_client( $globals->{c} ) : undef;
+
+    if ( $command eq "info" ) {
+        return ( "User name: bench\nClient name: " . ( $globals->{c} || "bench-dev" ) . "\n"
+                . "Server version: P4D/LINUX26X86_64/2014.1/807760 (2014/03/26)\n"
+                . "Server date: 2026/01/02 03:04:05 -0800 PST\n" );
+    }
+    elsif ( $command eq "counter" ) {
+        return ( ( $globals->{ztag} ? "... counter $args[0]\n... value " : "" ) . $depot->head() . "\n" );
+    }
+    elsif ( $command eq "configure" ) {
+        return ( "", "You don't have permission for this operation.\n", 1 );
+    }
+    elsif ( $command eq "clients" ) {
+        my $name = $args[-1];
+        return ( read_client($name) ? "Client $name 2026/01/02 root /tmp 'Created by bench. '\n" : "" );
+    }
+    elsif ( $command eq "client" ) {
+        my ( $opts, $name ) = parse_args( "tS", @args );
+        if ( $opts->{o} ) {
+            my $existing = read_client($name);
+            return ( $existing->{spec} ) if ($existing);
+            if ( defined $opts->{t} ) {
+                my $template = read_client( $opts->{t} ) or return ( "", "Client '$opts->{t}' doesn't exist.\n", 1 );
+                ( my $spec = $template->{spec} ) =~ s{//\Q$opts->{t}\E/}{//$name/}g;
+                $spec =~ s/^Client:.*$/Client: $name/m;
+                return ($spec);
+            }
+            return ( "Client: $name\n\nOwner: bench\n\nRoot: /tmp/$name\n\nOptions: allwrite noclobber nocompress unlocked nomodtime normdir\n\n"
+                    . "LineEnd: local\n\nView:\n\t//depot/... //$name/...\n" );
+        }
+        elsif ( $opts->{i} ) {
+            my $spec = do { local $/; <STDIN> };
+            ($name) = $spec =~ /^Client:\s*(\S+)/m;
+            my $existing = read_client($name) || { name => $name, have => 0, opened => {} };
+            $existing->{spec} = $spec;
+            write_client($existing);
+            return ("Client $name saved.\n");
+        }
+        elsif ( $opts->{d} ) {
+            return ( "", "Client '$name' doesn't exist.\n", 1 ) if ( !-e "$state/$name" );
+            unlink("$state/$name");
+            return ("Client $name deleted.\n");
+        }
+    }
+    elsif ( $command eq "changes" || $command eq "changelists" ) {
+        if ( $globals->{xargs} ) {
+            my $out = "";
+            $out .= ( p4_changes( $globals, $client, @args, $_ ) )[0] foreach ( @{ $globals->{xargs} } );
+            return ($out);
+        }
+        return p4_changes( $globals, $client, @args );
+    }
+    elsif ( $command eq "describe" ) {
+        return p4_describe( $globals, $client, @args );
+    }
+
+    return ( "", "Client '$globals->{c}' unknown - use 'client' command to create it.\n", 1 )
+        if ( defined $globals->{c} && !$client );
+    if ( $command eq "sync" ) {
+        return p4_sync( $globals, $client, @args );
+    }
+    elsif ( $command eq "flush" ) {
+        return p4_sync( $globals, $client, "-k", @args );
+    }
+    elsif ( $command eq "have" ) {
+        my ( $opts, @specs ) = parse_args( "", @args );
+        push( @specs, @{ $globals->{xargs} } ) if ( $globals->{xargs} );
+        @specs = ("") if ( !@specs );
+        my $out = "";
+        foreach my $spec (@specs) {
+            my ($files) = select_files( $client, $spec . "#have" );
+            $out .= record( $globals, depotFile => $depot->depotFile( $_->[0] ), clientFile => $_->[1], path => $_->[2],
+                haveRev => 1 ) foreach (@$files);
+        }
+        return ( $out . ( $globals->{s} ? "exit: 0\n" : "" ) );
+    }
+    elsif ( $command eq "fstat" ) {
+        return p4_fstat( $globals, $client, @args );
+    }
+    elsif ( $command eq "where" ) {
+        return p4_where( $globals, $client, @args );
+    }
+    elsif ( $command eq "diff" ) {
+        return p4_diff( $globals, $client, @args );
+    }
+    elsif ( $command eq "unshelve" ) {
+        return p4_unshelve( $globals, $client, @args );
+    }
+    elsif ( $command eq "revert" ) {
+        return p4_revert( $globals, $client, @args );
+    }
+    elsif ( $command eq "opened" ) {
+        return p4_opened( $globals, $client, @args );
+    }
+    elsif ( $command eq "resolve" ) {
+        return ( "", "No file(s) to resolve.\n" );
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
@@ -0,0 +1,30 @@
+# -*-Perl-*-
+
+# login.pl -
+#
+# Fake p4 responses for p4Login: "login" reads the password from its
+# standard input and accepts it when it is $BENCH_PASSWORD.  Each attempt
+# is appended to $BENCH_STATE/logins.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+
+    if ( $command eq "login" ) {
+        my $password = do { local $/; <STDIN> };
+        $password = "" if ( !defined $password );
+        open( my $fh, ">>", "$ENV{BENCH_STATE}/logins" ) or die "Can't write logins: $!";
+        print $fh "$ENV{P4USER} $password\n";
+        close($fh);
+        return ( "", "Password invalid.\n", 1 ) if ( $password ne $ENV{BENCH_PASSWORD} );
+        return ("User $ENV{P4USER} logged in.\n");
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
@@ -0,0 +1,96 @@
+# -*-Perl-*-
+
+# p4shelve.pl -
+#
+# Fake p4 responses for the shelve transport of the client preflight
+# (--p4shelve) on the client bench-ws.  Pending change N has $BENCH_FILES
+# files opened for edit, //depot/cN/f<k>.c.  The files shelved in change N
+# are kept in $BENCH_STATE/shelf-N, one per line, and submitted changes
+# are appended to $BENCH_STATE/submitted.  Shelving a change listed in
+# $BENCH_SHELVE_FAIL (comma separated) fails, and a change with shelved
+# files can't be submitted, like on a real server.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+
+sub opened_files {
+    my ($change) = @_;
+    return map {"//depot/c$change/f$_.c"} ( 1 .. ( $ENV{BENCH_FILES} || 20 ) );
+}
+
+sub shelf_file {
+    my ($change) = @_;
+    return "$ENV{BENCH_STATE}/shelf-$change";
+}
+
+sub read_shelf {
+    my ($change) = @_;
+    open( my $fh, "<", shelf_file($change) ) or return ();
+    my @files = <$fh>;
+    close($fh);
+    chomp(@files);
+    return @files;
+}
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+    my ($change) = grep {/^\d+$/} @args;
+
+    if ( $command eq "describe" ) {
+        return ( "Change $change by bench\@bench-ws on 2026/01/02 12:00:00 *pending*\n\n\tPreflight $change\n\n"
+                . "Shelved files ...\n\n"
+                . join( "", map {"... $_#1 edit\n"} read_shelf($change) ) );
+    }
+    elsif ( $command eq "shelve" && grep { $_ eq "-d" } @args ) {
+        return ( "", "Change $change has no shelved files.\n", 1 ) if ( !-e shelf_file($change) );
+        unlink( shelf_file($change) );
+        return ("Shelved change $change deleted.\n");
+    }
+    elsif ( $command eq "shelve" ) {
+        if ( grep { $_ eq $change } split( /,/, $ENV{BENCH_SHELVE_FAIL} || "" ) ) {
+            return ( "", "Change $change - you don't have permission for this operation.\n", 1 );
+        }
+        if ( -e shelf_file($change) && !grep { $_ eq "-r" || $_ eq "-f" } @args ) {
+            return ( "", "Change $change has shelved files; use -f or -r to replace them.\n", 1 );
+        }
+        open( my $fh, ">", shelf_file($change) ) or die "Can't write the shelf of $change: $!";
+        print $fh "$_\n" foreach ( opened_files($change) );
+        close($fh);
+        return ( "Shelving files for change $change.\n"
+                . join( "", map {"edit $_#1\n"} opened_files($change) )
+                . "Change $change files shelved.\n" );
+    }
+    elsif ( $command eq "opened" ) {
+        return ( join( "", map {"$_#1 - edit change $change (text)\n"} opened_files($change) ) );
+    }
+    elsif ( $command eq "fstat" ) {
+        my $out = "";
+        foreach my $file ( @{ $globals->{xargs} || [] } ) {
+            ( my $path = $file ) =~ s{^//depot/}{$ENV{BENCH_STATE}/ws/};
+            $out .= "info1: depotFile $file\ninfo1: path $path\ninfo1: action edit\n\n";
+        }
+        return ( $out . "exit: 0\n" );
+    }
+    elsif ( $command eq "sync" ) {
+        return ( "", "File(s) up-to-date.\n" );
+    }
+    elsif ( $command eq "resolve" ) {
+        return ( "", "No file(s) to resolve.\n" );
+    }
+    elsif ( $command eq "changes" ) {
+        return ("Change 50 on 2026/01/02 by bench\@bench-ws 'Head of the depot'\n");
+    }
+    elsif ( $command eq "submit" ) {
+        return ( "", "Change $change has shelved files and can't be submitted.\n", 1 ) if ( -e shelf_file($change) );
+        open( my $fh, ">>", "$ENV{BENCH_STATE}/submitted" ) or die "Can't write submitted: $!";
+        print $fh "$change\n";
+        close($fh);
+        return ("Change $change submitted.\n");
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
@@ -0,0 +1,42 @@
+# -*-Perl-*-
+
+# parallelsync.pl -
+#
+# Fake p4 responses for the automatic parallel sync settings: "sync -N"
+# estimates $BENCH_FILES files of $BENCH_BYTES bytes in total, and
+# "configure show net.parallel.max" returns $BENCH_PARALLEL_MAX or fails like
+# it does for users without super access when that is not set.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+
+    if ( $command eq "info" ) {
+        return ( "Server version: P4D/LINUX26X86_64/2014.1/807760 (2014/03/26)\n"
+                . "Server date: 2026/01/02 03:04:05 -0800 PST\n" );
+    }
+    elsif ( $command eq "configure" ) {
+        if ( !defined $ENV{BENCH_PARALLEL_MAX} || !length( $ENV{BENCH_PARALLEL_MAX} ) ) {
+            return ( "", "You don't have permission for this operation.\n", 1 );
+        }
+        return ( "... Type configure\n... Name net.parallel.max\n... Value $ENV{BENCH_PARALLEL_MAX}\n" );
+    }
+    elsif ( $command eq "sync" && grep { $_ eq "-N" } @args ) {
+        my $files   = $ENV{BENCH_FILES} || 0;
+        my $bytes   = $ENV{BENCH_BYTES} || 0;
+        my $added   = int( $files / 2 );
+        my $updated = $files - $added;
+        my $bAdded  = int( $bytes / 2 );
+        my $bUpdate = $bytes - $bAdded;
+        return ( "Server network estimates: files added/updated/deleted=$added/$updated/0, "
+                . "bytes added/updated=$bAdded/$bUpdate\n" );
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
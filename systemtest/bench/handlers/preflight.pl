@@ -0,0 +1,47 @@
+# -*-Perl-*-
+
+# preflight.pl -
+#
+# Fake p4 responses for doIncrementalSync on the permanent client bench-ws,
+# rooted at $BENCH_ROOT.  "edit" and "delete" append the files they open to
+# $BENCH_STATE; files whose name contains "unmapped" are not on the client.
+# With -s every message is tagged and followed by an exit line, like the
+# real client does.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+
+    if ( $command eq "clients" ) {
+        return ("Client bench-ws 2026/01/02 root $ENV{BENCH_ROOT} 'Created by bench. '\n");
+    }
+    elsif ( $command eq "reconcile" || $command eq "revert" ) {
+        return ( "", "//bench-ws/... - no file(s) to reconcile.\n" );
+    }
+    elsif ( $command eq "edit" || $command eq "delete" ) {
+        my @files = $globals->{xargs} ? @{ $globals->{xargs} } : @args;
+        my ( $out, $err ) = ( "", "" );
+        open( my $state, ">>", $ENV{BENCH_STATE} ) or die "Can't open $ENV{BENCH_STATE}: $!";
+        foreach my $file (@files) {
+            ( my $depotFile = $file ) =~ s{^//bench-ws/}{//depot/};
+            if ( $file =~ /unmapped/ ) {
+                $err .= ( $globals->{s} ? "error: " : "" ) . "$file - file(s) not on client.\n";
+                next;
+            }
+            print $state "$command $depotFile\n";
+            $out .= ( $globals->{s} ? "info: " : "" ) . "$depotFile#1 - opened for $command\n";
+        }
+        close($state);
+        if ( $globals->{s} ) {
+            return ( $out . $err . "exit: " . ( $err ? 1 : 0 ) . "\n", "", $err ? 1 : 0 );
+        }
+        return ( $out, $err, $err ? 1 : 0 );
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+1;
@@ -0,0 +1,96 @@
+# -*-Perl-*-
+
+# seed.pl -
+#
+# Fake p4 responses for workspace seeding.  The depot holds $BENCH_FILES
+# files //depot/src/d<n>/file<i>.c of $BENCH_SIZE bytes, mapped to
+# //bench-ws/... under $BENCH_ROOT; change 1 adds them all and every later
+# change edits $BENCH_EDITS files.  The have list is kept in
+# $BENCH_STATE/have: "flush" sets it, "sync" writes the files whose
+# revision differs from it (all of them with -f) and "fstat" lists the
+# files of a change.  Transferred files cost the time they take at
+# $BENCH_RATE bytes per second.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use File::Basename;
+use File::Path;
+use Time::HiRes qw(sleep);
+
+sub depot_files {
+    return map { "src/d" . ( $_ % 20 ) . "/file$_.c" } 0 .. ( $ENV{BENCH_FILES} - 1 );
+}
+
+# Revision of file $i at change $change
+sub revision {
+    my ( $i, $change ) = @_;
+    my $rev = 1;
+    for ( my $c = 2; $c <= $change; $c++ ) {
+        my $first = ( $c * $ENV{BENCH_EDITS} ) % $ENV{BENCH_FILES};
+        $rev++ if ( ( $i - $first ) % $ENV{BENCH_FILES} < $ENV{BENCH_EDITS} );
+    }
+    return $rev;
+}
+
+sub content { return "$_[0]#$_[1]\n" . ( "x" x $ENV{BENCH_SIZE} ); }
+
+sub read_have {
+    my %have = ();
+    if ( open( my $fh, "<", "$ENV{BENCH_STATE}/have" ) ) {
+        %have = map { chomp; split( / /, $_, 2 ) } <$fh>;
+        close($fh);
+    }
+    return \%have;
+}
+
+sub write_have {
+    my ($have) = @_;
+    open( my $fh, ">", "$ENV{BENCH_STATE}/have" ) or die "Can't write the have list: $!";
+    print $fh map {"$_ $have->{$_}\n"} sort keys %$have;
+    close($fh);
+}
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+    my ($change) = ( $args[-1] || "" ) =~ /\@(\d+)$/;
+    my @files = depot_files();
+
+    if ( $command eq "client" && $args[0] eq "-o" ) {
+        return ( "Client: bench-ws\n\nRoot: $ENV{BENCH_ROOT}\n\nOptions: noallwrite noclobber nocompress unlocked nomodtime normdir\n\n"
+                . "LineEnd: local\n\nView:\n\t//depot/... //bench-ws/...\n" );
+    }
+    elsif ( $command eq "flush" ) {
+        write_have( { map { $files[$_] => revision( $_, $change ) } 0 .. $#files } );
+        return ("");
+    }
+    elsif ( $command eq "sync" ) {
+        my $force = grep { $_ eq "-f" } @args;
+        my $have  = read_have();
+        my $out   = "";
+        for ( my $i = 0; $i < @files; $i++ ) {
+            my $rev = revision( $i, $change );
+            next if ( !$force && ( $have->{ $files[$i] } || 0 ) == $rev );
+            my $path = "$ENV{BENCH_ROOT}/$files[$i]";
+            mkpath( dirname($path) );
+            chmod( 0644, $path );
+            open( my $fh, ">", $path ) or die "Can't write $path: $!";
+            print $fh content( $files[$i], $rev );
+            close($fh);
+            $have->{ $files[$i] } = $rev;
+            $out .= "//depot/$files[$i]#$rev - updating $path\n";
+        }
+        write_have($have) if ( !grep { $_ eq "-p" } @args );
+        my $count = () = $out =~ /\n/g;
+        sleep( $count * $ENV{BENCH_SIZE} / $ENV{BENCH_RATE} );
+        return ($out);
+    }
+    elsif ( $command eq "fstat" ) {
+        return ( join( "", map {"... clientFile $ENV{BENCH_ROOT}/$_\n... headAction edit\n\n"} @files ) );
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
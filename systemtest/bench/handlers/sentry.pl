@@ -0,0 +1,129 @@
+# -*-Perl-*-
+
+# sentry.pl -
+#
+# Fake p4 responses for the sentry routines.  Every depot path has a fixed
+# latest submitted change derived from its name, paths under //empty/ have
+# none.  Client specs piped to "client -i" are kept in $BENCH_STATE so that
+# "changes //client/..." can answer for the depot paths of the client view.
+# $BENCH_COUNTER is the highest submitted change (100000 by default), which
+# "counter maxCommitChange" returns unless $BENCH_OLD_SERVER is set and
+# "changes -s submitted -m 1" lists; "counter change" returns
+# $BENCH_CHANGE_COUNTER, the highest number handed out, pending changes
+# included.  $BENCH_SUBMIT lists submits as "<path>=<change>", comma
+# separated: a depot path that <path> is under, or that covers <path>, has
+# <change> as its latest change, unless the client view excludes <path>
+# ("-//..." lines; "+//..." overlay lines are mapped like the others).
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use Digest::MD5 qw(md5_hex);
+
+sub latest_change {
+    my ( $path, @excluded ) = @_;
+    $path =~ s/^"|"$//g;
+    return undef if ( $path =~ m{^//empty/} );
+    ( my $dir = $path ) =~ s/\.\.\.$//;
+    my $latest = undef;
+    foreach my $submit ( split( /,/, $ENV{BENCH_SUBMIT} || "" ) ) {
+        my ( $submitted, $change ) = split( /=/, $submit );
+        next if ( index( $path, $submitted ) != 0 && index( $submitted, $dir ) != 0 );
+        next if ( grep { index( $submitted, $_ ) == 0 } @excluded );
+        $latest = $change if ( !defined $latest || $change > $latest );
+    }
+    return $latest if ( defined $latest );
+    return 1000 + hex( substr( md5_hex($path), 0, 5 ) ) % 90000;
+}
+
+# Returns the depot paths a client maps and the directories it excludes
+sub client_paths {
+    my ($client) = @_;
+    open( my $fh, "<", "$ENV{BENCH_STATE}/$client" ) or return ( [], [] );
+    my @paths    = ();
+    my @excluded = ();
+    while ( my $line = <$fh> ) {
+        next if ( $line !~ m{^\s+"?([-+]?)(//[^"\s]+)"?\s+//} );
+        my ( $type, $path ) = ( $1, $2 );
+        if ( $type eq "-" ) {
+            ( my $dir = $path ) =~ s/\.\.\.$//;
+            push( @excluded, $dir );
+        }
+        else {
+            push( @paths, $path );
+        }
+    }
+    close($fh);
+    return ( \@paths, \@excluded );
+}
+
+sub changes_for {
+    my ( $globals, $path ) = @_;
+    my ( $paths, $excluded ) = ( [$path], [] );
+    if ( $globals->{c} && $path =~ m{^//\Q$globals->{c}\E/} ) {
+        ( $paths, $excluded ) = client_paths( $globals->{c} );
+    }
+    my $change = undef;
+    foreach my $p (@$paths) {
+        my $c = latest_change( $p, @$excluded );
+        $change = $c if ( defined $c && ( !defined $change || $c > $change ) );
+    }
+    return undef if ( !defined $change );
+
+    # 2026/01/02 03:04:05 -0800 plus one minute per change number
+    my $time = 1767351845 + 60 * $change;
+    if ( $globals->{ztag} ) {
+        return "... change $change\n... time $time\n... user bench\n"
+            . "... client bench-ws\n... status submitted\n... desc Change $change\n\n";
+    }
+    my @t = gmtime( $time - 8 * 3600 );
+    return sprintf( "Change %d on %04d/%02d/%02d %02d:%02d:%02d by bench\@bench-ws 'Change %d'\n",
+        $change, $t[5] + 1900, $t[4] + 1, $t[3], $t[2], $t[1], $t[0], $change );
+}
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+
+    if ( $command eq "changes" ) {
+        my @paths = $globals->{xargs} ? @{ $globals->{xargs} } : ( grep {m{^"?//}} @args );
+        if ( !@paths ) {
+            my $change = $ENV{BENCH_COUNTER} || 100000;
+            return ( $globals->{ztag} ? "... change $change\n... status submitted\n\n" : "Change $change by bench\n" );
+        }
+        my $out = "";
+        foreach my $path (@paths) {
+            my $record = changes_for( $globals, $path );
+            $out .= $record if ( defined $record );
+        }
+        return ($out);
+    }
+    elsif ( $command eq "counter" && $args[0] eq "maxCommitChange" ) {
+        return ( ( $ENV{BENCH_OLD_SERVER} ? 0 : $ENV{BENCH_COUNTER} || 100000 ) . "\n" );
+    }
+    elsif ( $command eq "counter" && $args[0] eq "change" ) {
+        return ( ( $ENV{BENCH_CHANGE_COUNTER} || $ENV{BENCH_COUNTER} || 100000 ) . "\n" );
+    }
+    elsif ( $command eq "client" && $args[0] eq "-i" ) {
+        my $spec = do { local $/; <STDIN> };
+        my ($name) = $spec =~ m/^Client:\s*(\S+)/m;
+        open( my $fh, ">", "$ENV{BENCH_STATE}/$name" ) or die "Can't save client $name: $!";
+        print $fh $spec;
+        close($fh);
+        return ("Client $name saved.\n");
+    }
+    elsif ( $command eq "client" && $args[0] eq "-d" ) {
+        unlink("$ENV{BENCH_STATE}/$args[1]");
+        return ("Client $args[1] deleted.\n");
+    }
+    elsif ( $command eq "info" ) {
+        return ( "User name: bench\nClient name: bench-ws\n"
+                . "Server version: P4D/LINUX26X86_64/2014.1/807760 (2014/03/26)\n"
+                . "Server date: 2026/01/02 03:04:05 -0800 PST\n"
+                . "Case Handling: sensitive\n" );
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
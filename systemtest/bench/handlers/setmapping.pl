@@ -0,0 +1,51 @@
+# -*-Perl-*-
+
+# setmapping.pl -
+#
+# Fake p4 responses for apf_setmapping on the client bench-ws, which maps
+# //depot/... to //bench-ws/main/... under $BENCH_ROOT.  Depot files whose
+# name contains "new" are not on the client yet, so fstat reports "no such
+# file(s)" for them and "where" has to map them; files under //depot/unmapped
+# are outside the view.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+    my @files = $globals->{xargs} ? @{ $globals->{xargs} } : grep { !/^-/ } @args;
+
+    if ( $command eq "fstat" ) {
+        my $out = "";
+        foreach my $file (@files) {
+            ( my $name = $file ) =~ s{^//depot/}{};
+            if ( $file =~ /new/ ) {
+                $out .= "error: $file - no such file(s).\n";
+            }
+            else {
+                $out .= "info1: depotFile $file\ninfo1: path $ENV{BENCH_ROOT}/main/$name\n";
+            }
+        }
+        return ( $out . "exit: 0\n" );
+    }
+    elsif ( $command eq "where" ) {
+        my ( $out, $err ) = ( "", "" );
+        my ( $tag, $error ) = $globals->{s} ? ( "info1: ", "error: " ) : ( "... ", "" );
+        foreach my $file (@files) {
+            ( my $name = $file ) =~ s{^//depot/}{};
+            if ( $name =~ m{^unmapped/} ) {
+                $err .= "$error$file - file(s) not in client view.\n";
+                next;
+            }
+            $out .= "${tag}depotFile $file\n${tag}clientFile //bench-ws/main/$name\n"
+                . "${tag}path $ENV{BENCH_ROOT}/main/$name\n" . ( $globals->{s} ? "" : "\n" );
+        }
+        return ( $out . $err . "exit: " . ( $err ? 1 : 0 ) . "\n", "", 1 ) if ( $globals->{s} && $err );
+        return ( $out, $err, $err ? 1 : 0 );
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+1;
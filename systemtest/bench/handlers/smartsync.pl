@@ -0,0 +1,37 @@
+# -*-Perl-*-
+
+# smartsync.pl -
+#
+# Fake p4 responses for the Smart Sync routines: "diff -se" and "diff -sd"
+# report $BENCH_FILES changed and missing workspace files between them, and
+# "sync" records how many file arguments it got through -x in
+# $BENCH_STATE/synced.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+    my $count = $ENV{BENCH_FILES} || 100000;
+
+    if ( $command eq "diff" ) {
+        my ( $from, $to ) = $args[0] eq "-se" ? ( 1, int( $count / 2 ) ) : ( int( $count / 2 ) + 1, $count );
+        for ( my $i = $from; $i <= $to; $i++ ) {
+            print "/work/ws/src/module" . ( $i % 100 ) . "/file\@$i.c\n";
+        }
+        return ("");
+    }
+    elsif ( $command eq "sync" ) {
+        my $files = $globals->{xargs} ? scalar( @{ $globals->{xargs} } ) : 0;
+        open( my $fh, ">", "$ENV{BENCH_STATE}/synced" ) or die "Can't write synced: $!";
+        print $fh "$files " . ( $globals->{b} || 0 ) . "\n";
+        close($fh);
+        return ("");
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
@@ -0,0 +1,103 @@
+# -*-Perl-*-
+
+# sources.pl -
+#
+# Fake p4 responses for a multi-source checkout.  Clients created with
+# "client -i" are recorded under $BENCH_STATE; template "tmpl-<x>" maps
+# //depot/<x>/... and stream "//streams/<x>" maps //streams/<x>/....  A sync
+# takes $BENCH_LATENCY seconds (the server and network time of a real one)
+# and writes $BENCH_FILES files under the client root.  Every source has
+# changes 1 to 100, by a user named after its depot directory.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use File::Path;
+use Time::HiRes qw(sleep);
+
+sub client_file { return "$ENV{BENCH_STATE}/$_[0]"; }
+
+sub read_client {
+    my ($client) = @_;
+    open( my $fh, "<", client_file($client) ) or return undef;
+    my ( $root, $depot ) = map { chomp; $_ } <$fh>;
+    close($fh);
+    return ( $root, $depot );
+}
+
+sub spec {
+    my ( $client, $depot ) = @_;
+    return "Client: $client\n\nOwner: bench\n\nRoot: /tmp\n\nView:\n\t$depot/... //$client/...\n";
+}
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+    s/"//g foreach (@args);
+    my $client = $globals->{c};
+
+    if ( $command eq "info" ) {
+        return ( "Server version: P4D/LINUX26X86_64/2014.1/807760 (2014/03/26)\n"
+                . "Server date: 2026/01/02 03:04:05 -0800 PST\n" );
+    }
+    elsif ( $command eq "clients" ) {
+        return ( -f client_file( $args[-1] ) ? "Client $args[-1] 2026/01/02 root /tmp 'bench'\n" : "" );
+    }
+    elsif ( $command eq "client" && $args[0] eq "-o" ) {
+        my $name = $args[-1];
+        return ( spec( $name, "//depot/$1" ) ) if ( $args[1] eq "-t" && $args[2] =~ /^tmpl-(\w+)$/ );
+        return ( spec( $name, $args[2] ) ) if ( $args[1] eq "-S" );
+        return ( "", "fake p4: no such client\n", 1 );
+    }
+    elsif ( $command eq "client" && $args[0] eq "-i" ) {
+        my $spec = do { local $/; <STDIN> };
+        my ($name)  = $spec =~ /^Client:\s*(\S+)/m;
+        my ($root)  = $spec =~ /^Root:\s*(.*?)\s*$/m;
+        my ($depot) = $spec =~ m{^\s+"?(//\S+?)/\.\.\.}m;
+        open( my $fh, ">", client_file($name) ) or die "Can't record client $name: $!";
+        print $fh "$root\n$depot\n";
+        close($fh);
+        return ("Client $name saved.\n");
+    }
+    elsif ( $command eq "client" && $args[0] eq "-d" ) {
+        unlink( client_file( $args[-1] ) );
+        return ("Client $args[-1] deleted.\n");
+    }
+    elsif ( $command eq "changes" ) {
+        my ( $root, $depot ) = read_client($client);
+        ( my $user = $depot || "bench" ) =~ s{.*/}{};
+        if ( !$globals->{ztag} ) {
+            return ("Change 100 on 2026/01/02 03:04:05 by $user\@ws 'Latest change'\n");
+        }
+        my ( $start, $end ) = $args[-1] =~ /\@(\d+),(\d+)$/;
+        my $out = "";
+        for ( my $change = $end; $change >= $start; $change-- ) {
+            $out .= "... change $change\n... user $user\n... desc Change $change\n\n";
+        }
+        return ($out);
+    }
+    elsif ( $command eq "describe" ) {
+        my ( $root, $depot ) = read_client($client);
+        ( my $user = $depot || "bench" ) =~ s{.*/}{};
+        return ( join( "", map {"Change $_ by $user\@ws on 2026/01/02 03:04:05\n\n\tChange $_\n\nAffected files ...\n\n... $depot/file$_.c#1 edit\n\n"}
+                    grep {/^\d+$/} @args ) );
+    }
+    elsif ( $command eq "sync" ) {
+        my ( $root, $depot ) = read_client($client);
+        return ( "", "fake p4: unknown client $client\n", 1 ) if ( !defined $root );
+        sleep( $ENV{BENCH_LATENCY} || 0 );
+        mkpath($root);
+        my $out = "";
+        foreach my $i ( 1 .. ( $ENV{BENCH_FILES} || 10 ) ) {
+            open( my $fh, ">", "$root/file$i.c" ) or die "Can't write $root/file$i.c: $!";
+            print $fh "$depot/file$i.c\n";
+            close($fh);
+            $out .= "$depot/file$i.c#1 - added as $root/file$i.c\n";
+        }
+        return ($out);
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
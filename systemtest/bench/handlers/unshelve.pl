@@ -0,0 +1,88 @@
+# -*-Perl-*-
+
+# unshelve.pl -
+#
+# Fake p4 responses for unshelving: $BENCH_SHELVES describes the shelves as
+# "change:file,file;change:file..." and "describe -S" lists them. "unshelve"
+# writes the change number into $BENCH_STATE/ws/<file> and marks the files
+# opened, failing like a real server would if one of them is already open;
+# "revert -k" clears the opened marks of its files (or of every file for
+# //client/...).  The changes in $BENCH_SUBMITTED (comma separated) are
+# described as submitted changes, without the "shelved" field.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+
+sub shelves {
+    my %shelves = ();
+    foreach my $shelf ( split( /;/, $ENV{BENCH_SHELVES} || "" ) ) {
+        my ( $change, $files ) = split( /:/, $shelf );
+        $shelves{$change} = [ split( /,/, $files || "" ) ];
+    }
+    return \%shelves;
+}
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+    my $state   = $ENV{BENCH_STATE};
+    my $shelves = shelves();
+
+    if ( $command eq "describe" ) {
+        my $out = "";
+        foreach my $change ( grep {/^\d+$/} @args ) {
+            if ( grep { $_ eq $change } split( /,/, $ENV{BENCH_SUBMITTED} || "" ) ) {
+                $out .= "... change $change\n... user bench\n... status submitted\n"
+                    . "... depotFile0 //depot/submitted.c\n... action0 edit\n\n";
+                next;
+            }
+            next if ( !$shelves->{$change} );
+            $out .= "... change $change\n... user bench\n... status pending\n... shelved \n";
+            my $i = 0;
+            foreach my $file ( @{ $shelves->{$change} } ) {
+                $out .= "... depotFile$i //depot/$file\n... action$i edit\n";
+                $i++;
+            }
+            $out .= "\n";
+        }
+        return ($out);
+    }
+    elsif ( $command eq "unshelve" ) {
+        my $change = $args[1];
+        my @files  = @{ $shelves->{$change} || [] };
+        return ( "", "Change $change - no such changelist.\n", 1 ) if ( !$shelves->{$change} );
+        foreach my $file (@files) {
+            return ( "", "//depot/$file - can't unshelve (already opened)\n", 1 ) if ( -e "$state/opened/$file" );
+        }
+        my $out = "";
+        foreach my $file (@files) {
+            foreach my $dir ( "ws", "opened" ) {
+                open( my $fh, ">", "$state/$dir/$file" ) or die "Can't write $state/$dir/$file: $!";
+                print $fh "$change\n";
+                close($fh);
+            }
+            $out .= "//depot/$file#1 - unshelved, opened for edit\n";
+        }
+        return ($out);
+    }
+    elsif ( $command eq "revert" ) {
+        my @files = $globals->{xargs} ? @{ $globals->{xargs} } : ();
+        if ( !@files ) {
+            opendir( my $dh, "$state/opened" ) or die;
+            @files = map {"//depot/$_"} grep { !/^\./ } readdir($dh);
+            closedir($dh);
+        }
+        my $out = "";
+        foreach my $file (@files) {
+            ( my $name = $file ) =~ s{^//depot/}{};
+            unlink("$state/opened/$name");
+            $out .= "$file#1 - was edit, reverted\n";
+        }
+        return ($out);
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
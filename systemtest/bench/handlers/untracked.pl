@@ -0,0 +1,67 @@
+# -*-Perl-*-
+
+# untracked.pl -
+#
+# Fake p4 responses for deleteUntrackedFiles.  The client bench-client maps
+# $BENCH_ROOT except its "excluded" directory; files whose name starts with
+# "tracked" are on the client (the have list), every other mapped file is
+# untracked.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use File::Find;
+
+sub is_excluded { return $_[0] =~ m{^\Q$ENV{BENCH_ROOT}\E/excluded/}; }
+sub is_tracked  { return $_[0] =~ m{/tracked[^/]*$}; }
+
+sub fake_p4 {
+    my ( $globals, $command, @args ) = @_;
+
+    if ( $command eq "client" && $args[0] eq "-o" ) {
+        return ( "Client: bench-client\n\nRoot: $ENV{BENCH_ROOT}\n\nView:\n"
+                . "\t//depot/... //bench-client/...\n"
+                . "\t-//depot/excluded/... //bench-client/excluded/...\n" );
+    }
+    elsif ( $command eq "info" ) {
+        return ( "Server version: P4D/LINUX26X86_64/2014.1/807760 (2014/03/26)\n"
+                . "Server date: 2026/01/02 03:04:05 -0800 PST\n" );
+    }
+    elsif ( $command eq "have" ) {
+        my $out = "";
+        foreach my $file ( @{ $globals->{xargs} || [] } ) {
+            if ( is_excluded($file) ) {
+                $out .= "error: $file - file(s) not in client view.\n";
+            }
+            elsif ( is_tracked($file) ) {
+                ( my $depot = $file ) =~ s{^\Q$ENV{BENCH_ROOT}\E}{//depot};
+                $out .= $globals->{ztag}
+                    ? "info1: depotFile $depot\ninfo1: haveRev 1\ninfo1: path $file\n"
+                    : "info: $depot#1 - $file\n";
+            }
+            else {
+                $out .= "error: $file - file(s) not on client.\n";
+            }
+        }
+        return ( $out . "exit: 0\n" );
+    }
+    elsif ( $command eq "clean" || $command eq "reconcile" ) {
+        my $out = "";
+        find(
+            {   no_chdir => 1,
+                wanted   => sub {
+                    return if ( !-f $_ || is_excluded($_) || is_tracked($_) );
+                    ( my $depot = $_ ) =~ s{^\Q$ENV{BENCH_ROOT}\E}{//depot};
+                    $out .= "... depotFile $depot\n... clientFile $_\n... workRev 1\n... action add\n\n";
+                }
+            },
+            $ENV{BENCH_ROOT}
+        );
+        return ($out);
+    }
+    return ( "", "fake p4: unsupported command $command\n", 1 );
+}
+
+1;
@@ -0,0 +1,274 @@
+# -*-Perl-*-
+
+# BenchHarness.pm -
+#
+# Shared helpers for the driver benchmarks: loads PerforceDriver.pm on top of
+# the stubbed Commander API, points the driver at the fake p4 client and
+# measures wall time and p4 process spawns for a block of code.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+package BenchHarness;
+
+use strict;
+use warnings;
+use Cwd qw(abs_path);
+use File::Basename;
+use File::Spec;
+use File::Temp;
+use Time::HiRes qw(time);
+
+our $benchDir  = abs_path( dirname(__FILE__) . "/.." );
+our $driverPm  = abs_path("$benchDir/../../src/main/resources/project/PerforceDriver.pm");
+our $spawnLog  = File::Temp->new( TEMPLATE => "fakep4_XXXXX", TMPDIR => 1 );
+our $engineLog = File::Temp->new( TEMPLATE => "fakeengine_XXXXX", TMPDIR => 1 );
+our $engineEnv = File::Temp->new( TEMPLATE => "fakeenv_XXXXX", TMPDIR => 1 );
+our $engineState = File::Temp->new( TEMPLATE => "fakestate_XXXXX", TMPDIR => 1 );
+our ( $enginePid, $engineHandler, $harnessPid ) = ( undef, undef, $$ );
+
+# Fields of the plugin configuration, which updateOptions copies into $opts
+our %configRow = ( P4PORT => "fake:1666" );
+
+#------------------------------------------------------------------------------
+# newDriver
+#
+#       Loads the driver (once) and returns an instance wired to the stubbed
+#       Commander handle.  The fake p4 client is put first on the PATH and
+#       the given handler script answers its commands.
+#------------------------------------------------------------------------------
+sub newDriver {
+    my ($handler) = @_;
+
+    require ElectricCommander;
+    require ECSCM::Base::Driver;
+    require $driverPm;
+
+    $ENV{PATH}            = "$benchDir/bin" . ( $^O eq "MSWin32" ? ";" : ":" ) . $ENV{PATH};
+    $ENV{FAKE_P4_HANDLER} = File::Spec->rel2abs( $handler, "$benchDir/handlers" );
+    $ENV{FAKE_P4_LOG}     = "$spawnLog";
+    $ENV{COMMANDER_JOBSTEPID} ||= 1;
+    $ENV{COMMANDER_JOBID}     ||= 1;
+
+    my $self = ECSCM::Base::Driver->new( ElectricCommander->new(), BenchHarness::Cfg->new() );
+    bless( $self, "ECSCM::Perforce::Driver" );
+    return $self;
+}
+
+#------------------------------------------------------------------------------
+# startEngine
+#
+#       Starts a stand-in for the Perforce engine that answers with the
+#       handler of the fake p4 client, in the form the engine prints, and
+#       points the driver at it; set engineClasspath in the options to use
+#       it.  The handler sees the environment of the last measure call.
+#------------------------------------------------------------------------------
+sub startEngine {
+    require IO::Socket::INET;
+    require POSIX;
+
+    my $server = IO::Socket::INET->new(
+        LocalAddr => "127.0.0.1",
+        LocalPort => 0,
+        Listen    => 5,
+        Proto     => "tcp",
+        ReuseAddr => 1
+    ) or die "Can't listen for the fake engine: $!";
+    my $secret = "bench$$";
+    open( my $fh, ">", "$engineState" ) or die "Can't write $engineState: $!";
+    print $fh $server->sockport() . " $secret\n";
+    close($fh);
+    saveEnvironment();
+
+    $enginePid = fork();
+    die "Can't start the fake engine: $!" if ( !defined $enginePid );
+    if ( $enginePid == 0 ) {
+        $SIG{CHLD} = "IGNORE";
+        while ( my $socket = $server->accept() ) {
+            if ( !fork() ) {
+                serveEngine( $socket, $secret );
+                POSIX::_exit(0);
+            }
+            close($socket);
+        }
+        POSIX::_exit(0);
+    }
+    close($server);
+
+    no warnings "redefine";
+    *ECSCM::Perforce::Driver::getEngineStateFile = sub { return "$engineState"; };
+}
+
+END {
+    kill( "TERM", $enginePid ) if ( $enginePid && $$ == $harnessPid );
+}
+
+# Writes the environment for the fake engine, one NAME=value per line
+sub saveEnvironment {
+    open( my $fh, ">", "$engineEnv" ) or die "Can't write $engineEnv: $!";
+    print $fh "$_=$ENV{$_}\n" foreach ( grep { $ENV{$_} !~ /\n/ } sort keys %ENV );
+    close($fh);
+}
+
+# Answers the requests of one connection to the fake engine
+sub serveEngine {
+    my ( $socket, $secret ) = @_;
+    binmode($socket);
+    $socket->setsockopt( Socket::IPPROTO_TCP(), Socket::TCP_NODELAY(), 1 );
+    $socket->autoflush(1);
+    my $hello = <$socket>;
+    return if ( !defined $hello || $hello ne "hello $secret\n" );
+    print $socket "ok\n";
+
+    my %request = ( arg => [], xarg => [] );
+    while ( my $line = <$socket> ) {
+        $line =~ s/\n$//;
+        if ( $line eq "run" ) {
+            my $text = engineAnswer( \%request );
+            print $socket "result " . length($text) . "\n" . $text;
+            %request = ( arg => [], xarg => [] );
+        }
+        elsif ( $line =~ /^(arg|xarg) (.*)$/s ) {
+            push( @{ $request{$1} }, $2 );
+        }
+        elsif ( $line =~ /^(\w+) ?(.*)$/s ) {
+            $request{$1} = $2;
+        }
+    }
+}
+
+# Runs a request with the handler and prints its answer like the engine:
+# records of sorted fields, each followed by a blank line, messages and
+# the exit line
+sub engineAnswer {
+    my ($request) = @_;
+
+    open( my $fh, "<", "$engineEnv" ) or die "Can't read $engineEnv: $!";
+    %ENV = map { /^([^=]*)=(.*)$/ ? ( $1, $2 ) : () } <$fh>;
+    close($fh);
+    open( my $log, ">>", "$engineLog" ) or die "Can't open $engineLog: $!";
+    print $log "$request->{cmd} @{ $request->{arg} }\n";
+    close($log);
+
+    my %globals = ( ztag => 1, s => 1 );
+    $globals{c} = $request->{client} if ( length( $request->{client} || "" ) );
+    if ( @{ $request->{xarg} } ) {
+        $globals{xargs} = $request->{xarg};
+        $globals{b}     = $request->{batch} if ( $request->{batch} );
+    }
+    if ( !$engineHandler || $engineHandler ne $ENV{FAKE_P4_HANDLER} ) {
+        no warnings "redefine";
+        $engineHandler = $ENV{FAKE_P4_HANDLER};
+        loadHandler($engineHandler);
+        die "Error loading $engineHandler: $@" if ($@);
+    }
+    my ( $out, $err, $exit ) = main::fake_p4( \%globals, $request->{cmd}, @{ $request->{arg} } );
+
+    # The server reports files it has nothing to do with as warnings
+    my @lines = split( /\n/, defined $out ? $out : "" );
+    push( @lines, map {"error: $_"} split( /\n/, defined $err ? $err : "" ) );
+    s/^error: (.* - (?:no such file\(s\)|file\(s\) not on client|file\(s\) not in client view)\.)$/warning: $1/
+        foreach (@lines);
+    my ( $text, $record, $field ) = ( "", {}, undef );
+    my $flush = sub {
+        $text .= join( "", map {"... $_ $record->{$_}\n"} sort keys %$record ) . "\n" if (%$record);
+        ( $record, $field ) = ( {}, undef );
+    };
+    for ( my $i = 0; $i < @lines; $i++ ) {
+        my $line = $lines[$i];
+        if ( $line =~ /^(?:\.\.\. |info\d+: )(\w+) ?(.*)$/ ) {
+            $flush->() if ( exists $record->{$1} );
+            ( $field, $record->{$1} ) = ( $1, $2 );
+        }
+        elsif ( $line =~ /^(?:error|warning|info): / ) {
+            $flush->();
+            $text .= "$line\n";
+            $exit = 1 if ( $line =~ /^error/ );
+        }
+        elsif ( $line eq "" ) {
+            # A blank line ends the record, unless the record goes on
+            next if ( defined $field && ( $lines[ $i + 1 ] || "" ) =~ /^\.\.\. (\w+)/ && !exists $record->{$1} );
+            $flush->();
+        }
+        elsif ( defined $field && $line !~ /^exit: / ) {
+            $record->{$field} .= "\n$line";
+        }
+    }
+    $flush->();
+    return $text . "exit: " . ( $exit ? 1 : 0 ) . "\n";
+}
+
+#------------------------------------------------------------------------------
+# measure
+#
+#       Runs the given code with STDOUT silenced and returns a hash with the
+#       elapsed wall time, the number of p4 processes spawned, the number of
+#       commands the fake engine ran and the number of Commander requests
+#       issued.
+#------------------------------------------------------------------------------
+sub measure {
+    my ($code) = @_;
+
+    truncate( "$spawnLog", 0 );
+    truncate( "$engineLog", 0 );
+    saveEnvironment() if ($enginePid);
+    my $requests = $ElectricCommander::requests;
+
+    open( my $savedOut, ">&", \*STDOUT ) or die "Can't dup STDOUT: $!";
+    open( STDOUT, ">", File::Spec->devnull() ) or die "Can't silence STDOUT: $!";
+    my $start = time();
+    $code->();
+    my $elapsed = time() - $start;
+    open( STDOUT, ">&", $savedOut ) or die "Can't restore STDOUT: $!";
+
+    open( my $fh, "<", "$spawnLog" ) or die "Can't open $spawnLog: $!";
+    my @spawns = <$fh>;
+    close($fh);
+
+    open( $fh, "<", "$engineLog" ) or die "Can't open $engineLog: $!";
+    my @engine = <$fh>;
+    close($fh);
+
+    return {
+        elapsed  => $elapsed,
+        spawns   => scalar(@spawns),
+        engine   => scalar(@engine),
+        requests => $ElectricCommander::requests - $requests,
+    };
+}
+
+#------------------------------------------------------------------------------
+# property
+#
+#       Returns the value of a property written through the stubbed API.
+#------------------------------------------------------------------------------
+sub property {
+    my ($name) = @_;
+    return $ElectricCommander::properties{$name};
+}
+
+#------------------------------------------------------------------------------
+# readFile
+#------------------------------------------------------------------------------
+sub readFile {
+    my ($file) = @_;
+    open( my $fh, "<", $file ) or die "Can't open $file: $!";
+    binmode($fh);
+    my $content = do { local $/; <$fh> };
+    close($fh);
+    return $content;
+}
+
+package BenchHarness::Cfg;
+
+sub new                { return bless {}, shift; }
+sub getName            { return "bench"; }
+sub getSCMPluginName   { return "ECSCM-Perforce"; }
+sub getRow             { $ElectricCommander::requests++; return %BenchHarness::configRow; }
+
+# Handlers define their subs in the package they are loaded from
+package main;
+
+sub BenchHarness::loadHandler { do $_[0]; }
+
+1;
@@ -0,0 +1,33 @@
+# -*-Perl-*-
+
+# DateTime.pm -
+#
+# Minimal stand-in for the DateTime module, enough for getP4LastSnapshotId
+# to turn a server local time and a "+hhmm" offset into an epoch.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+package DateTime;
+
+use strict;
+use warnings;
+use Time::Local qw(timegm);
+
+sub new {
+    my ( $class, %args ) = @_;
+    return bless {%args}, $class;
+}
+
+sub epoch {
+    my ($self) = @_;
+    my $epoch = timegm( $self->{second}, $self->{minute}, $self->{hour},
+        $self->{day}, $self->{month} - 1, $self->{year} );
+    if ( ( $self->{time_zone} || "" ) =~ /^([-+]?)(\d\d)(\d\d)$/ ) {
+        my $offset = ( $2 * 3600 + $3 * 60 ) * ( $1 eq "-" ? -1 : 1 );
+        $epoch -= $offset;
+    }
+    return $epoch;
+}
+
+1;
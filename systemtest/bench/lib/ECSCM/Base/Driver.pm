@@ -0,0 +1,157 @@
+# -*-Perl-*-
+
+# Driver.pm -
+#
+# Stand-in for ECSCM::Base::Driver (shipped with the ECSCM plugin) that
+# provides just enough of the base class for the benchmark harness to drive
+# ECSCM::Perforce::Driver against the fake p4 client in ../../bin.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+package ECSCM::Base::Driver;
+
+use strict;
+use warnings;
+use File::Copy;
+use File::Temp;
+use ElectricCommander;
+
+sub new {
+    my ( $class, $cmdr, $cfg ) = @_;
+    return bless { cmdr => $cmdr, cfg => $cfg }, $class;
+}
+
+sub getCmdr { return $_[0]->{cmdr}; }
+sub getCfg  { return $_[0]->{cfg}; }
+
+sub debug            { }
+sub issueWarningMsg  { print "$_[1]\n"; }
+sub error            { die "$_[1]\n"; }
+sub setTestMode      { }
+
+# Credentials are read from %ElectricCommander::credentials (name => [user,
+# password]), one request each
+sub retrieveUserCredential {
+    my ( $self, $credential, $user, $password ) = @_;
+    if ( defined $credential && $credential ne "" ) {
+        $ElectricCommander::requests++;
+        return @{ $ElectricCommander::credentials{$credential} || [ $user, $password ] };
+    }
+    return ( $user, $password );
+}
+
+sub getStartForChangeLog { return ""; }
+
+sub setPropertiesOnJob {
+    my ( $self, $scmKey, $changeNumber, $changes ) = @_;
+    $self->getCmdr()->setProperty( "/myJob/ecscm_changeLogs/$scmKey", $changes );
+    $self->getCmdr()->setProperty( "/myJob/ecscm_snapshots/$scmKey",  $changeNumber );
+}
+
+sub updateLastGoodAndLastCompleted { }
+
+sub InvokeCommander {
+    my ( $self, $options, $command, @args ) = @_;
+    $ElectricCommander::requests++;
+    my $value = "";
+    if ( $command eq "getProperty" ) {
+        $value = $ElectricCommander::properties{ $args[0] };
+        $value = "ECSCM-Perforce" if ( !defined $value && $args[0] =~ m{/pluginName$} );
+        $value = 1                if ( !defined $value && $args[0] =~ m{/jobId$} );
+    }
+    elsif ( $command eq "setProperty" ) {
+        $ElectricCommander::properties{ $args[0] } = $args[1];
+    }
+    elsif ( $command eq "getJobStatus" || $command eq "getJobStepStatus" ) {
+        my $status = $command eq "getJobStatus"
+            ? $ElectricCommander::jobStatus{ $args[0] }
+            : $ElectricCommander::jobStepStatus{ $args[0] };
+        return ( 1, ElectricCommander::XPath->new( { status => defined $status ? $status : "completed" } ), "" );
+    }
+    return ( 1, ElectricCommander::XPath->new( { value => $value } ), "" );
+}
+
+sub apf_copyAndPreserve {
+    my ( $self, $from, $to ) = @_;
+    copy( $from, $to );
+}
+
+#------------------------------------------------------------------------------
+# Client preflight
+#
+#       The manifest of a client preflight is counted instead of uploaded:
+#       $self->{cpfDeltas} and $self->{cpfDeletes} hold the files added to
+#       it, and $self->{cpfBytes} the size of the deltas.
+#------------------------------------------------------------------------------
+sub cpf_display             { print "$_[1]\n"; }
+sub cpf_debug               { }
+sub cpf_error               { die "$_[1]\n"; }
+sub cpf_saveScmInfo         { $_[0]->{cpfScmInfo} = $_[2]; }
+sub cpf_findTargetDirectory { }
+sub cpf_closeManifestFiles  { }
+sub cpf_uploadFiles         { }
+sub cpf_checkTimestamps     { }
+sub pf_getCurrentWorkingDir { require Cwd; return Cwd::getcwd(); }
+
+sub cpf_createManifestFiles {
+    my ($self) = @_;
+    $self->{cpfDeltas}  = [];
+    $self->{cpfDeletes} = [];
+    $self->{cpfBytes}   = 0;
+}
+
+sub cpf_addDelta {
+    my ( $self, $opts, $source, $dest ) = @_;
+    push( @{ $self->{cpfDeltas} }, $dest );
+    $self->{cpfBytes} += -s $source || 0;
+}
+
+sub cpf_addDelete {
+    my ( $self, $dest ) = @_;
+    push( @{ $self->{cpfDeletes} }, $dest );
+}
+
+#------------------------------------------------------------------------------
+# RunCommand
+#
+#       Runs a shell command and returns its standard output, or undef when
+#       the command fails and IgnoreError was not requested.
+#------------------------------------------------------------------------------
+sub RunCommand {
+    my ( $self, $command, $options ) = @_;
+    $options ||= {};
+
+    if ( $options->{LogCommand} ) {
+        my $logged = $command;
+        if ( $options->{HidePassword} && $options->{passwordLength} ) {
+            substr( $logged, $options->{passwordStart}, $options->{passwordLength}, "****" );
+        }
+        print "$logged\n";
+    }
+
+    my $inputFile;
+    if ( defined $options->{input} ) {
+        $inputFile = File::Temp->new();
+        print $inputFile $options->{input};
+        close($inputFile);
+        $command .= qq{ < "$inputFile"};
+    }
+
+    my $errFile = File::Temp->new();
+    close($errFile);
+    my $out = `$command 2>"$errFile"`;
+    my $status = $?;
+
+    print $out if ( $options->{LogResult} );
+
+    if ( $status && !$options->{IgnoreError} ) {
+        open( my $fh, "<", "$errFile" );
+        print <$fh>;
+        close($fh);
+        return undef;
+    }
+    return $out;
+}
+
+1;
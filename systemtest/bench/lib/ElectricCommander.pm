@@ -0,0 +1,124 @@
+# -*-Perl-*-
+
+# ElectricCommander.pm -
+#
+# Minimal in-memory replacement for the ElectricCommander Perl API, used by
+# the benchmark harness so the driver can run without a Commander server.
+# Properties are kept in %ElectricCommander::properties and every request is
+# counted in $ElectricCommander::requests; a batch counts as one request,
+# and batches that were rejected are counted in $ElectricCommander::batchErrors.
+# The status of running jobs and job steps is set in
+# %ElectricCommander::jobStatus and %ElectricCommander::jobStepStatus; any
+# other job or step is completed.  Credentials are kept in
+# %ElectricCommander::credentials.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+package ElectricCommander;
+
+use strict;
+use warnings;
+
+our %properties    = ();
+our $requests      = 0;
+our $batchErrors   = 0;
+our %jobStatus     = ();
+our %jobStepStatus = ();
+our %credentials   = ();
+
+sub new {
+    my $class = shift;
+    return bless {}, $class;
+}
+
+sub abortOnError { }
+
+sub setProperty {
+    my ( $self, $name, $value ) = @_;
+    $requests++;
+    $value = $value->{value} if ( ref($value) eq "HASH" );
+    $properties{$name} = $value;
+    return ElectricCommander::XPath->new( { value => $value } );
+}
+
+sub getProperty {
+    my ( $self, $name ) = @_;
+    $requests++;
+    return ElectricCommander::XPath->new( { value => $properties{$name} } );
+}
+
+sub expandString {
+    my ( $self, $string ) = @_;
+    $requests++;
+    return ElectricCommander::XPath->new( { value => "" } );
+}
+
+sub newBatch {
+    my ( $self, $mode ) = @_;
+    return ElectricCommander::Batch->new( $self, $mode );
+}
+
+# The server runs the requests of a parallel batch in no particular order,
+# so a property set twice in one ends up with either value: submit dies
+package ElectricCommander::Batch;
+
+sub new {
+    my ( $class, $ec, $mode ) = @_;
+    return bless { ec => $ec, mode => $mode || "serial", calls => [] }, $class;
+}
+
+sub setProperty {
+    my ( $self, @args ) = @_;
+    push( @{ $self->{calls} }, \@args );
+    return scalar( @{ $self->{calls} } );
+}
+
+sub submit {
+    my ($self) = @_;
+    my $calls = $self->{calls};
+    $self->{calls} = [];
+    if ( $self->{mode} eq "parallel" ) {
+        my %seen = ();
+        foreach my $args (@$calls) {
+            next if ( !$seen{ $args->[0] }++ );
+            $ElectricCommander::batchErrors++;
+            die "Parallel batch sets $args->[0] more than once\n";
+        }
+    }
+    foreach my $args (@$calls) {
+        my ( $name, $value ) = @$args;
+        $value = $value->{value} if ( ref($value) eq "HASH" );
+        $ElectricCommander::properties{$name} = $value;
+    }
+    $ElectricCommander::requests++;
+    return ElectricCommander::XPath->new( {} );
+}
+
+package ElectricCommander::XPath;
+
+sub new {
+    my ( $class, $values ) = @_;
+    return bless { values => $values }, $class;
+}
+
+sub findvalue {
+    my ( $self, $path ) = @_;
+    my ($name) = $path =~ m{(\w+)$};
+    my $value = $self->{values}{$name};
+    return ElectricCommander::Value->new( defined $value ? $value : "" );
+}
+
+package ElectricCommander::Value;
+
+use overload '""' => sub { $_[0]->{value} }, fallback => 1;
+
+sub new {
+    my ( $class, $value ) = @_;
+    return bless { value => $value }, $class;
+}
+
+sub value        { return $_[0]->{value}; }
+sub string_value { return $_[0]->{value}; }
+
+1;
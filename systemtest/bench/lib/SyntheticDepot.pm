@@ -0,0 +1,251 @@
+# -*-Perl-*-
+
+# SyntheticDepot.pm -
+#
+# A depot of configurable size that the scale benchmark can rebuild
+# exactly, on a local p4d or inside the fake p4 client.  Everything is
+# computed from the scale:
+#
+#     files      files under //depot/bench, spread over one directory per
+#                view line: //depot/bench/d<line>/s<n>/f<file>.c
+#     changes    submitted changes 1..changes; change c adds the files
+#                whose number is c-1 modulo changes
+#     shelves    pending changes changes+1..changes+shelves of the client
+#                bench-dev, each with shelfFiles files opened for edit and
+#                shelved
+#     viewLines  view lines of the client template bench-template, one per
+#                directory
+#     size       bytes per file
+#
+# so the fake p4 client answers from the scale alone, and populate() builds
+# the same depot on an empty server.
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+package SyntheticDepot;
+
+use strict;
+use warnings;
+use Digest::MD5 qw(md5_hex);
+use File::Basename;
+use File::Path;
+
+our @keys     = qw(files changes shelves shelfFiles viewLines size);
+our %defaults = ( files => 10000, changes => 500, shelves => 10, shelfFiles => 50, viewLines => 20, size => 512 );
+
+#------------------------------------------------------------------------------
+# new
+#
+#       Creates the depot of the given scale; missing values are taken from
+#       the defaults.
+#------------------------------------------------------------------------------
+sub new {
+    my ( $class, %scale ) = @_;
+    my $self = bless { map { $_ => ( defined $scale{$_} && $scale{$_} =~ /^\d+$/ ? $scale{$_} : $defaults{$_} ) } @keys }, $class;
+    $self->{$_} ||= 1 foreach (qw(files changes viewLines));
+    $self->{changes}   = $self->{files} if ( $self->{changes} > $self->{files} );
+    $self->{viewLines} = $self->{files} if ( $self->{viewLines} > $self->{files} );
+
+    # A file can only be open in one pending change of bench-dev
+    if ( $self->{shelves} * $self->{shelfFiles} > $self->{files} ) {
+        $self->{shelfFiles} = int( $self->{files} / $self->{shelves} );
+    }
+    return $self;
+}
+
+#------------------------------------------------------------------------------
+# fromString / toString
+#
+#       The scale as "files=10000,changes=500,...", the form it is passed to
+#       the fake p4 client in $BENCH_DEPOT and recorded in baseline files.
+#------------------------------------------------------------------------------
+sub fromString {
+    my ( $class, $string ) = @_;
+    return $class->new( map { split( /=/, $_, 2 ) } split( /,/, $string || "" ) );
+}
+
+sub toString {
+    my ($self) = @_;
+    return join( ",", map {"$_=$self->{$_}"} @keys );
+}
+
+#------------------------------------------------------------------------------
+# Files and changes
+#------------------------------------------------------------------------------
+sub head { return $_[0]->{changes}; }
+
+sub depotFile {
+    my ( $self, $i ) = @_;
+    return "//depot/bench/" . $self->relativePath($i);
+}
+
+# Path of a file below //depot/bench and the roots of the clients
+sub relativePath {
+    my ( $self, $i ) = @_;
+    my $line = $i % $self->{viewLines};
+    my $sub  = int( $i / $self->{viewLines} ) % 16;
+    return "d$line/s$sub/f$i.c";
+}
+
+# Number of a file from its depot, client or local path
+sub fileNumber {
+    my ( $self, $path ) = @_;
+    return ( $path =~ m{/d\d+/s\d+/f(\d+)\.c(?:#\d+)?$} && $1 < $self->{files} ) ? $1 : undef;
+}
+
+# Change that added a file
+sub fileChange {
+    my ( $self, $i ) = @_;
+    return 1 + $i % $self->{changes};
+}
+
+# Files added by a change
+sub changeFiles {
+    my ( $self, $change ) = @_;
+    my @files = ();
+    for ( my $i = $change - 1; $i < $self->{files}; $i += $self->{changes} ) {
+        push( @files, $i );
+    }
+    return @files;
+}
+
+sub changeTime {
+    my ( $self, $change ) = @_;
+    return 1767225600 + $change * 60;
+}
+
+sub changeUser {
+    my ( $self, $change ) = @_;
+    return ( "alice", "bob", "carol", "dave" )[ $change % 4 ];
+}
+
+#------------------------------------------------------------------------------
+# content / digest
+#
+#       The text of a file at its submitted revision, or as shelved in a
+#       pending change.
+#------------------------------------------------------------------------------
+sub content {
+    my ( $self, $i, $shelf ) = @_;
+    my $line = $self->depotFile($i) . ( $shelf ? "\@=$shelf" : "#1" ) . "\n";
+    my $fill = $self->{size} - length($line);
+    return $line . ( $fill > 0 ? substr( ( "$i " x ( $fill / 2 + 1 ) ), 0, $fill - 1 ) . "\n" : "" );
+}
+
+sub digest {
+    my ( $self, $i, $shelf ) = @_;
+    return uc( md5_hex( $self->content( $i, $shelf ) ) );
+}
+
+#------------------------------------------------------------------------------
+# Shelves
+#------------------------------------------------------------------------------
+sub shelfChanges {
+    my ($self) = @_;
+    return map { $self->{changes} + $_ } ( 1 .. $self->{shelves} );
+}
+
+# Files of a shelved change
+sub shelfFiles {
+    my ( $self, $change ) = @_;
+    my $n = $change - $self->{changes} - 1;
+    return () if ( $n < 0 || $n >= $self->{shelves} );
+    my %files = map { ( ( $n * $self->{shelfFiles} + $_ ) % $self->{files} ) => 1 } ( 0 .. $self->{shelfFiles} - 1 );
+    return sort { $a <=> $b } keys %files;
+}
+
+#------------------------------------------------------------------------------
+# View lines
+#------------------------------------------------------------------------------
+sub viewLines {
+    my ( $self, $client ) = @_;
+    return map {"//depot/bench/d$_/... //$client/d$_/..."} ( 0 .. $self->{viewLines} - 1 );
+}
+
+# Depot paths of the view lines, as the paths of a sentry schedule
+sub viewPaths {
+    my ($self) = @_;
+    return map {"//depot/bench/d$_/..."} ( 0 .. $self->{viewLines} - 1 );
+}
+
+sub clientSpec {
+    my ( $self, $client, $root ) = @_;
+    return "Client: $client\n\nOwner: bench\n\nRoot: $root\n\nOptions: allwrite noclobber nocompress unlocked nomodtime normdir\n\n"
+        . "LineEnd: local\n\nView:\n" . join( "", map {"\t$_\n"} $self->viewLines($client) );
+}
+
+#------------------------------------------------------------------------------
+# writeFile
+#
+#       Writes the content of a file below a root directory.
+#------------------------------------------------------------------------------
+sub writeFile {
+    my ( $self, $root, $i, $shelf ) = @_;
+    my $path = "$root/" . $self->relativePath($i);
+    my $dir  = dirname($path);
+    mkpath($dir) if ( !-d $dir );
+    chmod( 0644, $path ) if ( -e $path );
+    open( my $fh, ">", $path ) or die "Can't write $path: $!";
+    binmode($fh);
+    print $fh $self->content( $i, $shelf );
+    close($fh);
+    return $path;
+}
+
+#------------------------------------------------------------------------------
+# populate
+#
+#       Builds the depot on a server through $p4, a function that runs a
+#       p4 command (reference to its arguments, optional standard input)
+#       and returns its output or dies:
+#       - the client bench-dev, rooted at $root, submits the changes and
+#         keeps the shelved changes open;
+#       - the client template bench-template.
+#       A server that already holds this depot is left alone; any other
+#       content is an error, since the change numbers would not match.
+#------------------------------------------------------------------------------
+sub populate {
+    my ( $self, $p4, $root ) = @_;
+
+    my $scale = $self->toString();
+    my ($built) = $p4->( [ "-ztag", "counter", "bench-depot" ] ) =~ /^\.\.\. value (.*)$/m;
+    if ( defined $built && $built eq $scale ) {
+        return 0;
+    }
+    if ( $p4->( [ "changes", "-m", "1" ] ) =~ /\S/ ) {
+        die "The server already has changes: the synthetic depot needs an empty one\n";
+    }
+
+    $p4->( [ "client", "-i" ], $self->clientSpec( "bench-dev", $root ) );
+    $p4->( [ "client", "-i" ], $self->clientSpec( "bench-template", "$root-template" ) );
+    mkpath($root);
+
+    my $list = "$root.files";
+    foreach my $change ( 1 .. $self->{changes} ) {
+        open( my $fh, ">", $list ) or die "Can't write $list: $!";
+        print $fh $self->writeFile( $root, $_ ) . "\n" foreach ( $self->changeFiles($change) );
+        close($fh);
+        $p4->( [ "-c", "bench-dev", "-x", $list, "add" ] );
+        $p4->( [ "-c", "bench-dev", "submit", "-d", "Change $change by the benchmark" ] );
+    }
+
+    foreach my $change ( $self->shelfChanges() ) {
+        my ($created) = $p4->( [ "-c", "bench-dev", "change", "-i" ],
+            "Change: new\n\nClient: bench-dev\n\nStatus: new\n\nDescription:\n\tShelf $change of the benchmark\n" )
+            =~ /Change (\d+) created/;
+        die "Shelf $created does not match the depot ($change)\n" if ( !$created || $created != $change );
+        open( my $fh, ">", $list ) or die "Can't write $list: $!";
+        print $fh $self->depotFile($_) . "\n" foreach ( $self->shelfFiles($change) );
+        close($fh);
+        $p4->( [ "-c", "bench-dev", "-x", $list, "edit", "-c", $change ] );
+        $self->writeFile( $root, $_, $change ) foreach ( $self->shelfFiles($change) );
+        $p4->( [ "-c", "bench-dev", "shelve", "-c", $change ] );
+    }
+    unlink($list);
+
+    $p4->( [ "counter", "bench-depot", $scale ] );
+    return 1;
+}
+
+1;
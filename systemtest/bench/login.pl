@@ -0,0 +1,89 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# login.pl -
+#
+# Checks p4Login against the fake p4 client: after the password of the
+# credential was changed, a login with the cached password reads the
+# credential again and logs in with the new one; a password that stays
+# wrong leaves the step logged out after one retry, and without a
+# credential there is nothing to read again.  Also checks that the
+# credential cache is not keyed on the password.
+#
+#     perl systemtest/bench/login.pl
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Spec;
+use File::Temp;
+use BenchHarness;
+
+my $state = File::Temp->newdir( "login_XXXXX", TMPDIR => 1 );
+$ENV{BENCH_STATE} = "$state";
+$ENV{P4USER}      = "bench";
+
+my $driver = BenchHarness::newDriver("login.pl");
+my $status = 0;
+
+sub problem {
+    my ( $case, $problem ) = @_;
+    print "MISMATCH: $case: $problem\n";
+    $status = 1;
+}
+
+# Logs in as the step would: the credential is resolved first (from the
+# cache when it was read before).  Returns the options and the passwords
+# tried.
+sub login {
+    my ( $credential, $password ) = @_;
+    unlink("$state/logins");
+    my $opts = { credential => $credential, P4USER => "bench", P4PASSWD => $password, loggedIn => "0" };
+    ( $opts->{P4USER}, $opts->{P4PASSWD} )
+        = $driver->retrieveUserCredential( $opts->{credential}, $opts->{P4USER}, $opts->{P4PASSWD} );
+
+    # p4 reports the failed logins on stderr
+    open( my $savedErr, ">&", \*STDERR ) or die "Can't dup STDERR: $!";
+    open( STDERR, ">", File::Spec->devnull() ) or die "Can't silence STDERR: $!";
+    BenchHarness::measure( sub { $driver->p4Login($opts); } );
+    open( STDERR, ">&", $savedErr ) or die "Can't restore STDERR: $!";
+    my @tried = -e "$state/logins" ? map { ( split(/ /) )[1] } split( /\n/, BenchHarness::readFile("$state/logins") ) : ();
+    return ( $opts, @tried );
+}
+
+# The credential is read once; the password passed along doesn't matter
+$ElectricCommander::credentials{"bench-cred"} = [ "bench", "old" ];
+$ENV{BENCH_PASSWORD} = "old";
+my ($opts) = login( "bench-cred", "" );
+problem( "first login", "not logged in" ) if ( $opts->{loggedIn} ne "1" );
+my $metrics = BenchHarness::measure(
+    sub { $driver->retrieveUserCredential( "bench-cred", "bench", "something else" ); } );
+problem( "cache key", "$metrics->{requests} requests for a cached credential" ) if ( $metrics->{requests} );
+
+# The password is changed on the server and in the credential
+$ElectricCommander::credentials{"bench-cred"} = [ "bench", "new" ];
+$ENV{BENCH_PASSWORD} = "new";
+my @tried;
+( $opts, @tried ) = login( "bench-cred", "" );
+problem( "rotated", "not logged in" ) if ( $opts->{loggedIn} ne "1" );
+problem( "rotated", "tried [@tried], expected [old new]" ) if ( "@tried" ne "old new" );
+problem( "rotated", "the options still hold the old password" ) if ( $opts->{P4PASSWD} ne "new" );
+
+# A credential that is wrong: retried once, then reported
+$ElectricCommander::credentials{"bench-cred"} = [ "bench", "wrong" ];
+$driver->invalidateOptionsCache();
+( $opts, @tried ) = login( "bench-cred", "" );
+problem( "wrong", "logged in" ) if ( $opts->{loggedIn} ne "0" );
+problem( "wrong", "tried [@tried], expected [wrong wrong]" ) if ( "@tried" ne "wrong wrong" );
+
+# Without a credential there is nothing to read again
+( $opts, @tried ) = login( "", "typo" );
+problem( "no credential", "logged in" ) if ( $opts->{loggedIn} ne "0" );
+problem( "no credential", "tried [@tried], expected [typo]" ) if ( "@tried" ne "typo" );
+
+print "Login checks passed\n" if ( !$status );
+exit($status);
@@ -0,0 +1,79 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# metrics.pl -
+#
+# Runs the Smart Sync repair phase against the fake p4 client (which prints
+# canned -Ztrack counters), publishes the phase metrics and checks that the
+# /myJob/p4Metrics property and the JSON file agree with the counters.
+# Then checks that the logged output of the repair only has the "--- "
+# tracking lines at debug level 6.
+#
+#     perl systemtest/bench/metrics.pl [files]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use Cwd;
+use File::Temp;
+use JSON::PP;
+use BenchHarness;
+
+my $files = shift || 1000;
+my $here  = cwd();
+my $state = File::Temp->newdir( "metrics_XXXXX", TMPDIR => 1 );
+$ENV{BENCH_STATE} = "$state";
+$ENV{BENCH_FILES} = $files;
+
+my $driver = BenchHarness::newDriver("smartsync.pl");
+my $opts   = { P4PORT => "fake:1666", temp_client => "bench-client" };
+$driver->setupP4($opts);
+
+my $metrics = BenchHarness::measure(
+    sub {
+        chdir("$state");
+        $driver->startMetricsPhase("repair");
+        $driver->syncChangedOrMissingFiles( $opts, 42 );
+        $driver->endMetricsPhase("repair");
+        $driver->publishMetrics($opts);
+        chdir($here);
+    } );
+printf( "files=%d elapsed=%.3fs p4 spawns=%d commander requests=%d\n",
+    $files, $metrics->{elapsed}, $metrics->{spawns}, $metrics->{requests} );
+
+my $property = BenchHarness::property("/myJob/p4Metrics/repair");
+print "/myJob/p4Metrics/repair:\n$property";
+my %values = map { split( /=/, $_, 2 ) } split( /\n/, $property );
+my $json = decode_json( BenchHarness::readFile("$state/p4Metrics-$ENV{COMMANDER_JOBSTEPID}.json") );
+
+my %expected = ( commands => 1, rpcMsgsIn => 3, rpcMsgsOut => 12, rpcMbOut => 2, lockWaitWrite => 1, lockHeldWrite => 3 );
+my $status = 0;
+foreach my $name ( sort keys %expected ) {
+    if ( $values{$name} != $expected{$name} || $json->{phases}{repair}{$name} != $expected{$name} ) {
+        print "MISMATCH: $name is $values{$name} / $json->{phases}{repair}{$name}, expected $expected{$name}\n";
+        $status = 1;
+    }
+}
+# The output logged by the repair at debug levels 5 and 6
+foreach my $debug ( 5, 6 ) {
+    my $log = "";
+    open( my $out, ">", \$log ) or die "Can't capture the log: $!";
+    my $stdout = select($out);
+    chdir("$state");
+    $driver->syncChangedOrMissingFiles( { %$opts, debug => $debug }, 42 );
+    chdir($here);
+    select($stdout);
+    close($out);
+    my $tracked = () = $log =~ /^--- /mg;
+    if ( ( $debug == 6 ) != ( $tracked > 0 ) ) {
+        print "MISMATCH: $tracked tracking lines logged at debug level $debug\n";
+        $status = 1;
+    }
+}
+
+print "Metrics published\n" if ( !$status );
+exit($status);
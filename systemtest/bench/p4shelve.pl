@@ -0,0 +1,157 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# p4shelve.pl -
+#
+# Checks the shelve transport of the client preflight (--p4shelve) against
+# the fake p4 client: changelists are shelved and only their numbers sent,
+# and auto-commit deletes those shelves before the submit; the shelves
+# left by a preflight without auto-commit are replaced by the next one; a
+# changelist that already has other shelved files makes the preflight
+# upload the files without touching that shelf; a changelist that can't be
+# shelved makes it upload the files and delete the shelves it made.  Prints wall time and p4
+# process counts of each case.
+#
+#     perl systemtest/bench/p4shelve.pl [files]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use Cwd;
+use File::Temp;
+use BenchHarness;
+
+my $files = shift || 200;
+$ENV{BENCH_FILES} = $files;
+
+my $driver = BenchHarness::newDriver("p4shelve.pl");
+my $here   = cwd();
+my $status = 0;
+
+sub problem {
+    my ( $case, $problem ) = @_;
+    print "MISMATCH: $case: $problem\n";
+    $status = 1;
+}
+
+# Runs cpf_copyDeltas (and cpf_autoCommit) for changelists 101 and 102;
+# $prepare sets up the state directory first, a new one unless $state is
+# passed.  The state directory is the home directory too, for the shelf
+# records.  Returns the state directory and the options.
+sub preflight {
+    my ( $case, $prepare, $commit, $state ) = @_;
+    $state ||= File::Temp->newdir( "p4shelve_XXXXX", TMPDIR => 1 );
+    $ENV{BENCH_STATE} = "$state";
+    $ENV{HOME}        = "$state";
+    $prepare->("$state");
+    delete $driver->{$_} foreach (qw(cpfDeltas cpfDeletes cpfBytes cpfScmInfo));
+    my $opts = {
+        scm_client          => "bench-ws",
+        scm_port            => "fake:1666",
+        scm_user            => "bench",
+        scm_template        => "",
+        scm_stream          => "",
+        scm_shelve          => 1,
+        rt_changelists      => [ 101, 102 ],
+        rt_syncToChangelist => 50,
+        debug               => 0,
+    };
+    chdir("$state");
+    my $metrics = eval {
+        BenchHarness::measure(
+            sub {
+                $driver->cpf_copyDeltas($opts);
+                $driver->cpf_autoCommit($opts) if ($commit);
+            } );
+    };
+    chdir($here);
+    if ( !$metrics ) {
+        problem( $case, "the preflight failed: $@" );
+        $metrics = { elapsed => 0, spawns => 0 };
+    }
+    printf( "%-16s files=%d elapsed=%.3fs p4 spawns=%d\n", $case, $files, $metrics->{elapsed}, $metrics->{spawns} );
+    return ( $state, $opts );
+}
+
+# The changelists passed to the agent: the line after the stream in the
+# saved SCM information
+sub sent {
+    my @info = split( /\n/, $driver->{cpfScmInfo} || "" );
+    return $info[6];
+}
+
+sub shelf {
+    my ( $state, $change ) = @_;
+    return -e "$state/shelf-$change" ? BenchHarness::readFile("$state/shelf-$change") : undef;
+}
+
+# The shelves carry the changelists to the agent; auto-commit drops them
+{
+    my ( $state, $opts ) = preflight( "shelved", sub { }, 1 );
+    my $sent = sent();
+    problem( "shelved", "sent " . ( $sent || "no changelists" ) . ", expected 101,102" ) if ( ( $sent || "" ) ne "101,102" );
+    problem( "shelved", "files were uploaded" ) if ( @{ $driver->{cpfDeltas} || [] } );
+    problem( "shelved", "shelves left after the submit" ) if ( defined shelf( $state, 101 ) || defined shelf( $state, 102 ) );
+    my $submitted = -e "$state/submitted" ? BenchHarness::readFile("$state/submitted") : "";
+    problem( "shelved", "submitted [$submitted], expected 101 and 102" ) if ( $submitted ne "101\n102\n" );
+    problem( "shelved", "the shelves are still recorded" ) if ( -e "$state/.ecpreflight_p4shelves" );
+}
+
+# Without auto-commit the shelves stay, and the next preflight of the same
+# changelists replaces them instead of uploading the files
+{
+    my ($state) = preflight( "not committed", sub { } );
+    problem( "not committed", "the shelves were not left for the agent" ) if ( !defined shelf( $state, 101 ) );
+    my ( undef, $opts ) = preflight( "shelved again", sub { }, 0, $state );
+    my $sent = sent();
+    problem( "shelved again", "sent " . ( $sent || "no changelists" ) . ", expected 101,102" ) if ( ( $sent || "" ) ne "101,102" );
+    problem( "shelved again", "files were uploaded" ) if ( @{ $driver->{cpfDeltas} || [] } );
+    my @shelved = @{ $opts->{rt_shelvedChangelists} || [] };
+    problem( "shelved again", "shelved [@shelved] for auto-commit to delete, expected 101 102" ) if ( "@shelved" ne "101 102" );
+
+    # Shelved again by the developer: theirs now, and left alone
+    my $review = "//depot/c102/review.c\n";
+    preflight( "shelved by hand",
+        sub {
+            open( my $fh, ">", "$state/shelf-102" ) or die "Can't write shelf-102: $!";
+            print $fh $review;
+            close($fh);
+        },
+        0, $state );
+    problem( "shelved by hand", "changelists sent instead of the files" ) if ( defined sent() );
+    problem( "shelved by hand", "the shelf of 102 was replaced" ) if ( ( shelf( $state, 102 ) || "" ) ne $review );
+}
+
+# A shelf under review is never replaced
+{
+    my $review = "//depot/c102/review.c\n";
+    my ($state) = preflight( "already shelved",
+        sub {
+            my ($state) = @_;
+            open( my $fh, ">", "$state/shelf-102" ) or die "Can't write shelf-102: $!";
+            print $fh $review;
+            close($fh);
+        } );
+    problem( "already shelved", "changelists sent instead of the files" ) if ( defined sent() );
+    problem( "already shelved", "the shelf of 102 was replaced" ) if ( ( shelf( $state, 102 ) || "" ) ne $review );
+    problem( "already shelved", "changelist 101 was shelved" ) if ( defined shelf( $state, 101 ) );
+    my $uploaded = scalar( @{ $driver->{cpfDeltas} || [] } );
+    problem( "already shelved", "$uploaded files uploaded, expected " . 2 * $files ) if ( $uploaded != 2 * $files );
+}
+
+# A changelist that can't be shelved: the shelves made are deleted again
+{
+    local $ENV{BENCH_SHELVE_FAIL} = "102";
+    my ($state) = preflight( "shelve failed", sub { } );
+    problem( "shelve failed", "changelists sent instead of the files" ) if ( defined sent() );
+    problem( "shelve failed", "the shelf of 101 was left behind" ) if ( defined shelf( $state, 101 ) );
+    my $uploaded = scalar( @{ $driver->{cpfDeltas} || [] } );
+    problem( "shelve failed", "$uploaded files uploaded, expected " . 2 * $files ) if ( $uploaded != 2 * $files );
+}
+
+print "Shelve transport checks passed\n" if ( !$status );
+exit($status);
@@ -0,0 +1,74 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# parallelsync.pl -
+#
+# Prints the --parallel settings chosen by getParallelSyncOption for syncs of
+# different sizes, agent core counts and server limits, using the estimates
+# of the fake p4 client, and checks that a manual value is passed through.
+#
+#     perl systemtest/bench/parallelsync.pl
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use BenchHarness;
+
+my $driver = BenchHarness::newDriver("parallelsync.pl");
+
+#     files     bytes          cores  net.parallel.max
+my @cases = (
+    [ 10,      40_000,         8, "" ],
+    [ 500,     2_000_000,      8, "" ],
+    [ 20_000,  800_000_000,    8, "" ],
+    [ 20_000,  800_000_000,    32, "" ],
+    [ 20_000,  800_000_000,    32, 4 ],
+    [ 20_000,  800_000_000,    8, 0 ],
+    [ 3,       900_000_000,    4, "" ],
+    [ 400_000, 60_000_000_000, 16, "" ],
+);
+
+my $status = 0;
+foreach my $case (@cases) {
+    my ( $files, $bytes, $cores, $max ) = @$case;
+    local $ENV{BENCH_FILES}          = $files;
+    local $ENV{BENCH_BYTES}          = $bytes;
+    local $ENV{NUMBER_OF_PROCESSORS} = $cores;
+    local $ENV{BENCH_PARALLEL_MAX}   = $max;
+
+    # Fresh capabilities for each server limit
+    delete $driver->{p4Capabilities};
+    my $opts = {
+        P4PORT       => "fake:1666",
+        temp_client  => "bench-client",
+        parallelSync => "auto",
+    };
+    $driver->setupP4($opts);
+
+    my ( $option, $choice );
+    my $metrics = BenchHarness::measure(
+        sub {
+            ( $option, $choice ) = $driver->getParallelSyncOption( $opts, "", 100 );
+            $driver->recordParallelSync( $choice, 10 );
+        } );
+    printf( "files=%-7d bytes=%-12d cores=%-3d max=%-2s p4 spawns=%d  %s\n",
+        $files, $bytes, $cores, length($max) ? $max : "?", $metrics->{spawns},
+        $option || "(serial)" );
+
+    if ( BenchHarness::property("/myJob/p4ParallelSync/mode") ne "auto" ) {
+        print "MISSING: choice not recorded on the job\n";
+        $status = 1;
+    }
+}
+
+my ($manual) = $driver->getParallelSyncOption( { parallelSync => "threads=4,batch=8" }, "", 100 );
+if ( $manual ne "--parallel=threads=4,batch=8" ) {
+    print "MISMATCH: manual options not passed through ($manual)\n";
+    $status = 1;
+}
+print "Parallel sync choices recorded\n" if ( !$status );
+exit($status);
@@ -0,0 +1,80 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# preflight.pl -
+#
+# Benchmarks the file opening of doIncrementalSync against the fake p4
+# client: opens a preflight's edited and deleted files one p4 command per
+# file, the way it used to, and with the batched edit/delete, checks that
+# both open the same files, and prints wall time and p4 process counts.
+#
+#     perl systemtest/bench/preflight.pl [files]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use Cwd;
+use File::Path;
+use File::Temp;
+use BenchHarness;
+
+my $files = shift || 3000;
+
+my $root = File::Temp->newdir( "preflight_XXXXX", TMPDIR => 1 );
+mkpath("$root/ecpreflight_data");
+$ENV{BENCH_ROOT} = "$root";
+
+# Two thirds edits, one third deletes, and a few files that are not mapped
+my %lists = ( deltas => "", deletes => "" );
+for ( my $i = 0; $i < $files; $i++ ) {
+    my $name = $i % 100 == 99 ? "unmapped/f$i.c" : "src/d" . ( $i % 20 ) . "/f$i.c";
+    $lists{ $i % 3 ? "deltas" : "deletes" } .= "$name\n";
+}
+foreach my $list ( keys %lists ) {
+    open( my $fh, ">", "$root/ecpreflight_data/$list" ) or die "Can't write $list: $!";
+    print $fh $lists{$list};
+    close($fh);
+}
+
+my $driver = BenchHarness::newDriver("preflight.pl");
+my $here   = cwd();
+chdir("$root") or die "Can't chdir to $root: $!";
+
+my %opened = ();
+foreach my $mode ( "per-file", "batched" ) {
+    my $state = File::Temp->new( TEMPLATE => "opened_XXXXX", TMPDIR => 1 );
+    $ENV{BENCH_STATE} = "$state";
+    my $opts = { P4PORT => "fake:1666", permanent_client => "bench-ws", dest => "$root", debug => 0 };
+
+    my $metrics = BenchHarness::measure(
+        sub {
+            if ( $mode eq "batched" ) {
+                $driver->doIncrementalSync($opts);
+                return;
+            }
+            my ($p4Command) = $driver->setupP4($opts);
+            foreach my $action ( [ "edit", "deltas" ], [ "delete", "deletes" ] ) {
+                open( my $fh, "<", "ecpreflight_data/$action->[1]" ) or die;
+                while ( my $fileName = <$fh> ) {
+                    chomp($fileName);
+                    $driver->RunCommand( qq{$p4Command -c "bench-ws" $action->[0] "//bench-ws/$fileName"}, {} );
+                }
+                close($fh);
+            }
+        } );
+    $opened{$mode} = join( "", sort split( /^/m, BenchHarness::readFile("$state") ) );
+    printf( "%-8s files=%d elapsed=%.3fs p4 spawns=%d\n", $mode, $files, $metrics->{elapsed}, $metrics->{spawns} );
+}
+chdir($here);
+
+my $status = 0;
+if ( $opened{"per-file"} ne $opened{batched} ) {
+    print "MISMATCH: the batched run opened different files\n";
+    $status = 1;
+}
+print "Opened files identical\n" if ( !$status );
+exit($status);
@@ -0,0 +1,105 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# seed.pl -
+#
+# Benchmarks workspace seeding against the fake p4 client: a first job
+# syncs an empty workspace, lists its files and captures a seed archive
+# with CaptureSeedArchive; later jobs on empty workspaces either sync every
+# file or are seeded from the archive and only sync the revisions submitted
+# since.  Checks that both leave the same files behind and prints wall
+# time, files transferred by the server and p4 process counts.
+#
+#     perl systemtest/bench/seed.pl [files] [fileSize] [changesSinceSeed] [bytesPerSecond]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Find;
+use File::Path;
+use File::Temp;
+use Digest::MD5;
+use BenchHarness;
+
+my $files = shift || 4000;
+my $size  = shift || 16 * 1024;
+my $since = shift || 20;
+my $rate  = shift || 50 * 1024 * 1024;
+
+$ENV{BENCH_FILES} = $files;
+$ENV{BENCH_SIZE}  = $size;
+$ENV{BENCH_EDITS} = 10;
+$ENV{BENCH_RATE}  = $rate;
+
+my $work     = File::Temp->newdir( "seed_XXXXX", TMPDIR => 1 );
+my $archives = "$work/archives";
+my $driver   = BenchHarness::newDriver("seed.pl");
+my ( $seedChange, $target ) = ( 100, 100 + $since );
+
+sub remaining {
+    my ($root) = @_;
+    my @left = ();
+    find( { no_chdir => 1, wanted => sub {
+                return if ( !-f $_ );
+                open( my $fh, "<", $_ ) or die "Can't read $_: $!";
+                push( @left, substr( $_, length($root) ) . "=" . Digest::MD5->new->addfile($fh)->hexdigest );
+                close($fh);
+            } }, $root );
+    return join( "\n", sort @left );
+}
+
+# One checkout of an empty workspace, as checkoutCode runs it
+sub checkout {
+    my ( $name, $change, $seed, $record ) = @_;
+    my $root = "$work/$name";
+    mkpath("$work/$name.state");
+    $ENV{BENCH_ROOT}  = $root;
+    $ENV{BENCH_STATE} = "$work/$name.state";
+    my $opts = { P4PORT => "fake:1666", temp_client => "bench-ws", dest => $root, debug => 0,
+                 seedArchiveDir => $seed ? $archives : undef };
+    my ($p4Command) = $driver->setupP4($opts);
+    my $synced = 0;
+    chdir("$work");
+    my $metrics = BenchHarness::measure(
+        sub {
+            $driver->seedWorkspace( $opts, $change ) if ($seed);
+            my $out = $driver->RunCommand( "$p4Command -c bench-ws sync -p \@$change", { LogResult => 0 } );
+            $synced = () = $out =~ /^\/\//mg;
+            $driver->recordSeedManifest( $opts, $change ) if ($record);
+        }
+    );
+    printf( "%-9s change=%d elapsed=%.3fs files from server=%d p4 spawns=%d\n",
+        $name, $change, $metrics->{elapsed}, $synced, $metrics->{spawns} );
+    chdir("/");
+    delete $driver->{p4Metrics};
+    delete $driver->{p4MetricsOrder};
+    return remaining($root);
+}
+
+# First job: nothing to seed from, capture the workspace afterwards
+checkout( "first", $seedChange, 1, 1 );
+chdir("$work");
+my $capture = BenchHarness::measure( sub { $driver->captureSeedArchive( { seedArchiveKeep => 3 } ) } );
+chdir("/");
+my @archives = glob("$archives/*/*.tar.gz");
+printf( "%-9s change=%d elapsed=%.3fs archive bytes=%d\n",
+    "capture", $seedChange, $capture->{elapsed}, @archives ? -s $archives[0] : 0 );
+
+my $full   = checkout( "full",   $target, 0, 0 );
+my $seeded = checkout( "seeded", $target, 1, 0 );
+
+my $status = 0;
+if ( @archives != 1 ) {
+    print "MISSING: no seed archive was captured\n";
+    $status = 1;
+}
+if ( $full ne $seeded ) {
+    print "MISMATCH: the seeded workspace differs from the fully synced one\n";
+    $status = 1;
+}
+print "Workspaces identical\n" if ( !$status );
+exit($status);
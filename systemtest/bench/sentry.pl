@@ -0,0 +1,149 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# sentry.pl -
+#
+# Benchmarks a sentry cycle against the fake p4 client: checks a set of
+# schedules once with getSCMTag per schedule and once with getSCMTags, checks
+# that both report the same change and time for every schedule, and prints
+# wall time and p4 process counts.  Some schedules exclude a directory with
+# a "-//" view line or overlay one with a "+//" line, and a change was
+# submitted into each of those directories.  Then runs cycles with the change counter
+# cache (sentryCacheTTL): a first one that fills it while pending change
+# 100001 is open, a quiet one where nothing was submitted, one after 100001
+# was submitted under its own number (the "change" counter does not move)
+# into one of the watched projects, and one after another submit on a server
+# without the maxCommitChange counter.  Each must report what getSCMTag
+# reports without the cache.
+#
+#     perl systemtest/bench/sentry.pl [schedules]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Temp;
+use BenchHarness;
+
+my $count = shift || 400;
+
+my $state = File::Temp->newdir( "sentry_XXXXX", TMPDIR => 1 );
+$ENV{BENCH_STATE} = "$state";
+
+# Keep the sentry cache of the driver in the state directory
+$ENV{TMPDIR} = "$state";
+my $driver = BenchHarness::newDriver("sentry.pl");
+my $ttl    = undef;
+
+# A mix of the view forms the sentry form accepts; a few schedules share a
+# view and a few watch a path without submitted changes.
+sub schedules {
+    my %schedules = ();
+    for ( my $i = 0; $i < $count; $i++ ) {
+        my $project = "//depot/project" . ( $i % ( $count / 2 ) );
+        my $opts    = { P4PORT => "fake:1666", P4USER => "bench", sentryCacheTTL => $ttl };
+        if ( $i % 10 == 0 ) {
+            $opts->{P4ClientOrDepot} = "//empty/project$i";
+        }
+        elsif ( $i % 4 == 0 ) {
+            $opts->{P4ClientOrDepot} = "$project/main;main\n$project/libs/...;libs";
+        }
+        elsif ( $i % 25 == 3 ) {
+            $opts->{P4ClientOrDepot} = "$project/main;main";
+            $opts->{P4ExcludePaths}  = "$project/main/docs;main/docs";
+        }
+        elsif ( $i % 25 == 8 ) {
+            $opts->{P4ClientOrDepot} = "//depot/excluded/... //ws/...\n-//depot/excluded/docs/... //ws/docs/...";
+        }
+        elsif ( $i % 25 == 13 ) {
+            $opts->{P4ClientOrDepot} = "//depot/overlaid/main/... //ws/...\n+//depot/overlaid/docs/... //ws/...";
+        }
+        else {
+            $opts->{P4ClientOrDepot} = "$project/...";
+        }
+        $schedules{"schedule$i"} = $opts;
+    }
+    return \%schedules;
+}
+
+# Submitted into the excluded and the overlaid directories
+my $docs = "//depot/excluded/docs/=99999,//depot/overlaid/docs/=99998";
+$ENV{BENCH_SUBMIT} = $docs;
+
+my %results = ();
+
+my $schedules = schedules();
+my $metrics   = BenchHarness::measure(
+    sub {
+        foreach my $name ( keys %$schedules ) {
+            my ( $change, $time ) = $driver->getSCMTag( $schedules->{$name} );
+            $results{single}{$name} = join( ",", map { defined $_ ? $_ : "none" } ( $change, $time ) );
+        }
+    } );
+printf( "%-10s schedules=%d elapsed=%.3fs p4 spawns=%d\n",
+    "getSCMTag", $count, $metrics->{elapsed}, $metrics->{spawns} );
+
+$schedules = schedules();
+$metrics   = BenchHarness::measure(
+    sub {
+        my $tags = $driver->getSCMTags($schedules);
+        foreach my $name ( keys %$tags ) {
+            $results{bulk}{$name} = join( ",",
+                map { defined $_ ? $_ : "none" } ( $tags->{$name}{changeNumber}, $tags->{$name}{changeTime} ) );
+        }
+    } );
+printf( "%-10s schedules=%d elapsed=%.3fs p4 spawns=%d\n",
+    "getSCMTags", $count, $metrics->{elapsed}, $metrics->{spawns} );
+
+# What the schedules see once change 100001 is submitted
+$ENV{BENCH_SUBMIT} = "$docs,//depot/project1/=100001";
+$schedules = schedules();
+BenchHarness::measure(
+    sub {
+        foreach my $name ( keys %$schedules ) {
+            my ( $change, $time ) = $driver->getSCMTag( $schedules->{$name} );
+            $results{after}{$name} = join( ",", map { defined $_ ? $_ : "none" } ( $change, $time ) );
+        }
+    } );
+$ENV{BENCH_SUBMIT} = $docs;
+my $moved = grep { $results{after}{$_} ne $results{single}{$_} } keys %{ $results{single} };
+die "The submit of change 100001 changed no schedule\n" if ( !$moved );
+
+$ttl = 3600;
+$ENV{BENCH_CHANGE_COUNTER} = 100001;
+my %expected = ( first => "single", quiet => "single", "pending" => "after", "old-server" => "after" );
+foreach my $cycle ( [ "first", 100000 ], [ "quiet", 100000 ], [ "pending", 100001, 1 ], [ "old-server", 100002, 1, 1 ] ) {
+    my ( $name, $counter, $submitted, $oldServer ) = @$cycle;
+    $ENV{BENCH_COUNTER} = $counter;
+    $ENV{BENCH_CHANGE_COUNTER} = $counter if ( $counter > $ENV{BENCH_CHANGE_COUNTER} );
+    $ENV{BENCH_SUBMIT}     = "$docs,//depot/project1/=100001" if ($submitted);
+    $ENV{BENCH_OLD_SERVER} = 1 if ($oldServer);
+    delete $driver->{sentryCounters};
+    $schedules = schedules();
+    $metrics   = BenchHarness::measure(
+        sub {
+            foreach my $schedule ( keys %$schedules ) {
+                my ( $change, $time ) = $driver->getSCMTag( $schedules->{$schedule} );
+                $results{$name}{$schedule} = join( ",", map { defined $_ ? $_ : "none" } ( $change, $time ) );
+            }
+        } );
+    printf( "%-10s schedules=%d elapsed=%.3fs p4 spawns=%d (cached, %s cycle)\n",
+        "getSCMTag", $count, $metrics->{elapsed}, $metrics->{spawns}, $name );
+}
+
+my $status = 0;
+foreach my $run ( "bulk", "first", "quiet", "pending", "old-server" ) {
+    my $base = $expected{$run} || "single";
+    foreach my $name ( sort keys %{ $results{$base} } ) {
+        my $other = defined $results{$run}{$name} ? $results{$run}{$name} : "missing";
+        if ( $results{$base}{$name} ne $other ) {
+            print "MISMATCH: $name getSCMTag=$results{$base}{$name} $run=$other\n";
+            $status = 1;
+        }
+    }
+}
+print "Schedule results identical\n" if ( !$status );
+exit($status);
@@ -0,0 +1,149 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# setmapping.pl -
+#
+# Benchmarks apf_setmapping against the fake p4 client: maps a preflight
+# whose files are mostly new to the client, copying the files with one
+# process, then staging them without copies with one and with several
+# processes, and once more with its "fstat" and "where" on the stand-in
+# Perforce engine.  Checks that every run writes the same deltas list and
+# stages the same files, and prints wall time, the bytes not copied and p4
+# process counts next to the one "where" per new file it used to take.
+# Then checks that a file that can't be hard linked for a reason of its own
+# is copied while the others are still linked, and that a link across
+# filesystems (EXDEV) turns linking off for the files after it.
+#
+#     perl systemtest/bench/setmapping.pl [files] [workers] [fileSize]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use Cwd;
+use File::Find;
+use File::Path;
+use File::Temp;
+use POSIX ();
+use BenchHarness;
+
+my $files   = shift || 3000;
+my $workers = shift || 4;
+my $fileSize = shift || 64 * 1024;
+
+my $driver = BenchHarness::newDriver("setmapping.pl");
+my $here   = cwd();
+BenchHarness::startEngine();
+
+my %results = ();
+foreach my $run ( [ "copy", 1 ], [ "auto", 1 ], [ "auto", $workers ], [ "auto", $workers, "bench" ] ) {
+    my ( $staging, $copyWorkers, $engine ) = @$run;
+    my $name = "$staging-$copyWorkers" . ( $engine ? "-engine" : "" );
+    my $root = File::Temp->newdir( "setmapping_XXXXX", TMPDIR => 1 );
+    $ENV{BENCH_ROOT} = "$root";
+    chdir("$root") or die "Can't chdir to $root: $!";
+
+    # Nine in ten files are new, and a few of those are outside the view
+    my $deltas = "";
+    my $new    = 0;
+    for ( my $i = 0; $i < $files; $i++ ) {
+        my $name = $i % 10 ? "src/d" . ( $i % 50 ) . "/new$i.c" : "src/d" . ( $i % 50 ) . "/old$i.c";
+        $name = "unmapped/new$i.c" if ( $i % 100 == 99 );
+        $new++ if ( $name =~ /new/ );
+        $deltas .= "//depot/$name\n";
+        mkpath("ecpreflight_files/depot/src/d" . ( $i % 50 ));
+        mkpath("ecpreflight_files/depot/unmapped");
+        open( my $fh, ">", "ecpreflight_files/depot/$name" ) or die "Can't write $name: $!";
+        print $fh "$name\n" . ( "x" x $fileSize );
+        close($fh);
+    }
+    mkpath("ecpreflight_data");
+    open( my $fh, ">", "ecpreflight_data/deltas" ) or die "Can't write deltas: $!";
+    print $fh $deltas;
+    close($fh);
+
+    my $opts = { P4PORT => "fake:1666", permanent_client => "bench-ws", dest => "$root", debug => 0,
+                 apfCopyWorkers => $copyWorkers, apfStaging => $staging,
+                 ( $engine ? ( engineClasspath => $engine ) : () ) };
+    my $metrics = BenchHarness::measure( sub { $driver->apf_setmapping($opts); } );
+
+    my @copied = ();
+    find( { wanted => sub { push( @copied, "$File::Find::name=" . BenchHarness::readFile($_) ) if ( -f $_ ) },
+            no_chdir => 1 }, "ecpreflight_files" );
+    $results{$name} = BenchHarness::readFile("ecpreflight_data/deltas") . join( "", sort @copied );
+    my ($avoided) = ( BenchHarness::property("/myJob/p4Metrics/staging") || "" ) =~ /^bytesAvoided=(\d+)/m;
+    printf( "staging=%s workers=%d%s files=%d elapsed=%.3fs bytes not copied=%d p4 spawns=%d engine commands=%d"
+            . " (one where per new file: %d)\n",
+        $staging, $copyWorkers, ( $engine ? " engine" : "" ), $files, $metrics->{elapsed}, $avoided || 0,
+        $metrics->{spawns}, $metrics->{engine}, $metrics->{spawns} + $metrics->{engine} - 1 + $new );
+    delete $driver->{p4Metrics};
+    delete $driver->{p4MetricsOrder};
+    delete $driver->{apfStaged};
+    chdir($here);
+}
+
+my $status = 0;
+foreach my $run ( "auto-1", "auto-$workers", "auto-$workers-engine" ) {
+    if ( $results{"copy-1"} ne $results{$run} ) {
+        print "MISMATCH: the deltas or staged files of $run differ from copy-1\n";
+        $status = 1;
+    }
+}
+# Link failures: "busy" files fail with EBUSY, any file with EXDEV once
+# $crossDevice is set
+{
+    my $root = File::Temp->newdir( "staging_XXXXX", TMPDIR => 1 );
+    chdir("$root") or die "Can't chdir to $root: $!";
+    mkpath( [ "ecpreflight_files_origin", "ecpreflight_files" ] );
+    my @names = map {"f$_"} ( 1 .. 6 );
+    $names[1] = "busy2";
+    foreach my $name (@names) {
+        open( my $fh, ">", "ecpreflight_files_origin/$name" ) or die "Can't write $name: $!";
+        print $fh "$name\n";
+        close($fh);
+    }
+
+    my $crossDevice = 0;
+    my %tried       = ();
+    my $stageFile   = \&ECSCM::Perforce::Driver::apf_stageFile;
+    no warnings 'redefine';
+    local *ECSCM::Perforce::Driver::apf_stageFile = sub {
+        my ( $self, $method, $from, $to ) = @_;
+        if ( $method eq "link" ) {
+            $tried{ ( split( m{/}, $from ) )[-1] }++;
+            $! = POSIX::EBUSY() if ( $from =~ /busy/ );
+            $! = POSIX::EXDEV() if ($crossDevice);
+            return undef if ( $from =~ /busy/ || $crossDevice );
+        }
+        return $stageFile->(@_);
+    };
+    $driver->{apfStaging} = "auto";
+    delete $driver->{apfStaged};
+    delete $driver->{apfStagingFailed};
+    foreach my $name (@names) {
+        $crossDevice = 1 if ( $name eq "f5" );
+        $driver->apf_copyAndPreserve( "ecpreflight_files_origin/$name", "ecpreflight_files/$name" );
+    }
+    my $linked = $driver->{apfStaged}{link} ? $driver->{apfStaged}{link}{files} : 0;
+    my $copied = $driver->{apfStaged}{copy} ? $driver->{apfStaged}{copy}{files} : 0;
+    if ( $linked != 3 || $copied != 1 ) {
+        print "MISMATCH: $linked linked and $copied copied after a busy file, expected 3 and 1\n";
+        $status = 1;
+    }
+    if ( $tried{f6} ) {
+        print "MISMATCH: linking was tried again after EXDEV\n";
+        $status = 1;
+    }
+    foreach my $name (@names) {
+        next if ( BenchHarness::readFile("ecpreflight_files/$name") eq "$name\n" );
+        print "MISMATCH: $name was not staged\n";
+        $status = 1;
+    }
+    chdir($here);
+}
+
+print "Deltas and staged files identical\n" if ( !$status );
+exit($status);
@@ -0,0 +1,66 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# smartsync.pl -
+#
+# Benchmarks syncChangedOrMissingFiles against the fake p4 client for
+# growing numbers of changed files: checks that every file reached the
+# "sync -x" argument file with a matching -b, and prints wall time and the
+# peak memory growth of the driver process (VmHWM, Linux only), which
+# should stay flat as the workspace grows.
+#
+#     perl systemtest/bench/smartsync.pl [files...]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Temp;
+use BenchHarness;
+
+my @sizes = @ARGV ? @ARGV : ( 10000, 100000, 500000 );
+
+sub peakKb {
+    open( my $fh, "<", "/proc/self/status" ) or return 0;
+    my ($kb) = map {/^VmHWM:\s+(\d+)/ ? $1 : ()} <$fh>;
+    close($fh);
+    return $kb || 0;
+}
+
+my $status = 0;
+foreach my $files (@sizes) {
+    my $state = File::Temp->newdir( "smartsync_XXXXX", TMPDIR => 1 );
+    $ENV{BENCH_STATE} = "$state";
+    $ENV{BENCH_FILES} = $files;
+
+    # Each size runs in its own process so the peaks do not add up
+    my $report = File::Temp->new( TEMPLATE => "report_XXXXX", TMPDIR => 1 );
+    my $pid = fork();
+    die "Can't fork: $!" if ( !defined $pid );
+    if ( !$pid ) {
+        my $driver = BenchHarness::newDriver("smartsync.pl");
+        my $opts   = { P4PORT => "fake:1666", temp_client => "bench-client" };
+        $driver->setupP4($opts);
+        my $before  = peakKb();
+        my $metrics = BenchHarness::measure(
+            sub { chdir("$state"); $driver->syncChangedOrMissingFiles( $opts, 42 ); } );
+        open( my $fh, ">", "$report" ) or die "Can't write $report: $!";
+        printf $fh "%.3f %d %d\n", $metrics->{elapsed}, $metrics->{spawns}, peakKb() - $before;
+        close($fh);
+        exit(0);
+    }
+    waitpid( $pid, 0 );
+
+    my ( $elapsed, $spawns, $growthKb ) = split( " ", BenchHarness::readFile("$report") );
+    my ( $synced, $batch ) = split( " ", BenchHarness::readFile("$state/synced") );
+    printf( "files=%-8d elapsed=%.3fs p4 spawns=%d peak memory growth=%dKB\n", $files, $elapsed, $spawns, $growthKb );
+    if ( $synced != $files || $batch != $files ) {
+        print "MISMATCH: sync got $synced files with -b $batch, expected $files\n";
+        $status = 1;
+    }
+}
+print "Sync file lists complete\n" if ( !$status );
+exit($status);
@@ -0,0 +1,93 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# sources.pl -
+#
+# Benchmarks a multi-source checkout against the fake p4 client: checks out
+# templates, streams and an explicit view into one destination, one source
+# at a time and then several at once.  Checks that both runs leave the same
+# files, changelog keys and summary behind, and prints wall time and p4
+# process counts.
+#
+#     perl systemtest/bench/sources.pl [sources] [workers] [syncSeconds]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Find;
+use File::Temp;
+use BenchHarness;
+
+my $count   = shift || 6;
+my $workers = shift || 4;
+$ENV{BENCH_LATENCY} = shift || 0.5;
+
+# Alternate the kinds of source
+my @sources = ();
+foreach my $i ( 1 .. $count ) {
+    my $name = "s$i";
+    push( @sources,
+          $i % 3 == 1 ? "template|$name|tmpl-$name"
+        : $i % 3 == 2 ? "stream|$name|//streams/$name"
+        :               "view|$name|//depot/$name/...;//bench/..." );
+}
+
+sub remaining {
+    my ($root) = @_;
+    my @left = ();
+    find( { no_chdir => 1, wanted => sub { push( @left, substr( $_, length($root) ) ) if ( -f $_ ) } }, $root );
+    return join( "\n", sort @left );
+}
+
+my $driver  = BenchHarness::newDriver("sources.pl");
+my %results = ();
+foreach my $run ( 1, $workers ) {
+    my $work = File::Temp->newdir( "sources_XXXXX", TMPDIR => 1 );
+    mkdir("$work/state");
+    $ENV{BENCH_STATE}             = "$work/state";
+    $ENV{COMMANDER_JOBSTEPID}     = "100";
+    %ElectricCommander::properties = ();
+    my $opts = {
+        P4PORT            => "fake:1666",
+        P4USER            => "bench",
+        dest              => "$work/ws",
+        sources           => join( "\n", @sources ),
+        sourceWorkers     => $run,
+        standardSync      => 1,
+        generateChangelog => 1,
+        debug             => 0,
+    };
+    chdir("$work");
+    my $metrics = $ENV{BENCH_VERBOSE} ? do { $driver->checkoutCode($opts); {} } : BenchHarness::measure( sub { $driver->checkoutCode($opts); } );
+    my %props = %ElectricCommander::properties;
+
+    # The job summary is batched: it must hold the highest change of the
+    # sources, set in a batch the server accepts
+    my ($highest) = sort { $b <=> $a } map { $props{$_} } grep {m{ecscm_snapshots}} keys %props;
+    if ( $ElectricCommander::batchErrors || ( $props{"/myJob/lastGoodSnapshot"} || "" ) ne ( $highest || "" ) ) {
+        print "MISMATCH: lastGoodSnapshot=$props{'/myJob/lastGoodSnapshot'}, highest change $highest, "
+            . "$ElectricCommander::batchErrors rejected batches\n";
+        chdir("/");
+        exit(1);
+    }
+    $results{$run} = join( "\n",
+        remaining("$work/ws"),
+        map {"$_=$props{$_}"} grep {m{ecscm_snapshots|lastGoodSnapshot|p4Summary}} sort keys %props );
+    printf( "sources=%d workers=%d elapsed=%.3fs p4 spawns=%d clients left=%d\n",
+        $count, $run, $metrics->{elapsed}, $metrics->{spawns}, scalar( () = glob("$work/state/*") ) );
+    delete $driver->{p4Metrics};
+    delete $driver->{p4MetricsOrder};
+    chdir("/");
+}
+
+if ( $results{1} ne $results{$workers} ) {
+    print "MISMATCH: the concurrent checkout differs from the serial one\n";
+    print "$results{1}\n---\n$results{$workers}\n";
+    exit(1);
+}
+print "Checkouts identical\n";
+exit(0);
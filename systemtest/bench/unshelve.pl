@@ -0,0 +1,86 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# unshelve.pl -
+#
+# Benchmarks unshelveChanges against the fake p4 client: unshelves a set of
+# shelves (some of them overlapping) one at a time and with parallel workers,
+# checks that each workspace file holds the last shelf that changed it and
+# that nothing is left open, and prints wall time and p4 process counts next
+# to the two commands per shelf of unshelve + full-client revert.  Then
+# checks that a shelf without files is skipped and that a submitted change
+# fails the unshelve before anything is unshelved.
+#
+#     perl systemtest/bench/unshelve.pl [shelves] [filesPerShelf]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Path;
+use File::Temp;
+use BenchHarness;
+
+my $count   = shift || 10;
+my $perShelf = shift || 20;
+
+# Every fourth shelf changes a file of the shelf before it
+my ( @shelves, @changes, %expected );
+for ( my $i = 0; $i < $count; $i++ ) {
+    my $change = 1000 + $i;
+    my @files = map {"s$i-f$_.c"} ( 1 .. $perShelf );
+    push( @files, "s" . ( $i - 1 ) . "-f1.c" ) if ( $i % 4 == 3 );
+    push( @shelves, "$change:" . join( ",", @files ) );
+    push( @changes, $change );
+    $expected{$_} = $change foreach (@files);
+}
+$ENV{BENCH_SHELVES} = join( ";", @shelves );
+
+my $driver = BenchHarness::newDriver("unshelve.pl");
+my $status = 0;
+foreach my $workers ( 1, 4 ) {
+    my $state = File::Temp->newdir( "unshelve_XXXXX", TMPDIR => 1 );
+    mkpath( [ "$state/ws", "$state/opened" ] );
+    $ENV{BENCH_STATE} = "$state";
+    my $opts = { P4PORT => "fake:1666", temp_client => "bench-client", debug => 0, unshelveWorkers => $workers };
+    $driver->setupP4($opts);
+
+    my $ok;
+    my $metrics = BenchHarness::measure( sub { $ok = $driver->unshelveChanges( $opts, @changes ); } );
+    printf( "workers=%d shelves=%d elapsed=%.3fs p4 spawns=%d (unshelve + full revert per shelf: %d)\n",
+        $workers, $count, $metrics->{elapsed}, $metrics->{spawns}, 2 * $count );
+
+    my @wrong = grep { BenchHarness::readFile("$state/ws/$_") ne "$expected{$_}\n" } sort keys %expected;
+    opendir( my $dh, "$state/opened" ) or die;
+    my @open = grep { !/^\./ } readdir($dh);
+    closedir($dh);
+    if ( !$ok || @wrong || @open ) {
+        print "MISMATCH: ok=" . ( $ok || 0 ) . ", wrong content: @wrong, left open: @open\n";
+        $status = 1;
+    }
+}
+# An empty shelf (2000) and a submitted change (2001)
+{
+    local $ENV{BENCH_SHELVES}   = "$ENV{BENCH_SHELVES};2000:";
+    local $ENV{BENCH_SUBMITTED} = "2001";
+    foreach my $case ( [ "empty shelf", [ 1000, 2000 ], 1 ], [ "submitted change", [ 1000, 2001 ], 0 ] ) {
+        my ( $name, $list, $expectOk ) = @$case;
+        my $state = File::Temp->newdir( "unshelve_XXXXX", TMPDIR => 1 );
+        mkpath( [ "$state/ws", "$state/opened" ] );
+        $ENV{BENCH_STATE} = "$state";
+        my $opts = { P4PORT => "fake:1666", temp_client => "bench-client", debug => 0 };
+        $driver->setupP4($opts);
+        my $ok;
+        BenchHarness::measure( sub { $ok = $driver->unshelveChanges( $opts, @$list ); } );
+        my $unshelved = -e "$state/ws/s0-f1.c";
+        if ( ( $ok ? 1 : 0 ) != $expectOk || ( $unshelved ? 1 : 0 ) != $expectOk ) {
+            print "MISMATCH: $name: ok=" . ( $ok || 0 ) . ", shelf 1000 " . ( $unshelved ? "" : "not " ) . "unshelved\n";
+            $status = 1;
+        }
+    }
+}
+print "Workspace matches the shelves\n" if ( !$status );
+exit($status);
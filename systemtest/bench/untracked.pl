@@ -0,0 +1,80 @@
+#!/usr/bin/env perl
+# -*-Perl-*-
+
+# untracked.pl -
+#
+# Benchmarks deleteUntrackedFiles against the fake p4 client: builds a
+# workspace with tracked, untracked and view-excluded files, runs each
+# engine on a fresh copy, and "find" once more with its "p4 have" on the
+# stand-in Perforce engine, checks that they leave the same files behind,
+# and prints wall time, p4 process and engine command counts.
+#
+#     perl systemtest/bench/untracked.pl [directories] [filesPerDirectory]
+#
+# Copyright (c) 2026 CloudBees, Inc.
+# All rights reserved
+
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/lib";
+use File::Find;
+use File::Path;
+use File::Temp;
+use BenchHarness;
+
+my $dirs  = shift || 40;
+my $files = shift || 250;
+
+sub populate {
+    my ($root) = @_;
+    foreach my $dir ( ( map {"src/module$_"} 1 .. $dirs ), "excluded/assets" ) {
+        mkpath("$root/$dir");
+        for ( my $i = 0; $i < $files; $i++ ) {
+            my $name = $i % 10 == 0 ? "build$i.o" : "tracked$i.c";
+            open( my $fh, ">", "$root/$dir/$name" ) or die "Can't write $root/$dir/$name: $!";
+            close($fh);
+        }
+    }
+}
+
+sub remaining {
+    my ($root) = @_;
+    my @left = ();
+    find( { no_chdir => 1, wanted => sub { push( @left, substr( $_, length($root) ) ) if ( -f $_ ) } }, $root );
+    return join( "\n", sort @left );
+}
+
+my %left   = ();
+my $driver = BenchHarness::newDriver("untracked.pl");
+BenchHarness::startEngine();
+foreach my $mode (qw(find reconcile find+engine)) {
+    my ( $engine, $p4Engine ) = split( /\+/, $mode );
+    my $work = File::Temp->newdir( "untracked_XXXXX", TMPDIR => 1 );
+    my $root = "$work/ws";
+    populate($root);
+    $ENV{BENCH_ROOT} = $root;
+
+    my $opts = {
+        P4PORT             => "fake:1666",
+        temp_client        => "bench-client",
+        dest               => $root,
+        deleteFilesEngine  => $engine,
+        deleteFilesWorkers => 4,
+        ( $p4Engine ? ( engineClasspath => "bench" ) : () ),
+    };
+    $driver->setupP4($opts);
+    chdir("$work");
+    my $metrics = BenchHarness::measure( sub { $driver->deleteUntrackedFiles($opts); } );
+    $left{$mode} = remaining($root);
+    printf( "%-12s files=%d elapsed=%.3fs p4 spawns=%d engine commands=%d\n",
+        $mode, ( $dirs + 1 ) * $files, $metrics->{elapsed}, $metrics->{spawns}, $metrics->{engine} );
+    chdir("/");
+}
+
+if ( $left{find} ne $left{reconcile} || $left{find} ne $left{"find+engine"} ) {
+    print "MISMATCH: the engines left different files behind\n";
+    exit(1);
+}
+print "Workspaces identical\n";
+exit(0);